@@ -33,11 +33,25 @@ import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
 import com.googlecode.eyesfree.braille.display.Display;
+import com.googlecode.eyesfree.braille.display.DisplayTrace;
+import com.googlecode.eyesfree.braille.translate.BrailleTranslator;
 import com.googlecode.eyesfree.brailleback.rule.BrailleRuleRepository;
 import com.googlecode.eyesfree.brailleback.utils.PreferenceUtils;
 import com.googlecode.eyesfree.labeling.CustomLabelManager;
 import com.googlecode.eyesfree.labeling.PackageRemovalReceiver;
+import com.googlecode.eyesfree.utils.BasePackageMonitor;
+import com.googlecode.eyesfree.utils.ClassLoadingManager;
 import com.googlecode.eyesfree.utils.LogUtils;
+import com.googlecode.eyesfree.utils.NodeLifecycleTracker;
+import com.googlecode.eyesfree.utils.NodeTreeMirror;
+import com.googlecode.eyesfree.utils.TraversalOrderIndex;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
 
 /**
  * An accessibility service that provides feedback through a braille
@@ -54,6 +68,9 @@ public class BrailleBackService
     /** Start the service, initializing a few components. */
     private static final int WHAT_START = 2;
 
+  /** File in the files directory that display recordings are written to. */
+  private static final String DISPLAY_RECORDING_NAME = "display-recording.bin";
+
     // Braille dot bit pattern constants.
     public static final int DOT1 = 0x01;
     public static final int DOT2 = 0x02;
@@ -71,9 +88,21 @@ public class BrailleBackService
   private FeedbackManager feedbackManager;
   private TranslatorManager translatorManager;
   private DisplayManager displayManager;
+  /** Records the display pipeline when turned on through dumpsys. */
+  private DisplayRecorder displayRecorder;
+  /** Guards {@link #replayThread} and {@link #lastReplayReport}. */
+  private final Object replayLock = new Object();
+  /** Runs the replay started through dumpsys, if any. */
+  private Thread replayThread;
+  private String lastReplayReport;
+  private DefaultNavigationMode defaultNavigationMode;
   private SelfBrailleManager selfBrailleManager;
+  private NodeTreeMirror nodeTreeMirror;
+  private TraversalOrderIndex traversalOrderIndex;
   private NodeBrailler nodeBrailler;
   private BrailleRuleRepository ruleRepository;
+  /** Invalidates what the rule repository caches about updated packages. */
+  private BasePackageMonitor rulePackageMonitor;
   private FocusTracker focusTracker;
   private IMEHelper imeHelper;
   private ModeSwitcher modeSwitcher;
@@ -124,6 +153,20 @@ public class BrailleBackService
     @Override
     public void onMappedInputEvent(BrailleInputEvent event,
             DisplayManager.Content content) {
+    // Content set while handling the event is traced as answering it.
+    long traceId = event.getTraceId();
+    long previousTraceId = DisplayTrace.setCurrentId(traceId);
+    boolean traced = DisplayTrace.begin("BrailleBackService.onMappedInputEvent", traceId);
+    try {
+      handleMappedInputEvent(event, content);
+    } finally {
+      DisplayTrace.end("BrailleBackService.onMappedInputEvent", traceId, traced);
+      DisplayTrace.setCurrentId(previousTraceId);
+    }
+    }
+
+    private void handleMappedInputEvent(BrailleInputEvent event,
+            DisplayManager.Content content) {
     if (modeSwitcher == null) {
             return;
         }
@@ -269,17 +312,213 @@ public class BrailleBackService
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
-        LogUtils.log(this, Log.VERBOSE, "Event: %s", event.toString());
-        LogUtils.log(this, Log.VERBOSE, "Node: %s", event.getSource());
-    if (modeSwitcher != null) {
-      modeSwitcher.onObserveAccessibilityEvent(event);
-      modeSwitcher.onAccessibilityEvent(event);
+    long traceId = DisplayTrace.newId();
+    long previousTraceId = DisplayTrace.setCurrentId(traceId);
+    boolean traced = DisplayTrace.begin("BrailleBackService.onAccessibilityEvent", traceId);
+    // The source is fetched from the application, so it's fetched once here
+    // for all the caches that need it.
+    AccessibilityNodeInfo source = event.getSource();
+    try {
+      LogUtils.log(this, Log.VERBOSE, "Event: %s", event.toString());
+      LogUtils.log(this, Log.VERBOSE, "Node: %s", source);
+      if (nodeTreeMirror != null) {
+        nodeTreeMirror.onAccessibilityEvent(event, source);
+      }
+      if (traversalOrderIndex != null) {
+        traversalOrderIndex.onAccessibilityEvent(event, source);
+      }
+      if (nodeBrailler != null) {
+        nodeBrailler.onAccessibilityEvent(event, source);
+      }
+      if (modeSwitcher != null) {
+        modeSwitcher.onObserveAccessibilityEvent(event);
+        modeSwitcher.onAccessibilityEvent(event);
+      }
+      if (labelManager != null) {
+        labelManager.onAccessibilityEvent(event, source);
+      }
+    } finally {
+      if (source != null) {
+        source.recycle();
+      }
+      DisplayTrace.end("BrailleBackService.onAccessibilityEvent", traceId, traced);
+      DisplayTrace.setCurrentId(previousTraceId);
+    }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        if (DisplayTrace.dumpsys(writer, args)) {
+            return;
         }
-    if (labelManager != null) {
-      labelManager.onAccessibilityEvent(event);
+        if (NodeLifecycleTracker.dumpsys(writer, args)) {
+            return;
         }
+    if (args != null && args.length > 0 && "record".equals(args[0])) {
+      dumpRecord(writer, args);
+      return;
+    }
+    if (args != null && args.length > 0 && "replay".equals(args[0])) {
+      dumpReplay(writer, args);
+      return;
+    }
+    DisplayManager manager = displayManager;
+    if (manager != null) {
+      manager.dump(writer);
+    }
+    DefaultNavigationMode navigationMode = defaultNavigationMode;
+    if (navigationMode != null) {
+      navigationMode.dump(writer);
+    }
+    NodeTreeMirror mirror = nodeTreeMirror;
+    if (mirror != null) {
+      mirror.dump(writer);
+    }
+    TraversalOrderIndex index = traversalOrderIndex;
+    if (index != null) {
+      index.dump(writer);
+    }
+    CustomLabelManager labels = labelManager;
+    if (labels != null) {
+      labels.dump(writer);
+    }
+    if (NodeLifecycleTracker.isEnabled()) {
+      NodeLifecycleTracker.dump(writer);
+    }
+        super.dump(fd, writer, args);
     }
 
+  /**
+   * Handles {@code record start} and {@code record stop}, which record what is sent to the display
+   * to a file that can be replayed with {@link #dumpReplay}.  Since the recording contains all the
+   * text shown on the display, recording is only available in debug builds.
+   */
+  private void dumpRecord(PrintWriter writer, String[] args) {
+    DisplayManager manager = displayManager;
+    if (manager == null) {
+      writer.println("Display not running");
+      return;
+    }
+    File file = new File(getFilesDir(), DISPLAY_RECORDING_NAME);
+    try {
+      if (args.length > 1 && "start".equals(args[1])) {
+        if (!BuildConfig.DEBUG) {
+          writer.println("Recording is only available in debug builds");
+          return;
+        }
+        stopRecording(manager);
+        displayRecorder = new DisplayRecorder(new FileOutputStream(file));
+        manager.setPipelineObserver(displayRecorder);
+        writer.println("Recording to " + file);
+      } else if (args.length > 1 && "stop".equals(args[1])) {
+        DisplayRecorder recorder = stopRecording(manager);
+        if (recorder != null) {
+          writer.printf("Recorded %d entries to %s\n", recorder.getEntryCount(), file);
+        } else {
+          writer.println("Not recording");
+        }
+      } else {
+        writer.println("Usage: record start|stop");
+      }
+    } catch (IOException ex) {
+      writer.println("Recording failed: " + ex);
+    }
+  }
+
+  private DisplayRecorder stopRecording(DisplayManager manager) throws IOException {
+    DisplayRecorder recorder = displayRecorder;
+    if (recorder != null) {
+      manager.setPipelineObserver(null);
+      displayRecorder = null;
+      recorder.close();
+    }
+    return recorder;
+  }
+
+  /**
+   * Handles {@code replay <recording> [<golden>]}, which starts replaying a recording with the
+   * current translator on a thread of its own, and {@code replay}, which prints the report of the
+   * last replay.  The report has the frame latencies, and compares the frames with
+   * the golden recording, or with the frames in the replayed recording if none is given.  The
+   * replayed frames are saved next to the recording so that they can be used as golden output.
+   * Relative file names are resolved in the files directory.
+   */
+  private void dumpReplay(PrintWriter writer, String[] args) {
+    synchronized (replayLock) {
+      if (args.length < 2) {
+        if (replayThread != null) {
+          writer.println("Replay running");
+        } else if (lastReplayReport != null) {
+          writer.print(lastReplayReport);
+        } else {
+          writer.println("Usage: replay [<recording> [<golden>]]");
+        }
+        return;
+      }
+      if (replayThread != null) {
+        writer.println("Replay already running");
+        return;
+      }
+      if (translatorManager == null || translatorManager.getTranslator() == null) {
+        writer.println("No translator available");
+        return;
+      }
+      final BrailleTranslator translator = translatorManager.getTranslator();
+      final File recordingFile = resolveDumpFile(args[1]);
+      final File goldenFile = args.length > 2 ? resolveDumpFile(args[2]) : null;
+      replayThread =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  String report = replayRecording(translator, recordingFile, goldenFile);
+                  synchronized (replayLock) {
+                    lastReplayReport = report;
+                    replayThread = null;
+                  }
+                }
+              },
+              "DisplayReplay");
+      replayThread.start();
+      writer.println("Replaying " + recordingFile + ", run replay again for the report");
+    }
+  }
+
+  /** Replays {@code recordingFile} and returns the report.  Called on the replay thread. */
+  private String replayRecording(
+      BrailleTranslator translator, File recordingFile, File goldenFile) {
+    StringWriter report = new StringWriter();
+    PrintWriter writer = new PrintWriter(report);
+    try {
+      DisplayRecording recording = DisplayRecording.read(recordingFile);
+      List<byte[]> golden =
+          goldenFile != null
+              ? DisplayRecording.read(goldenFile).getFrames()
+              : recording.getFrames();
+      DisplayReplayer replayer =
+          new DisplayReplayer(
+              translator, new DisplayManager.ServicePreferences(this), new VirtualNodeFactory(this));
+      DisplayReplayer.Result result =
+          replayer.replay(recording, new ReplayDisplay(recording.getNumTextCells()));
+      result.printReport(writer, golden);
+      File replayed = new File(recordingFile.getPath() + ".replayed");
+      result.writeFrames(replayed);
+      writer.println("Replayed frames written to " + replayed);
+    } catch (IOException ex) {
+      writer.println("Replay failed: " + ex);
+    } catch (InterruptedException ex) {
+      writer.println("Replay interrupted: " + ex.getMessage());
+    }
+    writer.flush();
+    return report.toString();
+  }
+
+  private File resolveDumpFile(String name) {
+    File file = new File(name);
+    return file.isAbsolute() ? file : new File(getFilesDir(), name);
+  }
+
     @Override
     public void onInterrupt() {
         // Nothing to interrupt.
@@ -328,11 +567,32 @@ public class BrailleBackService
     private void initializeDependencies() {
         // Must initialize label manager before navigation modes.
         initializeLabelManager();
+    ClassLoadingManager.getInstance().init(this);
     feedbackManager = new FeedbackManager(this);
     translatorManager = new TranslatorManager(this);
     selfBrailleManager = new SelfBrailleManager();
+    nodeTreeMirror = new NodeTreeMirror();
+    NodeTreeMirror.setInstance(nodeTreeMirror);
+    traversalOrderIndex = new TraversalOrderIndex();
+    TraversalOrderIndex.setInstance(traversalOrderIndex);
     ruleRepository = new BrailleRuleRepository(this);
+    rulePackageMonitor = new RulePackageMonitor(ruleRepository);
+    rulePackageMonitor.register(this);
     nodeBrailler = new NodeBrailler(this, ruleRepository, selfBrailleManager);
+    if (labelManager != null) {
+      // Cached formatting includes label texts, which load and change
+      // asynchronously.
+      labelManager.addOnLabelsChangedListener(
+          new CustomLabelManager.OnLabelsChangedListener() {
+            @Override
+            public void onLabelsChanged() {
+              NodeBrailler brailler = nodeBrailler;
+              if (brailler != null) {
+                brailler.invalidateAll();
+              }
+            }
+          });
+    }
         initializeDisplayManager();
         initializeNavigationMode();
     imeHelper = new IMEHelper(this);
@@ -383,7 +643,7 @@ public class BrailleBackService
     }
 
     private void initializeNavigationMode() {
-    DefaultNavigationMode defaultNavigationMode =
+    defaultNavigationMode =
         new DefaultNavigationMode(
             displayManager,
             this,
@@ -430,6 +690,11 @@ public class BrailleBackService
 
     private void shutdownDependencies() {
     if (displayManager != null) {
+      try {
+        stopRecording(displayManager);
+      } catch (IOException ex) {
+        LogUtils.log(this, Log.ERROR, "Error closing display recording: %s", ex.toString());
+      }
       displayManager.shutdown();
       displayManager = null;
         }
@@ -451,6 +716,21 @@ public class BrailleBackService
       unregisterReceiver(packageReceiver);
       packageReceiver = null;
         }
+    if (rulePackageMonitor != null) {
+      rulePackageMonitor.unregister();
+      rulePackageMonitor = null;
+    }
+    ClassLoadingManager.getInstance().shutdown();
+    if (nodeTreeMirror != null) {
+      NodeTreeMirror.setInstance(null);
+      nodeTreeMirror.clear();
+      nodeTreeMirror = null;
+    }
+    if (traversalOrderIndex != null) {
+      TraversalOrderIndex.setInstance(null);
+      traversalOrderIndex.clear();
+      traversalOrderIndex = null;
+    }
 
         BrailleIME.setSingletonHost(null);
     }
@@ -481,6 +761,38 @@ public class BrailleBackService
     public void invalidateNode(AccessibilityNodeInfo node) {
         AccessibilityNodeInfoCompat wrapped =
                 new AccessibilityNodeInfoCompat(node);
+    if (nodeTreeMirror != null) {
+      nodeTreeMirror.invalidate(wrapped, true);
+    }
+    if (traversalOrderIndex != null) {
+      traversalOrderIndex.invalidate(wrapped);
+    }
+    if (nodeBrailler != null) {
+      nodeBrailler.invalidateNode(wrapped);
+    }
     modeSwitcher.onInvalidateAccessibilityNode(wrapped);
     }
+
+  private static class RulePackageMonitor extends BasePackageMonitor {
+    private final BrailleRuleRepository ruleRepository;
+
+    public RulePackageMonitor(BrailleRuleRepository ruleRepositoryArg) {
+      ruleRepository = ruleRepositoryArg;
+    }
+
+    @Override
+    protected void onPackageAdded(String packageName) {
+      ruleRepository.invalidatePackage(packageName);
+    }
+
+    @Override
+    protected void onPackageRemoved(String packageName) {
+      ruleRepository.invalidatePackage(packageName);
+    }
+
+    @Override
+    protected void onPackageChanged(String packageName) {
+      ruleRepository.invalidatePackage(packageName);
+    }
+  }
 }
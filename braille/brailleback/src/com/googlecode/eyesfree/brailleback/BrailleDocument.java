@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.support.v4.util.Pools;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.text.Spanned;
+import android.text.TextUtils;
+import com.googlecode.eyesfree.utils.NodeLifecycleTracker;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Text to put on the braille display, together with the spans that
+ * {@link DisplayManager} cares about: selections, focus, verbatim braille and
+ * accessibility nodes.
+ *
+ * Text is stored in a single character buffer and spans in parallel arrays,
+ * so that formatting a node tree appends to one document instead of copying
+ * text and spans at every level of the tree.  Text can only be appended,
+ * except that the end can be truncated (to undo appending content that
+ * turned out to be empty) and text can be prepended (for decorating a
+ * document that is already formatted).  Spans have fixed positions and don't
+ * grow when text is appended next to them.
+ *
+ * This class implements {@link Spanned} so that it can be used where
+ * display content is expected to be spanned text.  Accessibility nodes added
+ * as spans are owned by the document and recycled by {@link #recycle}.
+ *
+ * Documents are pooled; get one with {@link #obtain} and call
+ * {@link #recycle} when it is no longer used.  Instances are not
+ * thread-safe.
+ */
+public class BrailleDocument implements Spanned {
+    public static final int SPAN_SELECTION = 1;
+    public static final int SPAN_FOCUS = 2;
+    public static final int SPAN_BRAILLE = 3;
+    public static final int SPAN_NODE = 4;
+
+    private static final int MAX_POOL_SIZE = 8;
+    private static final int INITIAL_TEXT_CAPACITY = 64;
+    private static final int INITIAL_SPAN_CAPACITY = 8;
+    /** Larger buffers are not kept when the document goes back to the pool. */
+    private static final int MAX_RETAINED_TEXT_CAPACITY = 4096;
+    private static final int MAX_RETAINED_SPAN_CAPACITY = 256;
+
+    private static final Pools.SynchronizedPool<BrailleDocument> sPool =
+            new Pools.SynchronizedPool<BrailleDocument>(MAX_POOL_SIZE);
+
+    private char[] mText = new char[INITIAL_TEXT_CAPACITY];
+    private int mLength = 0;
+
+    private int[] mSpanTypes = new int[INITIAL_SPAN_CAPACITY];
+    private int[] mSpanStarts = new int[INITIAL_SPAN_CAPACITY];
+    private int[] mSpanEnds = new int[INITIAL_SPAN_CAPACITY];
+    /**
+     * Span objects.  For selection and focus spans, marker objects are only
+     * created when requested through the {@link Spanned} interface.
+     */
+    private Object[] mSpanObjects = new Object[INITIAL_SPAN_CAPACITY];
+    private int mSpanCount = 0;
+
+    /**
+     * Returns an empty document, reusing a recycled one if available.
+     */
+    public static BrailleDocument obtain() {
+        BrailleDocument document = sPool.acquire();
+        return document != null ? document : new BrailleDocument();
+    }
+
+    /**
+     * Returns a document containing {@code text} without any spans.
+     */
+    public static BrailleDocument obtain(CharSequence text) {
+        return obtain().append(text);
+    }
+
+    /**
+     * Recycles the accessibility nodes owned by this document, clears it
+     * and returns it to the pool.  The document may not be used after
+     * calling this method.
+     */
+    public void recycle() {
+        clear();
+        if (mText.length > MAX_RETAINED_TEXT_CAPACITY) {
+            mText = new char[INITIAL_TEXT_CAPACITY];
+        }
+        if (mSpanTypes.length > MAX_RETAINED_SPAN_CAPACITY) {
+            mSpanTypes = new int[INITIAL_SPAN_CAPACITY];
+            mSpanStarts = new int[INITIAL_SPAN_CAPACITY];
+            mSpanEnds = new int[INITIAL_SPAN_CAPACITY];
+            mSpanObjects = new Object[INITIAL_SPAN_CAPACITY];
+        }
+        sPool.release(this);
+    }
+
+    /**
+     * Removes all text and spans, recycling owned accessibility nodes.
+     */
+    public void clear() {
+        truncate(0);
+    }
+
+    public BrailleDocument append(CharSequence text) {
+        if (text == null) {
+            return this;
+        }
+        int length = text.length();
+        ensureTextCapacity(mLength + length);
+        TextUtils.getChars(text, 0, length, mText, mLength);
+        mLength += length;
+        return this;
+    }
+
+    public BrailleDocument append(char c) {
+        ensureTextCapacity(mLength + 1);
+        mText[mLength++] = c;
+        return this;
+    }
+
+    /**
+     * Appends the text and spans of {@code other}.  Node spans are copied,
+     * so {@code other} keeps ownership of its nodes.
+     */
+    public BrailleDocument appendDocument(BrailleDocument other) {
+        int offset = mLength;
+        ensureTextCapacity(mLength + other.mLength);
+        System.arraycopy(other.mText, 0, mText, mLength, other.mLength);
+        mLength += other.mLength;
+        for (int i = 0; i < other.mSpanCount; ++i) {
+            addSpan(other.mSpanTypes[i], other.mSpanStarts[i] + offset,
+                    other.mSpanEnds[i] + offset, copySpanObject(other, i));
+        }
+        return this;
+    }
+
+    /**
+     * Returns a new document with the text of this document from
+     * {@code start} on and the spans added at or after span index
+     * {@code fromSpan}, which must all be within that text.  Node spans are
+     * copied.
+     */
+    public BrailleDocument copyTail(int start, int fromSpan) {
+        BrailleDocument copy = obtain();
+        copy.ensureTextCapacity(mLength - start);
+        System.arraycopy(mText, start, copy.mText, 0, mLength - start);
+        copy.mLength = mLength - start;
+        for (int i = fromSpan; i < mSpanCount; ++i) {
+            copy.addSpan(mSpanTypes[i], mSpanStarts[i] - start,
+                    mSpanEnds[i] - start, copySpanObject(this, i));
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the object to use for a copy of a span of {@code document}.
+     * Selection and focus markers are recreated on demand, braille spans
+     * are immutable and can be shared and nodes are copied.
+     */
+    private static Object copySpanObject(BrailleDocument document,
+            int index) {
+        switch (document.mSpanTypes[index]) {
+            case SPAN_BRAILLE:
+                return document.mSpanObjects[index];
+            case SPAN_NODE:
+                return NodeLifecycleTracker.obtain(
+                        (AccessibilityNodeInfoCompat)
+                        document.mSpanObjects[index]);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Inserts {@code text} at the beginning of the document, moving all
+     * existing spans.
+     */
+    public BrailleDocument prepend(CharSequence text) {
+        int length = text.length();
+        ensureTextCapacity(mLength + length);
+        System.arraycopy(mText, 0, mText, length, mLength);
+        TextUtils.getChars(text, 0, length, mText, 0);
+        mLength += length;
+        for (int i = 0; i < mSpanCount; ++i) {
+            mSpanStarts[i] += length;
+            mSpanEnds[i] += length;
+        }
+        return this;
+    }
+
+    /**
+     * Shortens the document to {@code length} characters.  Spans that start
+     * at or after {@code length} are removed, and spans that extend past it
+     * are shortened.
+     */
+    public void truncate(int length) {
+        if (length > mLength) {
+            throw new IndexOutOfBoundsException(
+                    "Can't truncate to " + length + ", length " + mLength);
+        }
+        mLength = length;
+        int kept = 0;
+        for (int i = 0; i < mSpanCount; ++i) {
+            int start = mSpanStarts[i];
+            if (start >= length) {
+                if (mSpanTypes[i] == SPAN_NODE) {
+                    NodeLifecycleTracker.recycle(
+                            (AccessibilityNodeInfoCompat) mSpanObjects[i]);
+                }
+                mSpanObjects[i] = null;
+                continue;
+            }
+            mSpanTypes[kept] = mSpanTypes[i];
+            mSpanStarts[kept] = start;
+            mSpanEnds[kept] = Math.min(mSpanEnds[i], length);
+            mSpanObjects[kept] = mSpanObjects[i];
+            if (kept != i) {
+                mSpanObjects[i] = null;
+            }
+            ++kept;
+        }
+        mSpanCount = kept;
+    }
+
+    /**
+     * Marks a portion of the document as containing text selection.  If
+     * {@code start} and {@code end} are equal, then the span marks a cursor.
+     */
+    public void addSelection(int start, int end) {
+        // Keep start and end in order, as with DisplaySpans.addSelection().
+        if (end < start) {
+            int oldStart = start;
+            start = end;
+            end = oldStart;
+        }
+        addSpan(SPAN_SELECTION, start, end, null);
+    }
+
+    /**
+     * Marks a portion of the document as having focus.
+     */
+    public void addFocus(int start, int end) {
+        addSpan(SPAN_FOCUS, start, end, null);
+    }
+
+    /**
+     * Marks a portion of the document as being represented by the cells in
+     * {@code buffer} from [0, position).
+     *
+     * @see DisplaySpans#addBraille
+     */
+    public void addBraille(int start, int end, ByteBuffer buffer) {
+        addSpan(SPAN_BRAILLE, start, end, new DisplaySpans.BrailleSpan(buffer));
+    }
+
+    /**
+     * Marks a portion of the document as containing the content coming from
+     * {@code node}.  A copy of {@code node} is stored and owned by the
+     * document.
+     */
+    public void addNode(int start, int end, AccessibilityNodeInfoCompat node) {
+        addSpan(SPAN_NODE, start, end, NodeLifecycleTracker.obtain(node));
+    }
+
+    private void addSpan(int type, int start, int end, Object object) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException(
+                    "Span [" + start + ", " + end + ") outside length "
+                    + mLength);
+        }
+        if (mSpanCount == mSpanTypes.length) {
+            int newCapacity = mSpanCount * 2;
+            mSpanTypes = Arrays.copyOf(mSpanTypes, newCapacity);
+            mSpanStarts = Arrays.copyOf(mSpanStarts, newCapacity);
+            mSpanEnds = Arrays.copyOf(mSpanEnds, newCapacity);
+            mSpanObjects = Arrays.copyOf(mSpanObjects, newCapacity);
+        }
+        mSpanTypes[mSpanCount] = type;
+        mSpanStarts[mSpanCount] = start;
+        mSpanEnds[mSpanCount] = end;
+        mSpanObjects[mSpanCount] = object;
+        ++mSpanCount;
+    }
+
+    private void ensureTextCapacity(int capacity) {
+        if (capacity > mText.length) {
+            mText = Arrays.copyOf(mText,
+                    Math.max(capacity, mText.length * 2));
+        }
+    }
+
+    /** Returns the number of spans, in the order they were added. */
+    public int getSpanCount() {
+        return mSpanCount;
+    }
+
+    /** Returns the type of a span, one of the {@code SPAN_} constants. */
+    public int getSpanType(int index) {
+        return mSpanTypes[index];
+    }
+
+    public int getSpanStart(int index) {
+        return mSpanStarts[index];
+    }
+
+    public int getSpanEnd(int index) {
+        return mSpanEnds[index];
+    }
+
+    /**
+     * Returns the object of a span: a {@link DisplaySpans.BrailleSpan} for
+     * braille spans and an {@link AccessibilityNodeInfoCompat}, still owned
+     * by this document, for node spans.
+     */
+    public Object getSpanObject(int index) {
+        return getOrCreateSpanObject(index);
+    }
+
+    /**
+     * Returns {@code true} if any span of {@code type} was added at
+     * or after span index {@code fromSpan}.
+     */
+    public boolean hasSpanSince(int type, int fromSpan) {
+        for (int i = fromSpan; i < mSpanCount; ++i) {
+            if (mSpanTypes[i] == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the last span of {@code type} added at or after
+     * span index {@code fromSpan}, or {@code -1} if there is none.
+     */
+    public int lastSpanSince(int type, int fromSpan) {
+        for (int i = mSpanCount - 1; i >= fromSpan; --i) {
+            if (mSpanTypes[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the start of the first node span that is
+     * {@link Object#equals} to {@code node}, or {@code -1} if there is none.
+     */
+    public int getNodeSpanStart(AccessibilityNodeInfoCompat node) {
+        for (int i = 0; i < mSpanCount; ++i) {
+            if (mSpanTypes[i] == SPAN_NODE && node.equals(mSpanObjects[i])) {
+                return mSpanStarts[i];
+            }
+        }
+        return -1;
+    }
+
+    private Object getOrCreateSpanObject(int index) {
+        Object object = mSpanObjects[index];
+        if (object == null) {
+            switch (mSpanTypes[index]) {
+                case SPAN_SELECTION:
+                    object = new DisplaySpans.SelectionSpan();
+                    break;
+                case SPAN_FOCUS:
+                    object = new DisplaySpans.FocusSpan();
+                    break;
+                default:
+                    throw new IllegalStateException(
+                            "Span without object: " + mSpanTypes[index]);
+            }
+            mSpanObjects[index] = object;
+        }
+        return object;
+    }
+
+    private int indexOfSpan(Object tag) {
+        for (int i = 0; i < mSpanCount; ++i) {
+            if (mSpanObjects[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean spanMatches(int index, int start, int end,
+            Class<?> kind) {
+        int spanStart = mSpanStarts[index];
+        int spanEnd = mSpanEnds[index];
+        // Same overlap rules as SpannableStringBuilder.
+        if (spanStart > end || spanEnd < start) {
+            return false;
+        }
+        if (spanStart != spanEnd && start != end
+                && (spanStart == end || spanEnd == start)) {
+            return false;
+        }
+        return kind == null || kind.isInstance(getOrCreateSpanObject(index));
+    }
+
+    // Spanned
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int start, int end, Class<T> kind) {
+        int count = 0;
+        for (int i = 0; i < mSpanCount; ++i) {
+            if (spanMatches(i, start, end, kind)) {
+                ++count;
+            }
+        }
+        T[] result = (T[]) Array.newInstance(
+                kind != null ? kind : Object.class, count);
+        int j = 0;
+        for (int i = 0; i < mSpanCount; ++i) {
+            if (spanMatches(i, start, end, kind)) {
+                // Selection and focus spans are created on first use, which
+                // spanMatches skips when any kind matches.
+                result[j++] = (T) getOrCreateSpanObject(i);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getSpanStart(Object tag) {
+        int index = indexOfSpan(tag);
+        return index >= 0 ? mSpanStarts[index] : -1;
+    }
+
+    @Override
+    public int getSpanEnd(Object tag) {
+        int index = indexOfSpan(tag);
+        return index >= 0 ? mSpanEnds[index] : -1;
+    }
+
+    @Override
+    public int getSpanFlags(Object tag) {
+        int index = indexOfSpan(tag);
+        if (index < 0) {
+            return 0;
+        }
+        if (mSpanTypes[index] == SPAN_SELECTION
+                && mSpanStarts[index] == mSpanEnds[index]) {
+            return SPAN_EXCLUSIVE_INCLUSIVE;
+        }
+        return SPAN_EXCLUSIVE_EXCLUSIVE;
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class kind) {
+        for (int i = 0; i < mSpanCount; ++i) {
+            if (kind != null && !kind.isInstance(getOrCreateSpanObject(i))) {
+                continue;
+            }
+            int spanStart = mSpanStarts[i];
+            int spanEnd = mSpanEnds[i];
+            if (spanStart > start && spanStart < limit) {
+                limit = spanStart;
+            }
+            if (spanEnd > start && spanEnd < limit) {
+                limit = spanEnd;
+            }
+        }
+        return limit;
+    }
+
+    // CharSequence
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException(
+                    "Index " + index + ", length " + mLength);
+        }
+        return mText[index];
+    }
+
+    /**
+     * Returns the characters in {@code [start, end)} as a {@link String},
+     * without spans.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException(
+                    "[" + start + ", " + end + "), length " + mLength);
+        }
+        return new String(mText, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mText, 0, mLength);
+    }
+}
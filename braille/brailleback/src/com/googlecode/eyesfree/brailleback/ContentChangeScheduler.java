@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.SparseArray;
+import java.io.PrintWriter;
+
+/**
+ * Coalesces window content changes, so that a window that changes all the
+ * time, for example because of a progress bar, clock or animation, doesn't
+ * cause the display content to be recreated for every change.
+ *
+ * A change is handled after a delay that is kept for each window.  Further
+ * changes in the same window before that are coalesced with the pending one.
+ * The delay adapts to how busy the window is: it is doubled, up to a
+ * maximum, when changes were coalesced during the delay and halved, down to
+ * a minimum, when they weren't.
+ *
+ * All methods must be called on the thread that created the object, which
+ * is also where the callback is called.
+ */
+class ContentChangeScheduler {
+    private static final long MIN_DELAY_MILLIS = 20;
+    private static final long MAX_DELAY_MILLIS = 320;
+    /** Windows whose delay is remembered, beyond the ones with changes. */
+    private static final int MAX_WINDOWS = 8;
+
+    /** Called when the content of a window should be handled. */
+    interface Callback {
+        void onContentChanged(int windowId);
+    }
+
+    private static class WindowState {
+        long delayMillis = MIN_DELAY_MILLIS;
+        boolean pending;
+        boolean coalesced;
+    }
+
+    private final Callback mCallback;
+    private final ChangeHandler mHandler = new ChangeHandler();
+    private final SparseArray<WindowState> mWindows =
+            new SparseArray<WindowState>();
+
+    private int mHandledCount = 0;
+    private int mCoalescedCount = 0;
+    private int mSkippedCount = 0;
+    private int mFlushedCount = 0;
+
+    public ContentChangeScheduler(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Returns {@code true} if a change in the window {@code windowId} is
+     * waiting to be handled, in which case further changes in that window
+     * are coalesced without further checks.
+     */
+    public boolean isPending(int windowId) {
+        WindowState state = mWindows.get(windowId);
+        return state != null && state.pending;
+    }
+
+    /**
+     * Schedules the content of {@code windowId} to be handled, unless it
+     * already is.
+     */
+    public void onContentChanged(int windowId) {
+        WindowState state = mWindows.get(windowId);
+        if (state == null) {
+            state = new WindowState();
+            trimWindows();
+            mWindows.put(windowId, state);
+        }
+        if (state.pending) {
+            state.coalesced = true;
+            ++mCoalescedCount;
+            return;
+        }
+        state.pending = true;
+        mHandler.sendMessageDelayed(
+                mHandler.obtainMessage(ChangeHandler.MSG_CONTENT_CHANGED,
+                        windowId, 0),
+                state.delayMillis);
+    }
+
+    /**
+     * Counts a change that was dropped because it can't affect what is on
+     * the display.
+     */
+    public void onContentChangeSkipped() {
+        ++mSkippedCount;
+    }
+
+    /**
+     * Drops all pending changes.  Called when the display content is about
+     * to be recreated anyway, for example because focus moved, so that the
+     * pending changes are reflected without waiting.
+     */
+    public void flush() {
+        mHandler.removeMessages(ChangeHandler.MSG_CONTENT_CHANGED);
+        for (int i = 0; i < mWindows.size(); ++i) {
+            WindowState state = mWindows.valueAt(i);
+            if (state.pending) {
+                state.pending = false;
+                state.coalesced = false;
+                ++mFlushedCount;
+            }
+        }
+    }
+
+    /**
+     * Prints the change counts.  May be called on any thread, in which case
+     * the counts may be slightly out of date.
+     */
+    public void dump(PrintWriter writer) {
+        writer.printf("Content changes: %d handled, %d coalesced, "
+                + "%d skipped, %d flushed\n", mHandledCount, mCoalescedCount,
+                mSkippedCount, mFlushedCount);
+    }
+
+    private void handleContentChanged(int windowId) {
+        WindowState state = mWindows.get(windowId);
+        if (state == null || !state.pending) {
+            return;
+        }
+        if (state.coalesced) {
+            state.delayMillis = Math.min(state.delayMillis * 2,
+                    MAX_DELAY_MILLIS);
+        } else {
+            state.delayMillis = Math.max(state.delayMillis / 2,
+                    MIN_DELAY_MILLIS);
+        }
+        state.pending = false;
+        state.coalesced = false;
+        ++mHandledCount;
+        mCallback.onContentChanged(windowId);
+    }
+
+    /**
+     * Forgets the delays of idle windows when there are too many windows,
+     * since windows come and go.
+     */
+    private void trimWindows() {
+        if (mWindows.size() < MAX_WINDOWS) {
+            return;
+        }
+        for (int i = mWindows.size() - 1; i >= 0; --i) {
+            if (!mWindows.valueAt(i).pending) {
+                mWindows.removeAt(i);
+            }
+        }
+    }
+
+    private class ChangeHandler extends Handler {
+        private static final int MSG_CONTENT_CHANGED = 1;
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_CONTENT_CHANGED:
+                    handleContentChanged(msg.arg1);
+                    break;
+            }
+        }
+    }
+}
@@ -30,7 +30,9 @@ import com.googlecode.eyesfree.compat.accessibilityservice.AccessibilityServiceC
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoRef;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 import com.googlecode.eyesfree.utils.LogUtils;
+import com.googlecode.eyesfree.utils.NodeTreeMirror;
 import com.googlecode.eyesfree.utils.WebInterfaceUtils;
+import java.io.PrintWriter;
 
 /**
  * Navigation mode that is based on traversing the node tree using
@@ -58,6 +60,12 @@ class DefaultNavigationMode implements NavigationMode {
     private static final int ACTION_BRAILLE_CLICK_MAX = -275000000;
     private static final int ACTION_BRAILLE_CLICK_MIN = -275999999;
 
+    /**
+     * How far up the tree to look when checking whether a content change
+     * touches the displayed nodes.  Deeper trees are assumed to be touched.
+     */
+    private static final int MAX_ANCESTOR_DEPTH = 64;
+
     private final DisplayManager mDisplayManager;
     private final AccessibilityService mAccessibilityService;
     private final SelfBrailleManager mSelfBrailleManager;
@@ -66,8 +74,21 @@ class DefaultNavigationMode implements NavigationMode {
     private final FocusFinder mFocusFinder;
     private final BrailleRuleRepository mRuleRepository;
 
+    private final ContentChangeScheduler mContentChangeScheduler;
+
     private AccessibilityNodeInfoRef mLastFocusedNode =
             new AccessibilityNodeInfoRef();
+    /** First and last node of the content this mode last displayed. */
+    private final AccessibilityNodeInfoRef mDisplayedFirstNode =
+            new AccessibilityNodeInfoRef();
+    private final AccessibilityNodeInfoRef mDisplayedLastNode =
+            new AccessibilityNodeInfoRef();
+    /**
+     * {@link DisplayManager#getContentGeneration} of the content this mode
+     * last displayed.  When other content was set since, the displayed
+     * nodes above are out of date.
+     */
+    private int mDisplayedContentGeneration = -1;
 
     public DefaultNavigationMode(
             DisplayManager displayManager,
@@ -83,13 +104,25 @@ class DefaultNavigationMode implements NavigationMode {
         mNodeBrailler = nodeBrailler;
         mFeedbackManager = feedbackManager;
         mFocusFinder = new FocusFinder(mAccessibilityService);
+        mContentChangeScheduler = new ContentChangeScheduler(
+                new ContentChangeScheduler.Callback() {
+                    @Override
+                    public void onContentChanged(int windowId) {
+                        brailleFocusedNode();
+                    }
+                });
     }
 
     @Override
     public boolean onPanLeftOverflow(DisplayManager.Content content) {
-        return mFeedbackManager.emitOnFailure(
-            onPanLeftOverflowInternal(content),
-            FeedbackManager.TYPE_NAVIGATE_OUT_OF_BOUNDS);
+        AccessibilityNodeInfoUtils.startFocusabilityMemo();
+        try {
+            return mFeedbackManager.emitOnFailure(
+                onPanLeftOverflowInternal(content),
+                FeedbackManager.TYPE_NAVIGATE_OUT_OF_BOUNDS);
+        } finally {
+            AccessibilityNodeInfoUtils.finishFocusabilityMemo();
+        }
     }
 
     private boolean onPanLeftOverflowInternal(DisplayManager.Content content) {
@@ -134,9 +167,14 @@ class DefaultNavigationMode implements NavigationMode {
 
     @Override
     public boolean onPanRightOverflow(DisplayManager.Content content) {
-        return mFeedbackManager.emitOnFailure(
-            onPanRightOverflowInternal(content),
-            FeedbackManager.TYPE_NAVIGATE_OUT_OF_BOUNDS);
+        AccessibilityNodeInfoUtils.startFocusabilityMemo();
+        try {
+            return mFeedbackManager.emitOnFailure(
+                onPanRightOverflowInternal(content),
+                FeedbackManager.TYPE_NAVIGATE_OUT_OF_BOUNDS);
+        } finally {
+            AccessibilityNodeInfoUtils.finishFocusabilityMemo();
+        }
     }
 
     private boolean onPanRightOverflowInternal(
@@ -414,6 +452,18 @@ class DefaultNavigationMode implements NavigationMode {
     @Override
     public boolean onMappedInputEvent(BrailleInputEvent event,
             DisplayManager.Content content) {
+        // Focusability doesn't change in the middle of a command, so it is
+        // only computed once per node.
+        AccessibilityNodeInfoUtils.startFocusabilityMemo();
+        try {
+            return onMappedInputEventInternal(event, content);
+        } finally {
+            AccessibilityNodeInfoUtils.finishFocusabilityMemo();
+        }
+    }
+
+    private boolean onMappedInputEventInternal(BrailleInputEvent event,
+            DisplayManager.Content content) {
         switch (event.getCommand()) {
             case BrailleInputEvent.CMD_NAV_ITEM_PREVIOUS:
                 return itemPrevious();
@@ -437,16 +487,14 @@ class DefaultNavigationMode implements NavigationMode {
                     FeedbackManager.TYPE_COMMAND_FAILED);
             case BrailleInputEvent.CMD_ROUTE: {
                 AccessibilityNodeInfoCompat node =
-                        DisplaySpans.getAccessibilityNodeFromPosition(
-                            event.getArgument(), content.getText());
+                        content.getSpanIndex().getNodeAt(event.getArgument());
                 return mFeedbackManager.emitOnFailure(
                         activateNode(node, event.getArgument()),
                         FeedbackManager.TYPE_COMMAND_FAILED);
             }
             case BrailleInputEvent.CMD_LONG_PRESS_ROUTE: {
                 AccessibilityNodeInfoCompat node =
-                        DisplaySpans.getAccessibilityNodeFromPosition(
-                            event.getArgument(), content.getText());
+                        content.getSpanIndex().getNodeAt(event.getArgument());
                 return mFeedbackManager.emitOnFailure(
                         longClickNode(node),
                         FeedbackManager.TYPE_COMMAND_FAILED);
@@ -506,6 +554,7 @@ class DefaultNavigationMode implements NavigationMode {
 
     @Override
     public void onActivate() {
+        mContentChangeScheduler.flush();
         mLastFocusedNode.clear();
         // Braille the focused node, or if that fails, braille
         // the first focusable node.
@@ -516,6 +565,9 @@ class DefaultNavigationMode implements NavigationMode {
 
     @Override
     public void onDeactivate() {
+        mContentChangeScheduler.flush();
+        mDisplayedFirstNode.clear();
+        mDisplayedLastNode.clear();
     }
 
     @Override
@@ -527,12 +579,14 @@ class DefaultNavigationMode implements NavigationMode {
     public boolean onAccessibilityEvent(AccessibilityEvent event) {
         switch (event.getEventType()) {
             case AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED:
+                mContentChangeScheduler.flush();
                 brailleNodeFromEvent(event);
                 break;
             case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
-                brailleFocusedNode();
+                onWindowContentChanged(event);
                 break;
             case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                mContentChangeScheduler.flush();
                 if (!brailleFocusedNode()) {
                     // Since focus is typically not set in a newly opened
                     // window, so braille the window as-if the first focusable
@@ -549,9 +603,125 @@ class DefaultNavigationMode implements NavigationMode {
     @Override
     public void onInvalidateAccessibilityNode(
             AccessibilityNodeInfoCompat node) {
+        mContentChangeScheduler.flush();
         brailleFocusedNode();
     }
 
+    /**
+     * Prints statistics about how window content changes were handled.
+     */
+    public void dump(PrintWriter writer) {
+        mContentChangeScheduler.dump(writer);
+    }
+
+    /**
+     * Schedules the focused node to be brailled again after a content
+     * change, unless the change can't affect what is displayed.
+     */
+    private void onWindowContentChanged(AccessibilityEvent event) {
+        int windowId = event.getWindowId();
+        if (!mContentChangeScheduler.isPending(windowId)
+                && !isDisplayedContentAffected(event)) {
+            mContentChangeScheduler.onContentChangeSkipped();
+            return;
+        }
+        mContentChangeScheduler.onContentChanged(windowId);
+    }
+
+    /**
+     * Returns {@code true} if the subtree of the source of {@code event}
+     * may overlap the nodes on the display.  The displayed nodes are
+     * siblings from the first to the last displayed node with their
+     * subtrees, so the source overlaps them if it is an ancestor of one of
+     * them, or if it is in one of their subtrees.  To keep this cheap, a
+     * source under any sibling of the displayed nodes is treated as
+     * overlapping when more than one node is displayed.  Ancestors are
+     * looked up through the {@link NodeTreeMirror}, which usually has them
+     * already.
+     */
+    private boolean isDisplayedContentAffected(AccessibilityEvent event) {
+        if (mDisplayedContentGeneration
+                != mDisplayManager.getContentGeneration()) {
+            // Someone else put content on the display since this mode did.
+            mDisplayedFirstNode.clear();
+            mDisplayedLastNode.clear();
+        }
+        AccessibilityNodeInfoCompat first = mDisplayedFirstNode.get();
+        AccessibilityNodeInfoCompat last = mDisplayedLastNode.get();
+        if (first == null || last == null) {
+            return true;
+        }
+        if (event.getWindowId() != first.getWindowId()) {
+            return false;
+        }
+        AccessibilityNodeInfoCompat source = getNodeFromEvent(event);
+        if (source == null) {
+            return true;
+        }
+        AccessibilityNodeInfoCompat displayedParent = null;
+        AccessibilityNodeInfoCompat node = null;
+        try {
+            if (source.equals(first) || source.equals(last)) {
+                return true;
+            }
+            // Since the displayed nodes are siblings, the source is an
+            // ancestor of one of them if it is their parent or an ancestor
+            // of it.
+            displayedParent = NodeTreeMirror.getParent(first);
+            if (displayedParent != null
+                    && isSelfOrAncestor(source, displayedParent)) {
+                return true;
+            }
+            boolean severalDisplayed = !first.equals(last);
+            node = NodeTreeMirror.getParent(source);
+            for (int depth = 0; depth < MAX_ANCESTOR_DEPTH; ++depth) {
+                if (node == null) {
+                    return false;
+                }
+                if (node.equals(first) || node.equals(last)
+                        || (severalDisplayed && node.equals(displayedParent))) {
+                    return true;
+                }
+                AccessibilityNodeInfoCompat parent =
+                        NodeTreeMirror.getParent(node);
+                AccessibilityNodeInfoUtils.recycleNodes(node);
+                node = parent;
+            }
+            return true;
+        } finally {
+            AccessibilityNodeInfoUtils.recycleNodes(source, displayedParent,
+                    node);
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@code ancestor} is {@code node} or one of
+     * its ancestors, or if the tree is too deep to tell.
+     */
+    private static boolean isSelfOrAncestor(
+            AccessibilityNodeInfoCompat ancestor,
+            AccessibilityNodeInfoCompat node) {
+        if (ancestor.equals(node)) {
+            return true;
+        }
+        AccessibilityNodeInfoCompat current = NodeTreeMirror.getParent(node);
+        try {
+            for (int depth = 0; current != null && depth < MAX_ANCESTOR_DEPTH;
+                    ++depth) {
+                if (ancestor.equals(current)) {
+                    return true;
+                }
+                AccessibilityNodeInfoCompat parent =
+                        NodeTreeMirror.getParent(current);
+                AccessibilityNodeInfoUtils.recycleNodes(current);
+                current = parent;
+            }
+            return current != null;
+        } finally {
+            AccessibilityNodeInfoUtils.recycleNodes(current);
+        }
+    }
+
     private boolean moveFocus(AccessibilityNodeInfoCompat from,
             int direction) {
         int searchDirection = (direction == DIRECTION_BACKWARD)
@@ -701,10 +871,25 @@ class DefaultNavigationMode implements NavigationMode {
     }
 
     private void brailleNodeFromEvent(AccessibilityEvent event) {
-        mDisplayManager.setContent(
+        setDisplayContent(
             formatEventToBraille(event));
     }
 
+    /**
+     * Puts {@code content} on the display, remembering its first and last
+     * node so that content changes elsewhere can be ignored.
+     */
+    private void setDisplayContent(DisplayManager.Content content) {
+        AccessibilityNodeInfoCompat first = content.getFirstNode();
+        AccessibilityNodeInfoCompat last = content.getLastNode();
+        mDisplayedFirstNode.reset(first != null
+                ? AccessibilityNodeInfoCompat.obtain(first) : null);
+        mDisplayedLastNode.reset(last != null
+                ? AccessibilityNodeInfoCompat.obtain(last) : null);
+        mDisplayManager.setContent(content);
+        mDisplayedContentGeneration = mDisplayManager.getContentGeneration();
+    }
+
     private boolean brailleFocusedNode() {
         AccessibilityNodeInfoCompat focused = getFocusedNode(false);
         if (focused != null) {
@@ -715,7 +900,7 @@ class DefaultNavigationMode implements NavigationMode {
                             == DisplayManager.Content.PAN_RESET)) {
                 content.setPanStrategy(DisplayManager.Content.PAN_KEEP);
             }
-            mDisplayManager.setContent(content);
+            setDisplayContent(content);
             mLastFocusedNode.reset(focused);
             return true;
         }
@@ -750,7 +935,7 @@ class DefaultNavigationMode implements NavigationMode {
                 content.setPanStrategy(DisplayManager.Content.PAN_KEEP);
             }
             mLastFocusedNode.clear();
-            mDisplayManager.setContent(content);
+            setDisplayContent(content);
             AccessibilityNodeInfoUtils.recycleNodes(root, toBraille);
         }
     }
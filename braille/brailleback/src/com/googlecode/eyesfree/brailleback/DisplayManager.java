@@ -19,11 +19,13 @@ package com.googlecode.eyesfree.brailleback;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
@@ -32,6 +34,7 @@ import android.util.Log;
 import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
 import com.googlecode.eyesfree.braille.display.Display;
 import com.googlecode.eyesfree.braille.display.DisplayClient;
+import com.googlecode.eyesfree.braille.display.DisplayTrace;
 import com.googlecode.eyesfree.braille.translate.BrailleTranslator;
 import com.googlecode.eyesfree.braille.translate.TranslationResult;
 import com.googlecode.eyesfree.brailleback.wrapping.SimpleWrapStrategy;
@@ -40,8 +43,9 @@ import com.googlecode.eyesfree.brailleback.wrapping.WrapStrategy;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 import com.googlecode.eyesfree.utils.LogUtils;
 import com.googlecode.eyesfree.utils.SharedPreferencesUtils;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Keeps track of the current display content and handles panning.
@@ -49,8 +53,7 @@ import java.util.Comparator;
 public class DisplayManager
         implements Display.OnConnectionStateChangeListener,
                    Display.OnInputEventListener,
-                   TranslatorManager.OnTablesChangedListener,
-                   SharedPreferences.OnSharedPreferenceChangeListener {
+                   TranslatorManager.OnTablesChangedListener {
 
     /** Dot pattern used to overlay characters under a selection. */
     // TODO: Make customizable.
@@ -62,6 +65,18 @@ public class DisplayManager
     private static final long BLINK_OFF_MILLIS = 800;
     private static final long BLINK_ON_MILLIS = 600;
 
+    /**
+     * Maximum number of displayed nodes, closest to the display start first,
+     * that are looked up in new content when keeping the pan position.
+     */
+    private static final int MAX_PAN_KEEP_CANDIDATES = 16;
+
+    /**
+     * The first frame written within this time after an input event from
+     * the display is considered a response to it and is not throttled.
+     */
+    private static final long INPUT_RESPONSE_MILLIS = 1000;
+
     /**
      * Callback interface for notifying interested callers when the display is
      * panned out of the available content.  A typical reaction to such an
@@ -97,6 +112,46 @@ public class DisplayManager
         void onMappedInputEvent(BrailleInputEvent event, Content content);
     }
 
+    /**
+     * Observes what goes through the display pipeline, for recording and
+     * replaying display sessions.  All methods are called on the display
+     * handler thread and must not keep references to their arguments.
+     */
+    interface PipelineObserver {
+        /** Called when {@code content} is about to be displayed. */
+        void onContent(Content content);
+
+        /** Called when an input event is received from the display. */
+        void onInputEvent(BrailleInputEvent event);
+
+        /**
+         * Called when a frame has been composed in response to new content
+         * or panning.  {@code cells} has the overlays (cursor, focus) on.
+         */
+        void onFrameComposed(byte[] cells, CharSequence text);
+    }
+
+    /** The user preferences that affect how content is displayed. */
+    interface Preferences {
+        boolean isWordWrapEnabled();
+
+        /**
+         * Sets the listener called on the main thread when the preferences
+         * change, or {@code null} to stop listening.
+         */
+        void setOnChangeListener(Runnable listener);
+    }
+
+    /** Told when the user uses the display, to keep the device awake. */
+    interface UserActivityNotifier {
+        void onUserActivity();
+    }
+
+    /** Tells whether an input method is open, to wrap editable content. */
+    interface ImeState {
+        boolean isImeOpen();
+    }
+
     /**
      * Builder-like class used to construct the content to put on the display.
      *
@@ -160,6 +215,11 @@ public class DisplayManager
     private int contractionMode;
     private boolean splitParagraphs;
     private boolean editable = false;
+    private volatile SpanIndex spanIndex;
+    /** {@link DisplayTrace} id of the event that this content answers. */
+    private long traceId = DisplayTrace.NO_ID;
+    /** Whether this content was set while handling an input event from the display. */
+    private boolean answersInput;
 
         public Content() {
         }
@@ -171,6 +231,7 @@ public class DisplayManager
 
     public Content setText(CharSequence textArg) {
       text = textArg;
+      spanIndex = null;
             return this;
         }
 
@@ -185,6 +246,19 @@ public class DisplayManager
             return null;
         }
 
+    /**
+     * Returns the index of the spans in the text, building it on first use. The text must not be
+     * modified after this is called.
+     */
+    public SpanIndex getSpanIndex() {
+      SpanIndex index = spanIndex;
+      if (index == null) {
+        index = SpanIndex.build(text);
+        spanIndex = index;
+      }
+      return index;
+    }
+
         public Content setFirstNode(AccessibilityNodeInfoCompat node) {
       AccessibilityNodeInfoUtils.recycleNodes(firstNode);
       firstNode = AccessibilityNodeInfoCompat.obtain(node);
@@ -271,23 +345,20 @@ public class DisplayManager
             DisplaySpans.BrailleSpan brailleSpan = null;
             int start = -1;
             int end = -1;
-      if (text instanceof Spanned) {
-        Spanned spanned = (Spanned) text;
-                DisplaySpans.BrailleSpan[] spans = spanned.getSpans(
-                        0, spanned.length(), DisplaySpans.BrailleSpan.class);
-                if (spans.length > 1) {
-                    LogUtils.log(this, Log.WARN,
-                            "More than one BrailleSpan, handling first only");
-                }
-                if (spans.length != 0) {
-                    int spanStart = spanned.getSpanStart(spans[0]);
-                    int spanEnd = spanned.getSpanEnd(spans[0]);
-                    if (spans[0].braille != null && spans[0].braille.length != 0
-                            && spanStart < spanEnd) {
-                        brailleSpan = spans[0];
-                        start = spanStart;
-                        end = spanEnd;
-                    }
+            SpanIndex index = getSpanIndex();
+            if (index.getBrailleSpanCount() > 1) {
+                LogUtils.log(this, Log.WARN,
+                        "More than one BrailleSpan, handling first only");
+            }
+            if (index.getBrailleSpanCount() != 0) {
+                DisplaySpans.BrailleSpan span = index.getBrailleSpan(0);
+                int spanStart = index.getBrailleSpanStart(0);
+                int spanEnd = index.getBrailleSpanEnd(0);
+                if (span.braille != null && span.braille.length != 0
+                        && spanStart < spanEnd) {
+                    brailleSpan = span;
+                    start = spanStart;
+                    end = spanEnd;
                 }
             }
 
@@ -396,8 +467,13 @@ public class DisplayManager
         public void recycle() {
       AccessibilityNodeInfoUtils.recycleNodes(firstNode, lastNode);
       firstNode = lastNode = null;
-      DisplaySpans.recycleSpans(text);
+      if (text instanceof BrailleDocument) {
+        ((BrailleDocument) text).recycle();
+      } else {
+        DisplaySpans.recycleSpans(text);
+      }
       text = null;
+      spanIndex = null;
         }
 
         @Override
@@ -407,7 +483,11 @@ public class DisplayManager
     }
 
   private final TranslatorManager translatorManager;
-  private final BrailleBackService context;
+  /** Used instead of the translator manager when replaying, otherwise null. */
+  private final BrailleTranslator fixedTranslator;
+  private final Preferences preferences;
+  private final UserActivityNotifier userActivityNotifier;
+  private final ImeState imeState;
   // Not final, because it is initialized in the handler thread.
   private Display display;
   private final OnPanOverflowListener panOverflowListener;
@@ -416,8 +496,6 @@ public class DisplayManager
   private final DisplayHandler displayHandler;
   private final CallbackHandler callbackHandler;
   private final HandlerThread handlerThread;
-  private final PowerManager.WakeLock wakeLock;
-  private final SharedPreferences sharedPreferences;
 
   // Read and written in display handler thread only.
 
@@ -434,8 +512,8 @@ public class DisplayManager
   private TranslationResult currentTranslationResult = createEmptyTranslation(null);
   /** Display content without overlays for cursors, focus etc. */
   private byte[] brailleContent = new byte[0];
-  /** Braille content, potentially with dots overlaid for cursors and focus. */
-  private byte[] overlaidBrailleContent = brailleContent;
+  /** Overlays for cursors and focus, and the frames sent to the display. */
+  private final FrameComposer frameComposer = new FrameComposer();
 
   private boolean overlaysOn;
   private WrapStrategy wrapStrategy;
@@ -444,13 +522,35 @@ public class DisplayManager
   private Content currentContent = new Content("");
 
   // Displayed content, already trimmed based on the display position.
-  // Updated in updateDisplayedContent() and used in refresh().
-  private byte[] displayedBraille = new byte[0];
-  private byte[] displayedOverlaidBraille = new byte[0];
+  // Updated in updateDisplayedContent(boolean) and used in refresh(boolean).  The braille
+  // cells for the window are kept in frameComposer.
   private CharSequence displayedText = "";
   private int[] displayedBrailleToTextPositions = new int[0];
   private boolean blinkNeeded = false;
 
+  // Write throttling, see refresh(boolean).
+  private long lastWriteTime = 0;
+  private long lastInputEventTime = -1;
+  private int skippedFrames = 0;
+  /** {@link DisplayTrace} id of the event that the current frame answers. */
+  private long frameTraceId = DisplayTrace.NO_ID;
+  private volatile PipelineObserver pipelineObserver;
+  /**
+   * Set while the callback handler calls a listener for an input event, so that content set in
+   * response is written without throttling. Only accessed on the callback handler thread.
+   */
+  private boolean handlingInputCallback = false;
+  /** Scratch array of displayed node spans for keeping the pan position. */
+  private int[] panKeepCandidates = new int[0];
+
+  // Counters shown by dump(), written in the display handler thread.
+  private final AtomicLong contentFrames = new AtomicLong();
+  private final AtomicLong measuredContentFrames = new AtomicLong();
+  private final AtomicLong measuredContentBytes = new AtomicLong();
+  private final AtomicLong panKeepLookups = new AtomicLong();
+  /** Incremented each time content is set, see {@link #getContentGeneration}. */
+  private final AtomicInteger contentGeneration = new AtomicInteger();
+
   /**
    * Creates an instance of this class and starts the internal thread to connect to the braille
    * display service. {@code contextArg} is used to connect to the display service. {@code
@@ -458,28 +558,99 @@ public class DisplayManager
    * appropriate and on the same thread that was used to create this object. The current thread must
    * have a prepared looper.
    */
-  @SuppressLint("InvalidWakeLockTag")
   public DisplayManager(
       TranslatorManager translatorManagerArg,
-      BrailleBackService contextArg,
+      final BrailleBackService contextArg,
+      OnPanOverflowListener panOverflowListenerArg,
+      Display.OnConnectionStateChangeListener connectionStateChangeListenerArg,
+      OnMappedInputEventListener mappedInputEventListenerArg) {
+    this(
+        translatorManagerArg,
+        null,
+        null,
+        contextArg,
+        new ServicePreferences(contextArg),
+        new WakeLockNotifier(contextArg),
+        new ImeState() {
+          @Override
+          public boolean isImeOpen() {
+            return contextArg.imeNavigationMode != null
+                && contextArg.imeNavigationMode.isImeOpen();
+          }
+        },
+        panOverflowListenerArg,
+        connectionStateChangeListenerArg,
+        mappedInputEventListenerArg);
+  }
+
+  /**
+   * Creates an instance that drives {@code displayArg} instead of connecting to the display
+   * service, that always uses {@code translatorArg} and that follows {@code preferencesArg}. No
+   * input method is considered open and user activity is ignored. Used for replaying recorded
+   * display sessions, and needs no service.
+   */
+  DisplayManager(
+      BrailleTranslator translatorArg,
+      Display displayArg,
+      Preferences preferencesArg,
+      OnPanOverflowListener panOverflowListenerArg,
+      Display.OnConnectionStateChangeListener connectionStateChangeListenerArg,
+      OnMappedInputEventListener mappedInputEventListenerArg) {
+    this(
+        null,
+        translatorArg,
+        displayArg,
+        null,
+        preferencesArg,
+        new UserActivityNotifier() {
+          @Override
+          public void onUserActivity() {}
+        },
+        new ImeState() {
+          @Override
+          public boolean isImeOpen() {
+            return false;
+          }
+        },
+        panOverflowListenerArg,
+        connectionStateChangeListenerArg,
+        mappedInputEventListenerArg);
+  }
+
+  /**
+   * {@code contextArg} is only used to connect to the display service when {@code displayArg} is
+   * {@code null}.
+   */
+  private DisplayManager(
+      TranslatorManager translatorManagerArg,
+      BrailleTranslator fixedTranslatorArg,
+      final Display displayArg,
+      final Context contextArg,
+      Preferences preferencesArg,
+      UserActivityNotifier userActivityNotifierArg,
+      ImeState imeStateArg,
       OnPanOverflowListener panOverflowListenerArg,
       Display.OnConnectionStateChangeListener connectionStateChangeListenerArg,
       OnMappedInputEventListener mappedInputEventListenerArg) {
     translatorManager = translatorManagerArg;
-    translatorManager.addOnTablesChangedListener(this);
-    context = contextArg;
+    fixedTranslator = fixedTranslatorArg;
+    if (translatorManager != null) {
+      translatorManager.addOnTablesChangedListener(this);
+    }
+    preferences = preferencesArg;
+    userActivityNotifier = userActivityNotifierArg;
+    imeState = imeStateArg;
     panOverflowListener = panOverflowListenerArg;
     connectionStateChangeListener = connectionStateChangeListenerArg;
     mappedInputEventListener = mappedInputEventListenerArg;
-    PowerManager pm = (PowerManager) contextArg.getSystemService(Context.POWER_SERVICE);
-    wakeLock =
-        pm.newWakeLock(
-            PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ON_AFTER_RELEASE, "BrailleBack");
     handlerThread =
         new HandlerThread("DisplayManager") {
           @Override
           public void onLooperPrepared() {
-            display = new OverlayDisplay(context, new DisplayClient(context));
+            display =
+                displayArg != null
+                    ? displayArg
+                    : new OverlayDisplay(contextArg, new DisplayClient(contextArg));
             display.setOnConnectionStateChangeListener(DisplayManager.this);
             display.setOnInputEventListener(DisplayManager.this);
           }
@@ -488,13 +659,18 @@ public class DisplayManager
     displayHandler = new DisplayHandler(handlerThread.getLooper());
     callbackHandler = new CallbackHandler();
 
-    sharedPreferences = PreferenceManager.getDefaultSharedPreferences(contextArg);
-    sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+    preferences.setOnChangeListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            updateWrapStrategyFromPreferences();
+          }
+        });
         updateWrapStrategyFromPreferences();
     }
 
     public void shutdown() {
-    sharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+    preferences.setOnChangeListener(null);
     displayHandler.stop();
         // Block on display shutdown. We need to make sure this finishes before
         // we can consider DisplayManager to be shut down.
@@ -504,9 +680,18 @@ public class DisplayManager
             LogUtils.log(this, Log.WARN,
                     "Display handler shutdown interrupted");
         }
-    translatorManager.removeOnTablesChangedListener(this);
+    if (translatorManager != null) {
+      translatorManager.removeOnTablesChangedListener(this);
+    }
     }
 
+  /**
+   * Sets an observer of the display pipeline, or {@code null} to remove it.
+   */
+  void setPipelineObserver(PipelineObserver observer) {
+    pipelineObserver = observer;
+  }
+
     /**
      * Asynchronously updates the display to reflect {@code content}.
      * {@code content} must not be modified after this function is called, and
@@ -519,9 +704,21 @@ public class DisplayManager
     if (content.text == null) {
             throw new NullPointerException("content text is null");
         }
+    contentGeneration.incrementAndGet();
+    content.traceId = DisplayTrace.currentId();
+    content.answersInput =
+        Looper.myLooper() == callbackHandler.getLooper() && handlingInputCallback;
     displayHandler.setContent(content);
     }
 
+  /**
+   * Returns a number that changes each time {@link #setContent} is called, so that callers can tell
+   * whether the content they set is still the latest.
+   */
+  public int getContentGeneration() {
+    return contentGeneration.get();
+  }
+
     /** Returns true if the current display is simulated. */
     public boolean isSimulatedDisplay() {
     return isSimulatedDisplay;
@@ -532,31 +729,25 @@ public class DisplayManager
      * in braille where the first selection begins. If there are no selection
      * spans, returns -1.
      */
-    private int markSelection(Spanned spanned) {
-        DisplaySpans.SelectionSpan[] spans =
-                spanned.getSpans(0, spanned.length(),
-                        DisplaySpans.SelectionSpan.class);
+    private int markSelection(SpanIndex index) {
         int selectionStart = -1;
-        for (DisplaySpans.SelectionSpan span : spans) {
+        for (int i = 0; i < index.getSelectionCount(); ++i) {
       int start =
           textToDisplayPosition(
-              currentTranslationResult, cursorPositionToTranslate, spanned.getSpanStart(span));
+              currentTranslationResult, cursorPositionToTranslate, index.getSelectionStart(i));
       int end =
           textToDisplayPosition(
-              currentTranslationResult, cursorPositionToTranslate, spanned.getSpanEnd(span));
+              currentTranslationResult, cursorPositionToTranslate, index.getSelectionEnd(i));
       if (start == -1 || end == -1) {
         return -1;
       }
             if (start == end) {
                 end = start + 1;
             }
-      if (end > brailleContent.length) {
-                extendContentForCursor();
-            }
-            copyOverlaidContent();
-      for (int i = start; i < end && i < overlaidBrailleContent.length; ++i) {
-        overlaidBrailleContent[i] |= (byte) SELECTION_DOTS;
-            }
+      // A cursor at the end of the content is shown on an extra blank
+      // cell after the last one.
+      end = Math.min(end, brailleContent.length + 1);
+      frameComposer.addOverlay(start, end, SELECTION_DOTS);
             if (selectionStart == -1) {
                 selectionStart = start;
             }
@@ -564,41 +755,19 @@ public class DisplayManager
         return selectionStart;
     }
 
-    /**
-     * Makes sure that the overlaid content has its own copy.  Call before
-     * adding overlay dots.
-     */
-    private void copyOverlaidContent() {
-    if (overlaidBrailleContent == brailleContent) {
-      overlaidBrailleContent = brailleContent.clone();
-        }
-    }
-
-    private void extendContentForCursor() {
-    brailleContent = Arrays.copyOf(brailleContent, brailleContent.length + 1);
-    // Always create a new copy of the overlaid content because there will
-    // be a cursor, so we will need a copy anyway.
-    overlaidBrailleContent =
-        Arrays.copyOf(overlaidBrailleContent, overlaidBrailleContent.length + 1);
-    }
-
     /**
      * Marks focus spans in the overlaid braille, and returns the position in
      * braille where the first focus begins. If there are no focus spans,
      * returns -1.
      */
-    private int markFocus(Spanned spanned) {
-        DisplaySpans.FocusSpan[] spans =
-                spanned.getSpans(0, spanned.length(),
-                        DisplaySpans.FocusSpan.class);
+    private int markFocus(SpanIndex index) {
         int focusStart = -1;
-        for (DisplaySpans.FocusSpan span : spans) {
+        for (int i = 0; i < index.getFocusCount(); ++i) {
       int start =
           textToDisplayPosition(
-              currentTranslationResult, cursorPositionToTranslate, spanned.getSpanStart(span));
-      if (start >= 0 && start < overlaidBrailleContent.length) {
-                copyOverlaidContent();
-        overlaidBrailleContent[start] |= (byte) FOCUS_DOTS;
+              currentTranslationResult, cursorPositionToTranslate, index.getFocusStart(i));
+      if (start >= 0 && start < brailleContent.length) {
+        frameComposer.addOverlay(start, start + 1, FOCUS_DOTS);
                 if (focusStart == -1) {
                     focusStart = start;
                 }
@@ -621,7 +790,22 @@ public class DisplayManager
 
     @Override
     public void onInputEvent(BrailleInputEvent event) {
+    boolean traced = DisplayTrace.begin("DisplayManager.onInputEvent", event.getTraceId());
+    try {
+      handleInputEvent(event);
+    } finally {
+      DisplayTrace.end("DisplayManager.onInputEvent", event.getTraceId(), traced);
+    }
+    }
+
+    private void handleInputEvent(BrailleInputEvent event) {
+    PipelineObserver observer = pipelineObserver;
+    if (observer != null) {
+      observer.onInputEvent(event);
+    }
         keepAwake();
+    lastInputEventTime = SystemClock.uptimeMillis();
+    frameTraceId = event.getTraceId();
         LogUtils.log(this, Log.VERBOSE, "InputEvent: %s", event);
         // We're called from within the handler thread, so we forward
         // the call only if we are going to invoke the user's callback.
@@ -662,7 +846,7 @@ public class DisplayManager
             // Create a new event if the argument actually differs.
             if (newArgument != oldArgument) {
                 event = new BrailleInputEvent(event.getCommand(),
-                        newArgument, event.getEventTime());
+                        newArgument, event.getEventTime(), event.getTraceId());
             }
         }
     callbackHandler.onMappedInputEvent(event);
@@ -670,7 +854,8 @@ public class DisplayManager
 
     private void panLeft() {
     if (wrapStrategy.panLeft()) {
-            updateDisplayedContent();
+      updateDisplayedContent(true /*answersInput*/);
+      notifyFrameComposed();
         } else {
       callbackHandler.onPanLeftOverflow();
         }
@@ -678,7 +863,8 @@ public class DisplayManager
 
     private void panRight() {
     if (wrapStrategy.panRight()) {
-            updateDisplayedContent();
+      updateDisplayedContent(true /*answersInput*/);
+      notifyFrameComposed();
         } else {
       callbackHandler.onPanRightOverflow();
         }
@@ -689,6 +875,7 @@ public class DisplayManager
         private static final int MSG_RETRANSLATE = 2;
         private static final int MSG_PULSE = 3;
         private static final int MSG_STOP = 4;
+        private static final int MSG_WRITE = 5;
 
         public DisplayHandler(Looper looper) {
             super(looper);
@@ -714,6 +901,21 @@ public class DisplayManager
       overlaysOn = true;
         }
 
+        public void scheduleWrite(long uptimeMillis) {
+            if (hasPendingWrite()) {
+                return;
+            }
+            sendEmptyMessageAtTime(MSG_WRITE, uptimeMillis);
+        }
+
+        public boolean hasPendingWrite() {
+            return hasMessages(MSG_WRITE);
+        }
+
+        public void cancelWrite() {
+            removeMessages(MSG_WRITE);
+        }
+
         public void stop() {
             sendEmptyMessage(MSG_STOP);
         }
@@ -722,7 +924,15 @@ public class DisplayManager
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_SET_CONTENT:
-                    handleSetContent((Content) msg.obj);
+                    Content content = (Content) msg.obj;
+                    frameTraceId = content.traceId;
+                    boolean traced = DisplayTrace.begin(
+                            "DisplayManager.handleSetContent", frameTraceId);
+                    try {
+                        handleSetContentMeasured(content);
+                    } finally {
+                        DisplayTrace.end("DisplayManager.handleSetContent", frameTraceId, traced);
+                    }
                     break;
                 case MSG_RETRANSLATE:
                     handleRetranslate();
@@ -733,12 +943,39 @@ public class DisplayManager
                 case MSG_STOP:
                     handleStop();
                     break;
+                case MSG_WRITE:
+                    writeFrame();
+                    break;
         default:
           // Fall out.
       }
         }
 
+        /**
+         * Handles {@code content}, counting the frame and, while tracing is
+         * enabled, the bytes allocated to handle it.
+         */
+        private void handleSetContentMeasured(Content content) {
+            if (!DisplayTrace.isEnabled()) {
+                handleSetContent(content);
+                contentFrames.incrementAndGet();
+                return;
+            }
+            long allocatedBefore = getBytesAllocated();
+            handleSetContent(content);
+            long allocatedAfter = getBytesAllocated();
+            contentFrames.incrementAndGet();
+            if (allocatedBefore >= 0 && allocatedAfter >= allocatedBefore) {
+                measuredContentFrames.incrementAndGet();
+                measuredContentBytes.addAndGet(allocatedAfter - allocatedBefore);
+            }
+        }
+
         private void handleSetContent(Content content) {
+      PipelineObserver observer = pipelineObserver;
+      if (observer != null) {
+        observer.onContent(content);
+      }
       Content oldContent = currentContent;
       currentContent = content;
             updateWrapStrategy();
@@ -780,13 +1017,20 @@ public class DisplayManager
         default:
           LogUtils.log(this, Log.ERROR, "Unknown pan strategy: %d", content.panStrategy);
       }
-            int cursorPosition = markCursor();
+      boolean traced = DisplayTrace.begin("DisplayManager.mark", frameTraceId);
+      int cursorPosition;
+      try {
+        cursorPosition = markCursor();
+      } finally {
+        DisplayTrace.end("DisplayManager.mark", frameTraceId, traced);
+      }
             if (panPosition >= 0) {
         wrapStrategy.panTo(panPosition, false);
             } else {
         wrapStrategy.panTo(cursorPosition, true);
             }
-            updateDisplayedContent();
+      updateDisplayedContent(content.answersInput);
+      notifyFrameComposed();
             if (oldContent != null) {
         // Have the callback handler recycle the old content so that
         // the thread in which the callbck handler is running is the
@@ -819,12 +1063,13 @@ public class DisplayManager
         wrapStrategy.panTo(cursorPosition, true);
             }
             cancelPulse();
-            updateDisplayedContent();
+      updateDisplayedContent(false /*answersInput*/);
         }
 
         private void handlePulse() {
+      frameTraceId = DisplayTrace.NO_ID;
       overlaysOn = !overlaysOn;
-            refresh();
+      refresh(false /*answersInput*/);
         }
 
         private void handleStop() {
@@ -902,15 +1147,30 @@ public class DisplayManager
 
         private void handleOnMappedInputEvent(BrailleInputEvent event,
                                               Content content) {
-      mappedInputEventListener.onMappedInputEvent(event, content);
+      handlingInputCallback = true;
+      try {
+        mappedInputEventListener.onMappedInputEvent(event, content);
+      } finally {
+        handlingInputCallback = false;
+      }
         }
 
         private void handleOnPanLeftOverflow(Content content) {
-      panOverflowListener.onPanLeftOverflow(content);
+      handlingInputCallback = true;
+      try {
+        panOverflowListener.onPanLeftOverflow(content);
+      } finally {
+        handlingInputCallback = false;
+      }
         }
 
         private void handleOnPanRightOverflow(Content content) {
-      panOverflowListener.onPanRightOverflow(content);
+      handlingInputCallback = true;
+      try {
+        panOverflowListener.onPanRightOverflow(content);
+      } finally {
+        handlingInputCallback = false;
+      }
         }
 
         private void handleRecycleContent(Content content) {
@@ -922,10 +1182,16 @@ public class DisplayManager
     // Use the current translator, whether contracted or uncontracted, for
     // editing text, but instruct contracted translaters to uncontract
     // the braille for the word under the cursor.
-    BrailleTranslator translator = translatorManager.getTranslator();
-    currentTranslationResult =
-        currentContent.translateWithVerbatimBraille(
-            translator, cursorPositionToTranslate, uncontractBrailleAtCursor(currentContent));
+    BrailleTranslator translator =
+        translatorManager != null ? translatorManager.getTranslator() : fixedTranslator;
+    boolean translateTraced = DisplayTrace.begin("DisplayManager.translate", frameTraceId);
+    try {
+      currentTranslationResult =
+          currentContent.translateWithVerbatimBraille(
+              translator, cursorPositionToTranslate, uncontractBrailleAtCursor(currentContent));
+    } finally {
+      DisplayTrace.end("DisplayManager.translate", frameTraceId, translateTraced);
+    }
 
     // Make very sure we do not call getCells() on a null translation.
     // translateWithVerbatimBraille() currently should never return null.
@@ -934,9 +1200,14 @@ public class DisplayManager
       currentTranslationResult = createEmptyTranslation(currentContent.getText());
     }
 
-    wrapStrategy.setContent(currentContent, currentTranslationResult, getNumTextCells());
+    boolean wrapTraced = DisplayTrace.begin("DisplayManager.wrap", frameTraceId);
+    try {
+      wrapStrategy.setContent(currentContent, currentTranslationResult, getNumTextCells());
+    } finally {
+      DisplayTrace.end("DisplayManager.wrap", frameTraceId, wrapTraced);
+    }
     brailleContent = currentTranslationResult.getCells();
-    overlaidBrailleContent = brailleContent;
+    frameComposer.clearOverlays();
     }
 
   private static TranslationResult createEmptyTranslation(CharSequence text) {
@@ -950,23 +1221,25 @@ public class DisplayManager
      * selection or focus cursor exists, then returns -1.
      */
     private int markCursor() {
-    Spanned spanned = currentContent.getSpanned();
-        if (spanned != null) {
-            int selectionPosition = markSelection(spanned);
-            if (selectionPosition != -1) {
-                return selectionPosition;
-            }
+    SpanIndex index = currentContent.getSpanIndex();
+    int selectionPosition = markSelection(index);
+    if (selectionPosition != -1) {
+      return selectionPosition;
+    }
 
-            int focusPosition = markFocus(spanned);
-            if (focusPosition != -1) {
-                return focusPosition;
-            }
-        }
+    int focusPosition = markFocus(index);
+    if (focusPosition != -1) {
+      return focusPosition;
+    }
 
         return -1;
     }
 
-    private void updateDisplayedContent() {
+  /**
+   * Updates the displayed part of the current content and writes it to the display. {@code
+   * answersInput} tells whether the update was caused by an input event from the display.
+   */
+  private void updateDisplayedContent(boolean answersInput) {
     if (!connected || currentContent == null) {
             return;
         }
@@ -990,7 +1263,10 @@ public class DisplayManager
     if (textRight < textLeft) {
       textRight = textLeft;
     }
-    StringBuilder newText = new StringBuilder(currentContent.text.subSequence(textLeft, textRight));
+    // Append the range rather than using subSequence(), which would copy spans.
+    StringBuilder newText =
+        new StringBuilder(displayEnd - displayStart)
+            .append(currentContent.text, textLeft, textRight);
         int[] trimmedBrailleToTextPositions =
                 new int[displayEnd - displayStart];
         for (int i = 0; i < trimmedBrailleToTextPositions.length; i++) {
@@ -1003,27 +1279,76 @@ public class DisplayManager
             }
         }
 
-    // Store all data needed by refresh().
-    displayedBraille = Arrays.copyOfRange(brailleContent, displayStart, displayEnd);
-    if (brailleContent != overlaidBrailleContent) {
-      displayedOverlaidBraille =
-          Arrays.copyOfRange(overlaidBrailleContent, displayStart, displayEnd);
-        } else {
-      displayedOverlaidBraille = displayedBraille;
-        }
+    // Store all data needed by refresh(boolean).
+    frameComposer.compose(brailleContent, displayStart, displayEnd);
     displayedText = newText.toString();
     displayedBrailleToTextPositions = trimmedBrailleToTextPositions;
-    blinkNeeded = blinkNeeded();
+    blinkNeeded = frameComposer.isBlinkNeeded();
 
-        refresh();
+    refresh(answersInput);
     }
 
-    private void refresh() {
+  private void notifyFrameComposed() {
+    PipelineObserver observer = pipelineObserver;
+    if (observer != null) {
+      observer.onFrameComposed(frameComposer.getFrame(true), displayedText);
+    }
+  }
+
+  /**
+   * Writes the current frame to the display, unless the display can't keep up with writes that
+   * often. In that case, the write is postponed; frames that are composed in the meantime replace
+   * the pending one, so only the newest frame is written. The first frame that {@code answersInput}
+   * after an input event from the display is written right away; other frames, such as cursor
+   * blinks, don't use up that bypass.
+   */
+  private void refresh(boolean answersInput) {
     if (!connected) {
-            return;
-        }
-    byte[] toDisplay = overlaysOn ? displayedOverlaidBraille : displayedBraille;
-    display.displayDots(toDisplay, displayedText, displayedBrailleToTextPositions);
+      return;
+    }
+    long now = SystemClock.uptimeMillis();
+    boolean bypassThrottling =
+        answersInput
+            && lastInputEventTime >= 0
+            && now - lastInputEventTime <= INPUT_RESPONSE_MILLIS;
+    if (bypassThrottling) {
+      lastInputEventTime = -1;
+    }
+    long nextWriteTime = lastWriteTime + getMinWriteIntervalMillis();
+    if (bypassThrottling || now >= nextWriteTime) {
+      displayHandler.cancelWrite();
+      writeFrame();
+    } else {
+      if (displayHandler.hasPendingWrite()) {
+        ++skippedFrames;
+        LogUtils.log(this, Log.VERBOSE, "Skipped %d frames", skippedFrames);
+      }
+      displayHandler.scheduleWrite(nextWriteTime);
+    }
+  }
+
+  /** Returns the minimum interval between writes that the display can keep up with, or 0. */
+  private long getMinWriteIntervalMillis() {
+    if (display instanceof OverlayDisplay) {
+      return ((OverlayDisplay) display).getMinWriteIntervalMillis();
+    } else if (display instanceof DisplayClient) {
+      return ((DisplayClient) display).getMinWriteIntervalMillis();
+    }
+    return 0;
+  }
+
+  private void writeFrame() {
+    if (!connected) {
+      return;
+    }
+    lastWriteTime = SystemClock.uptimeMillis();
+    byte[] toDisplay = frameComposer.getFrame(overlaysOn);
+    long previousTraceId = DisplayTrace.setCurrentId(frameTraceId);
+    try {
+      display.displayDots(toDisplay, displayedText, displayedBrailleToTextPositions);
+    } finally {
+      DisplayTrace.setCurrentId(previousTraceId);
+    }
     if (blinkNeeded) {
       displayHandler.schedulePulse();
         } else {
@@ -1031,34 +1356,12 @@ public class DisplayManager
         }
     }
 
-    /**
-     * Returns {@code true} if the current display content is such that it
-     * requires blinking.
-     */
-    private boolean blinkNeeded() {
-    if (brailleContent == overlaidBrailleContent) {
-            return false;
-        }
-    int start = wrapStrategy.getDisplayStart();
-    int end = wrapStrategy.getDisplayEnd();
-        for (int i = start; i < end; ++i) {
-      if (brailleContent[i] != overlaidBrailleContent[i]) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Keeps the phone awake as if there was a 'user activity' registered
      * by the system.
      */
     private void keepAwake() {
-    // Acquiring the lock and immediately releasing it keesp the phone
-    // awake.  We don't use aqcuire() with a timeout because it just
-    // adds an unnecessary context switch.
-    wakeLock.acquire();
-    wakeLock.release();
+    userActivityNotifier.onUserActivity();
     }
 
     /**
@@ -1077,9 +1380,9 @@ public class DisplayManager
             TranslationResult oldTranslationResult,
             TranslationResult newTranslationResult,
             int oldDisplayPosition) {
-        Spanned oldSpanned = oldContent.getSpanned();
-        Spanned newSpanned = newContent.getSpanned();
-        if (oldSpanned == null || newSpanned == null) {
+        SpanIndex oldIndex = oldContent.getSpanIndex();
+        SpanIndex newIndex = newContent.getSpanIndex();
+        if (oldIndex.getNodeCount() == 0 || newIndex.getNodeCount() == 0) {
             return -1;
         }
         // Map the current display start and past-the-end positions
@@ -1088,23 +1391,43 @@ public class DisplayManager
                 -1 /*cursorPosition*/, oldDisplayPosition);
         int oldTextEnd = displayToTextPosition(oldTranslationResult,
                 -1 /*cursorPosition*/, oldDisplayPosition + getNumTextCells());
+        panKeepLookups.incrementAndGet();
         // Find the nodes that overlap with the display.
-        AccessibilityNodeInfoCompat[] displayedNodes =
-                oldSpanned.getSpans(oldTextStart, oldTextEnd,
-                        AccessibilityNodeInfoCompat.class);
-        Arrays.sort(displayedNodes,
-                new ByDistanceComparator(oldSpanned, oldTextStart));
-        // Find corresponding node in new content.
-        for (AccessibilityNodeInfoCompat oldNode : displayedNodes) {
-            AccessibilityNodeInfoCompat newNode = (AccessibilityNodeInfoCompat)
-                    DisplaySpans.getEqualSpan(newSpanned, oldNode);
-            if (newNode == null) {
+        int numDisplayedNodes = 0;
+        int[] displayedNodes = panKeepCandidates;
+        if (displayedNodes.length < oldIndex.getNodeCount()) {
+            displayedNodes = new int[oldIndex.getNodeCount()];
+            panKeepCandidates = displayedNodes;
+        }
+        for (int i = 0; i < oldIndex.getNodeCount(); ++i) {
+            if (oldIndex.nodeOverlaps(i, oldTextStart, oldTextEnd)) {
+                displayedNodes[numDisplayedNodes++] = i;
+            }
+        }
+        // Find corresponding node in new content.  The closest node is
+        // almost always found, so only a bounded number of the other
+        // displayed nodes are tried, selecting the next closest one each
+        // time instead of sorting all of them.
+        int numCandidates = Math.min(numDisplayedNodes, MAX_PAN_KEEP_CANDIDATES);
+        for (int i = 0; i < numCandidates; ++i) {
+            int closest = i;
+            for (int j = i + 1; j < numDisplayedNodes; ++j) {
+                if (compareByDistance(oldIndex, oldTextStart,
+                        displayedNodes[j], displayedNodes[closest]) < 0) {
+                    closest = j;
+                }
+            }
+            int oldNode = displayedNodes[closest];
+            displayedNodes[closest] = displayedNodes[i];
+            displayedNodes[i] = oldNode;
+            int newNode = newIndex.indexOfNode(oldIndex.getNode(oldNode));
+            if (newNode < 0) {
                 continue;
             }
             int oldDisplayStart = textToDisplayPosition(oldTranslationResult,
-                    -1 /*cursorPosition*/, oldSpanned.getSpanStart(oldNode));
+                    -1 /*cursorPosition*/, oldIndex.getNodeStart(oldNode));
             int newDisplayStart = textToDisplayPosition(newTranslationResult,
-                    -1 /*cursorPosition*/, newSpanned.getSpanStart(newNode));
+                    -1 /*cursorPosition*/, newIndex.getNodeStart(newNode));
       // TODO: If crashes happen here, return -1 when *DisplayStart == -1.
       // Offset position according to diff in node position.
       int newDisplayPosition = oldDisplayPosition + (newDisplayStart - oldDisplayStart);
@@ -1113,30 +1436,59 @@ public class DisplayManager
         return -1;
     }
 
-    private static class ByDistanceComparator
-            implements Comparator<AccessibilityNodeInfoCompat> {
-        private final Spanned spanned;
-        private final int start;
-        public ByDistanceComparator(Spanned spannedArg, int startArg) {
-            spanned = spannedArg;
-            start = startArg;
+    /**
+     * Orders node spans {@code a} and {@code b} in {@code index} by distance
+     * from {@code start}.
+     */
+    private static int compareByDistance(SpanIndex index, int start,
+            int a, int b) {
+        int aStart = index.getNodeStart(a);
+        int bStart = index.getNodeStart(b);
+        int aDist = Math.abs(start - aStart);
+        int bDist = Math.abs(start - bStart);
+        if (aDist != bDist) {
+            return aDist - bDist;
+        }
+        // They are on the same distance, compare by length.
+        int aLength = aStart + index.getNodeEnd(a);
+        int bLength = bStart + index.getNodeEnd(b);
+        if (aLength != bLength) {
+            return aLength - bLength;
+        }
+        // Keep the order of the spans in the text, like a stable sort.
+        return a - b;
+    }
+
+    /**
+     * Prints how many frames were handled, the bytes allocated for each of
+     * them while tracing was enabled, and the number of pan position
+     * lookups.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Display manager:");
+        long measuredFrames = measuredContentFrames.get();
+        writer.printf("  %d content frames, %d pan keep lookups\n",
+                contentFrames.get(), panKeepLookups.get());
+        if (measuredFrames > 0) {
+            writer.printf("  %d bytes allocated per frame over %d traced frames\n",
+                    measuredContentBytes.get() / measuredFrames, measuredFrames);
         }
+    }
 
-        @Override
-        public int compare(
-            AccessibilityNodeInfoCompat a,
-            AccessibilityNodeInfoCompat b) {
-            int aStart = spanned.getSpanStart(a);
-            int bStart = spanned.getSpanStart(b);
-            int aDist = Math.abs(start - aStart);
-            int bDist = Math.abs(start - bStart);
-            if (aDist != bDist) {
-                return aDist - bDist;
-            }
-            // They are on the same distance, compare by length.
-            int aLength = aStart + spanned.getSpanEnd(a);
-            int bLength = bStart + spanned.getSpanEnd(b);
-            return aLength - bLength;
+    /**
+     * Returns the bytes allocated by the process so far, or {@code -1} if
+     * the runtime doesn't report it.  Other threads allocating at the same
+     * time are counted too, so this is an upper bound for a single frame.
+     */
+    private static long getBytesAllocated() {
+        String value = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
@@ -1172,22 +1524,13 @@ public class DisplayManager
     }
 
     private static int findCursorPosition(Content content) {
-        Spanned spanned = content.getSpanned();
-        if (spanned == null) {
-            return -1;
-        }
-        DisplaySpans.SelectionSpan[] selectionSpans =
-                spanned.getSpans(0, spanned.length(),
-                        DisplaySpans.SelectionSpan.class);
-        if (selectionSpans.length > 0) {
-            return spanned.getSpanStart(selectionSpans[0]);
-        }
-        DisplaySpans.FocusSpan[] focusSpans =
-                spanned.getSpans(0, spanned.length(),
-                        DisplaySpans.FocusSpan.class);
-        if (focusSpans.length > 0) {
-            return spanned.getSpanStart(focusSpans[0]);
-        }
+    SpanIndex index = content.getSpanIndex();
+    if (index.getSelectionCount() > 0) {
+      return index.getSelectionStart(0);
+    }
+    if (index.getFocusCount() > 0) {
+      return index.getFocusStart(0);
+    }
         return -1;
     }
 
@@ -1195,31 +1538,11 @@ public class DisplayManager
         if (content.getContractionMode() == Content.CONTRACT_ALWAYS_ALLOW) {
             return false;
         }
-        Spanned spanned = content.getSpanned();
-        if (spanned == null) {
-            return false;
-        }
-        DisplaySpans.SelectionSpan[] selectionSpans =
-                spanned.getSpans(0, spanned.length(),
-                        DisplaySpans.SelectionSpan.class);
-        return selectionSpans.length != 0;
-    }
-
-  @Override
-  public void onSharedPreferenceChanged(SharedPreferences sharedPreferencesArg, String s) {
-    String wordWrapPrefKey = context.getString(R.string.pref_braille_word_wrap_key);
-        if (s != null && s.equals(wordWrapPrefKey)) {
-            updateWrapStrategyFromPreferences();
-        }
+    return content.getSpanIndex().getSelectionCount() != 0;
     }
 
     private void updateWrapStrategyFromPreferences() {
-    boolean wrap =
-        SharedPreferencesUtils.getBooleanPref(
-            sharedPreferences,
-            context.getResources(),
-            R.string.pref_braille_word_wrap_key,
-            R.bool.pref_braille_word_wrap_default);
+    boolean wrap = preferences.isWordWrapEnabled();
 
     preferredWrapStrategy = wrap ? new WordWrapStrategy() : new SimpleWrapStrategy();
         updateWrapStrategy();
@@ -1228,12 +1551,70 @@ public class DisplayManager
 
     private void updateWrapStrategy() {
     boolean contentEditable = currentContent != null && currentContent.isEditable();
-    boolean imeOpen =
-        context != null
-            && context.imeNavigationMode != null
-            && context.imeNavigationMode.isImeOpen();
+    boolean imeOpen = imeState.isImeOpen();
         boolean editing = contentEditable && imeOpen;
     wrapStrategy = editing ? editingWrapStrategy : preferredWrapStrategy;
     }
 
+  /** The preferences of the user, as stored in the default shared preferences. */
+  static class ServicePreferences
+      implements Preferences, SharedPreferences.OnSharedPreferenceChangeListener {
+    private final Context context;
+    private final SharedPreferences sharedPreferences;
+    private Runnable changeListener;
+
+    ServicePreferences(Context contextArg) {
+      context = contextArg;
+      sharedPreferences = PreferenceManager.getDefaultSharedPreferences(contextArg);
+    }
+
+    @Override
+    public boolean isWordWrapEnabled() {
+      return SharedPreferencesUtils.getBooleanPref(
+          sharedPreferences,
+          context.getResources(),
+          R.string.pref_braille_word_wrap_key,
+          R.bool.pref_braille_word_wrap_default);
+    }
+
+    @Override
+    public void setOnChangeListener(Runnable listener) {
+      if (changeListener == null && listener != null) {
+        sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+      } else if (changeListener != null && listener == null) {
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+      }
+      changeListener = listener;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferencesArg, String s) {
+      String wordWrapPrefKey = context.getString(R.string.pref_braille_word_wrap_key);
+      if (changeListener != null && s != null && s.equals(wordWrapPrefKey)) {
+        changeListener.run();
+      }
+    }
+  }
+
+  /** Keeps the device awake with a wake lock, as if the user used the touch screen. */
+  private static class WakeLockNotifier implements UserActivityNotifier {
+    private final PowerManager.WakeLock wakeLock;
+
+    @SuppressLint("InvalidWakeLockTag")
+    WakeLockNotifier(Context context) {
+      PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+      wakeLock =
+          pm.newWakeLock(
+              PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ON_AFTER_RELEASE, "BrailleBack");
+    }
+
+    @Override
+    public void onUserActivity() {
+      // Acquiring the lock and immediately releasing it keesp the phone
+      // awake.  We don't use aqcuire() with a timeout because it just
+      // adds an unnecessary context switch.
+      wakeLock.acquire();
+      wakeLock.release();
+    }
+  }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
+import com.googlecode.eyesfree.utils.LogUtils;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records what goes through a {@link DisplayManager} to a stream in the
+ * {@link DisplayRecording} format, so that it can be replayed with
+ * {@link DisplayReplayer}.  The recording contains all the text that is
+ * shown on the display.
+ */
+class DisplayRecorder implements DisplayManager.PipelineObserver {
+    private final long mStartMillis;
+    private DataOutputStream mOut;
+    private int mEntryCount = 0;
+
+    /**
+     * Starts recording to {@code out}, which is closed when the recording
+     * stops.
+     */
+    DisplayRecorder(OutputStream out) throws IOException {
+        mStartMillis = SystemClock.uptimeMillis();
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        DisplayRecording.writeHeader(mOut);
+    }
+
+    synchronized int getEntryCount() {
+        return mEntryCount;
+    }
+
+    @Override
+    public synchronized void onContent(DisplayManager.Content content) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            DisplayRecording.writeContent(mOut, elapsedMillis(), content);
+            ++mEntryCount;
+        } catch (IOException ex) {
+            abort(ex);
+        }
+    }
+
+    @Override
+    public synchronized void onInputEvent(BrailleInputEvent event) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            DisplayRecording.writeInput(mOut, elapsedMillis(), event);
+            ++mEntryCount;
+        } catch (IOException ex) {
+            abort(ex);
+        }
+    }
+
+    @Override
+    public synchronized void onFrameComposed(byte[] cells,
+            CharSequence text) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            DisplayRecording.writeFrame(mOut, elapsedMillis(), cells, text);
+            ++mEntryCount;
+        } catch (IOException ex) {
+            abort(ex);
+        }
+    }
+
+    /**
+     * Stops recording and closes the file.  Calls to the observer methods
+     * after this are ignored.
+     */
+    synchronized void close() throws IOException {
+        if (mOut == null) {
+            return;
+        }
+        DataOutputStream out = mOut;
+        mOut = null;
+        out.close();
+    }
+
+    private long elapsedMillis() {
+        return SystemClock.uptimeMillis() - mStartMillis;
+    }
+
+    private void abort(IOException ex) {
+        LogUtils.log(this, Log.ERROR, "Error writing display recording: %s",
+                ex.toString());
+        try {
+            close();
+        } catch (IOException closeEx) {
+            // Already failed, nothing more to report.
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
+import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded display session: the content that was sent to the display
+ * manager, the input events from the display and the frames that were
+ * composed, in the order they happened.
+ *
+ * Recordings are stored in a compact binary format, written with
+ * {@link #writeHeader} followed by any number of {@code write*} calls and
+ * read back with {@link #read}.  Content is stored with its text, display
+ * options and selection, focus, braille and node spans.  Nodes are stored
+ * as a key made of the window id and hash code, which is enough to tell
+ * whether two spans are for the same node, as
+ * {@link DisplayManager.Content#PAN_KEEP} needs.  Nodes with colliding keys
+ * are replayed as the same node.  Strings are stored as length-prefixed
+ * UTF-8, so there is no limit on their length.
+ *
+ * Recordings contain all the text that was shown on the display.
+ */
+class DisplayRecording {
+    static final int ENTRY_CONTENT = 1;
+    static final int ENTRY_INPUT = 2;
+    static final int ENTRY_FRAME = 3;
+
+    /** "BBDR", for BrailleBack display recording. */
+    private static final int MAGIC = 0x42424452;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_NUM_TEXT_CELLS = 40;
+
+    /** Creates the nodes of replayed node spans. */
+    interface NodeFactory {
+        /**
+         * Returns a node that is equal to the nodes returned for the same
+         * {@code key} and to no other nodes.  The caller must recycle it.
+         */
+        AccessibilityNodeInfoCompat obtainNode(long key);
+    }
+
+    /**
+     * One recorded entry.  Which fields are set depends on the type.
+     */
+    static class Entry {
+        final int type;
+        /** Milliseconds since the start of the recording. */
+        final long timeMillis;
+
+        // ENTRY_CONTENT
+        String text;
+        int panStrategy;
+        int contractionMode;
+        boolean splitParagraphs;
+        boolean editable;
+        int[] spanTypes;
+        int[] spanStarts;
+        int[] spanEnds;
+        byte[][] spanBraille;
+        long[] spanNodeKeys;
+
+        // ENTRY_INPUT
+        int command;
+        int argument;
+
+        // ENTRY_FRAME
+        byte[] cells;
+        String frameText;
+
+        Entry(int typeArg, long timeMillisArg) {
+            type = typeArg;
+            timeMillis = timeMillisArg;
+        }
+
+        /**
+         * Creates content equivalent to the recorded content, with node
+         * spans for the nodes from {@code nodes}.  The caller owns the
+         * returned content.
+         */
+        DisplayManager.Content toContent(NodeFactory nodes) {
+            BrailleDocument document = BrailleDocument.obtain(text);
+            for (int i = 0; i < spanTypes.length; ++i) {
+                switch (spanTypes[i]) {
+                    case BrailleDocument.SPAN_SELECTION:
+                        document.addSelection(spanStarts[i], spanEnds[i]);
+                        break;
+                    case BrailleDocument.SPAN_FOCUS:
+                        document.addFocus(spanStarts[i], spanEnds[i]);
+                        break;
+                    case BrailleDocument.SPAN_BRAILLE:
+                        ByteBuffer buffer = ByteBuffer.wrap(spanBraille[i]);
+                        buffer.position(spanBraille[i].length);
+                        document.addBraille(spanStarts[i], spanEnds[i],
+                                buffer);
+                        break;
+                    case BrailleDocument.SPAN_NODE:
+                        AccessibilityNodeInfoCompat node =
+                                nodes.obtainNode(spanNodeKeys[i]);
+                        document.addNode(spanStarts[i], spanEnds[i], node);
+                        AccessibilityNodeInfoUtils.recycleNodes(node);
+                        break;
+                }
+            }
+            return new DisplayManager.Content(document)
+                    .setPanStrategy(panStrategy)
+                    .setContractionMode(contractionMode)
+                    .setSplitParagraphs(splitParagraphs)
+                    .setEditable(editable);
+        }
+
+        BrailleInputEvent toInputEvent() {
+            return new BrailleInputEvent(command, argument, timeMillis);
+        }
+    }
+
+    private final List<Entry> mEntries;
+
+    private DisplayRecording(List<Entry> entries) {
+        mEntries = Collections.unmodifiableList(entries);
+    }
+
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns the recorded frames in order.
+     */
+    List<byte[]> getFrames() {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for (Entry entry : mEntries) {
+            if (entry.type == ENTRY_FRAME) {
+                frames.add(entry.cells);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the size of the display the session was recorded on, based on
+     * the size of the recorded frames.
+     */
+    int getNumTextCells() {
+        for (Entry entry : mEntries) {
+            if (entry.type == ENTRY_FRAME) {
+                return entry.cells.length;
+            }
+        }
+        return DEFAULT_NUM_TEXT_CELLS;
+    }
+
+    /**
+     * Reads a recording from {@code file}.  A recording that ends in the
+     * middle of an entry, for example because the recorder wasn't stopped,
+     * is returned up to the last complete entry.
+     */
+    static DisplayRecording read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a display recording: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported recording version "
+                        + version);
+            }
+            List<Entry> entries = new ArrayList<Entry>();
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                try {
+                    entries.add(readEntry(in, type));
+                } catch (EOFException ex) {
+                    break;
+                }
+            }
+            return new DisplayRecording(entries);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Entry readEntry(DataInputStream in, int type)
+            throws IOException {
+        Entry entry = new Entry(type, in.readLong());
+        switch (type) {
+            case ENTRY_CONTENT:
+                entry.text = readString(in);
+                entry.panStrategy = in.readInt();
+                entry.contractionMode = in.readInt();
+                entry.splitParagraphs = in.readBoolean();
+                entry.editable = in.readBoolean();
+                int spanCount = in.readInt();
+                entry.spanTypes = new int[spanCount];
+                entry.spanStarts = new int[spanCount];
+                entry.spanEnds = new int[spanCount];
+                entry.spanBraille = new byte[spanCount][];
+                entry.spanNodeKeys = new long[spanCount];
+                for (int i = 0; i < spanCount; ++i) {
+                    entry.spanTypes[i] = in.readByte();
+                    entry.spanStarts[i] = in.readInt();
+                    entry.spanEnds[i] = in.readInt();
+                    if (entry.spanTypes[i] == BrailleDocument.SPAN_BRAILLE) {
+                        entry.spanBraille[i] = readBytes(in);
+                    } else if (entry.spanTypes[i]
+                            == BrailleDocument.SPAN_NODE) {
+                        entry.spanNodeKeys[i] = in.readLong();
+                    }
+                }
+                break;
+            case ENTRY_INPUT:
+                entry.command = in.readInt();
+                entry.argument = in.readInt();
+                break;
+            case ENTRY_FRAME:
+                entry.cells = readBytes(in);
+                entry.frameText = readString(in);
+                break;
+            default:
+                throw new IOException("Unknown entry type " + type);
+        }
+        return entry;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String readString(DataInputStream in)
+            throws IOException {
+        return new String(readBytes(in), UTF_8);
+    }
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    static void writeContent(DataOutputStream out, long timeMillis,
+            DisplayManager.Content content) throws IOException {
+        out.writeByte(ENTRY_CONTENT);
+        out.writeLong(timeMillis);
+        writeString(out, content.getText().toString());
+        out.writeInt(content.getPanStrategy());
+        out.writeInt(content.getContractionMode());
+        out.writeBoolean(content.isSplitParagraphs());
+        out.writeBoolean(content.isEditable());
+        SpanIndex index = content.getSpanIndex();
+        out.writeInt(index.getSelectionCount() + index.getFocusCount()
+                + index.getBrailleSpanCount() + index.getNodeCount());
+        for (int i = 0; i < index.getSelectionCount(); ++i) {
+            writeSpan(out, BrailleDocument.SPAN_SELECTION,
+                    index.getSelectionStart(i), index.getSelectionEnd(i));
+        }
+        for (int i = 0; i < index.getFocusCount(); ++i) {
+            writeSpan(out, BrailleDocument.SPAN_FOCUS,
+                    index.getFocusStart(i), index.getFocusEnd(i));
+        }
+        for (int i = 0; i < index.getBrailleSpanCount(); ++i) {
+            writeSpan(out, BrailleDocument.SPAN_BRAILLE,
+                    index.getBrailleSpanStart(i), index.getBrailleSpanEnd(i));
+            writeBytes(out, index.getBrailleSpan(i).braille);
+        }
+        for (int i = 0; i < index.getNodeCount(); ++i) {
+            writeSpan(out, BrailleDocument.SPAN_NODE,
+                    index.getNodeStart(i), index.getNodeEnd(i));
+            out.writeLong(keyFor(index.getNode(i)));
+        }
+    }
+
+    private static long keyFor(AccessibilityNodeInfoCompat node) {
+        return ((long) node.getWindowId() << 32)
+                | (node.hashCode() & 0xffffffffL);
+    }
+
+    private static void writeSpan(DataOutputStream out, int type, int start,
+            int end) throws IOException {
+        out.writeByte(type);
+        out.writeInt(start);
+        out.writeInt(end);
+    }
+
+    static void writeInput(DataOutputStream out, long timeMillis,
+            BrailleInputEvent event) throws IOException {
+        out.writeByte(ENTRY_INPUT);
+        out.writeLong(timeMillis);
+        out.writeInt(event.getCommand());
+        out.writeInt(event.getArgument());
+    }
+
+    static void writeFrame(DataOutputStream out, long timeMillis,
+            byte[] cells, CharSequence text) throws IOException {
+        out.writeByte(ENTRY_FRAME);
+        out.writeLong(timeMillis);
+        writeBytes(out, cells);
+        writeString(out, text.toString());
+    }
+
+    private static void writeString(DataOutputStream out, String string)
+            throws IOException {
+        writeBytes(out, string.getBytes(UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
+import com.googlecode.eyesfree.braille.display.Display;
+import com.googlecode.eyesfree.braille.translate.BrailleTranslator;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays a {@link DisplayRecording} through a {@link DisplayManager} that
+ * drives a {@link ReplayDisplay} and uses a given translator and
+ * preferences, and measures how long each frame took to compose.  The
+ * display manager is created without the service, so the replayer only
+ * needs the translator, the preferences and a
+ * {@link DisplayRecording.NodeFactory}, which can all be provided outside
+ * the service, for example under Robolectric.
+ *
+ * Entries are replayed as fast as possible, waiting for the display manager
+ * to finish handling each entry before sending the next one.  The whole
+ * replay must finish within {@link #REPLAY_TIMEOUT_MILLIS}.  The frames
+ * composed by the replay can be compared with the frames of another
+ * recording, such as a previous replay saved with {@link Result#writeFrames}
+ * or the frames recorded with the original content.
+ */
+class DisplayReplayer {
+    private static final long REPLAY_TIMEOUT_MILLIS = 60000;
+
+    /** A frame composed during replay. */
+    static class Frame {
+        final byte[] cells;
+        final String text;
+        /** Nanoseconds from the content or input event to the frame. */
+        final long latencyNanos;
+
+        Frame(byte[] cellsArg, String textArg, long latencyNanosArg) {
+            cells = cellsArg;
+            text = textArg;
+            latencyNanos = latencyNanosArg;
+        }
+    }
+
+    /** The outcome of a replay. */
+    static class Result {
+        final List<Frame> frames;
+        final int entryCount;
+        final int displayWriteCount;
+
+        Result(List<Frame> framesArg, int entryCountArg,
+                int displayWriteCountArg) {
+            frames = Collections.unmodifiableList(framesArg);
+            entryCount = entryCountArg;
+            displayWriteCount = displayWriteCountArg;
+        }
+
+        /**
+         * Returns the index of the first frame that differs from
+         * {@code expected}, or {@code -1} if all frames match.  A missing or
+         * extra frame counts as a difference.
+         */
+        int firstMismatch(List<byte[]> expected) {
+            int count = Math.min(frames.size(), expected.size());
+            for (int i = 0; i < count; ++i) {
+                if (!Arrays.equals(frames.get(i).cells, expected.get(i))) {
+                    return i;
+                }
+            }
+            return frames.size() == expected.size() ? -1 : count;
+        }
+
+        /**
+         * Returns the number of frames that differ from {@code expected},
+         * counting missing and extra frames.
+         */
+        int countMismatches(List<byte[]> expected) {
+            int count = Math.min(frames.size(), expected.size());
+            int mismatches = Math.abs(frames.size() - expected.size());
+            for (int i = 0; i < count; ++i) {
+                if (!Arrays.equals(frames.get(i).cells, expected.get(i))) {
+                    ++mismatches;
+                }
+            }
+            return mismatches;
+        }
+
+        /**
+         * Writes the replayed frames to {@code file} as a recording, so that
+         * it can be used as golden output for later replays.
+         */
+        void writeFrames(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                DisplayRecording.writeHeader(out);
+                for (Frame frame : frames) {
+                    DisplayRecording.writeFrame(out, 0, frame.cells,
+                            frame.text);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Prints a summary of the replay and, if {@code golden} is not
+         * {@code null}, how it compares to the golden frames.
+         */
+        void printReport(PrintWriter writer, List<byte[]> golden) {
+            writer.printf("Entries replayed: %d\n", entryCount);
+            writer.printf("Frames composed: %d\n", frames.size());
+            writer.printf("Display writes: %d\n", displayWriteCount);
+            if (!frames.isEmpty()) {
+                long[] latencies = new long[frames.size()];
+                for (int i = 0; i < latencies.length; ++i) {
+                    latencies[i] = frames.get(i).latencyNanos;
+                }
+                Arrays.sort(latencies);
+                writer.printf("Latency ms: median %.3f, 90th %.3f, max %.3f\n",
+                        percentile(latencies, 50) / 1e6,
+                        percentile(latencies, 90) / 1e6,
+                        latencies[latencies.length - 1] / 1e6);
+            }
+            if (golden != null) {
+                int mismatches = countMismatches(golden);
+                if (mismatches == 0) {
+                    writer.printf("Golden: all %d frames match\n",
+                            golden.size());
+                } else {
+                    writer.printf("Golden: %d mismatches in %d frames, "
+                            + "first at frame %d\n", mismatches,
+                            golden.size(), firstMismatch(golden));
+                }
+            }
+            writer.flush();
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            return sorted[(sorted.length - 1) * percent / 100];
+        }
+    }
+
+    private final BrailleTranslator mTranslator;
+    private final DisplayManager.Preferences mPreferences;
+    private final DisplayRecording.NodeFactory mNodeFactory;
+
+    DisplayReplayer(BrailleTranslator translator,
+            DisplayManager.Preferences preferences,
+            DisplayRecording.NodeFactory nodeFactory) {
+        mTranslator = translator;
+        mPreferences = preferences;
+        mNodeFactory = nodeFactory;
+    }
+
+    /**
+     * Replays {@code recording} on {@code display}, which should have as
+     * many cells as {@link DisplayRecording#getNumTextCells}, and returns
+     * the composed frames.  Blocks until the replay is done, so must not be
+     * called on the main thread or a binder thread.
+     */
+    Result replay(DisplayRecording recording, final ReplayDisplay display)
+            throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + REPLAY_TIMEOUT_MILLIS;
+        HandlerThread thread = new HandlerThread("DisplayReplayer");
+        thread.start();
+        final DisplayManager[] manager = new DisplayManager[1];
+        final IgnoringListener listener = new IgnoringListener();
+        FrameObserver observer = new FrameObserver();
+        int entryCount = 0;
+        try {
+            ReplayDisplay.runAndWait(new Handler(thread.getLooper()), deadline,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            // Created on the replay thread so that the
+                            // display manager's callbacks run there.
+                            manager[0] = new DisplayManager(mTranslator,
+                                    display, mPreferences, listener, listener,
+                                    listener);
+                        }
+                    });
+            display.connect(deadline);
+            manager[0].setPipelineObserver(observer);
+            for (DisplayRecording.Entry entry : recording.getEntries()) {
+                switch (entry.type) {
+                    case DisplayRecording.ENTRY_CONTENT:
+                        manager[0].setContent(entry.toContent(mNodeFactory));
+                        break;
+                    case DisplayRecording.ENTRY_INPUT:
+                        display.sendInputEvent(entry.toInputEvent());
+                        break;
+                    default:
+                        continue;
+                }
+                ++entryCount;
+                display.waitForIdle(deadline);
+            }
+            manager[0].setPipelineObserver(null);
+        } finally {
+            if (manager[0] != null) {
+                manager[0].shutdown();
+            }
+            thread.quit();
+        }
+        return new Result(observer.mFrames, entryCount,
+                display.getWriteCount());
+    }
+
+    /**
+     * Measures the frames composed by the display manager.  Called on the
+     * display thread; the frames are read by the replaying thread after
+     * {@link ReplayDisplay#waitForIdle}, which orders the accesses.
+     */
+    private static class FrameObserver
+            implements DisplayManager.PipelineObserver {
+        private final List<Frame> mFrames = new ArrayList<Frame>();
+        private long mStartNanos = -1;
+
+        @Override
+        public void onContent(DisplayManager.Content content) {
+            start();
+        }
+
+        @Override
+        public void onInputEvent(BrailleInputEvent event) {
+            start();
+        }
+
+        @Override
+        public void onFrameComposed(byte[] cells, CharSequence text) {
+            if (mStartNanos < 0) {
+                return;
+            }
+            long latencyNanos = System.nanoTime() - mStartNanos;
+            mFrames.add(new Frame(cells.clone(), text.toString(),
+                    latencyNanos));
+            mStartNanos = -1;
+        }
+
+        private void start() {
+            mStartNanos = System.nanoTime();
+        }
+    }
+
+    /** Ignores the display manager's callbacks. */
+    static class IgnoringListener
+            implements DisplayManager.OnPanOverflowListener,
+            Display.OnConnectionStateChangeListener,
+            DisplayManager.OnMappedInputEventListener {
+        @Override
+        public void onPanLeftOverflow(DisplayManager.Content content) {
+        }
+
+        @Override
+        public void onPanRightOverflow(DisplayManager.Content content) {
+        }
+
+        @Override
+        public void onConnectionStateChanged(int state) {
+        }
+
+        @Override
+        public void onMappedInputEvent(BrailleInputEvent event,
+                DisplayManager.Content content) {
+        }
+    }
+}
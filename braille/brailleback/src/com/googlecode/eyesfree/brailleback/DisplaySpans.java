@@ -21,6 +21,7 @@ import android.text.Spannable;
 import android.text.Spanned;
 import android.util.Log;
 import com.googlecode.eyesfree.utils.LogUtils;
+import com.googlecode.eyesfree.utils.NodeLifecycleTracker;
 import java.nio.ByteBuffer;
 
 /**
@@ -109,42 +110,10 @@ public class DisplaySpans {
      */
     public static void setAccessibilityNode(Spannable spannable,
             AccessibilityNodeInfoCompat node) {
-        spannable.setSpan(AccessibilityNodeInfoCompat.obtain(node),
+        spannable.setSpan(NodeLifecycleTracker.obtain(node),
                 0, spannable.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
     }
 
-    /**
-     * Finds the shortest accessibility node span that overlaps {@code position}
-     * in {@code chars}.  If a node is found, it is returned, otherwise
-     * {@code null} is returned.  If a node is returned, it is still owned
-     * by {@code chars} for the purpose of recycling.
-     */
-    public static AccessibilityNodeInfoCompat getAccessibilityNodeFromPosition(
-        int position,
-        CharSequence chars) {
-        if (!(chars instanceof Spanned)) {
-            return null;
-        }
-        Spanned spanned = (Spanned) chars;
-        AccessibilityNodeInfoCompat[] spans = spanned.getSpans(
-            position, position, AccessibilityNodeInfoCompat.class);
-        if (spans.length == 0) {
-            return null;
-        }
-        AccessibilityNodeInfoCompat found = spans[0];
-        int foundLength =
-                spanned.getSpanEnd(found) - spanned.getSpanStart(found);
-        for (int i = 1; i < spans.length; ++i) {
-            AccessibilityNodeInfoCompat span = spans[i];
-            int length = spanned.getSpanEnd(span) - spanned.getSpanStart(span);
-            if (length < foundLength) {
-                found = span;
-                foundLength = length;
-            }
-        }
-        return found;
-    }
-
     /**
      * Utility function to log what accessibiility nodes are attached
      * to what parts of the character sequence.
@@ -179,7 +148,7 @@ public class DisplaySpans {
         AccessibilityNodeInfoCompat[] nodes = spannable.getSpans(
             0, spannable.length(), AccessibilityNodeInfoCompat.class);
         for (AccessibilityNodeInfoCompat node : nodes) {
-            node.recycle();
+            NodeLifecycleTracker.recycle(node);
             spannable.removeSpan(node);
         }
     }
@@ -24,6 +24,7 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 import com.googlecode.eyesfree.utils.LogUtils;
 import com.googlecode.eyesfree.utils.NodeFocusFinder;
+import com.googlecode.eyesfree.utils.NodeTreeMirror;
 import java.util.HashSet;
 
 /**
@@ -53,6 +54,17 @@ public class FocusFinder {
         if (source == null) {
             return null;
         }
+        AccessibilityNodeInfoUtils.startFocusabilityMemo();
+        try {
+            return linearInternal(source, direction);
+        } finally {
+            AccessibilityNodeInfoUtils.finishFocusabilityMemo();
+        }
+    }
+
+    private AccessibilityNodeInfoCompat linearInternal(
+        AccessibilityNodeInfoCompat source,
+        int direction) {
         AccessibilityNodeInfoCompat next =
                 NodeFocusFinder.focusSearch(source, direction);
 
@@ -86,7 +98,7 @@ public class FocusFinder {
     public static AccessibilityNodeInfoCompat findFirstFocusableDescendant(
             AccessibilityNodeInfoCompat root, Context context) {
         // null guard and shortcut for leaf nodes.
-        if (root == null || root.getChildCount() <= 0) {
+        if (root == null || NodeTreeMirror.getChildCount(root) <= 0) {
             return null;
         }
         HashSet<AccessibilityNodeInfoCompat> seenNodes =
@@ -105,8 +117,8 @@ public class FocusFinder {
           findFirstFocusableDescendantInternal(
                   AccessibilityNodeInfoCompat root, Context context,
                   HashSet<AccessibilityNodeInfoCompat> seenNodes) {
-        for (int i = 0, end = root.getChildCount(); i < end; ++i) {
-            AccessibilityNodeInfoCompat child = root.getChild(i);
+        for (int i = 0, end = NodeTreeMirror.getChildCount(root); i < end; ++i) {
+            AccessibilityNodeInfoCompat child = NodeTreeMirror.getChild(root, i);
             if (child == null) {
                 continue;
             }
@@ -133,7 +145,7 @@ public class FocusFinder {
     public static AccessibilityNodeInfoCompat findLastFocusableDescendant(
             AccessibilityNodeInfoCompat root, Context context) {
         // null guard and shortcut for leaf nodes.
-        if (root == null || root.getChildCount() <= 0) {
+        if (root == null || NodeTreeMirror.getChildCount(root) <= 0) {
             return null;
         }
         HashSet<AccessibilityNodeInfoCompat> seenNodes =
@@ -152,8 +164,9 @@ public class FocusFinder {
           findLastFocusableDescendantInternal(
                   AccessibilityNodeInfoCompat root, Context context,
                   HashSet<AccessibilityNodeInfoCompat> seenNodes) {
-        for (int end = root.getChildCount(), i = end - 1; i >= 0; --i) {
-            AccessibilityNodeInfoCompat child = root.getChild(i);
+        for (int end = NodeTreeMirror.getChildCount(root), i = end - 1; i >= 0;
+                --i) {
+            AccessibilityNodeInfoCompat child = NodeTreeMirror.getChild(root, i);
             if (child == null) {
                 continue;
             }
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
+import com.googlecode.eyesfree.utils.NodeTreeMirror;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Caches the formatted output of node subtrees, so that formatting a
+ * subtree that hasn't changed since it was last formatted doesn't need to
+ * walk the subtree again.
+ *
+ * Entries are keyed by node identity, that is window id and source node
+ * id, which is what {@link AccessibilityNodeInfoCompat#equals} uses.  Each
+ * entry remembers the node it was formatted under, if that node was
+ * formatted too, so that a change to a subtree can invalidate the cached
+ * subtrees below and above it mostly without walking the node tree.  Where
+ * the tree has to be walked, it is walked through the {@link NodeTreeMirror}.
+ * Changes are learned from the accessibility events that report them:
+ * content changes and scrolling, and accessibility focus and text
+ * selection changes, which are part of the formatted output.  The source of
+ * such an event is invalidated together with its ancestors, and for changes
+ * that can affect descendants, such as subtree content changes and
+ * scrolling, with its cached descendants.  Window state changes clear the
+ * cache.
+ *
+ * The cache is bounded both in number of entries and in estimated memory
+ * use, evicting least recently used entries first.
+ */
+class FormattedSubtreeCache {
+    private static final int MAX_ENTRIES = 256;
+    private static final int MAX_BYTES = 128 * 1024;
+    /** Rough memory use of a node copy, including its strings. */
+    private static final int NODE_BYTES = 256;
+    private static final int SPAN_BYTES = 16;
+    /** How far up the tree to look for ancestors when invalidating. */
+    private static final int MAX_ANCESTOR_DEPTH = 64;
+
+    private static class Entry {
+        /** Owned copy of the formatted node, also used as the key. */
+        final AccessibilityNodeInfoCompat node;
+        /** Owned copy of the node this was formatted under, or null. */
+        final AccessibilityNodeInfoCompat parent;
+        final BrailleDocument document;
+        final int bytes;
+
+        Entry(AccessibilityNodeInfoCompat nodeArg,
+                AccessibilityNodeInfoCompat parentArg,
+                BrailleDocument documentArg) {
+            node = nodeArg;
+            parent = parentArg;
+            document = documentArg;
+            bytes = estimateBytes(documentArg);
+        }
+
+        void recycle() {
+            AccessibilityNodeInfoUtils.recycleNodes(node, parent);
+            document.recycle();
+        }
+    }
+
+    /** Entries in least recently used order. */
+    private final LinkedHashMap<AccessibilityNodeInfoCompat, Entry> mEntries =
+            new LinkedHashMap<AccessibilityNodeInfoCompat, Entry>(
+                    MAX_ENTRIES, 0.75f, true);
+    private int mBytes = 0;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    /**
+     * Returns the cached output for {@code node}, still owned by the cache,
+     * or {@code null}.
+     */
+    public synchronized BrailleDocument get(AccessibilityNodeInfoCompat node) {
+        Entry entry = mEntries.get(node);
+        if (entry == null) {
+            ++mMissCount;
+            return null;
+        }
+        ++mHitCount;
+        return entry.document;
+    }
+
+    /**
+     * Returns whether there is cached output for {@code node}, without
+     * counting it as a use.
+     */
+    public synchronized boolean contains(AccessibilityNodeInfoCompat node) {
+        return mEntries.containsKey(node);
+    }
+
+    /**
+     * Caches the text and spans of {@code document} from {@code start} and
+     * span index {@code firstSpan} on as the output of {@code node}, which
+     * was formatted as a child of {@code parent} or at the top level if
+     * {@code parent} is {@code null}.
+     */
+    public synchronized void put(AccessibilityNodeInfoCompat node,
+            AccessibilityNodeInfoCompat parent, BrailleDocument document,
+            int start, int firstSpan) {
+        Entry entry = new Entry(
+                AccessibilityNodeInfoCompat.obtain(node),
+                parent != null
+                        ? AccessibilityNodeInfoCompat.obtain(parent) : null,
+                document.copyTail(start, firstSpan));
+        if (entry.bytes > MAX_BYTES) {
+            entry.recycle();
+            return;
+        }
+        remove(node);
+        mEntries.put(entry.node, entry);
+        mBytes += entry.bytes;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mBytes > MAX_BYTES)
+                && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            mBytes -= eldest.bytes;
+            eldest.recycle();
+        }
+    }
+
+    /**
+     * Invalidates entries affected by {@code event}, whose source is
+     * {@code source}, or {@code null} if it has none.  Doesn't recycle
+     * {@code source}.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event,
+            AccessibilityNodeInfo source) {
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                clear();
+                return;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                int types = event.getContentChangeTypes();
+                invalidateSource(event, source,
+                        types == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                        || (types
+                                & AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE)
+                        != 0);
+                return;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                invalidateSource(event, source, true);
+                return;
+            case AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED:
+            case AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUS_CLEARED:
+            case AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED:
+                invalidateSource(event, source, false);
+                return;
+            default:
+                // Other events don't change formatted output by themselves;
+                // state changes that do are also reported as content
+                // changes.
+        }
+    }
+
+    private void invalidateSource(AccessibilityEvent event,
+            AccessibilityNodeInfo source, boolean includeDescendants) {
+        if (isEmpty()) {
+            return;
+        }
+        if (source == null) {
+            // Without a source, only content changes are known to affect
+            // formatted output.
+            if (event.getEventType()
+                    == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+                clear();
+            }
+            return;
+        }
+        invalidate(new AccessibilityNodeInfoCompat(source),
+                includeDescendants);
+    }
+
+    /**
+     * Invalidates the entries for {@code node} and its ancestors, and if
+     * {@code includeDescendants} is {@code true}, the entries for the
+     * descendants of {@code node}.
+     */
+    public void invalidate(AccessibilityNodeInfoCompat node,
+            boolean includeDescendants) {
+        if (isEmpty()) {
+            return;
+        }
+        boolean cached;
+        synchronized (this) {
+            cached = mEntries.containsKey(node);
+            if (cached && includeDescendants) {
+                removeDescendants(node);
+            }
+        }
+        // Ancestors include the output of the node, so they need to go.
+        // The cached parent links are followed where there are any.
+        AccessibilityNodeInfoCompat ancestor =
+                AccessibilityNodeInfoCompat.obtain(node);
+        int depth = 0;
+        for (; ancestor != null && depth <= MAX_ANCESTOR_DEPTH; ++depth) {
+            AccessibilityNodeInfoCompat parent;
+            synchronized (this) {
+                if (mEntries.isEmpty()) {
+                    break;
+                }
+                Entry entry = mEntries.get(ancestor);
+                parent = (entry != null && entry.parent != null)
+                        ? AccessibilityNodeInfoCompat.obtain(entry.parent)
+                        : null;
+                remove(ancestor);
+            }
+            if (parent == null) {
+                parent = NodeTreeMirror.getParent(ancestor);
+            }
+            AccessibilityNodeInfoUtils.recycleNodes(ancestor);
+            ancestor = parent;
+        }
+        if (ancestor != null) {
+            AccessibilityNodeInfoUtils.recycleNodes(ancestor);
+            if (depth > MAX_ANCESTOR_DEPTH) {
+                // Too deep to tell which entries are ancestors.
+                clear();
+                return;
+            }
+        }
+        if (includeDescendants && !cached) {
+            removeSubtreesUnder(node);
+        }
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            entry.recycle();
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    private boolean remove(AccessibilityNodeInfoCompat node) {
+        Entry entry = mEntries.remove(node);
+        if (entry == null) {
+            return false;
+        }
+        mBytes -= entry.bytes;
+        entry.recycle();
+        return true;
+    }
+
+    /**
+     * Removes the entries that were formatted under {@code node}, directly
+     * or indirectly.
+     */
+    private void removeDescendants(AccessibilityNodeInfoCompat node) {
+        List<AccessibilityNodeInfoCompat> removed =
+                new ArrayList<AccessibilityNodeInfoCompat>();
+        removed.add(AccessibilityNodeInfoCompat.obtain(node));
+        for (int i = 0; i < removed.size(); ++i) {
+            AccessibilityNodeInfoCompat parent = removed.get(i);
+            Iterator<Entry> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (parent.equals(entry.parent)) {
+                    it.remove();
+                    mBytes -= entry.bytes;
+                    removed.add(AccessibilityNodeInfoCompat.obtain(
+                            entry.node));
+                    entry.recycle();
+                }
+            }
+        }
+        AccessibilityNodeInfoUtils.recycleNodes(removed);
+    }
+
+    /**
+     * Removes the cached subtrees below {@code node} when {@code node}
+     * itself isn't cached.  Only the topmost cached entries, the ones whose
+     * parent isn't cached, need their ancestors checked, since everything
+     * else is reached through them.  Ancestors are looked up through the
+     * {@link NodeTreeMirror}, and nodes found not to be below {@code node}
+     * end the walks from the other entries early.
+     */
+    private void removeSubtreesUnder(AccessibilityNodeInfoCompat node) {
+        List<AccessibilityNodeInfoCompat> roots =
+                new ArrayList<AccessibilityNodeInfoCompat>();
+        synchronized (this) {
+            for (Entry entry : mEntries.values()) {
+                if (entry.parent == null
+                        || !mEntries.containsKey(entry.parent)) {
+                    roots.add(AccessibilityNodeInfoCompat.obtain(entry.node));
+                }
+            }
+        }
+        HashSet<AccessibilityNodeInfoCompat> outside =
+                new HashSet<AccessibilityNodeInfoCompat>();
+        for (AccessibilityNodeInfoCompat root : roots) {
+            if (hasAncestor(root, node, outside)) {
+                synchronized (this) {
+                    if (remove(root)) {
+                        removeDescendants(root);
+                    }
+                }
+            }
+        }
+        AccessibilityNodeInfoUtils.recycleNodes(roots);
+        AccessibilityNodeInfoUtils.recycleNodes(outside);
+    }
+
+    /**
+     * Returns whether {@code ancestor} is an ancestor of {@code node}.
+     * {@code outside} holds nodes known not to be below {@code ancestor};
+     * the ancestors of {@code node} are added to it if the answer is
+     * {@code false}.
+     */
+    private static boolean hasAncestor(AccessibilityNodeInfoCompat node,
+            AccessibilityNodeInfoCompat ancestor,
+            HashSet<AccessibilityNodeInfoCompat> outside) {
+        List<AccessibilityNodeInfoCompat> path =
+                new ArrayList<AccessibilityNodeInfoCompat>();
+        AccessibilityNodeInfoCompat current = NodeTreeMirror.getParent(node);
+        try {
+            for (int depth = 0; current != null && depth < MAX_ANCESTOR_DEPTH;
+                    ++depth) {
+                if (ancestor.equals(current)) {
+                    return true;
+                }
+                if (outside.contains(current)) {
+                    break;
+                }
+                path.add(current);
+                current = NodeTreeMirror.getParent(current);
+            }
+            if (current != null && !outside.contains(current)) {
+                // Assume the worst if the tree is too deep.
+                return true;
+            }
+            for (AccessibilityNodeInfoCompat pathNode : path) {
+                if (!outside.add(pathNode)) {
+                    AccessibilityNodeInfoUtils.recycleNodes(pathNode);
+                }
+            }
+            path.clear();
+            return false;
+        } finally {
+            AccessibilityNodeInfoUtils.recycleNodes(path);
+            AccessibilityNodeInfoUtils.recycleNodes(current);
+        }
+    }
+
+    private static int estimateBytes(BrailleDocument document) {
+        int bytes = NODE_BYTES * 2 + document.length() * 2;
+        for (int i = 0; i < document.getSpanCount(); ++i) {
+            bytes += SPAN_BYTES;
+            switch (document.getSpanType(i)) {
+                case BrailleDocument.SPAN_BRAILLE:
+                    bytes += ((DisplaySpans.BrailleSpan)
+                            document.getSpanObject(i)).braille.length;
+                    break;
+                case BrailleDocument.SPAN_NODE:
+                    bytes += NODE_BYTES;
+                    break;
+            }
+        }
+        return bytes;
+    }
+}
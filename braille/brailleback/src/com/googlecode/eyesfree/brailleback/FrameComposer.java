@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import java.util.Arrays;
+
+/**
+ * Composes the cells that are sent to the display for the current pan
+ * position.
+ *
+ * Overlays (such as the dots marking a cursor or focus) are recorded as
+ * ranges of braille cells instead of being applied to a copy of the whole
+ * translated content.  When the pan position or content changes,
+ * {@link #compose} fills two frames: one with the overlays on and one
+ * without.  Blinking then only toggles between the two frames, which
+ * doesn't allocate.  The frame buffers are reused as long as the window size
+ * stays the same.
+ *
+ * This class is not thread-safe and is used from the display handler thread
+ * only.
+ */
+class FrameComposer {
+    private static final int INITIAL_OVERLAY_CAPACITY = 4;
+
+    private int[] mOverlayStarts = new int[INITIAL_OVERLAY_CAPACITY];
+    private int[] mOverlayEnds = new int[INITIAL_OVERLAY_CAPACITY];
+    private byte[] mOverlayDots = new byte[INITIAL_OVERLAY_CAPACITY];
+    private int mOverlayCount = 0;
+
+    private byte[] mOnFrame = new byte[0];
+    private byte[] mOffFrame = new byte[0];
+    private boolean mBlinkNeeded = false;
+
+    /**
+     * Removes all overlays.  Call when the underlying braille content
+     * changes.
+     */
+    public void clearOverlays() {
+        mOverlayCount = 0;
+    }
+
+    /**
+     * Adds an overlay that ors {@code dots} into the braille cells in
+     * {@code [start, end)}.  Positions are in the translated braille of the
+     * whole content, not relative to the display window.
+     */
+    public void addOverlay(int start, int end, int dots) {
+        if (start >= end) {
+            return;
+        }
+        if (mOverlayCount == mOverlayStarts.length) {
+            int newCapacity = mOverlayCount * 2;
+            mOverlayStarts = Arrays.copyOf(mOverlayStarts, newCapacity);
+            mOverlayEnds = Arrays.copyOf(mOverlayEnds, newCapacity);
+            mOverlayDots = Arrays.copyOf(mOverlayDots, newCapacity);
+        }
+        mOverlayStarts[mOverlayCount] = start;
+        mOverlayEnds[mOverlayCount] = end;
+        mOverlayDots[mOverlayCount] = (byte) dots;
+        ++mOverlayCount;
+    }
+
+    /**
+     * Composes the on and off frames for the window {@code [start, end)} of
+     * {@code cells}.  Positions past the end of {@code cells} are blank.
+     * Only the overlays that intersect the window are applied.
+     */
+    public void compose(byte[] cells, int start, int end) {
+        int width = Math.max(0, end - start);
+        if (mOffFrame.length != width) {
+            mOffFrame = new byte[width];
+            mOnFrame = new byte[width];
+        }
+        int copyLength = Math.max(0, Math.min(cells.length, end) - start);
+        if (copyLength > 0) {
+            System.arraycopy(cells, start, mOffFrame, 0, copyLength);
+        }
+        Arrays.fill(mOffFrame, copyLength, width, (byte) 0);
+        System.arraycopy(mOffFrame, 0, mOnFrame, 0, width);
+
+        mBlinkNeeded = false;
+        for (int i = 0; i < mOverlayCount; ++i) {
+            int overlayStart = Math.max(mOverlayStarts[i], start);
+            int overlayEnd = Math.min(mOverlayEnds[i], end);
+            byte dots = mOverlayDots[i];
+            for (int j = overlayStart; j < overlayEnd; ++j) {
+                int k = j - start;
+                byte overlaid = (byte) (mOnFrame[k] | dots);
+                if (overlaid != mOnFrame[k]) {
+                    mOnFrame[k] = overlaid;
+                    mBlinkNeeded = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the frame last composed, with or without overlays.  The
+     * returned array is owned by this object and is overwritten by the next
+     * call to {@link #compose} with the same window size.
+     */
+    public byte[] getFrame(boolean overlaysOn) {
+        return overlaysOn ? mOnFrame : mOffFrame;
+    }
+
+    /**
+     * Returns {@code true} if the on and off frames differ, that is, if the
+     * window needs to blink.
+     */
+    public boolean isBlinkNeeded() {
+        return mBlinkNeeded;
+    }
+}
@@ -19,6 +19,7 @@ package com.googlecode.eyesfree.brailleback;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
 import android.view.accessibility.AccessibilityEvent;
 import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
+import com.googlecode.eyesfree.braille.display.DisplayTrace;
 
 /**
  * Keeps track of the current navigation mode and dispatches events
@@ -121,11 +122,19 @@ public class ModeSwitcher implements NavigationMode {
 
     @Override
     public boolean onAccessibilityEvent(AccessibilityEvent event) {
-        if (mOverrideMode == null ||
-                !mOverrideMode.onAccessibilityEvent(event)) {
-            return mModes[mModeIndex].onAccessibilityEvent(event);
+        long traceId = DisplayTrace.currentId();
+        boolean traced = DisplayTrace.begin(
+                "ModeSwitcher.onAccessibilityEvent", traceId);
+        try {
+            if (mOverrideMode == null ||
+                    !mOverrideMode.onAccessibilityEvent(event)) {
+                return mModes[mModeIndex].onAccessibilityEvent(event);
+            }
+            return true;
+        } finally {
+            DisplayTrace.end("ModeSwitcher.onAccessibilityEvent", traceId,
+                    traced);
         }
-        return true;
     }
 
     @Override
@@ -19,17 +19,17 @@ package com.googlecode.eyesfree.brailleback;
 import android.content.Context;
 import android.graphics.Rect;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
-import android.text.Editable;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
-import android.text.TextUtils;
 import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.googlecode.eyesfree.braille.display.DisplayTrace;
 import com.googlecode.eyesfree.brailleback.rule.BrailleRule;
 import com.googlecode.eyesfree.brailleback.rule.BrailleRuleRepository;
 import com.googlecode.eyesfree.brailleback.utils.StringUtils;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoRef;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 import com.googlecode.eyesfree.utils.LogUtils;
+import com.googlecode.eyesfree.utils.NodeTreeMirror;
 import java.util.ArrayList;
 
 /**
@@ -42,9 +42,42 @@ public class NodeBrailler {
      * and vertically overlapping.
      */
     private static final int HEIGHT_DIFF_THRESHOLD = 4;
+    /** How many levels below the nodes to format to prefetch. */
+    private static final int PREFETCH_DEPTH = 2;
+    /** How many nodes to prefetch at most for one call. */
+    private static final int PREFETCH_MAX_NODES = 128;
     private final Context mContext;
     private final BrailleRuleRepository mRuleRepository;
     private final SelfBrailleManager mSelfBrailleManager;
+    private final FormattedSubtreeCache mSubtreeCache =
+            new FormattedSubtreeCache();
+    private final SiblingRowIndex mRowIndex = new SiblingRowIndex(
+            new SiblingRowIndex.LineRule() {
+                @Override
+                public boolean includesChildren(
+                        AccessibilityNodeInfoCompat node) {
+                    return NodeBrailler.this.includesChildren(node);
+                }
+
+                @Override
+                public boolean shouldPutOnSameLine(Rect a, Rect b) {
+                    return NodeBrailler.shouldPutOnSameLine(a, b);
+                }
+            });
+    private final SubtreePrefetcher mPrefetcher =
+            new SubtreePrefetcher(PREFETCH_DEPTH, PREFETCH_MAX_NODES);
+    private final SubtreePrefetcher.Filter mPrefetchFilter =
+            new SubtreePrefetcher.Filter() {
+                @Override
+                public boolean shouldExpand(AccessibilityNodeInfoCompat node) {
+                    // Cached and invisible subtrees, and the children of
+                    // nodes whose rule doesn't include them, aren't walked
+                    // when formatting.  Called on the formatting thread.
+                    return node.isVisibleToUser()
+                            && !mSubtreeCache.contains(node)
+                            && includesChildren(node);
+                }
+            };
 
     public NodeBrailler(Context context,
             BrailleRuleRepository ruleRepository,
@@ -61,6 +94,18 @@ public class NodeBrailler {
      * a source node.
      */
     public DisplayManager.Content brailleNode(
+        AccessibilityNodeInfoCompat node) {
+        long traceId = DisplayTrace.currentId();
+        boolean traced = DisplayTrace.begin("NodeBrailler.brailleNode",
+                traceId);
+        try {
+            return brailleNodeInternal(node);
+        } finally {
+            DisplayTrace.end("NodeBrailler.brailleNode", traceId, traced);
+        }
+    }
+
+    private DisplayManager.Content brailleNodeInternal(
         AccessibilityNodeInfoCompat node) {
         DisplayManager.Content content =
             mSelfBrailleManager.contentForNode(node);
@@ -70,11 +115,16 @@ public class NodeBrailler {
             findNodesToFormat(node, toFormat);
             LogUtils.log(this, Log.VERBOSE, "Going to format %d nodes",
                     toFormat.size());
-            SpannableStringBuilder sb = new SpannableStringBuilder();
+            SubtreePrefetcher.Snapshot prefetched =
+                    mPrefetcher.prefetch(toFormat, mPrefetchFilter);
+            BrailleDocument document = BrailleDocument.obtain();
             for (AccessibilityNodeInfoCompat n : toFormat) {
-                formatSubtree(n, sb);
+                formatSubtree(n, null, prefetched, document);
             }
-            content = new DisplayManager.Content(sb);
+            if (prefetched != null) {
+                prefetched.recycle();
+            }
+            content = new DisplayManager.Content(document);
             content.setFirstNode(toFormat.get(0))
                     .setLastNode(toFormat.get(toFormat.size() - 1));
             AccessibilityNodeInfoUtils.recycleNodes(toFormat);
@@ -82,63 +132,135 @@ public class NodeBrailler {
         return content;
     }
 
+    /**
+     * Invalidates cached formatting affected by {@code event}, whose source
+     * is {@code source}, or {@code null} if it has none.  Must be called for
+     * every accessibility event before nodes are brailled in response to it.
+     * Doesn't recycle {@code source}.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event,
+            AccessibilityNodeInfo source) {
+        mSubtreeCache.onAccessibilityEvent(event, source);
+        mRowIndex.onAccessibilityEvent(event, source);
+    }
+
+    /**
+     * Invalidates cached formatting of {@code node}, its ancestors and its
+     * descendants.
+     */
+    public void invalidateNode(AccessibilityNodeInfoCompat node) {
+        mSubtreeCache.invalidate(node, true);
+        mRowIndex.invalidate(node);
+    }
+
+    /**
+     * Invalidates all cached formatting, for example because the custom
+     * labels that formatting uses changed.
+     */
+    public void invalidateAll() {
+        mSubtreeCache.clear();
+    }
+
     /**
      * Formats {@code node} and its descendants, appending the result
-     * to {@code sb}.
+     * to {@code document}.  The result is separated from any preceding
+     * content by a space.  {@code parent} is the node that {@code node} is
+     * formatted as a child of, or {@code null}.  Descendants are taken from
+     * {@code prefetched} when there, so that the output is the same as if
+     * they were fetched one by one.  The output for the subtree is reused
+     * from the cache if available.
      */
     private void formatSubtree(AccessibilityNodeInfoCompat node,
-            Editable result) {
+            AccessibilityNodeInfoCompat parent,
+            SubtreePrefetcher.Snapshot prefetched, BrailleDocument document) {
         if (!node.isVisibleToUser()) {
             return;
         }
 
+        // Add the separating space up front so that the subtree can be
+        // formatted directly into the document.  It is removed again below
+        // if the subtree turns out to be empty.
+        int separatorStart = document.length();
+        if (separatorStart > 0 && !StringUtils.endsWithSpace(document)) {
+            document.append(' ');
+        }
+        int start = document.length();
+        int firstSpan = document.getSpanCount();
+
+        BrailleDocument cached = mSubtreeCache.get(node);
+        if (cached != null) {
+            if (cached.length() == 0) {
+                document.truncate(separatorStart);
+            } else {
+                document.appendDocument(cached);
+            }
+            return;
+        }
+        formatSubtreeUncached(node, prefetched, document, start, firstSpan);
+        mSubtreeCache.put(node, parent, document, start, firstSpan);
+        if (document.length() == start) {
+            document.truncate(separatorStart);
+        }
+    }
+
+    /**
+     * Formats {@code node} and its descendants at the end of
+     * {@code document}, which has length {@code start} and
+     * {@code firstSpan} spans.
+     */
+    private void formatSubtreeUncached(AccessibilityNodeInfoCompat node,
+            SubtreePrefetcher.Snapshot prefetched, BrailleDocument document,
+            int start, int firstSpan) {
         BrailleRule rule = mRuleRepository.find(node);
-        SpannableStringBuilder subtreeResult = new SpannableStringBuilder();
-        rule.format(subtreeResult, mContext, node);
+        rule.format(document, mContext, node);
         if (rule.includeChildren(node, mContext)) {
-            int childCount = node.getChildCount();
+            int childCount = NodeTreeMirror.getChildCount(node);
             for (int i = 0; i < childCount; ++i) {
-                AccessibilityNodeInfoCompat child = node.getChild(i);
+                AccessibilityNodeInfoCompat child = prefetched != null
+                        ? prefetched.obtainChild(node, i) : null;
+                if (child == null) {
+                    child = NodeTreeMirror.getChild(node, i);
+                }
                 if (child == null) {
                     continue;
                 }
-                formatSubtree(child, subtreeResult);
+                formatSubtree(child, node, prefetched, document);
                 child.recycle();
             }
         }
-        if (!TextUtils.isEmpty(subtreeResult)) {
-            // If the node is accessibility focused, add the focus span
-            // here to cover the node and its formatted children.
-            // This is a fallback in case the formatting rule hasn't set
-            // focus by itself.
-            if (node.isAccessibilityFocused()
-                    && subtreeResult.getSpans(0, subtreeResult.length(),
-                            DisplaySpans.FocusSpan.class).length == 0) {
-                DisplaySpans.addFocus(subtreeResult, 0,
-                        subtreeResult.length());
-            }
-            addNodeSpanForUncovered(node, subtreeResult);
-            StringUtils.appendWithSpaces(result, subtreeResult);
+        if (document.length() == start) {
+            return;
+        }
+        // If the node is accessibility focused, add the focus span
+        // here to cover the node and its formatted children.
+        // This is a fallback in case the formatting rule hasn't set
+        // focus by itself.
+        if (node.isAccessibilityFocused() && !document.hasSpanSince(
+                BrailleDocument.SPAN_FOCUS, firstSpan)) {
+            document.addFocus(start, document.length());
         }
+        addNodeSpanForUncovered(node, document, start, firstSpan);
     }
 
     /**
-     * Adds {@code node} as a span on {@code content} if not already
-     * fully covered by an accessibility node info span.
+     * Adds {@code node} as a span covering {@code [start, length)} of
+     * {@code document} if that range is not already fully covered by a node
+     * span added since span index {@code firstSpan}.
      */
     private void addNodeSpanForUncovered(
         AccessibilityNodeInfoCompat node,
-        Spannable spannable) {
-        AccessibilityNodeInfoCompat[] spans =
-                spannable.getSpans(0, spannable.length(),
-                        AccessibilityNodeInfoCompat.class);
-        for (AccessibilityNodeInfoCompat span : spans) {
-            if (spannable.getSpanStart(span) == 0
-                    && spannable.getSpanEnd(span) == spannable.length()) {
-                return;
-            }
+        BrailleDocument document,
+        int start,
+        int firstSpan) {
+        // Each formatted subtree ends with a node span covering all of it,
+        // so only the last node span can cover the whole range.
+        int last = document.lastSpanSince(BrailleDocument.SPAN_NODE,
+                firstSpan);
+        if (last >= 0 && document.getSpanStart(last) == start
+                && document.getSpanEnd(last) == document.length()) {
+            return;
         }
-        DisplaySpans.setAccessibilityNode(spannable, node);
+        document.addNode(start, document.length(), node);
     }
 
     /**
@@ -211,6 +333,13 @@ public class NodeBrailler {
             Rect rect,
             AccessibilityNodeInfoRef outLeft,
             AccessibilityNodeInfoRef outRight) {
+        AccessibilityNodeInfoCompat[] range = new AccessibilityNodeInfoCompat[2];
+        int indexed = mRowIndex.findOverlappingRange(startFrom, rect, range);
+        if (indexed != SiblingRowIndex.RANGE_UNKNOWN) {
+            outLeft.reset(range[0]);
+            outRight.reset(range[1]);
+            return indexed == SiblingRowIndex.RANGE_ALL;
+        }
         Rect tmpRect = new Rect();
         boolean ret = true;
         AccessibilityNodeInfoRef left =
@@ -29,6 +29,7 @@ import com.googlecode.eyesfree.braille.display.BrailleDisplayProperties;
 import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
 import com.googlecode.eyesfree.braille.display.BrailleKeyBinding;
 import com.googlecode.eyesfree.braille.display.Display;
+import com.googlecode.eyesfree.braille.display.DisplayClient;
 import com.googlecode.eyesfree.utils.MotionEventUtils;
 import com.googlecode.eyesfree.utils.SharedPreferencesUtils;
 import com.googlecode.eyesfree.utils.WeakReferenceHandler;
@@ -48,7 +49,7 @@ public final class OverlayDisplay implements Display,
         BrailleView.OnBrailleCellClickListener,
         BrailleView.OnResizeListener {
 
-    private final Display mBackingDisplay;
+    private final DisplayClient mBackingDisplay;
     private final MainThreadHandler mMainThreadHandler;
     private final DisplayThreadHandler mDisplayThreadHandler;
     private final Context mContext;
@@ -67,7 +68,7 @@ public final class OverlayDisplay implements Display,
                 new BrailleKeyBinding[0] /* keyBindings */,
                 Collections.<String, String>emptyMap() /* friendlyKeyNames */);
 
-    public OverlayDisplay(Context context, Display backingDisplay) {
+    public OverlayDisplay(Context context, DisplayClient backingDisplay) {
         mMainThreadHandler = new MainThreadHandler(context, this);
         mDisplayThreadHandler = new DisplayThreadHandler(this);
         mContext = context;
@@ -114,8 +115,26 @@ public final class OverlayDisplay implements Display,
     public void displayDots(byte[] patterns, CharSequence text,
             int[] brailleToTextPositions) {
         mBackingDisplay.displayDots(patterns, text, brailleToTextPositions);
-        mMainThreadHandler.displayDots(getDisplayProperties(), patterns,
-                text, brailleToTextPositions);
+        if (mOverlayEnabled) {
+            // The overlay is drawn later on the main thread, and the caller
+            // may reuse the patterns array for the next frame.
+            mMainThreadHandler.displayDots(getDisplayProperties(),
+                    patterns.clone(), text, brailleToTextPositions);
+        }
+    }
+
+    /**
+     * Returns the minimum write interval of the backing display, or
+     * {@code 0} when the display is simulated.
+     *
+     * @see DisplayClient#getMinWriteIntervalMillis
+     */
+    public long getMinWriteIntervalMillis() {
+        if (!mSimulateDisplay) {
+            return mBackingDisplay.getMinWriteIntervalMillis();
+        } else {
+            return 0;
+        }
     }
 
     @Override
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.googlecode.eyesfree.braille.display.BrailleDisplayProperties;
+import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
+import com.googlecode.eyesfree.braille.display.BrailleKeyBinding;
+import com.googlecode.eyesfree.braille.display.Display;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connected display of a fixed size that counts what is written to it,
+ * and through which input events are sent to the display manager that
+ * drives it.  Used by {@link DisplayReplayer}.
+ *
+ * The waiting methods take a deadline in {@link SystemClock#uptimeMillis}
+ * time and throw {@link InterruptedException} when it passes.
+ */
+class ReplayDisplay implements Display {
+    private final BrailleDisplayProperties mProperties;
+    private final CountDownLatch mAttached = new CountDownLatch(1);
+    private volatile Handler mHandler;
+    private volatile OnConnectionStateChangeListener
+            mConnectionStateChangeListener;
+    private volatile OnInputEventListener mInputEventListener;
+    private volatile int mWriteCount = 0;
+
+    public ReplayDisplay(int numTextCells) {
+        mProperties = new BrailleDisplayProperties(
+                numTextCells, 0 /* numStatusCells */,
+                new BrailleKeyBinding[0] /* keyBindings */,
+                Collections.<String, String>emptyMap()
+                /* friendlyKeyNames */);
+    }
+
+    /** Tells the display manager that the display is connected. */
+    public void connect(long deadline) throws InterruptedException {
+        if (!mAttached.await(remainingMillis(deadline),
+                TimeUnit.MILLISECONDS)) {
+            throw new InterruptedException(
+                    "Timed out waiting for display manager");
+        }
+        runAndWait(mHandler, deadline, new Runnable() {
+            @Override
+            public void run() {
+                mConnectionStateChangeListener.onConnectionStateChanged(
+                        STATE_CONNECTED);
+            }
+        });
+    }
+
+    public void sendInputEvent(final BrailleInputEvent event) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mInputEventListener.onInputEvent(event);
+            }
+        });
+    }
+
+    /**
+     * Waits until the display thread has handled everything sent to it
+     * so far.
+     */
+    public void waitForIdle(long deadline) throws InterruptedException {
+        runAndWait(mHandler, deadline, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    public int getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Runs {@code runnable} on {@code handler} and waits for it until
+     * {@code deadline}.
+     */
+    static void runAndWait(Handler handler, long deadline,
+            final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        if (!done.await(remainingMillis(deadline), TimeUnit.MILLISECONDS)) {
+            throw new InterruptedException("Timed out replaying display");
+        }
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(deadline - SystemClock.uptimeMillis(), 0);
+    }
+
+    @Override
+    public void setOnConnectionStateChangeListener(
+            OnConnectionStateChangeListener listener) {
+        mConnectionStateChangeListener = listener;
+    }
+
+    @Override
+    public void setOnConnectionChangeProgressListener(
+            OnConnectionChangeProgressListener listener) {
+    }
+
+    @Override
+    public void setOnInputEventListener(OnInputEventListener listener) {
+        // Called by the display manager on its display thread, after
+        // the connection state listener is set.
+        mInputEventListener = listener;
+        if (listener != null) {
+            mHandler = new Handler(Looper.myLooper());
+            mAttached.countDown();
+        }
+    }
+
+    @Override
+    public BrailleDisplayProperties getDisplayProperties() {
+        return mProperties;
+    }
+
+    @Override
+    public void displayDots(byte[] patterns, CharSequence text,
+            int[] brailleToTextPositions) {
+        ++mWriteCount;
+    }
+
+    @Override
+    public void poll() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public boolean isSimulated() {
+        return false;
+    }
+}
@@ -19,8 +19,6 @@ package com.googlecode.eyesfree.brailleback;
 import android.accessibilityservice.AccessibilityService;
 import android.os.Bundle;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
-import android.text.SpannableStringBuilder;
-import android.text.Spanned;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
@@ -61,6 +59,7 @@ class SearchNavigationMode implements NavigationMode {
     private final StringBuilder mQueryText = new StringBuilder();
     private final SearchOverlay mSearchOverlay;
     private final CustomLabelManager mLabelManager;
+    private final SearchTextIndex mTextIndex;
     private boolean mActive = false;
 
     private final AccessibilityNodeInfoRef mInitialNode =
@@ -89,6 +88,7 @@ class SearchNavigationMode implements NavigationMode {
         mSearchStateListener = searchStateListener;
         mLabelManager = labelManager;
         mSearchOverlay = new SearchOverlay(mAccessibilityService, mQueryText);
+        mTextIndex = new SearchTextIndex(selfBrailleManager, labelManager);
     }
 
     @Override
@@ -118,6 +118,7 @@ class SearchNavigationMode implements NavigationMode {
         mMatchedNode.clear();
         mQueryText.setLength(0);
         mSearchOverlay.hide();
+        mTextIndex.clear();
     }
 
     /**
@@ -149,11 +150,16 @@ class SearchNavigationMode implements NavigationMode {
                 }
                 return true;
             case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                mTextIndex.clear();
                 finishSearch();
                 // Let it fall through so other navigation mode can
                 // receive the window_state_changed event.
                 return false;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                mTextIndex.onAccessibilityEvent(event);
+                return true;
             case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                mTextIndex.onAccessibilityEvent(event);
                 // This will re-evaluate the search and refocus if necessary.
                 mMatchedNode.reset(AccessibilityNodeInfoUtils.refreshNode(
                         mMatchedNode.get()));
@@ -318,11 +324,18 @@ class SearchNavigationMode implements NavigationMode {
      * Returns whether there is another result in that direction.
      */
     private boolean nextResult(int direction) {
+        if (mQueryText.length() > 0) {
+            int position = mTextIndex.findPosition(getCurrentNode());
+            if (position >= 0) {
+                return nextIndexedResult(position, direction);
+            }
+        }
         AccessibilityNodeInfoRef next = new AccessibilityNodeInfoRef();
-        next.reset(NodeFocusFinder.focusSearch(
-                getCurrentNode(), direction));
         AccessibilityNodeInfoCompat focusableNext = null;
+        AccessibilityNodeInfoUtils.startFocusabilityMemo();
         try {
+            next.reset(NodeFocusFinder.focusSearch(
+                    getCurrentNode(), direction));
             while (next.get() != null) {
                 if (nodeMatchesQuery(next.get())) {
                     // Even if the text matches, we need to make sure the node
@@ -351,6 +364,47 @@ class SearchNavigationMode implements NavigationMode {
         } finally {
             AccessibilityNodeInfoUtils.recycleNodes(focusableNext);
             next.recycle();
+            AccessibilityNodeInfoUtils.finishFocusabilityMemo();
+        }
+    }
+
+    /**
+     * Does the same as {@link #nextResult} using the text index, starting
+     * from the node at {@code position} in the index.
+     */
+    private boolean nextIndexedResult(int position, int direction) {
+        String queryText = mQueryText.toString().toLowerCase();
+        AccessibilityNodeInfoCompat next = null;
+        AccessibilityNodeInfoCompat focusableNext = null;
+        AccessibilityNodeInfoUtils.startFocusabilityMemo();
+        try {
+            for (position = mTextIndex.findNextMatch(
+                            position, queryText, direction);
+                    position >= 0;
+                    position = mTextIndex.findNextMatch(
+                            position, queryText, direction)) {
+                next = mTextIndex.obtainNode(position);
+                // The text may have changed since it was indexed.
+                if (next != null && nodeMatchesQuery(next)) {
+                    focusableNext =
+                            AccessibilityNodeInfoUtils.findFocusFromHover(
+                                mAccessibilityService, next);
+                    if (focusableNext != null &&
+                        !focusableNext.isAccessibilityFocused()) {
+                        mMatchedNode.reset(next);
+                        next = null;
+                        return focusableNext.performAction(
+                                AccessibilityNodeInfo.ACTION_ACCESSIBILITY_FOCUS);
+                    }
+                }
+                AccessibilityNodeInfoUtils.recycleNodes(next, focusableNext);
+                next = null;
+                focusableNext = null;
+            }
+            return false;
+        } finally {
+            AccessibilityNodeInfoUtils.recycleNodes(next, focusableNext);
+            AccessibilityNodeInfoUtils.finishFocusabilityMemo();
         }
     }
 
@@ -457,27 +511,23 @@ class SearchNavigationMode implements NavigationMode {
             return null;
         }
 
-        Spanned spanned = content.getSpanned();
-        if (spanned == null) {
+        CharSequence text = content.getText();
+        if (!(text instanceof BrailleDocument)) {
             LogUtils.log(this, Log.ERROR, "No text for node");
             return null;
         }
+        BrailleDocument document = (BrailleDocument) text;
 
         // Find index of match and the index corresponding to the
         // end of the matched text so we know where to place the cursor.
-        String lowerCase = spanned.toString().toLowerCase();
+        String lowerCase = document.toString().toLowerCase();
         String matchText = mQueryText.toString().toLowerCase();
-        AccessibilityNodeInfoCompat spanNode =
-                (AccessibilityNodeInfoCompat) DisplaySpans.getEqualSpan(
-                        spanned, node);
         int cursorIndex = -1;
-        if (spanNode != null) {
-            int nodeIndex = spanned.getSpanStart(spanNode);
-            if (nodeIndex >= 0 && nodeIndex < lowerCase.length()) {
-                int matchIndex = lowerCase.indexOf(matchText, nodeIndex);
-                if (matchIndex >= 0 && matchIndex <= lowerCase.length()) {
-                    cursorIndex = matchIndex + matchText.length();
-                }
+        int nodeIndex = document.getNodeSpanStart(node);
+        if (nodeIndex >= 0 && nodeIndex < lowerCase.length()) {
+            int matchIndex = lowerCase.indexOf(matchText, nodeIndex);
+            if (matchIndex >= 0 && matchIndex <= lowerCase.length()) {
+                cursorIndex = matchIndex + matchText.length();
             }
         }
 
@@ -485,12 +535,11 @@ class SearchNavigationMode implements NavigationMode {
         String prefix = mAccessibilityService.getString(
                 R.string.search_result_prefix);
         int lengthDiff = prefix.length();
-        SpannableStringBuilder sb = (SpannableStringBuilder) spanned;
-        sb.insert(0, prefix);
+        document.prepend(prefix);
 
         // If match in this node, add cursor at end of match.
         if (cursorIndex != -1) {
-            DisplaySpans.addSelection(sb, cursorIndex + lengthDiff,
+            document.addSelection(cursorIndex + lengthDiff,
                    cursorIndex + lengthDiff);
         }
 
@@ -535,6 +584,7 @@ class SearchNavigationMode implements NavigationMode {
         mSearchStateListener = searchStateListener;
         mSearchOverlay = searchOverlay;
         mLabelManager = null;
+        mTextIndex = new SearchTextIndex(selfBrailleManager, null);
     }
 
     /*package*/ void setQueryTextForTest(String text) {
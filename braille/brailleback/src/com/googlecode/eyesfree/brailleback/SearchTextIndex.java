@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.googlecode.eyesfree.brailleback.utils.LabelingUtils;
+import com.googlecode.eyesfree.labeling.CustomLabelManager;
+import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
+import com.googlecode.eyesfree.utils.NodeTreeMirror;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The searchable text of the nodes in a window, for incremental search.
+ *
+ * The index lists the visible nodes of the window in navigation order,
+ * each with its text, custom label applied, in lower case.  It is built
+ * the first time it is searched and kept until search ends.  For each query,
+ * the positions of the nodes whose text contains the query are kept, and
+ * since a query that is extended by a character can only match a subset of
+ * what it matched before, they are found by narrowing the positions of the
+ * previous query instead of looking at every node.  Deleting a character
+ * goes back to the positions of the shorter query.
+ *
+ * Text changes update the text of their source in place.  Subtree changes
+ * and scrolling are applied on the next search by traversing the changed
+ * subtree again and replacing its range in the list, or by building the
+ * index again if the changed node isn't in the index.
+ */
+class SearchTextIndex {
+    private static final int MAX_NODES = 4096;
+    private static final int MAX_PENDING_CHANGES = 8;
+
+    private static class Entry {
+        /** Owned copy of the node, also used as its key. */
+        final AccessibilityNodeInfoCompat node;
+        final int depth;
+        /** Lower case text to search, or {@code null} if nothing. */
+        String text;
+
+        Entry(AccessibilityNodeInfoCompat nodeArg, int depthArg) {
+            node = nodeArg;
+            depth = depthArg;
+        }
+    }
+
+    /** The ascending positions of the entries that match {@code query}. */
+    private static class Matches {
+        final String query;
+        final int[] positions;
+
+        Matches(String queryArg, int[] positionsArg) {
+            query = queryArg;
+            positions = positionsArg;
+        }
+    }
+
+    private final SelfBrailleManager mSelfBrailleManager;
+    private final CustomLabelManager mLabelManager;
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final HashMap<AccessibilityNodeInfoCompat, Integer> mPositions =
+            new HashMap<AccessibilityNodeInfoCompat, Integer>();
+    /** Owned copies of the sources of subtree changes not applied yet. */
+    private final List<AccessibilityNodeInfoCompat> mPendingChanges =
+            new ArrayList<AccessibilityNodeInfoCompat>();
+    /** Matches of the current query and of each of its prefixes. */
+    private final ArrayList<Matches> mMatchesStack = new ArrayList<Matches>();
+    /** Whether the window can't be indexed, until the index is cleared. */
+    private boolean mUnindexable = false;
+
+    public SearchTextIndex(SelfBrailleManager selfBrailleManager,
+            CustomLabelManager labelManager) {
+        mSelfBrailleManager = selfBrailleManager;
+        mLabelManager = labelManager;
+    }
+
+    /**
+     * Returns the position of {@code node} in navigation order, building or
+     * updating the index first if needed, or {@code -1} if the node isn't
+     * in the index.
+     */
+    public int findPosition(AccessibilityNodeInfoCompat node) {
+        if (node == null || mUnindexable) {
+            return -1;
+        }
+        if (!mPendingChanges.isEmpty()) {
+            applyPendingChanges();
+        }
+        if (mEntries.isEmpty()) {
+            build(node);
+        }
+        Integer position = mPositions.get(node);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Returns the position of the closest node after, or before if
+     * {@code direction} is {@link FocusFinder#SEARCH_BACKWARD},
+     * {@code position} whose text contains {@code query}, which must be in
+     * lower case, or {@code -1} if there is none.
+     */
+    public int findNextMatch(int position, String query, int direction) {
+        int[] positions = getMatches(query).positions;
+        int index = Arrays.binarySearch(positions, position);
+        if (direction == FocusFinder.SEARCH_FORWARD) {
+            index = index >= 0 ? index + 1 : -index - 1;
+            return index < positions.length ? positions[index] : -1;
+        } else {
+            index = index >= 0 ? index - 1 : -index - 2;
+            return index >= 0 ? positions[index] : -1;
+        }
+    }
+
+    /**
+     * Returns a refreshed copy of the node at {@code position}, or
+     * {@code null} if the node is gone.
+     */
+    public AccessibilityNodeInfoCompat obtainNode(int position) {
+        AccessibilityNodeInfoCompat node = AccessibilityNodeInfoCompat.obtain(
+                mEntries.get(position).node);
+        if (!((AccessibilityNodeInfo) node.getInfo()).refresh()) {
+            node.recycle();
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * Updates the index for a content change or scroll event.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        boolean subtreeChanged;
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                int types = event.getContentChangeTypes();
+                subtreeChanged =
+                        types == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                        || (types
+                                & AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE)
+                        != 0;
+                break;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                subtreeChanged = true;
+                break;
+            default:
+                return;
+        }
+        AccessibilityNodeInfo unwrappedSource = event.getSource();
+        if (unwrappedSource == null) {
+            clear();
+            return;
+        }
+        AccessibilityNodeInfoCompat source =
+                new AccessibilityNodeInfoCompat(unwrappedSource);
+        if (subtreeChanged) {
+            if (mPendingChanges.size() >= MAX_PENDING_CHANGES) {
+                source.recycle();
+                clear();
+            } else {
+                mPendingChanges.add(source);
+            }
+            return;
+        }
+        Integer position = mPositions.get(source);
+        if (position != null) {
+            mEntries.get(position).text = getSearchText(source);
+            mMatchesStack.clear();
+        }
+        source.recycle();
+    }
+
+    /**
+     * Drops the index.
+     */
+    public void clear() {
+        recycleEntries(mEntries);
+        mEntries.clear();
+        mPositions.clear();
+        AccessibilityNodeInfoUtils.recycleNodes(mPendingChanges);
+        mPendingChanges.clear();
+        mMatchesStack.clear();
+        mUnindexable = false;
+    }
+
+    private Matches getMatches(String query) {
+        // Drop the matches of queries that aren't prefixes of this one,
+        // such as after deleting characters.
+        for (int i = mMatchesStack.size() - 1; i >= 0; --i) {
+            if (query.startsWith(mMatchesStack.get(i).query)) {
+                break;
+            }
+            mMatchesStack.remove(i);
+        }
+        Matches previous = mMatchesStack.isEmpty()
+                ? null : mMatchesStack.get(mMatchesStack.size() - 1);
+        if (previous != null && previous.query.equals(query)) {
+            return previous;
+        }
+
+        int[] positions = new int[previous != null
+                ? previous.positions.length : mEntries.size()];
+        int count = 0;
+        if (previous != null) {
+            for (int position : previous.positions) {
+                if (mEntries.get(position).text.contains(query)) {
+                    positions[count++] = position;
+                }
+            }
+        } else {
+            for (int position = 0; position < mEntries.size(); ++position) {
+                String text = mEntries.get(position).text;
+                if (text != null && text.contains(query)) {
+                    positions[count++] = position;
+                }
+            }
+        }
+        Matches matches = new Matches(query, Arrays.copyOf(positions, count));
+        mMatchesStack.add(matches);
+        return matches;
+    }
+
+    private void build(AccessibilityNodeInfoCompat node) {
+        AccessibilityNodeInfoCompat root =
+                AccessibilityNodeInfoUtils.getRoot(node);
+        if (root == null) {
+            return;
+        }
+        if (!AccessibilityNodeInfoUtils.isVisibleOrLegacy(root)) {
+            root.recycle();
+            mUnindexable = true;
+            return;
+        }
+        if (!appendSubtree(root, 0, mEntries, MAX_NODES)) {
+            // Leave it to the tree walk.
+            mUnindexable = true;
+            recycleEntries(mEntries);
+            mEntries.clear();
+            return;
+        }
+        updatePositions();
+    }
+
+    private void applyPendingChanges() {
+        List<AccessibilityNodeInfoCompat> changes =
+                new ArrayList<AccessibilityNodeInfoCompat>(mPendingChanges);
+        mPendingChanges.clear();
+        mMatchesStack.clear();
+        for (AccessibilityNodeInfoCompat change : changes) {
+            if (!mEntries.isEmpty() && !patchSubtree(change)) {
+                clear();
+            }
+        }
+        AccessibilityNodeInfoUtils.recycleNodes(changes);
+    }
+
+    /**
+     * Replaces the range of the subtree of {@code node} in the index.
+     * Returns {@code false} if the index has to be built again instead.
+     */
+    private boolean patchSubtree(AccessibilityNodeInfoCompat node) {
+        Integer startPosition = mPositions.get(node);
+        if (startPosition == null || startPosition == 0) {
+            return false;
+        }
+        int start = startPosition;
+        int depth = mEntries.get(start).depth;
+        int end = start + 1;
+        while (end < mEntries.size() && mEntries.get(end).depth > depth) {
+            ++end;
+        }
+
+        List<Entry> subtree = new ArrayList<Entry>();
+        AccessibilityNodeInfoCompat fresh =
+                AccessibilityNodeInfoCompat.obtain(node);
+        if (!((AccessibilityNodeInfo) fresh.getInfo()).refresh()) {
+            fresh.recycle();
+            return false;
+        }
+        if (!AccessibilityNodeInfoUtils.isVisibleOrLegacy(fresh)) {
+            // Hidden subtrees can't be navigated to.
+            fresh.recycle();
+        } else if (!appendSubtree(fresh, depth, subtree,
+                MAX_NODES - mEntries.size() + (end - start))) {
+            recycleEntries(subtree);
+            return false;
+        }
+
+        List<Entry> replaced = mEntries.subList(start, end);
+        recycleEntries(replaced);
+        replaced.clear();
+        mEntries.addAll(start, subtree);
+        updatePositions();
+        return true;
+    }
+
+    /**
+     * Appends {@code node}, which this method takes ownership of, and its
+     * visible descendants in navigation order to {@code out}.  Returns
+     * {@code false} if {@code out} would grow beyond {@code limit} entries.
+     */
+    private boolean appendSubtree(AccessibilityNodeInfoCompat node, int depth,
+            List<Entry> out, int limit) {
+        if (out.size() >= limit) {
+            node.recycle();
+            return false;
+        }
+        Entry entry = new Entry(node, depth);
+        entry.text = getSearchText(node);
+        out.add(entry);
+        int childCount = NodeTreeMirror.getChildCount(node);
+        for (int i = 0; i < childCount; ++i) {
+            AccessibilityNodeInfoCompat child =
+                    NodeTreeMirror.getChild(node, i);
+            if (child == null) {
+                // Navigation doesn't get past a missing child either.
+                break;
+            }
+            if (!AccessibilityNodeInfoUtils.isVisibleOrLegacy(child)) {
+                child.recycle();
+                continue;
+            }
+            if (!appendSubtree(child, depth + 1, out, limit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the text that search matches against for {@code node}.
+     * Self brailled nodes are never matched.
+     */
+    private String getSearchText(AccessibilityNodeInfoCompat node) {
+        if (mSelfBrailleManager.hasContentForNode(node)) {
+            return null;
+        }
+        CharSequence text = LabelingUtils.getNodeText(node, mLabelManager);
+        return text != null ? text.toString().toLowerCase() : null;
+    }
+
+    private void updatePositions() {
+        mPositions.clear();
+        for (int i = 0; i < mEntries.size(); ++i) {
+            mPositions.put(mEntries.get(i).node, i);
+        }
+    }
+
+    private static void recycleEntries(List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.node.recycle();
+        }
+    }
+}
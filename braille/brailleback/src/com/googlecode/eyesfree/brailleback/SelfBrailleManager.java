@@ -45,9 +45,8 @@ public class SelfBrailleManager {
 
     public boolean hasContentForNode(
             AccessibilityNodeInfoCompat node) {
-        // TODO: Tweak SelfBrailleService so that we don't need to actually
-        // compute the content -- we know that it exists before then.
-        return contentForNode(node) != null;
+        final SelfBrailleService service = getSelfBrailleService();
+        return service != null && service.hasContentForNode(node);
     }
 
     /**
@@ -25,9 +25,11 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
-import android.text.SpannableStringBuilder;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseIntArray;
 import android.view.accessibility.AccessibilityNodeInfo;
 
 import com.googlecode.eyesfree.braille.selfbraille.ISelfBrailleService;
@@ -37,8 +39,12 @@ import com.googlecode.eyesfree.utils.LogUtils;
 import com.googlecode.eyesfree.utils.NodeFilter;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -51,8 +57,7 @@ public class SelfBrailleService extends Service {
     private final ServiceImpl mServiceImpl = new ServiceImpl();
     private final Map<IBinder, ClientInfo> mClients =
             new HashMap<IBinder, ClientInfo>();
-    private final Map<AccessibilityNodeInfo, NodeState> mNodeStates =
-            new HashMap<AccessibilityNodeInfo, NodeState>();
+    private final NodeStateIndex mNodeStates = new NodeStateIndex();
     private final SelfBrailleHandler mHandler = new SelfBrailleHandler();
     private PackageManager mPackageManager;    
 
@@ -118,14 +123,22 @@ public class SelfBrailleService extends Service {
         }
     }
 
+    /**
+     * Returns whether a client controls the braille output of {@code node}
+     * or one of its ancestors.
+     */
+    public boolean hasContentForNode(AccessibilityNodeInfoCompat node) {
+        AccessibilityNodeInfoCompat match = findSelfBrailledNode(node);
+        if (match == null) {
+            return false;
+        }
+        match.recycle();
+        return true;
+    }
+
     public DisplayManager.Content contentForNode(
         AccessibilityNodeInfoCompat node) {
-        if (mNodeStates.isEmpty()) {
-            return null;
-        }
-        AccessibilityNodeInfoCompat match =
-                AccessibilityNodeInfoUtils.getSelfOrMatchingAncestor(
-                    this, node, mFilterHaveNodeState);
+        AccessibilityNodeInfoCompat match = findSelfBrailledNode(node);
         if (match == null) {
             return null;
         }
@@ -135,27 +148,41 @@ public class SelfBrailleService extends Service {
         if (writeData == null) {
             return null;
         }
-        SpannableStringBuilder sb = new SpannableStringBuilder(
+        BrailleDocument document = BrailleDocument.obtain(
             writeData.getText());
         // NOTE: it is important to use a node returned by the accessibility
         // framework and not a node from a client of this service.
         // The rest of BrailleBack will assume that the node we are adding
         // here is sealed, supports actions etc.
-        DisplaySpans.setAccessibilityNode(sb, match);
+        document.addNode(0, document.length(), match);
         int selectionStart = writeData.getSelectionStart();
         if (selectionStart >= 0) {
             int selectionEnd = writeData.getSelectionEnd();
             if (selectionEnd < selectionStart) {
                 selectionEnd = selectionStart;
             }
-            DisplaySpans.addSelection(sb, selectionStart, selectionEnd);
+            document.addSelection(selectionStart, selectionEnd);
         }
-        return new DisplayManager.Content(sb)
+        return new DisplayManager.Content(document)
                 .setFirstNode(match)
                 .setLastNode(match)
                 .setPanStrategy(DisplayManager.Content.PAN_CURSOR);
     }
 
+    /**
+     * Returns {@code node} or its closest ancestor with a node state.
+     * Nodes in windows without any node states are answered without
+     * walking the tree.
+     */
+    private AccessibilityNodeInfoCompat findSelfBrailledNode(
+            AccessibilityNodeInfoCompat node) {
+        if (node == null || !mNodeStates.hasStatesInWindow(node.getWindowId())) {
+            return null;
+        }
+        return AccessibilityNodeInfoUtils.getSelfOrMatchingAncestor(
+                this, node, mFilterHaveNodeState);
+    }
+
     private ClientInfo infoForClient(IBinder clientToken) {
         ClientInfo info = mClients.get(clientToken);
         if (info == null) {
@@ -174,6 +201,9 @@ public class SelfBrailleService extends Service {
         private IBinder mClientToken;
         private final Set<AccessibilityNodeInfo> mNodes =
                 new HashSet<AccessibilityNodeInfo>();
+        /** Write budget accounting, used on the handler thread. */
+        private long mBudgetPeriodStartMillis = 0;
+        private int mBudgetPeriodWrites = 0;
 
         public ClientInfo(IBinder clientToken) {
             mClientToken = clientToken;
@@ -188,15 +218,165 @@ public class SelfBrailleService extends Service {
     private static class NodeState {
         public IBinder mClientToken;
         public WriteData mWriteData;
+        /** Next state with the same key in {@link NodeStateIndex}. */
+        public NodeState mNext;
+    }
+
+    /**
+     * Key of a pending node state, so that writes of different clients for
+     * the same node don't replace each other before they are applied.
+     */
+    private static class PendingKey {
+        private final IBinder mClientToken;
+        private final AccessibilityNodeInfo mNode;
+
+        public PendingKey(IBinder clientToken, AccessibilityNodeInfo node) {
+            mClientToken = clientToken;
+            mNode = node;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey otherKey = (PendingKey) other;
+            return mClientToken == otherKey.mClientToken
+                    && mNode.equals(otherKey.mNode);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mClientToken)
+                    + mNode.hashCode();
+        }
+    }
+
+    /**
+     * Node states keyed by window id and node, with the number of states in
+     * each window.  The node part of the key is the node hash code, which is
+     * derived from the source node id, so states with colliding keys are
+     * chained and told apart with {@link AccessibilityNodeInfo#equals}.
+     */
+    private static class NodeStateIndex {
+        private final LongSparseArray<NodeState> mStates =
+                new LongSparseArray<NodeState>();
+        private final SparseIntArray mWindowCounts = new SparseIntArray();
+
+        public NodeState get(AccessibilityNodeInfo node) {
+            for (NodeState state = mStates.get(keyFor(node)); state != null;
+                    state = state.mNext) {
+                if (node.equals(state.mWriteData.getAccessibilityNodeInfo())) {
+                    return state;
+                }
+            }
+            return null;
+        }
+
+        public boolean containsKey(AccessibilityNodeInfo node) {
+            return mWindowCounts.get(node.getWindowId()) > 0
+                    && get(node) != null;
+        }
+
+        public boolean hasStatesInWindow(int windowId) {
+            return mWindowCounts.get(windowId) > 0;
+        }
+
+        /**
+         * Adds {@code state} for {@code node}, which must not have a state
+         * already.
+         */
+        public void put(AccessibilityNodeInfo node, NodeState state) {
+            long key = keyFor(node);
+            state.mNext = mStates.get(key);
+            mStates.put(key, state);
+            int windowId = node.getWindowId();
+            mWindowCounts.put(windowId, mWindowCounts.get(windowId) + 1);
+        }
+
+        public NodeState remove(AccessibilityNodeInfo node) {
+            long key = keyFor(node);
+            NodeState previous = null;
+            for (NodeState state = mStates.get(key); state != null;
+                    state = state.mNext) {
+                if (node.equals(state.mWriteData.getAccessibilityNodeInfo())) {
+                    if (previous != null) {
+                        previous.mNext = state.mNext;
+                    } else if (state.mNext != null) {
+                        mStates.put(key, state.mNext);
+                    } else {
+                        mStates.remove(key);
+                    }
+                    state.mNext = null;
+                    int windowId = node.getWindowId();
+                    int count = mWindowCounts.get(windowId) - 1;
+                    if (count > 0) {
+                        mWindowCounts.put(windowId, count);
+                    } else {
+                        mWindowCounts.delete(windowId);
+                    }
+                    return state;
+                }
+                previous = state;
+            }
+            return null;
+        }
+
+        private static long keyFor(AccessibilityNodeInfo node) {
+            return ((long) node.getWindowId() << 32)
+                    | (node.hashCode() & 0xffffffffL);
+        }
     }
 
+    /**
+     * Handles the node states written by clients.  Writes are coalesced so
+     * that only the latest state for each node is applied, at most once per
+     * {@link #FRAME_INTERVAL_MILLIS}, and each client gets at most
+     * {@link #MAX_WRITES_PER_SECOND} writes applied per second.  Writes over
+     * the budget wait, and may be replaced, until the client has budget
+     * again.
+     */
     private class SelfBrailleHandler extends Handler {
-        private static final int MSG_SET_NODE_STATE = 1;
+        private static final int MSG_FLUSH_NODE_STATES = 1;
         private static final int MSG_INVALIDATE_AND_RECYCLE_NODE = 2;
         private static final int MSG_CLIENT_DISCONNECTED = 3;
 
+        private static final long FRAME_INTERVAL_MILLIS = 16;
+        private static final int MAX_WRITES_PER_SECOND = 120;
+        private static final long BUDGET_PERIOD_MILLIS = 1000;
+
+        /**
+         * Latest unapplied state for each client and node, in the order
+         * they were written.  Protects itself and {@link #mFlushScheduled},
+         * since writes arrive on binder threads.
+         */
+        private final LinkedHashMap<PendingKey, NodeState> mPendingStates =
+                new LinkedHashMap<PendingKey, NodeState>();
+        private boolean mFlushScheduled = false;
+        private long mLastFlushMillis = 0;
+
         public void setNodeState(NodeState newState) {
-            obtainMessage(MSG_SET_NODE_STATE, newState).sendToTarget();
+            PendingKey key = new PendingKey(newState.mClientToken,
+                    newState.mWriteData.getAccessibilityNodeInfo());
+            synchronized (mPendingStates) {
+                // Remove first, since put() would keep the old key, whose
+                // node is recycled with the state it belongs to.
+                NodeState replaced = mPendingStates.remove(key);
+                if (replaced != null) {
+                    replaced.mWriteData.getAccessibilityNodeInfo().recycle();
+                }
+                mPendingStates.put(key, newState);
+                scheduleFlushLocked(mLastFlushMillis + FRAME_INTERVAL_MILLIS);
+            }
+        }
+
+        private void scheduleFlushLocked(long atMillis) {
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+            sendEmptyMessageAtTime(MSG_FLUSH_NODE_STATES,
+                    Math.max(atMillis, SystemClock.uptimeMillis()));
         }
 
         public void invalidateAndRecycleNode(AccessibilityNodeInfo node) {
@@ -210,9 +390,8 @@ public class SelfBrailleService extends Service {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_SET_NODE_STATE:
-                    NodeState state = (NodeState) msg.obj;
-                    handleSetNodeState(state);
+                case MSG_FLUSH_NODE_STATES:
+                    handleFlushNodeStates();
                     break;
               case MSG_INVALIDATE_AND_RECYCLE_NODE:
                     AccessibilityNodeInfo node =
@@ -226,9 +405,56 @@ public class SelfBrailleService extends Service {
             }
         }
 
+        private void handleFlushNodeStates() {
+            List<NodeState> toApply = new ArrayList<NodeState>();
+            synchronized (mPendingStates) {
+                mFlushScheduled = false;
+                long now = SystemClock.uptimeMillis();
+                mLastFlushMillis = now;
+                long nextBudgetMillis = Long.MAX_VALUE;
+                Iterator<NodeState> it = mPendingStates.values().iterator();
+                while (it.hasNext()) {
+                    NodeState state = it.next();
+                    ClientInfo clientInfo = infoForClient(state.mClientToken);
+                    if (clientInfo != null) {
+                        if (now - clientInfo.mBudgetPeriodStartMillis
+                                >= BUDGET_PERIOD_MILLIS) {
+                            clientInfo.mBudgetPeriodStartMillis = now;
+                            clientInfo.mBudgetPeriodWrites = 0;
+                        }
+                        if (clientInfo.mBudgetPeriodWrites
+                                >= MAX_WRITES_PER_SECOND) {
+                            nextBudgetMillis = Math.min(nextBudgetMillis,
+                                    clientInfo.mBudgetPeriodStartMillis
+                                    + BUDGET_PERIOD_MILLIS);
+                            continue;
+                        }
+                        ++clientInfo.mBudgetPeriodWrites;
+                    }
+                    it.remove();
+                    toApply.add(state);
+                }
+                if (!mPendingStates.isEmpty()) {
+                    scheduleFlushLocked(nextBudgetMillis);
+                }
+            }
+            for (NodeState state : toApply) {
+                handleSetNodeState(state);
+            }
+        }
+
         private void handleSetNodeState(NodeState newState) {
             AccessibilityNodeInfo newNode =
                     newState.mWriteData.getAccessibilityNodeInfo();
+            NodeState currentState = mNodeStates.get(newNode);
+            if (currentState != null
+                    && currentState.mClientToken == newState.mClientToken
+                    && currentState.mWriteData.hasSameContent(
+                            newState.mWriteData)) {
+                // Nothing changes on the display.
+                newNode.recycle();
+                return;
+            }
             // We must remove and insert to get the node replaced.
             NodeState oldState = mNodeStates.remove(newNode);
             if (oldState != null) {
@@ -265,6 +491,16 @@ public class SelfBrailleService extends Service {
         }
 
         private void handleClientDisconnected(IBinder clientToken) {
+            synchronized (mPendingStates) {
+                Iterator<NodeState> it = mPendingStates.values().iterator();
+                while (it.hasNext()) {
+                    NodeState state = it.next();
+                    if (state.mClientToken == clientToken) {
+                        it.remove();
+                        state.mWriteData.getAccessibilityNodeInfo().recycle();
+                    }
+                }
+            }
             ClientInfo clientInfo = mClients.remove(clientToken);
             if (clientInfo != null) {
                 LogUtils.log(SelfBrailleService.this, Log.VERBOSE,
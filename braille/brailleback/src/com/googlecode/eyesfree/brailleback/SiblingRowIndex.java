@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
+import com.googlecode.eyesfree.utils.NodeTreeMirror;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Remembers the children of recently used containers together with their
+ * bounds, visibility and whether their braille rule includes their
+ * children, so that finding the siblings that share a line with a node
+ * doesn't need to fetch and inspect each sibling again every time the
+ * display extent of a node in the container is computed.
+ *
+ * The siblings on the same line as a child, measured against the child's
+ * own bounds, are remembered as well, since that is the query made for
+ * every focused node before walking up the tree.
+ *
+ * Containers are dropped when an accessibility event says that their
+ * children, or the children of one of their ancestors, may have changed or
+ * moved, and the index is cleared on window state changes.  Containers not
+ * used for {@link #MAX_AGE_MILLIS} are refetched as well, since layout
+ * changes aren't always reported.
+ */
+class SiblingRowIndex {
+    /** Returned when {@code startFrom} couldn't be found in the index. */
+    public static final int RANGE_UNKNOWN = -1;
+    /** Returned when some sibling isn't on the same line. */
+    public static final int RANGE_PARTIAL = 0;
+    /** Returned when all siblings are on the same line. */
+    public static final int RANGE_ALL = 1;
+
+    /** Decides which siblings go on the same line. */
+    public interface LineRule {
+        boolean includesChildren(AccessibilityNodeInfoCompat node);
+        boolean shouldPutOnSameLine(Rect a, Rect b);
+    }
+
+    private static final int MAX_CONTAINERS = 16;
+    /** Containers with more children are not indexed. */
+    private static final int MAX_CHILDREN = 512;
+    private static final long MAX_AGE_MILLIS = 5000;
+    /** How far up the tree to look for ancestors when invalidating. */
+    private static final int MAX_ANCESTOR_DEPTH = 64;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte YES = 1;
+    private static final byte NO = 2;
+
+    private static class Rows {
+        /** Owned copy of the container, also used as the key. */
+        final AccessibilityNodeInfoCompat container;
+        /** Owned copies of the children, {@code null} where not available. */
+        final AccessibilityNodeInfoCompat[] children;
+        final Rect[] bounds;
+        final boolean[] visible;
+        final byte[] includesChildren;
+        /** Same line range for each child against its own bounds. */
+        final int[] rowLeft;
+        final int[] rowRight;
+        final byte[] rowAll;
+        final long createdMillis;
+
+        Rows(AccessibilityNodeInfoCompat containerArg, int childCount) {
+            container = containerArg;
+            children = new AccessibilityNodeInfoCompat[childCount];
+            bounds = new Rect[childCount];
+            visible = new boolean[childCount];
+            includesChildren = new byte[childCount];
+            rowLeft = new int[childCount];
+            rowRight = new int[childCount];
+            rowAll = new byte[childCount];
+            createdMillis = SystemClock.uptimeMillis();
+        }
+
+        int indexOf(AccessibilityNodeInfoCompat node) {
+            for (int i = 0; i < children.length; ++i) {
+                if (node.equals(children[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void recycle() {
+            container.recycle();
+            AccessibilityNodeInfoUtils.recycleNodes(children);
+        }
+    }
+
+    private final LineRule mLineRule;
+    /** Containers in least recently used order. */
+    private final LinkedHashMap<AccessibilityNodeInfoCompat, Rows> mRows =
+            new LinkedHashMap<AccessibilityNodeInfoCompat, Rows>(
+                    MAX_CONTAINERS, 0.75f, true);
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    public SiblingRowIndex(LineRule lineRule) {
+        mLineRule = lineRule;
+    }
+
+    /**
+     * Finds the range of siblings adjacent to {@code startFrom} that should
+     * be on the same line as {@code rect}, with the same result as walking
+     * the siblings one by one.  Sets the two elements of {@code outRange}
+     * to owned copies of the first and last node of the range, which
+     * includes {@code startFrom}.  Returns {@link #RANGE_ALL} or
+     * {@link #RANGE_PARTIAL}, or {@link #RANGE_UNKNOWN} without touching
+     * {@code outRange} if the siblings of {@code startFrom} couldn't be
+     * indexed.
+     */
+    public synchronized int findOverlappingRange(
+            AccessibilityNodeInfoCompat startFrom, Rect rect,
+            AccessibilityNodeInfoCompat[] outRange) {
+        AccessibilityNodeInfoCompat parent = NodeTreeMirror.getParent(startFrom);
+        if (parent == null) {
+            return RANGE_UNKNOWN;
+        }
+        Rows rows = getRows(parent);
+        parent.recycle();
+        if (rows == null) {
+            return RANGE_UNKNOWN;
+        }
+        int index = rows.indexOf(startFrom);
+        if (index < 0) {
+            // The container changed without us being told.
+            remove(rows.container);
+            return RANGE_UNKNOWN;
+        }
+
+        int left;
+        int right;
+        boolean all;
+        boolean ownLine = rect.equals(rows.bounds[index]);
+        if (ownLine && rows.rowAll[index] != UNKNOWN) {
+            left = rows.rowLeft[index];
+            right = rows.rowRight[index];
+            all = rows.rowAll[index] == YES;
+        } else {
+            all = true;
+            left = index;
+            for (int i = index - 1; i >= 0 && rows.children[i] != null; --i) {
+                if (!rows.visible[i]) {
+                    continue;
+                }
+                if (!isOnLine(rows, i, rect)) {
+                    all = false;
+                    break;
+                }
+                left = i;
+            }
+            right = index;
+            for (int i = index + 1; i < rows.children.length
+                    && rows.children[i] != null; ++i) {
+                if (!rows.visible[i]) {
+                    continue;
+                }
+                if (!isOnLine(rows, i, rect)) {
+                    all = false;
+                    break;
+                }
+                right = i;
+            }
+            if (ownLine) {
+                rows.rowLeft[index] = left;
+                rows.rowRight[index] = right;
+                rows.rowAll[index] = all ? YES : NO;
+            }
+        }
+        outRange[0] = AccessibilityNodeInfoCompat.obtain(
+                left == index ? startFrom : rows.children[left]);
+        outRange[1] = AccessibilityNodeInfoCompat.obtain(
+                right == index ? startFrom : rows.children[right]);
+        return all ? RANGE_ALL : RANGE_PARTIAL;
+    }
+
+    /**
+     * Drops containers affected by {@code event}, whose source is
+     * {@code source}, or {@code null} if it has none.  Doesn't recycle
+     * {@code source}.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event,
+            AccessibilityNodeInfo source) {
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                clear();
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                if (isEmpty()) {
+                    return;
+                }
+                if (source == null) {
+                    clear();
+                    return;
+                }
+                invalidate(new AccessibilityNodeInfoCompat(source));
+                break;
+        }
+    }
+
+    /**
+     * Drops the containers of {@code node}'s children, its siblings, and
+     * the siblings of its ancestors and descendants.
+     */
+    public void invalidate(AccessibilityNodeInfoCompat node) {
+        if (isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            remove(node);
+        }
+        // Whether an ancestor includes its children can depend on its
+        // descendants, so the rows the ancestors are part of go too.
+        AccessibilityNodeInfoCompat ancestor = NodeTreeMirror.getParent(node);
+        for (int depth = 0; ancestor != null && depth < MAX_ANCESTOR_DEPTH;
+                ++depth) {
+            synchronized (this) {
+                remove(ancestor);
+            }
+            AccessibilityNodeInfoCompat parent =
+                    NodeTreeMirror.getParent(ancestor);
+            ancestor.recycle();
+            ancestor = parent;
+        }
+        if (ancestor != null) {
+            ancestor.recycle();
+            clear();
+            return;
+        }
+        // Descendants may have moved.
+        List<AccessibilityNodeInfoCompat> containers =
+                new ArrayList<AccessibilityNodeInfoCompat>();
+        synchronized (this) {
+            for (AccessibilityNodeInfoCompat container : mRows.keySet()) {
+                containers.add(AccessibilityNodeInfoCompat.obtain(container));
+            }
+        }
+        for (AccessibilityNodeInfoCompat container : containers) {
+            if (hasAncestor(container, node)) {
+                synchronized (this) {
+                    remove(container);
+                }
+            }
+        }
+        AccessibilityNodeInfoUtils.recycleNodes(containers);
+    }
+
+    public synchronized void clear() {
+        for (Rows rows : mRows.values()) {
+            rows.recycle();
+        }
+        mRows.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private synchronized boolean isEmpty() {
+        return mRows.isEmpty();
+    }
+
+    private boolean isOnLine(Rows rows, int index, Rect rect) {
+        if (rows.includesChildren[index] == UNKNOWN) {
+            rows.includesChildren[index] =
+                    mLineRule.includesChildren(rows.children[index])
+                    ? YES : NO;
+        }
+        return rows.includesChildren[index] == YES
+                && mLineRule.shouldPutOnSameLine(rows.bounds[index], rect);
+    }
+
+    private Rows getRows(AccessibilityNodeInfoCompat container) {
+        Rows rows = mRows.get(container);
+        if (rows != null) {
+            if (SystemClock.uptimeMillis() - rows.createdMillis
+                    < MAX_AGE_MILLIS) {
+                ++mHitCount;
+                return rows;
+            }
+            remove(container);
+        }
+        ++mMissCount;
+        int childCount = NodeTreeMirror.getChildCount(container);
+        if (childCount == 0 || childCount > MAX_CHILDREN) {
+            return null;
+        }
+        rows = new Rows(AccessibilityNodeInfoCompat.obtain(container),
+                childCount);
+        for (int i = 0; i < childCount; ++i) {
+            AccessibilityNodeInfoCompat child =
+                    NodeTreeMirror.getChild(container, i);
+            if (child == null) {
+                continue;
+            }
+            rows.children[i] = child;
+            rows.bounds[i] = new Rect();
+            child.getBoundsInScreen(rows.bounds[i]);
+            rows.visible[i] = AccessibilityNodeInfoUtils.isVisibleOrLegacy(
+                    child);
+        }
+        mRows.put(rows.container, rows);
+        Iterator<Rows> it = mRows.values().iterator();
+        while (mRows.size() > MAX_CONTAINERS && it.hasNext()) {
+            Rows eldest = it.next();
+            it.remove();
+            eldest.recycle();
+        }
+        return rows;
+    }
+
+    private void remove(AccessibilityNodeInfoCompat container) {
+        Rows rows = mRows.remove(container);
+        if (rows != null) {
+            rows.recycle();
+        }
+    }
+
+    private static boolean hasAncestor(AccessibilityNodeInfoCompat node,
+            AccessibilityNodeInfoCompat ancestor) {
+        AccessibilityNodeInfoCompat current = NodeTreeMirror.getParent(node);
+        try {
+            for (int depth = 0; current != null && depth < MAX_ANCESTOR_DEPTH;
+                    ++depth) {
+                if (ancestor.equals(current)) {
+                    return true;
+                }
+                AccessibilityNodeInfoCompat parent =
+                        NodeTreeMirror.getParent(current);
+                current.recycle();
+                current = parent;
+            }
+            // Assume the worst if the tree is too deep.
+            return current != null;
+        } finally {
+            AccessibilityNodeInfoUtils.recycleNodes(current);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.text.Spanned;
+import java.util.HashMap;
+
+/**
+ * An index of the spans in display content that the display pipeline cares
+ * about: selections, focus, verbatim braille and accessibility nodes.
+ *
+ * The index is built with a single pass over the spans of the text, after
+ * which lookups don't need to query the {@link Spanned} again.  Each kind of
+ * span is kept in its own arrays, sorted by span start.  Spans with the same
+ * start keep the order in which they were returned by the text.
+ *
+ * Node spans can also be looked up by node identity (window id and source
+ * node id, which is what {@link AccessibilityNodeInfoCompat#equals} and
+ * {@link AccessibilityNodeInfoCompat#hashCode} use) through a hash map that
+ * is built the first time it is needed.
+ *
+ * The indexed text must not be modified after the index is built.  Nodes
+ * returned by this class are still owned by the indexed text.
+ */
+public class SpanIndex {
+    private static final int[] EMPTY_POSITIONS = new int[0];
+
+    /** Index of content without any spans. */
+    public static final SpanIndex EMPTY = new SpanIndex();
+
+    private final int[] mSelectionStarts;
+    private final int[] mSelectionEnds;
+    private final int[] mFocusStarts;
+    private final int[] mFocusEnds;
+    private final DisplaySpans.BrailleSpan[] mBrailleSpans;
+    private final int[] mBrailleStarts;
+    private final int[] mBrailleEnds;
+    private final AccessibilityNodeInfoCompat[] mNodes;
+    private final int[] mNodeStarts;
+    private final int[] mNodeEnds;
+    /** Maps each node to the index of its first span.  Built lazily. */
+    private HashMap<AccessibilityNodeInfoCompat, Integer> mNodeIndices;
+
+    private SpanIndex() {
+        mSelectionStarts = mSelectionEnds = EMPTY_POSITIONS;
+        mFocusStarts = mFocusEnds = EMPTY_POSITIONS;
+        mBrailleSpans = new DisplaySpans.BrailleSpan[0];
+        mBrailleStarts = mBrailleEnds = EMPTY_POSITIONS;
+        mNodes = new AccessibilityNodeInfoCompat[0];
+        mNodeStarts = mNodeEnds = EMPTY_POSITIONS;
+    }
+
+    private SpanIndex(int numSelections, int numFocus, int numBraille,
+            int numNodes) {
+        mSelectionStarts = new int[numSelections];
+        mSelectionEnds = new int[numSelections];
+        mFocusStarts = new int[numFocus];
+        mFocusEnds = new int[numFocus];
+        mBrailleSpans = new DisplaySpans.BrailleSpan[numBraille];
+        mBrailleStarts = new int[numBraille];
+        mBrailleEnds = new int[numBraille];
+        mNodes = new AccessibilityNodeInfoCompat[numNodes];
+        mNodeStarts = new int[numNodes];
+        mNodeEnds = new int[numNodes];
+    }
+
+    private SpanIndex(Spanned spanned, Object[] spans, int numSelections,
+            int numFocus, int numBraille, int numNodes) {
+        this(numSelections, numFocus, numBraille, numNodes);
+        int selection = 0;
+        int focus = 0;
+        int braille = 0;
+        int node = 0;
+        for (Object span : spans) {
+            int start = spanned.getSpanStart(span);
+            int end = spanned.getSpanEnd(span);
+            if (span instanceof DisplaySpans.SelectionSpan) {
+                insert(mSelectionStarts, mSelectionEnds, null, selection++,
+                        start, end, null);
+            } else if (span instanceof DisplaySpans.FocusSpan) {
+                insert(mFocusStarts, mFocusEnds, null, focus++,
+                        start, end, null);
+            } else if (span instanceof DisplaySpans.BrailleSpan) {
+                insert(mBrailleStarts, mBrailleEnds, mBrailleSpans,
+                        braille++, start, end, span);
+            } else if (span instanceof AccessibilityNodeInfoCompat) {
+                insert(mNodeStarts, mNodeEnds, mNodes, node++,
+                        start, end, span);
+            }
+        }
+    }
+
+    /**
+     * Builds an index of the spans in {@code text}.  Returns {@link #EMPTY}
+     * if {@code text} isn't {@link Spanned}.
+     */
+    public static SpanIndex build(CharSequence text) {
+        if (text instanceof BrailleDocument) {
+            return build((BrailleDocument) text);
+        }
+        if (!(text instanceof Spanned)) {
+            return EMPTY;
+        }
+        Spanned spanned = (Spanned) text;
+        Object[] spans = spanned.getSpans(0, spanned.length(), Object.class);
+        int numSelections = 0;
+        int numFocus = 0;
+        int numBraille = 0;
+        int numNodes = 0;
+        for (Object span : spans) {
+            if (span instanceof DisplaySpans.SelectionSpan) {
+                ++numSelections;
+            } else if (span instanceof DisplaySpans.FocusSpan) {
+                ++numFocus;
+            } else if (span instanceof DisplaySpans.BrailleSpan) {
+                ++numBraille;
+            } else if (span instanceof AccessibilityNodeInfoCompat) {
+                ++numNodes;
+            }
+        }
+        return new SpanIndex(spanned, spans, numSelections, numFocus,
+                numBraille, numNodes);
+    }
+
+    /**
+     * Builds an index of the spans in {@code document} from its span arrays,
+     * without materializing the spans the index doesn't keep.
+     */
+    private static SpanIndex build(BrailleDocument document) {
+        int spanCount = document.getSpanCount();
+        int numSelections = 0;
+        int numFocus = 0;
+        int numBraille = 0;
+        int numNodes = 0;
+        for (int i = 0; i < spanCount; ++i) {
+            switch (document.getSpanType(i)) {
+                case BrailleDocument.SPAN_SELECTION:
+                    ++numSelections;
+                    break;
+                case BrailleDocument.SPAN_FOCUS:
+                    ++numFocus;
+                    break;
+                case BrailleDocument.SPAN_BRAILLE:
+                    ++numBraille;
+                    break;
+                case BrailleDocument.SPAN_NODE:
+                    ++numNodes;
+                    break;
+            }
+        }
+        SpanIndex index = new SpanIndex(numSelections, numFocus, numBraille,
+                numNodes);
+        int selection = 0;
+        int focus = 0;
+        int braille = 0;
+        int node = 0;
+        for (int i = 0; i < spanCount; ++i) {
+            int start = document.getSpanStart(i);
+            int end = document.getSpanEnd(i);
+            switch (document.getSpanType(i)) {
+                case BrailleDocument.SPAN_SELECTION:
+                    insert(index.mSelectionStarts, index.mSelectionEnds, null,
+                            selection++, start, end, null);
+                    break;
+                case BrailleDocument.SPAN_FOCUS:
+                    insert(index.mFocusStarts, index.mFocusEnds, null,
+                            focus++, start, end, null);
+                    break;
+                case BrailleDocument.SPAN_BRAILLE:
+                    insert(index.mBrailleStarts, index.mBrailleEnds,
+                            index.mBrailleSpans, braille++, start, end,
+                            document.getSpanObject(i));
+                    break;
+                case BrailleDocument.SPAN_NODE:
+                    insert(index.mNodeStarts, index.mNodeEnds, index.mNodes,
+                            node++, start, end, document.getSpanObject(i));
+                    break;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Inserts a span at its sorted position among the first {@code count}
+     * entries.  Spans are almost always added in text order, in which case
+     * this doesn't move anything.
+     */
+    private static void insert(int[] starts, int[] ends, Object[] objects,
+            int count, int start, int end, Object object) {
+        int i = count;
+        while (i > 0 && starts[i - 1] > start) {
+            starts[i] = starts[i - 1];
+            ends[i] = ends[i - 1];
+            if (objects != null) {
+                objects[i] = objects[i - 1];
+            }
+            --i;
+        }
+        starts[i] = start;
+        ends[i] = end;
+        if (objects != null) {
+            objects[i] = object;
+        }
+    }
+
+    public int getSelectionCount() {
+        return mSelectionStarts.length;
+    }
+
+    public int getSelectionStart(int index) {
+        return mSelectionStarts[index];
+    }
+
+    public int getSelectionEnd(int index) {
+        return mSelectionEnds[index];
+    }
+
+    public int getFocusCount() {
+        return mFocusStarts.length;
+    }
+
+    public int getFocusStart(int index) {
+        return mFocusStarts[index];
+    }
+
+    public int getFocusEnd(int index) {
+        return mFocusEnds[index];
+    }
+
+    public int getBrailleSpanCount() {
+        return mBrailleSpans.length;
+    }
+
+    public DisplaySpans.BrailleSpan getBrailleSpan(int index) {
+        return mBrailleSpans[index];
+    }
+
+    public int getBrailleSpanStart(int index) {
+        return mBrailleStarts[index];
+    }
+
+    public int getBrailleSpanEnd(int index) {
+        return mBrailleEnds[index];
+    }
+
+    public int getNodeCount() {
+        return mNodes.length;
+    }
+
+    public AccessibilityNodeInfoCompat getNode(int index) {
+        return mNodes[index];
+    }
+
+    public int getNodeStart(int index) {
+        return mNodeStarts[index];
+    }
+
+    public int getNodeEnd(int index) {
+        return mNodeEnds[index];
+    }
+
+    /**
+     * Returns {@code true} if the node span at {@code index} overlaps
+     * {@code [start, end]}, using the same rules as
+     * {@link Spanned#getSpans}.
+     */
+    public boolean nodeOverlaps(int index, int start, int end) {
+        int spanStart = mNodeStarts[index];
+        int spanEnd = mNodeEnds[index];
+        if (spanStart > end || spanEnd < start) {
+            return false;
+        }
+        if (spanStart != spanEnd && start != end
+                && (spanStart == end || spanEnd == start)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first node span that is
+     * {@link Object#equals} to {@code node}, or {@code -1} if there is none.
+     */
+    public int indexOfNode(AccessibilityNodeInfoCompat node) {
+        Integer index = getNodeIndices().get(node);
+        return index != null ? index : -1;
+    }
+
+    private synchronized HashMap<AccessibilityNodeInfoCompat, Integer>
+            getNodeIndices() {
+        if (mNodeIndices == null) {
+            mNodeIndices = new HashMap<AccessibilityNodeInfoCompat, Integer>(
+                    mNodes.length * 2);
+            // Iterate backwards so that the first of several equal nodes
+            // wins.
+            for (int i = mNodes.length - 1; i >= 0; --i) {
+                mNodeIndices.put(mNodes[i], i);
+            }
+        }
+        return mNodeIndices;
+    }
+
+    /**
+     * Finds the shortest accessibility node span that overlaps
+     * {@code position}.  If a node is found, it is returned, otherwise
+     * {@code null} is returned.  If a node is returned, it is still owned
+     * by the indexed text for the purpose of recycling.
+     */
+    public AccessibilityNodeInfoCompat getNodeAt(int position) {
+        AccessibilityNodeInfoCompat found = null;
+        int foundLength = Integer.MAX_VALUE;
+        for (int i = 0; i < mNodes.length && mNodeStarts[i] <= position;
+             ++i) {
+            int length = mNodeEnds[i] - mNodeStarts[i];
+            if (nodeOverlaps(i, position, position) && length < foundLength) {
+                found = mNodes[i];
+                foundLength = length;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.os.SystemClock;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.util.Log;
+import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
+import com.googlecode.eyesfree.utils.LogUtils;
+import com.googlecode.eyesfree.utils.NodeTreeMirror;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the children and grandchildren of nodes about to be formatted
+ * concurrently, so that the round trips to the application overlap instead
+ * of being made one after the other while formatting.
+ *
+ * At most {@link #MAX_THREADS} fetches are in flight at once, which keeps
+ * the load on the application's UI thread, which answers the fetches,
+ * bounded.  Prefetching is limited in depth and number of nodes, gives up
+ * after {@link #MAX_WAIT_MILLIS}, and stops at levels too narrow to gain
+ * anything.  When it gives up, the children fetched so far are kept and the
+ * fetches that finish later are recycled by the threads that made them.
+ * Whatever isn't prefetched is fetched as usual by the caller.  Children
+ * are fetched through {@link NodeTreeMirror#getChild}, which doesn't hold
+ * the lock of the mirror while fetching, so already mirrored children
+ * aren't fetched again and fetched ones are mirrored.
+ */
+class SubtreePrefetcher {
+    private static final int MAX_THREADS = 3;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final long MAX_WAIT_MILLIS = 500;
+    /** Levels with fewer fetches than this are not prefetched. */
+    private static final int MIN_FETCHES_PER_LEVEL = 2;
+
+    /** Decides which prefetched nodes to fetch the children of. */
+    public interface Filter {
+        boolean shouldExpand(AccessibilityNodeInfoCompat node);
+    }
+
+    /**
+     * Children fetched ahead of time, by parent.  The nodes are owned by the
+     * snapshot and recycled with it.
+     */
+    public static class Snapshot {
+        private final HashMap<AccessibilityNodeInfoCompat,
+                AccessibilityNodeInfoCompat[]> mChildren =
+                new HashMap<AccessibilityNodeInfoCompat,
+                        AccessibilityNodeInfoCompat[]>();
+        private final List<AccessibilityNodeInfoCompat> mOwned =
+                new ArrayList<AccessibilityNodeInfoCompat>();
+
+        /**
+         * Returns a copy of the prefetched child of {@code parent} at
+         * {@code index}, or {@code null} if it wasn't prefetched.  The
+         * caller must recycle the result.
+         */
+        public AccessibilityNodeInfoCompat obtainChild(
+                AccessibilityNodeInfoCompat parent, int index) {
+            AccessibilityNodeInfoCompat[] children = mChildren.get(parent);
+            if (children == null || index < 0 || index >= children.length
+                    || children[index] == null) {
+                return null;
+            }
+            return AccessibilityNodeInfoCompat.obtain(children[index]);
+        }
+
+        public void recycle() {
+            AccessibilityNodeInfoUtils.recycleNodes(mOwned);
+            mOwned.clear();
+            mChildren.clear();
+        }
+
+        private void put(AccessibilityNodeInfoCompat parent,
+                AccessibilityNodeInfoCompat[] children) {
+            AccessibilityNodeInfoCompat key =
+                    AccessibilityNodeInfoCompat.obtain(parent);
+            mOwned.add(key);
+            mChildren.put(key, children);
+            for (AccessibilityNodeInfoCompat child : children) {
+                if (child != null) {
+                    mOwned.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * The children of one level being fetched.  Results that arrive after
+     * the level is cancelled are recycled by the fetching thread.
+     */
+    private static class LevelFetch {
+        private final AccessibilityNodeInfoCompat[] mResults;
+        private int mRemaining;
+        private boolean mCancelled = false;
+
+        LevelFetch(int count) {
+            mResults = new AccessibilityNodeInfoCompat[count];
+            mRemaining = count;
+        }
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Stores the fetched {@code node}, which may be {@code null}, as
+         * result {@code index}.  Recycles it if the level was cancelled.
+         */
+        void deliver(int index, AccessibilityNodeInfoCompat node) {
+            synchronized (this) {
+                if (!mCancelled) {
+                    mResults[index] = node;
+                    --mRemaining;
+                    notifyAll();
+                    return;
+                }
+            }
+            AccessibilityNodeInfoUtils.recycleNodes(node);
+        }
+
+        /**
+         * Waits until all results are in or {@code deadline}.  Returns
+         * whether all results are in.
+         */
+        synchronized boolean await(long deadline) {
+            while (mRemaining > 0) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Stops accepting results and returns the ones that arrived, with
+         * {@code null} for the others.  The caller owns the returned nodes.
+         */
+        synchronized AccessibilityNodeInfoCompat[] cancel() {
+            mCancelled = true;
+            return mResults;
+        }
+    }
+
+    /**
+     * Fetches one child into a {@link LevelFetch}.  Owns a copy of the
+     * parent, since the fetch may still be running after {@link #prefetch}
+     * returns.
+     */
+    private static class ChildFetch implements Runnable {
+        private final LevelFetch mLevel;
+        private final AccessibilityNodeInfoCompat mParent;
+        private final int mParentIndex;
+        private final int mIndex;
+
+        ChildFetch(LevelFetch level, AccessibilityNodeInfoCompat parent,
+                int parentIndex, int index) {
+            mLevel = level;
+            mParent = AccessibilityNodeInfoCompat.obtain(parent);
+            mParentIndex = parentIndex;
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            AccessibilityNodeInfoCompat child = null;
+            try {
+                if (!mLevel.isCancelled()) {
+                    child = NodeTreeMirror.getChild(mParent, mParentIndex);
+                }
+            } catch (RuntimeException e) {
+                LogUtils.log(SubtreePrefetcher.class, Log.WARN,
+                        "Prefetching failed: %s", e);
+            } finally {
+                AccessibilityNodeInfoUtils.recycleNodes(mParent);
+            }
+            mLevel.deliver(mIndex, child);
+        }
+    }
+
+    private final int mMaxDepth;
+    private final int mMaxNodes;
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Creates a prefetcher that fetches up to {@code maxDepth} levels below
+     * the nodes it is given and at most {@code maxNodes} nodes per prefetch.
+     */
+    public SubtreePrefetcher(int maxDepth, int maxNodes) {
+        mMaxDepth = maxDepth;
+        mMaxNodes = maxNodes;
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "SubtreePrefetcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Fetches the descendants of {@code roots} that {@code filter} lets
+     * through, level by level.  Returns the fetched nodes, which the caller
+     * must recycle, or {@code null} if nothing was worth prefetching.
+     */
+    public Snapshot prefetch(List<AccessibilityNodeInfoCompat> roots,
+            Filter filter) {
+        long deadline = SystemClock.uptimeMillis() + MAX_WAIT_MILLIS;
+        Snapshot snapshot = null;
+        List<AccessibilityNodeInfoCompat> level =
+                new ArrayList<AccessibilityNodeInfoCompat>();
+        for (AccessibilityNodeInfoCompat root : roots) {
+            if (filter.shouldExpand(root)) {
+                level.add(root);
+            }
+        }
+        int budget = mMaxNodes;
+        for (int depth = 0; depth < mMaxDepth && !level.isEmpty(); ++depth) {
+            int fetchCount = 0;
+            for (AccessibilityNodeInfoCompat parent : level) {
+                fetchCount += parent.getChildCount();
+            }
+            if (fetchCount < MIN_FETCHES_PER_LEVEL || fetchCount > budget) {
+                break;
+            }
+            budget -= fetchCount;
+            LevelFetch levelFetch = new LevelFetch(fetchCount);
+            int index = 0;
+            for (AccessibilityNodeInfoCompat parent : level) {
+                int childCount = parent.getChildCount();
+                for (int i = 0; i < childCount; ++i) {
+                    mExecutor.execute(
+                            new ChildFetch(levelFetch, parent, i, index++));
+                }
+            }
+            boolean complete = levelFetch.await(deadline);
+            AccessibilityNodeInfoCompat[] fetched = levelFetch.cancel();
+            if (snapshot == null) {
+                snapshot = new Snapshot();
+            }
+            List<AccessibilityNodeInfoCompat> nextLevel =
+                    new ArrayList<AccessibilityNodeInfoCompat>();
+            int offset = 0;
+            for (AccessibilityNodeInfoCompat parent : level) {
+                int childCount = parent.getChildCount();
+                AccessibilityNodeInfoCompat[] children =
+                        new AccessibilityNodeInfoCompat[childCount];
+                System.arraycopy(fetched, offset, children, 0, childCount);
+                offset += childCount;
+                snapshot.put(parent, children);
+                for (AccessibilityNodeInfoCompat child : children) {
+                    if (child != null && filter.shouldExpand(child)) {
+                        nextLevel.add(child);
+                    }
+                }
+            }
+            if (!complete) {
+                // What was fetched is kept; the rest is fetched by the
+                // caller when formatting.
+                LogUtils.log(this, Log.DEBUG,
+                        "Gave up prefetching %d nodes at depth %d",
+                        fetchCount, depth);
+                break;
+            }
+            level = nextLevel;
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import android.content.Context;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.view.View;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.googlecode.eyesfree.utils.NodeLifecycleTracker;
+import java.util.HashMap;
+
+/**
+ * Creates the nodes of replayed node spans as virtual descendants of a
+ * detached view, so that nodes with the same recorded key are equal and
+ * others aren't.  The view only needs a context, so this works with any
+ * context, including the application of a Robolectric test.
+ */
+class VirtualNodeFactory implements DisplayRecording.NodeFactory {
+    private final View mView;
+    private final HashMap<Long, Integer> mVirtualIds =
+            new HashMap<Long, Integer>();
+
+    VirtualNodeFactory(Context context) {
+        mView = new View(context);
+    }
+
+    @Override
+    public AccessibilityNodeInfoCompat obtainNode(long key) {
+        Integer virtualId = mVirtualIds.get(key);
+        if (virtualId == null) {
+            virtualId = mVirtualIds.size();
+            mVirtualIds.put(key, virtualId);
+        }
+        return NodeLifecycleTracker.track(new AccessibilityNodeInfoCompat(
+                AccessibilityNodeInfo.obtain(mView, virtualId)));
+    }
+}
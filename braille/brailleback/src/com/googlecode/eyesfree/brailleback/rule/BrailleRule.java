@@ -18,7 +18,7 @@ package com.googlecode.eyesfree.brailleback.rule;
 
 import android.content.Context;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
-import android.text.Editable;
+import com.googlecode.eyesfree.brailleback.BrailleDocument;
 
 /**
  * Decides how to format a single node for output on a braille
@@ -27,7 +27,9 @@ import android.text.Editable;
 public interface BrailleRule {
 
     /**
-     * Returns whether this rule should be used for this node.
+     * Returns whether this rule should be used for this node.  The answer
+     * must only depend on the package and class of the node, since
+     * {@link BrailleRuleRepository} caches it by those.
      */
     boolean accept(Context context, AccessibilityNodeInfoCompat node);
 
@@ -35,7 +37,7 @@ public interface BrailleRule {
      * Formats {@code node} for braille output, adding the result to
      * {@code result}.
      */
-    void format(Editable result, Context context,
+    void format(BrailleDocument result, Context context,
             AccessibilityNodeInfoCompat node);
 
     /**
@@ -40,12 +40,31 @@ public class BrailleRuleRepository {
         mContext = context;
     }
 
+    /**
+     * Returns the rule for {@code node}.  Rules only look at the package
+     * and class of the node when deciding whether to accept it, so the
+     * choice is cached by package and class name.
+     */
     public BrailleRule find(AccessibilityNodeInfoCompat node) {
-        for (BrailleRule rule : RULES) {
-            if (rule.accept(mContext, node)) {
-                return rule;
+        NodeClassCache.ClassInfo info = NodeClassCache.get(mContext, node);
+        BrailleRule found = info.rule;
+        if (found == null) {
+            for (BrailleRule rule : RULES) {
+                if (rule.accept(mContext, node)) {
+                    found = rule;
+                    break;
+                }
             }
+            info.rule = found;
         }
-        return null;
+        return found;
+    }
+
+    /**
+     * Forgets what is cached about the classes of {@code packageName}.
+     * Must be called when a package is installed, updated or removed.
+     */
+    public void invalidatePackage(String packageName) {
+        NodeClassCache.invalidatePackage(packageName);
     }
 }
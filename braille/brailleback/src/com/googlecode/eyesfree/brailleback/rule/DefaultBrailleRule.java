@@ -19,7 +19,6 @@ package com.googlecode.eyesfree.brailleback.rule;
 import android.content.Context;
 import android.os.Build;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
-import android.text.Editable;
 import android.text.TextUtils;
 import android.widget.AbsSeekBar;
 import android.widget.Button;
@@ -28,6 +27,7 @@ import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.QuickContactBadge;
 import com.googlecode.eyesfree.brailleback.BrailleBackService;
+import com.googlecode.eyesfree.brailleback.BrailleDocument;
 import com.googlecode.eyesfree.brailleback.FocusFinder;
 import com.googlecode.eyesfree.brailleback.R;
 import com.googlecode.eyesfree.brailleback.utils.LabelingUtils;
@@ -48,7 +48,7 @@ class DefaultBrailleRule implements BrailleRule {
     }
 
     @Override
-    public void format(Editable result,
+    public void format(BrailleDocument result,
             Context context,
             AccessibilityNodeInfoCompat node) {
         int oldLength = result.length();
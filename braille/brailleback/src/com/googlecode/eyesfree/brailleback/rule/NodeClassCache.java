@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback.rule;
+
+import android.content.Context;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.widget.AbsListView;
+import android.widget.GridView;
+import android.widget.ScrollView;
+import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches what the braille rules need to know about the class of a node, by
+ * package and class name, so that each node costs a hash lookup instead of
+ * class loading and reflection checks.
+ *
+ * For each class, the cache keeps flags telling which of the classes the
+ * rules care about the class extends, and the rule chosen for the class.
+ * Entries for a package must be invalidated with {@link #invalidatePackage}
+ * when the package is updated, since its classes may have changed.
+ */
+final class NodeClassCache {
+    static final int FLAG_ABS_LIST_VIEW = 1 << 0;
+    static final int FLAG_GRID_VIEW = 1 << 1;
+    static final int FLAG_SCROLL_VIEW = 1 << 2;
+
+    /** What is known about one class. */
+    static class ClassInfo {
+        final int flags;
+        /** The rule for nodes of this class, or null if not chosen yet. */
+        volatile BrailleRule rule;
+
+        ClassInfo(int flagsArg) {
+            flags = flagsArg;
+        }
+    }
+
+    /** Maps package name to class name to class info. */
+    private static final ConcurrentHashMap<String,
+            ConcurrentHashMap<String, ClassInfo>> sPackages =
+            new ConcurrentHashMap<String,
+                    ConcurrentHashMap<String, ClassInfo>>();
+
+    private NodeClassCache() {
+    }
+
+    /**
+     * Returns the info for the class of {@code node}, computing it if it
+     * isn't cached.
+     */
+    static ClassInfo get(Context context, AccessibilityNodeInfoCompat node) {
+        String packageName = toKey(node.getPackageName());
+        String className = toKey(node.getClassName());
+        ConcurrentHashMap<String, ClassInfo> classes =
+                sPackages.get(packageName);
+        if (classes == null) {
+            classes = new ConcurrentHashMap<String, ClassInfo>();
+            ConcurrentHashMap<String, ClassInfo> existing =
+                    sPackages.putIfAbsent(packageName, classes);
+            if (existing != null) {
+                classes = existing;
+            }
+        }
+        ClassInfo info = classes.get(className);
+        if (info == null) {
+            // Computing the flags more than once if several threads race
+            // here is harmless.
+            info = new ClassInfo(computeFlags(context, node));
+            ClassInfo existing = classes.putIfAbsent(className, info);
+            if (existing != null) {
+                info = existing;
+            }
+        }
+        return info;
+    }
+
+    /** Returns the {@code FLAG_} bits for the class of {@code node}. */
+    static int getFlags(Context context, AccessibilityNodeInfoCompat node) {
+        return get(context, node).flags;
+    }
+
+    static void invalidatePackage(String packageName) {
+        sPackages.remove(toKey(packageName));
+    }
+
+    private static int computeFlags(Context context,
+            AccessibilityNodeInfoCompat node) {
+        int flags = 0;
+        if (AccessibilityNodeInfoUtils.nodeMatchesClassByType(context, node,
+                        AbsListView.class)) {
+            flags |= FLAG_ABS_LIST_VIEW;
+            if (AccessibilityNodeInfoUtils.nodeMatchesClassByType(context,
+                            node, GridView.class)) {
+                flags |= FLAG_GRID_VIEW;
+            }
+        } else if (AccessibilityNodeInfoUtils.nodeMatchesClassByType(context,
+                        node, ScrollView.class)) {
+            flags |= FLAG_SCROLL_VIEW;
+        }
+        return flags;
+    }
+
+    private static String toKey(CharSequence name) {
+        return name != null ? name.toString() : "";
+    }
+}
@@ -18,12 +18,8 @@ package com.googlecode.eyesfree.brailleback.rule;
 
 import android.content.Context;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
-import android.text.Editable;
-import android.widget.AbsListView;
-import android.widget.GridView;
-import android.widget.ScrollView;
+import com.googlecode.eyesfree.brailleback.BrailleDocument;
 import com.googlecode.eyesfree.brailleback.R;
-import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 
 /**
  * Rule for formatting certain large vertical containers (such as lists
@@ -33,23 +29,21 @@ import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 class VerticalContainerBrailleRule implements BrailleRule {
     @Override
     public boolean accept(Context context, AccessibilityNodeInfoCompat node) {
-        return AccessibilityNodeInfoUtils.nodeMatchesAnyClassByType(
-            context, node,
-            AbsListView.class,
-            ScrollView.class);
+        return (NodeClassCache.getFlags(context, node)
+                & (NodeClassCache.FLAG_ABS_LIST_VIEW
+                        | NodeClassCache.FLAG_SCROLL_VIEW)) != 0;
     }
 
     @Override
-    public void format(Editable result,
+    public void format(BrailleDocument result,
             Context context,
             AccessibilityNodeInfoCompat node) {
         boolean empty = (node.getChildCount() == 0);
+        int flags = NodeClassCache.getFlags(context, node);
         int res;
-        if (AccessibilityNodeInfoUtils.nodeMatchesClassByType(context, node,
-                        GridView.class)) {
+        if ((flags & NodeClassCache.FLAG_GRID_VIEW) != 0) {
             res = empty ? R.string.type_emptygridview : R.string.type_gridview;
-        } else if (AccessibilityNodeInfoUtils.nodeMatchesClassByType(
-            context, node, ScrollView.class)) {
+        } else if ((flags & NodeClassCache.FLAG_SCROLL_VIEW) != 0) {
             res = empty ? R.string.type_emptyscrollview
                     : R.string.type_scrollview;
         } else {
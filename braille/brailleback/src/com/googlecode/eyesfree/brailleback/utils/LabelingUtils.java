@@ -21,7 +21,6 @@ import android.text.TextUtils;
 import android.view.accessibility.AccessibilityNodeInfo;
 
 import com.googlecode.eyesfree.labeling.CustomLabelManager;
-import com.googlecode.eyesfree.labeling.Label;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 
 /**
@@ -52,11 +51,8 @@ public class LabelingUtils {
             // TODO: Don't need to do this when support libs fixed.
             final AccessibilityNodeInfo unwrappedNode =
                     (AccessibilityNodeInfo) node.getInfo();
-            Label label = labelManager.getLabelForViewIdFromCache(
+            return labelManager.getLabelTextForViewId(
                     unwrappedNode.getViewIdResourceName());
-            if (label != null) {
-                return label.getText();
-            }
         }
         return null;
     }
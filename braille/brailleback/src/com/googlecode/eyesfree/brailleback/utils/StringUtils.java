@@ -17,6 +17,7 @@
 package com.googlecode.eyesfree.brailleback.utils;
 
 import android.text.Editable;
+import com.googlecode.eyesfree.brailleback.BrailleDocument;
 
 /**
  * Utilities for {@link String}s and other {@link CharSequence}s.
@@ -42,6 +43,24 @@ public class StringUtils {
         return editable;
     }
 
+    public static BrailleDocument appendWithSpaces(BrailleDocument document,
+            Object... args) {
+        for (Object arg : args) {
+            if (arg == null) {
+                continue;
+            }
+            if (document.length() > 0 && !endsWithSpace(document)) {
+                document.append(SPACE);
+            }
+            if (arg instanceof CharSequence) {
+                document.append((CharSequence) arg);
+            } else {
+                document.append(String.valueOf(arg));
+            }
+        }
+        return document;
+    }
+
     public static StringBuilder appendWithSpaces(StringBuilder builder,
             Object... args) {
         for (Object arg : args) {
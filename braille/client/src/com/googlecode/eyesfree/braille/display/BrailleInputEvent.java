@@ -230,11 +230,23 @@ public class BrailleInputEvent implements Parcelable {
     private final int mCommand;
     private final int mArgument;
     private final long mEventTime;
+    private final long mTraceId;
 
     public BrailleInputEvent(int command, int argument, long eventTime) {
+        this(command, argument, eventTime, DisplayTrace.NO_ID);
+    }
+
+    /**
+     * Constructs an event that is traced with {@code traceId}.
+     *
+     * @see DisplayTrace
+     */
+    public BrailleInputEvent(int command, int argument, long eventTime,
+            long traceId) {
         mCommand = command;
         mArgument = argument;
         mEventTime = eventTime;
+        mTraceId = traceId;
     }
 
     /**
@@ -261,6 +273,14 @@ public class BrailleInputEvent implements Parcelable {
         return mEventTime;
     }
 
+    /**
+     * Returns the {@link DisplayTrace} id of this event, or
+     * {@link DisplayTrace#NO_ID}.
+     */
+    public long getTraceId() {
+        return mTraceId;
+    }
+
     /**
      * Returns a string representation of {@code command}, or the string
      * {@code (unknown)} if the command is unknown.
@@ -336,11 +356,13 @@ public class BrailleInputEvent implements Parcelable {
         out.writeInt(mCommand);
         out.writeInt(mArgument);
         out.writeLong(mEventTime);
+        out.writeLong(mTraceId);
     }
 
     private BrailleInputEvent(Parcel in) {
         mCommand = in.readInt();
         mArgument = in.readInt();
         mEventTime = in.readLong();
+        mTraceId = in.readLong();
     }
 }
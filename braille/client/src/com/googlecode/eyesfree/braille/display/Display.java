@@ -86,6 +86,8 @@ public interface Display {
 
     /**
      * Displays a given dots configuration on the braille display.
+     * The caller may reuse {@code patterns} after this method returns, so
+     * implementations that keep the array around must make a copy.
      * @param patterns Dots configuration to be displayed.
      * @param text Plain text equivalent of the displayed dots.
      * @param brailleToTextPositions Map from indices in {@text patterns}
@@ -48,6 +48,8 @@ public class DisplayClient implements Display {
     private Connection mConnection;
     private int mCurrentConnectionState = STATE_UNKNOWN;
     private BrailleDisplayProperties mDisplayProperties;
+    /** Written in the handler thread, read from any thread. */
+    private volatile long mMinWriteIntervalMillis = 0;
     private ServiceCallback mServiceCallback = new ServiceCallback();
     /**
      * Delay before the first rebind attempt on bind error or service
@@ -94,18 +96,35 @@ public class DisplayClient implements Display {
     @Override
     public void displayDots(byte[] patterns, CharSequence text,
             int[] mBrailleToTextPositions) {
-        IBrailleService localService = getBrailleService();
-        if (localService != null) {
-            try {
-                localService.displayDots(patterns);
-            } catch (RemoteException ex) {
-                Log.e(LOG_TAG, "Error in displayDots", ex);
+        long traceId = DisplayTrace.currentId();
+        boolean traced = DisplayTrace.begin("DisplayClient.displayDots",
+                traceId);
+        try {
+            IBrailleService localService = getBrailleService();
+            if (localService != null) {
+                try {
+                    localService.displayDots(patterns, traceId);
+                } catch (RemoteException ex) {
+                    Log.e(LOG_TAG, "Error in displayDots", ex);
+                }
+            } else {
+                Log.v(LOG_TAG, "Error in displayDots: service not connected");
             }
-        } else {
-            Log.v(LOG_TAG, "Error in displayDots: service not connected");
+        } finally {
+            DisplayTrace.end("DisplayClient.displayDots", traceId, traced);
         }
     }
 
+    /**
+     * Returns the minimum interval in milliseconds between calls to
+     * {@link #displayDots} that the connected display can keep up with, or
+     * {@code 0} if there is no known limit.  Frames written more often than
+     * this are likely to queue up on the way to the display.
+     */
+    public long getMinWriteIntervalMillis() {
+        return mMinWriteIntervalMillis;
+    }
+
     @Override
     public void poll() {
         IBrailleService localService = getBrailleService();
@@ -191,6 +210,11 @@ public class DisplayClient implements Display {
         public void onConnectionChangeProgress(String description) {
             mHandler.reportConnectionChangeProgress(description);
         }
+
+        @Override
+        public void onWriteIntervalChanged(long intervalMillis) {
+            mHandler.reportWriteInterval(intervalMillis);
+        }
     }
 
     private void doBindService() {
@@ -250,6 +274,7 @@ public class DisplayClient implements Display {
         private static final int MSG_REPORT_CONNECTION_CHANGE_PROGRESS = 2;
         private static final int MSG_REPORT_INPUT_EVENT = 3;
         private static final int MSG_REBIND_SERVICE = 4;
+        private static final int MSG_REPORT_WRITE_INTERVAL = 5;
 
         public void reportConnectionState(final int newState,
                 final BrailleDisplayProperties displayProperties) {
@@ -267,6 +292,11 @@ public class DisplayClient implements Display {
             obtainMessage(MSG_REPORT_INPUT_EVENT, event).sendToTarget();
         }
 
+        public void reportWriteInterval(long intervalMillis) {
+            obtainMessage(MSG_REPORT_WRITE_INTERVAL, intervalMillis)
+                    .sendToTarget();
+        }
+
         public void scheduleRebind() {
             synchronized (this) {
                 if (mNumFailedBinds < MAX_REBIND_ATTEMPTS) {
@@ -300,12 +330,18 @@ public class DisplayClient implements Display {
                 case MSG_REBIND_SERVICE:
                     handleRebindService();
                     break;
+                case MSG_REPORT_WRITE_INTERVAL:
+                    mMinWriteIntervalMillis = (Long) msg.obj;
+                    break;
             }
         }
 
         private void handleReportConnectionState(int newState,
                 BrailleDisplayProperties displayProperties) {
             mDisplayProperties = displayProperties;
+            if (newState != STATE_CONNECTED) {
+                mMinWriteIntervalMillis = 0;
+            }
             OnConnectionStateChangeListener localListener =
                     mConnectionStateChangeListener;
             if (newState != mCurrentConnectionState && localListener != null) {
@@ -325,7 +361,14 @@ public class DisplayClient implements Display {
         private void handleReportInputEvent(BrailleInputEvent event) {
             OnInputEventListener localListener = mInputEventListener;
             if (localListener != null) {
-                localListener.onInputEvent(event);
+                boolean traced = DisplayTrace.begin(
+                        "DisplayClient.onInputEvent", event.getTraceId());
+                try {
+                    localListener.onInputEvent(event);
+                } finally {
+                    DisplayTrace.end("DisplayClient.onInputEvent",
+                            event.getTraceId(), traced);
+                }
             }
         }
 
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.braille.display;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Traces how display output and input flow between the accessibility
+ * service, the display client, the display service and the driver.
+ *
+ * Each accessibility event or display input event gets a trace id when it
+ * enters the pipeline, and the id is passed along (also across the binder
+ * calls between the client and service processes) so that all sections
+ * that handle the same event can be correlated.  Ids are unique across
+ * processes: the high 32 bits are the process id and the low 32 bits a
+ * counter that is increasing within the process.
+ *
+ * Sections are reported to {@link Trace} and recorded in an in-memory ring
+ * buffer that can be dumped in the Chrome trace event JSON format, which can
+ * be loaded in chrome://tracing and Perfetto.  Timestamps use
+ * {@link SystemClock#elapsedRealtimeNanos}, so dumps from the two processes
+ * can be merged.  {@link Trace} sections are only reported on API level 18
+ * and higher, and timestamps have millisecond precision before API level 17.
+ *
+ * Tracing is off by default, in which case the methods of this class only
+ * read a volatile field and return.  It can be turned on with
+ * {@link #setEnabled} or through {@link #dumpsys}.
+ */
+public final class DisplayTrace {
+    /** Id used when tracing is disabled or there is no current event. */
+    public static final long NO_ID = 0;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final char PHASE_BEGIN = 'B';
+    private static final char PHASE_END = 'E';
+    private static final char PHASE_INSTANT = 'i';
+    private static final boolean SUPPORTS_TRACE =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    private static final boolean SUPPORTS_REALTIME_NANOS =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+
+    private static volatile boolean sEnabled = false;
+    private static final AtomicInteger sNextSequence = new AtomicInteger(1);
+    private static final ThreadLocal<long[]> sCurrentId =
+            new ThreadLocal<long[]>() {
+                @Override
+                protected long[] initialValue() {
+                    return new long[1];
+                }
+            };
+
+    // Ring buffer, guarded by the class lock.  Allocated when tracing is
+    // first enabled.
+    private static long[] sTimesNanos;
+    private static long[] sIds;
+    private static String[] sNames;
+    private static char[] sPhases;
+    private static int[] sThreadIds;
+    private static int sNext = 0;
+    private static int sCount = 0;
+
+    private DisplayTrace() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Turns tracing on or off.  Turning tracing on clears the ring buffer.
+     */
+    public static synchronized void setEnabled(boolean enabled) {
+        if (enabled && sTimesNanos == null) {
+            sTimesNanos = new long[BUFFER_SIZE];
+            sIds = new long[BUFFER_SIZE];
+            sNames = new String[BUFFER_SIZE];
+            sPhases = new char[BUFFER_SIZE];
+            sThreadIds = new int[BUFFER_SIZE];
+        }
+        if (enabled && !sEnabled) {
+            sNext = 0;
+            sCount = 0;
+        }
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns a new trace id, or {@link #NO_ID} if tracing is disabled.
+     */
+    public static long newId() {
+        if (!sEnabled) {
+            return NO_ID;
+        }
+        return ((long) Process.myPid() << 32)
+                | (sNextSequence.getAndIncrement() & 0xffffffffL);
+    }
+
+    /**
+     * Returns the id of the event being handled on the current thread, or
+     * {@link #NO_ID}.
+     */
+    public static long currentId() {
+        if (!sEnabled) {
+            return NO_ID;
+        }
+        return sCurrentId.get()[0];
+    }
+
+    /**
+     * Makes {@code id} the id of the event being handled on the current
+     * thread and returns the previous one, which should be restored with
+     * another call when the event is handled.
+     */
+    public static long setCurrentId(long id) {
+        if (!sEnabled) {
+            return NO_ID;
+        }
+        long[] current = sCurrentId.get();
+        long previous = current[0];
+        current[0] = id;
+        return previous;
+    }
+
+    /**
+     * Begins a section named {@code name} for the event {@code id} and
+     * returns whether it was traced.  Must be matched by a call to
+     * {@link #end} on the same thread with the returned value, so that
+     * sections stay balanced when tracing is turned on or off in between.
+     */
+    public static boolean begin(String name, long id) {
+        if (!sEnabled) {
+            return false;
+        }
+        if (SUPPORTS_TRACE) {
+            Trace.beginSection(name);
+        }
+        record(PHASE_BEGIN, name, id);
+        return true;
+    }
+
+    /**
+     * Ends the innermost section begun on this thread.  {@code traced} is
+     * the value returned by the matching call to {@link #begin}.
+     */
+    public static void end(String name, long id, boolean traced) {
+        if (!traced) {
+            return;
+        }
+        if (sEnabled) {
+            record(PHASE_END, name, id);
+        }
+        if (SUPPORTS_TRACE) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Records that something happened for the event {@code id}, without a
+     * duration.
+     */
+    public static void instant(String name, long id) {
+        if (!sEnabled) {
+            return;
+        }
+        record(PHASE_INSTANT, name, id);
+    }
+
+    private static synchronized void record(char phase, String name,
+            long id) {
+        if (sTimesNanos == null) {
+            return;
+        }
+        sTimesNanos[sNext] = SUPPORTS_REALTIME_NANOS
+                ? SystemClock.elapsedRealtimeNanos()
+                : SystemClock.elapsedRealtime() * 1000000;
+        sIds[sNext] = id;
+        sNames[sNext] = name;
+        sPhases[sNext] = phase;
+        sThreadIds[sNext] = Process.myTid();
+        sNext = (sNext + 1) % BUFFER_SIZE;
+        if (sCount < BUFFER_SIZE) {
+            ++sCount;
+        }
+    }
+
+    /**
+     * Writes the recorded events, oldest first, as a Chrome trace event JSON
+     * object.  Sections that were cut in half by the ring buffer wrapping
+     * around are written as is; the trace viewers ignore unmatched ends.
+     */
+    public static synchronized void dump(PrintWriter writer) {
+        int pid = Process.myPid();
+        writer.print("{\"traceEvents\":[");
+        int start = (sNext - sCount + BUFFER_SIZE) % BUFFER_SIZE;
+        for (int i = 0; i < sCount; ++i) {
+            int index = (start + i) % BUFFER_SIZE;
+            if (i > 0) {
+                writer.print(',');
+            }
+            writer.print("\n{\"name\":\"");
+            writer.print(sNames[index]);
+            writer.print("\",\"ph\":\"");
+            writer.print(sPhases[index]);
+            writer.print("\",\"ts\":");
+            // Microseconds with one decimal.
+            writer.print(sTimesNanos[index] / 1000);
+            writer.print('.');
+            writer.print(sTimesNanos[index] % 1000 / 100);
+            writer.print(",\"pid\":");
+            writer.print(pid);
+            writer.print(",\"tid\":");
+            writer.print(sThreadIds[index]);
+            if (sPhases[index] == PHASE_INSTANT) {
+                writer.print(",\"s\":\"t\"");
+            }
+            writer.print(",\"args\":{\"id\":\"");
+            writer.print(Long.toHexString(sIds[index]));
+            writer.print("\"}}");
+        }
+        writer.println("\n],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    /**
+     * Handles {@code dumpsys} arguments for tracing and returns
+     * {@code true} if they were trace arguments.  Supported arguments are
+     * {@code trace on}, {@code trace off} and {@code trace}, which dumps the
+     * recorded events.
+     */
+    public static boolean dumpsys(PrintWriter writer, String[] args) {
+        if (args == null || args.length == 0 || !"trace".equals(args[0])) {
+            return false;
+        }
+        if (args.length > 1 && "on".equals(args[1])) {
+            setEnabled(true);
+            writer.println("Display tracing on");
+        } else if (args.length > 1 && "off".equals(args[1])) {
+            setEnabled(false);
+            writer.println("Display tracing off");
+        } else {
+            dump(writer);
+        }
+        return true;
+    }
+}
@@ -25,13 +25,21 @@ import android.content.pm.PackageManager;
 import android.content.pm.Signature;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Client-side interface to the self brailling interface.
@@ -39,6 +47,15 @@ import java.security.NoSuchAlgorithmException;
  * Threading: Instances of this object should be created and shut down
  * in a thread with a {@link Looper} associated with it.  Other methods may
  * be called on any thread.
+ *
+ * Writes are buffered and sent to the service from a background thread at
+ * most once per {@link #FRAME_INTERVAL_MILLIS}, so that the calling thread
+ * never waits for the service.  Only the latest write for each node is
+ * sent, writes that don't change what was last sent for a node are
+ * dropped, and no more than {@link #setMaxWritesPerSecond} writes are sent
+ * per second; writes over the budget wait for the next second.  The
+ * client remembers what it last sent for at most {@link #MAX_SENT_WRITES}
+ * nodes.
  */
 public class SelfBrailleClient {
     private static final String LOG_TAG =
@@ -71,6 +88,15 @@ public class SelfBrailleClient {
      */
     private static final int REBIND_DELAY_MILLIS = 500;
     private static final int MAX_REBIND_ATTEMPTS = 5;
+    /** Minimum time between sending buffered writes. */
+    private static final long FRAME_INTERVAL_MILLIS = 16;
+    private static final int DEFAULT_MAX_WRITES_PER_SECOND = 60;
+    private static final long BUDGET_PERIOD_MILLIS = 1000;
+    /**
+     * Maximum number of nodes for which the last sent write is remembered
+     * to drop duplicates.
+     */
+    private static final int MAX_SENT_WRITES = 64;
 
     private final Binder mIdentity = new Binder();
     private final Context mContext;
@@ -86,6 +112,45 @@ public class SelfBrailleClient {
     /** Protected by synchronizing on mHandler. */
     private int mNumFailedBinds = 0;
 
+    private final HandlerThread mWriteThread;
+    private final Handler mWriteHandler;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushWrites();
+        }
+    };
+    /** Protects the fields below it. */
+    private final Object mWriteLock = new Object();
+    /**
+     * Latest unsent write for each node.  The writes are snapshots owned by
+     * this object, and each is keyed by its own node.
+     */
+    private final LinkedHashMap<AccessibilityNodeInfo, WriteData>
+            mPendingWrites = new LinkedHashMap<AccessibilityNodeInfo, WriteData>();
+    /**
+     * Last sent write for the most recently written nodes with text, keyed
+     * the same way as {@link #mPendingWrites}.
+     */
+    private final LinkedHashMap<AccessibilityNodeInfo, WriteData> mSentWrites =
+            new LinkedHashMap<AccessibilityNodeInfo, WriteData>(
+                    16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<AccessibilityNodeInfo, WriteData> eldest) {
+                    if (size() <= MAX_SENT_WRITES) {
+                        return false;
+                    }
+                    eldest.getKey().recycle();
+                    return true;
+                }
+            };
+    private boolean mFlushScheduled = false;
+    private long mLastFlushMillis = 0;
+    private int mMaxWritesPerSecond = DEFAULT_MAX_WRITES_PER_SECOND;
+    private long mBudgetPeriodStartMillis = 0;
+    private int mBudgetPeriodWrites = 0;
+
     /**
      * Constructs an instance of this class.  {@code context} is used to bind
      * to the self braille service.  The current thread must have a Looper
@@ -96,6 +161,9 @@ public class SelfBrailleClient {
     public SelfBrailleClient(Context context, boolean allowDebugService) {
         mContext = context;
         mAllowDebugService = allowDebugService;
+        mWriteThread = new HandlerThread("SelfBrailleClient");
+        mWriteThread.start();
+        mWriteHandler = new Handler(mWriteThread.getLooper());
         doBindService();
     }
 
@@ -105,21 +173,135 @@ public class SelfBrailleClient {
      */
     public void shutdown() {
         mShutdown = true;
+        mWriteHandler.removeCallbacks(mFlushRunnable);
+        mWriteThread.quit();
+        synchronized (mWriteLock) {
+            clearWritesLocked(mPendingWrites);
+            clearWritesLocked(mSentWrites);
+        }
         doUnbindService();
     }
 
+    /**
+     * Sets how many writes may be sent to the service per second.  Writes
+     * over the budget are held back, and replaced by later writes for the
+     * same node, until the next second.
+     */
+    public void setMaxWritesPerSecond(int maxWritesPerSecond) {
+        if (maxWritesPerSecond < 1) {
+            throw new IllegalArgumentException(
+                    "Write budget must be positive");
+        }
+        synchronized (mWriteLock) {
+            mMaxWritesPerSecond = maxWritesPerSecond;
+        }
+    }
+
+    /**
+     * Queues {@code writeData} to be sent to the service.  The node, text
+     * and selection are copied, so {@code writeData} may be modified and
+     * reused after this call.
+     */
     public void write(WriteData writeData) {
         writeData.validate();
+        AccessibilityNodeInfo node = writeData.getAccessibilityNodeInfo();
+        synchronized (mWriteLock) {
+            // Remove first so that the node moves to the end of the order,
+            // and since put() would keep the old key, which is recycled
+            // with the write it belongs to.
+            recycleWrite(mPendingWrites.remove(node));
+            WriteData sent = mSentWrites.get(node);
+            if (sent != null && sent.hasSameContent(writeData)) {
+                // Nothing would change.
+                return;
+            }
+            WriteData snapshot = writeData.snapshot();
+            mPendingWrites.put(snapshot.getAccessibilityNodeInfo(), snapshot);
+            scheduleFlushLocked(mLastFlushMillis + FRAME_INTERVAL_MILLIS);
+        }
+    }
+
+    private void scheduleFlushLocked(long atMillis) {
+        if (mFlushScheduled || mShutdown) {
+            return;
+        }
+        mFlushScheduled = true;
+        mWriteHandler.postAtTime(mFlushRunnable,
+                Math.max(atMillis, SystemClock.uptimeMillis()));
+    }
+
+    /**
+     * Sends the pending writes that fit in the budget.  Called on the write
+     * thread.
+     */
+    private void flushWrites() {
         ISelfBrailleService localService = getSelfBrailleService();
-        if (localService != null) {
+        List<WriteData> toSend = new ArrayList<WriteData>();
+        synchronized (mWriteLock) {
+            mFlushScheduled = false;
+            long now = SystemClock.uptimeMillis();
+            mLastFlushMillis = now;
+            if (localService == null) {
+                // Without a service, writes are lost as if sent.
+                clearWritesLocked(mPendingWrites);
+                clearWritesLocked(mSentWrites);
+                return;
+            }
+            if (now - mBudgetPeriodStartMillis >= BUDGET_PERIOD_MILLIS) {
+                mBudgetPeriodStartMillis = now;
+                mBudgetPeriodWrites = 0;
+            }
+            Iterator<Map.Entry<AccessibilityNodeInfo, WriteData>> it =
+                    mPendingWrites.entrySet().iterator();
+            while (it.hasNext()
+                    && mBudgetPeriodWrites < mMaxWritesPerSecond) {
+                Map.Entry<AccessibilityNodeInfo, WriteData> entry = it.next();
+                it.remove();
+                WriteData writeData = entry.getValue();
+                // Sending may recycle the node of writeData, so the sent
+                // write is remembered as a separate snapshot.
+                recycleWrite(mSentWrites.remove(entry.getKey()));
+                if (writeData.getText() != null) {
+                    WriteData sent = writeData.snapshot();
+                    mSentWrites.put(sent.getAccessibilityNodeInfo(), sent);
+                }
+                toSend.add(writeData);
+                ++mBudgetPeriodWrites;
+            }
+            if (!mPendingWrites.isEmpty()) {
+                scheduleFlushLocked(
+                        mBudgetPeriodStartMillis + BUDGET_PERIOD_MILLIS);
+            }
+        }
+        for (WriteData writeData : toSend) {
             try {
                 localService.write(mIdentity, writeData);
             } catch (RemoteException ex) {
                 Log.e(LOG_TAG, "Self braille write failed", ex);
             }
+            // Parceling recycles the node, but a local call doesn't.
+            recycleWrite(writeData);
         }
     }
 
+    /** Recycles the node of {@code writeData} unless already recycled. */
+    private static void recycleWrite(WriteData writeData) {
+        if (writeData != null) {
+            AccessibilityNodeInfo node = writeData.getAccessibilityNodeInfo();
+            if (node != null) {
+                node.recycle();
+            }
+        }
+    }
+
+    private static void clearWritesLocked(
+            Map<AccessibilityNodeInfo, WriteData> writes) {
+        for (WriteData writeData : writes.values()) {
+            recycleWrite(writeData);
+        }
+        writes.clear();
+    }
+
     private void doBindService() {
         Connection localConnection = new Connection();
         if (!mContext.bindService(mServiceIntent, localConnection,
@@ -209,6 +391,10 @@ public class SelfBrailleClient {
             synchronized (mHandler) {
                 mNumFailedBinds = 0;
             }
+            // A new service instance doesn't know what was sent before.
+            synchronized (mWriteLock) {
+                clearWritesLocked(mSentWrites);
+            }
         }
 
         @Override
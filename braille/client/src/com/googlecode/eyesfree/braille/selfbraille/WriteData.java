@@ -19,6 +19,7 @@ package com.googlecode.eyesfree.braille.selfbraille;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.text.TextUtils;
 import android.view.View;
 import android.view.accessibility.AccessibilityNodeInfo;
 
@@ -102,6 +103,32 @@ public class WriteData implements Parcelable {
         return mProperties.getInt(PROP_SELECTION_END, -1);
     }
 
+    /**
+     * Returns {@code true} if {@code other} has the same text and selection
+     * as this instance.  The nodes are not compared.
+     */
+    public boolean hasSameContent(WriteData other) {
+        return TextUtils.equals(mText, other.mText)
+                && getSelectionStart() == other.getSelectionStart()
+                && getSelectionEnd() == other.getSelectionEnd();
+    }
+
+    /**
+     * Returns a copy of this instance with its own copy of the node, the
+     * text as a plain string and its own properties, so that later changes
+     * to this instance don't affect the copy.
+     */
+    /*package*/ WriteData snapshot() {
+        WriteData copy = new WriteData();
+        copy.mAccessibilityNodeInfo =
+                AccessibilityNodeInfo.obtain(mAccessibilityNodeInfo);
+        copy.mText = (mText != null) ? mText.toString() : null;
+        if (mProperties != Bundle.EMPTY) {
+            copy.mProperties = new Bundle(mProperties);
+        }
+        return copy;
+    }
+
     private Bundle writableProperties() {
         if (mProperties == Bundle.EMPTY) {
             mProperties = new Bundle();
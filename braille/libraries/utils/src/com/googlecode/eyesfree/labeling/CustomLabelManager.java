@@ -27,6 +27,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
@@ -35,19 +36,21 @@ import android.view.accessibility.AccessibilityNodeInfo;
 
 import com.googlecode.eyesfree.labeling.AllLabelsFetchRequest.OnAllLabelsFetchedListener;
 import com.googlecode.eyesfree.labeling.DirectLabelFetchRequest.OnLabelFetchedListener;
+import com.googlecode.eyesfree.labeling.LabelBatchRequest.OnLabelBatchProcessedListener;
 import com.googlecode.eyesfree.labeling.PackageLabelsFetchRequest.OnLabelsFetchedListener;
 import com.googlecode.eyesfree.utils.AccessibilityEventListener;
 import com.googlecode.eyesfree.utils.LogUtils;
 import com.googlecode.eyesfree.utils.StringBuilderUtils;
 
+import java.io.PrintWriter;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -57,8 +60,9 @@ import java.util.regex.Pattern;
  * Manages logic for prefetching, retrieval, addition, updating, and removal of
  * custom view labels and their associated resources.
  * <p>
- * This class ties together an underlying label database with a LRU label cache.
- * It provides convenience methods for accessing and changing the state of
+ * This class ties together an underlying label database with a label cache,
+ * and an index of the text of all labels for the current locale that is
+ * loaded when the manager is created. It provides convenience methods for accessing and changing the state of
  * labels, both persisted and in memory. Methods in this class will often return
  * nothing, and may expose asynchronous callbacks wrapped by request classes to
  * return results from processing activities on different threads.
@@ -78,8 +82,31 @@ public class CustomLabelManager implements AccessibilityEventListener {
     /** The minimum API level supported by the manager. */
     public static final int MIN_API_LEVEL = Build.VERSION_CODES.JELLY_BEAN_MR2;
 
-    /** The maximum number of package sets of labels to keep in memory. */
-    private static final int MAX_CACHE_SIZE = 10;
+    /**
+     * The minimum time between two searches for packages in the same window
+     * on {@link AccessibilityEvent#TYPE_WINDOW_CONTENT_CHANGED}.
+     */
+    private static final long MIN_PACKAGE_SEARCH_INTERVAL_MILLIS = 500;
+
+    /** The maximum number of nodes visited by one search for packages. */
+    private static final int MAX_PACKAGE_SEARCH_NODES = 256;
+
+    /** The maximum number of windows to remember seen packages for. */
+    private static final int MAX_PACKAGE_SEARCH_WINDOWS = 8;
+
+    /**
+     * The maximum number of labels stored in one batch of provider
+     * operations, which bounds the size of a single binder transaction and
+     * the interval between progress callbacks.  Each batch is applied, and
+     * may fail, on its own, so larger requests aren't atomic.
+     */
+    private static final int MAX_LABELS_PER_BATCH = 250;
+
+    /**
+     * Batches that touch more packages than this refresh the whole cache
+     * rather than each package.
+     */
+    private static final int MAX_BATCH_REFRESH_PACKAGES = 16;
 
     public static final String
             AUTHORITY = "com.google.android.marvin.talkback.providers.LabelProvider";
@@ -88,16 +115,62 @@ public class CustomLabelManager implements AccessibilityEventListener {
      * The substring separating a label's package and view ID name in a
      * fully-qualified resource identifier.
      */
-    private static final Pattern RESOURCE_NAME_SPLIT_PATTERN = Pattern.compile(":id/");
+    private static final String RESOURCE_NAME_SEPARATOR = ":id/";
+
+    private static final Pattern RESOURCE_NAME_SPLIT_PATTERN =
+            Pattern.compile(RESOURCE_NAME_SEPARATOR);
 
     private static final IntentFilter REFRESH_INTENT_FILTER = new IntentFilter(
             LabelOperationUtils.ACTION_REFRESH_LABEL_CACHE);
 
-    private final Map<String, Map<String, Label>>
-            mLabelCache = new LruCache<String, Map<String, Label>>(MAX_CACHE_SIZE);
+    /**
+     * Notified when the label texts returned by
+     * {@link #getLabelTextForViewId} may have changed, so that anything
+     * derived from them can be invalidated.
+     */
+    public interface OnLabelsChangedListener {
+        /** Called on the main thread after the label texts changed. */
+        void onLabelsChanged();
+    }
+
+    private final LabelCache mLabelCache = new LabelCache();
+
+    /**
+     * The text of all labels for the current locale.  Replaced on the main
+     * thread, and read without locking from any thread.
+     */
+    private volatile LabelIndex mLabelIndex = LabelIndex.EMPTY;
+
+    /**
+     * The number of times the label index was loaded, used to ignore loads
+     * that were superseded.  Only used on the main thread, like the fields
+     * below.
+     */
+    private int mLabelIndexGeneration;
+    private boolean mLabelIndexLoading;
+
+    /**
+     * The packages whose labels changed while the label index was loading,
+     * which may be missing from the loaded index.
+     */
+    private final Set<String> mPackagesChangedWhileLoading = new HashSet<String>();
+
+    /** Only used on the main thread. */
+    private final List<OnLabelsChangedListener> mLabelsChangedListeners =
+            new ArrayList<OnLabelsChangedListener>();
 
     private final CacheRefreshReceiver mRefreshReceiver = new CacheRefreshReceiver();
 
+    /** Runs the tasks of this manager, foreground lookups first. */
+    private final LabelTaskExecutor mTaskExecutor = new LabelTaskExecutor();
+
+    /**
+     * The packages found in each recently searched window, and when the
+     * window was last searched.  Only used on the main thread.
+     */
+    private final Map<Integer, WindowPackages> mWindowPackages =
+            new LruCache<Integer, WindowPackages>(MAX_PACKAGE_SEARCH_WINDOWS);
+
     private final Context mContext;
     private final PackageManager mPackageManager;
     private final LabelProviderClient mClient;
@@ -108,6 +181,8 @@ public class CustomLabelManager implements AccessibilityEventListener {
     private final Object mLock;
     private boolean mShouldShutdownClient;
     private int mRunningTasks;
+    private final Set<TrackedAsyncTask<?, ?, ?>> mMaintenanceTasks =
+            new HashSet<TrackedAsyncTask<?, ?, ?>>();
 
     public CustomLabelManager(Context context) {
         mContext = context;
@@ -118,10 +193,24 @@ public class CustomLabelManager implements AccessibilityEventListener {
         mRunningTasks = 0;
         mClient = new LabelProviderClient(context, AUTHORITY);
         mContext.registerReceiver(mRefreshReceiver, REFRESH_INTENT_FILTER);
+        loadLabelIndex();
     }
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
+        final AccessibilityNodeInfo source = event.getSource();
+        onAccessibilityEvent(event, source);
+        if (source != null) {
+            source.recycle();
+        }
+    }
+
+    /**
+     * Handles {@code event} like {@link #onAccessibilityEvent(AccessibilityEvent)}
+     * for callers that already obtained its {@code source}, which may be
+     * {@code null}.  Doesn't recycle {@code source}.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event, AccessibilityNodeInfo source) {
         final Locale currentLocale = Locale.getDefault();
         if (!currentLocale.equals(mLastLocale)) {
             // Refresh cache if device locale has changed since the last event
@@ -133,7 +222,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
             case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
             case AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED:
             case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
-                prefetchLabelsFromEvent(event);
+                prefetchLabelsFromEvent(event, source);
         }
     }
 
@@ -154,7 +243,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
             return;
         }
 
-        new DataConsistencyCheckTask().execute();
+        new DataConsistencyCheckTask(new ConsistencyCheckState()).executeWithPriority();
     }
 
     /**
@@ -178,13 +267,34 @@ public class CustomLabelManager implements AccessibilityEventListener {
             return null;
         }
 
-        if (!mLabelCache.containsKey(parsedId.first)) {
-            // Cache miss or no labels for package
+        // Null on a cache miss or if there's no label for the view.
+        return mLabelCache.getLabel(parsedId.first, parsedId.second);
+    }
+
+    /**
+     * Returns the text of the label for a fully-qualified resource identifier
+     * name for the current locale, or {@code null} if there is no label.
+     * <p>
+     * Unlike {@link #getLabelForViewIdFromCache(String)}, this doesn't depend
+     * on the labels of the package having been prefetched, as all labels are
+     * loaded when the manager is created.  Safe to call from any thread.
+     *
+     * @param resourceName The fully-qualified resource identifier, such as
+     *            "com.android.deskclock:id/analog_appwidget", as provided by
+     *            {@link AccessibilityNodeInfo#getViewIdResourceName()}
+     */
+    public String getLabelTextForViewId(String resourceName) {
+        if (TextUtils.isEmpty(resourceName)) {
             return null;
         }
 
-        final Map<String, Label> packageLabels = mLabelCache.get(parsedId.first);
-        return packageLabels.get(parsedId.second);
+        final int separator = resourceName.indexOf(RESOURCE_NAME_SEPARATOR);
+        if (separator <= 0) {
+            return null;
+        }
+
+        return mLabelIndex.getText(resourceName.substring(0, separator),
+                resourceName.substring(separator + RESOURCE_NAME_SEPARATOR.length()));
     }
 
     /**
@@ -203,7 +313,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
 
         final DirectLabelFetchRequest request = new DirectLabelFetchRequest(labelId, callback);
         final DirectLabelFetchTask task = new DirectLabelFetchTask();
-        task.execute(request);
+        task.executeWithPriority(request);
     }
 
     /**
@@ -224,7 +334,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
         final PackageLabelsFetchRequest request = new PackageLabelsFetchRequest(
                 packageName, callback);
         final PackageLabelsFetchTask task = new PackageLabelsFetchTask();
-        task.execute(request);
+        task.executeWithPriority(request);
     }
 
     public void getAllLabelsFromDatabase(OnAllLabelsFetchedListener callback) {
@@ -234,7 +344,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
 
         final AllLabelsFetchRequest request = new AllLabelsFetchRequest(callback);
         final AllLabelsFetchTask task = new AllLabelsFetchTask();
-        task.execute(request);
+        task.executeWithPriority(request);
     }
 
     /**
@@ -322,7 +432,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
                 locale, version, screenshotPath, timestamp);
         final LabelAddRequest request = new LabelAddRequest(label, null);
         final LabelAddTask task = new LabelAddTask();
-        task.execute(request);
+        task.executeWithPriority(request);
     }
 
     /**
@@ -359,7 +469,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
 
             final LabelUpdateRequest request = new LabelUpdateRequest(l, null);
             final LabelUpdateTask task = new LabelUpdateTask();
-            task.execute(request);
+            task.executeWithPriority(request);
         }
     }
 
@@ -388,10 +498,66 @@ public class CustomLabelManager implements AccessibilityEventListener {
         for (Label l : labels) {
             final LabelRemoveRequest request = new LabelRemoveRequest(l, null);
             final LabelRemoveTask task = new LabelRemoveTask();
-            task.execute(request);
+            task.executeWithPriority(request);
         }
     }
 
+    /**
+     * Persists new {@link Label}s to the label database in batches of
+     * provider operations, and refreshes the label cache once when done.
+     * Use this rather than {@link #addLabel(String, String)} to import many
+     * labels, such as when restoring them from a backup.
+     *
+     * @param labels The {@link Label}s to add, without IDs
+     * @param callback The {@link OnLabelBatchProcessedListener} to report
+     *            progress and the added labels through, or {@code null}
+     */
+    public void addLabels(List<Label> labels, OnLabelBatchProcessedListener callback) {
+        processLabelBatch(LabelBatchRequest.OPERATION_ADD, labels, callback,
+                LabelTaskExecutor.PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Updates {@link Label}s in the label database in batches of provider
+     * operations, and refreshes the label cache once when done.  Unlike
+     * {@link #updateLabel(Label...)}, which runs a task for each label, this
+     * is meant for updating many labels at once.
+     *
+     * @param labels The {@link Label}s to update, with IDs
+     * @param callback The {@link OnLabelBatchProcessedListener} to report
+     *            progress and the updated labels through, or {@code null}
+     */
+    public void updateLabels(List<Label> labels, OnLabelBatchProcessedListener callback) {
+        for (Label l : labels) {
+            if (l == null) {
+                throw new IllegalArgumentException("Attempted to update a null label.");
+            }
+
+            if (TextUtils.isEmpty(l.getText())) {
+                throw new IllegalArgumentException(
+                        "Attempted to update a label with an empty text value");
+            }
+        }
+
+        processLabelBatch(LabelBatchRequest.OPERATION_UPDATE, labels, callback,
+                LabelTaskExecutor.PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Removes {@link Label}s from the label database in batches of provider
+     * operations, and refreshes the label cache once when done.  Unlike
+     * {@link #removeLabel(Label...)}, which runs a task for each label, this
+     * is meant for removing many labels at once.
+     *
+     * @param labels The {@link Label}s to remove, with IDs
+     * @param callback The {@link OnLabelBatchProcessedListener} to report
+     *            progress and the removed labels through, or {@code null}
+     */
+    public void removeLabels(List<Label> labels, OnLabelBatchProcessedListener callback) {
+        processLabelBatch(LabelBatchRequest.OPERATION_REMOVE, labels, callback,
+                LabelTaskExecutor.PRIORITY_FOREGROUND);
+    }
+
     /**
      * Invalidates and rebuilds the cache of labels managed by this class.
      *
@@ -442,16 +608,19 @@ public class CustomLabelManager implements AccessibilityEventListener {
         if (packageNames == null || packageNames.size() == 0) {
             // Since there aren't specific packages to reload, copy all the
             // keys and invalidate the entire cache.
-            // TODO: Test this. We shouldn't need a deep copy,
-            // but double check.
-            packageNames = Collections.unmodifiableSet(mLabelCache.keySet());
+            packageNames = mLabelCache.getPackageNames();
             mLabelCache.clear();
+            loadLabelIndex();
         } else {
             // Since there are targeted packages to refresh, prune just those
             // from the cache.
             for (String p : packageNames) {
                 mLabelCache.remove(p);
             }
+
+            if (mLabelIndexLoading) {
+                mPackagesChangedWhileLoading.addAll(packageNames);
+            }
         }
 
         // Rebuild relevant parts of the cache.
@@ -472,6 +641,14 @@ public class CustomLabelManager implements AccessibilityEventListener {
         // as the context backing this registration is to be invalidated.
         mContext.unregisterReceiver(mRefreshReceiver);
 
+        // Maintenance can be done the next time the manager is created.
+        // Cancelled tasks end without producing results.
+        synchronized (mLock) {
+            for (TrackedAsyncTask<?, ?, ?> task : mMaintenanceTasks) {
+                task.cancel(false /* mayInterruptIfRunning */);
+            }
+        }
+
         // We cannot shutdown resources related to the database until all tasks
         // have completed. Flip the flag to indicate a client of this manager
         // requested a shutdown and attempt the operation.
@@ -479,6 +656,29 @@ public class CustomLabelManager implements AccessibilityEventListener {
         maybeShutdownClient();
     }
 
+    /**
+     * Registers {@code listener} to be told when label texts change.  Must
+     * be called on the main thread.
+     */
+    public void addOnLabelsChangedListener(OnLabelsChangedListener listener) {
+        mLabelsChangedListeners.add(listener);
+    }
+
+    public void removeOnLabelsChangedListener(OnLabelsChangedListener listener) {
+        mLabelsChangedListeners.remove(listener);
+    }
+
+    /**
+     * Prints the label cache metrics.
+     */
+    public void dump(PrintWriter writer) {
+        final LabelIndex index = mLabelIndex;
+        writer.printf("Label index: %d labels in %d packages%s\n", index.size(),
+                index.getPackageCount(), mLabelIndexLoading ? ", loading" : "");
+        mLabelCache.dump(writer);
+        mTaskExecutor.dump(writer);
+    }
+
     /**
      * Returns whether the labeling client is properly initialized.
      * @return {@code true} if client is ready, or {@code false} otherwise.
@@ -515,6 +715,9 @@ public class CustomLabelManager implements AccessibilityEventListener {
         synchronized (mLock) {
             LogUtils.log(this, Log.VERBOSE, "Task %s starting.", task);
             mRunningTasks++;
+            if (task.getPriority() == LabelTaskExecutor.PRIORITY_MAINTENANCE) {
+                mMaintenanceTasks.add(task);
+            }
         }
     }
 
@@ -529,56 +732,199 @@ public class CustomLabelManager implements AccessibilityEventListener {
         synchronized (mLock) {
             LogUtils.log(this, Log.VERBOSE, "Task %s ending.", task);
             mRunningTasks--;
+            mMaintenanceTasks.remove(task);
         }
 
         maybeShutdownClient();
     }
 
-    private void prefetchLabelsFromEvent(AccessibilityEvent event) {
-        if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
-            // Use TYPE_WINDOW_CONTENT_CHANGED events to trigger a search
-            // through the node's children to prefetch all relevant package
-            // names. This prefetches labels for remote views.
-            final AccessibilityNodeInfo source = event.getSource();
-            final HashSet<CharSequence> packages = new HashSet<CharSequence>();
-            final LinkedList<AccessibilityNodeInfo> seenNodes = new LinkedList<
-                    AccessibilityNodeInfo>();
-            seenNodes.add(source);
-
-            // Breadth first traversal for populating the package set
-            while (!seenNodes.isEmpty()) {
-                final AccessibilityNodeInfo currentNode = seenNodes.removeFirst();
-                if (currentNode == null) {
-                    continue;
-                }
+    /**
+     * Starts loading the label index for the current locale in the
+     * background.  The current index is used until the new one is loaded.
+     */
+    private void loadLabelIndex() {
+        if (!isInitialized()) {
+            return;
+        }
 
-                final Pair<String, String> resId = splitResourceName(
-                        currentNode.getViewIdResourceName());
-                if (resId != null) {
-                    packages.add(resId.first);
-                }
+        mLabelIndexLoading = true;
+        mPackagesChangedWhileLoading.clear();
+        new LabelIndexLoadTask(++mLabelIndexGeneration).executeWithPriority(Locale.getDefault());
+    }
 
-                final int childCount = currentNode.getChildCount();
-                for (int i = 0; i < childCount; ++i) {
-                    seenNodes.add(currentNode.getChild(i));
-                }
+    /**
+     * Applies labels that were added, updated or removed in the database to
+     * the label index.  Like {@link LabelIndexLoadTask}, leaves out added and
+     * updated labels for newer versions of a package than the installed one,
+     * and since such a label replaced any older one in the database, removes
+     * its view from the index instead.
+     */
+    private void updateLabelIndex(List<Label> labels, boolean removed) {
+        final String locale = Locale.getDefault().toString();
+        final List<Label> currentLocaleLabels = new ArrayList<Label>(labels.size());
+        final List<Label> inapplicableLabels = new ArrayList<Label>();
+        final Map<String, Integer> versionCodes = new HashMap<String, Integer>();
+        for (Label label : labels) {
+            if (mLabelIndexLoading) {
+                mPackagesChangedWhileLoading.add(label.getPackageName());
+            }
 
-                currentNode.recycle();
+            if (!locale.equals(label.getLocale())) {
+                continue;
             }
 
-            for (CharSequence packageName : packages) {
-                prefetchLabelsForPackage(packageName.toString());
+            if (removed) {
+                currentLocaleLabels.add(label);
+                continue;
             }
-        } else {
-            // Other AccessibilityEvent types should use the package name from its source.
-            final AccessibilityNodeInfo node = event.getSource();
-            if (node != null) {
-                final Pair<String, String> resId = splitResourceName(node.getViewIdResourceName());
-                if (resId != null) {
-                    prefetchLabelsForPackage(resId.first);
+
+            Integer versionCode = versionCodes.get(label.getPackageName());
+            if (versionCode == null) {
+                versionCode = getInstalledVersionCode(label.getPackageName());
+                versionCodes.put(label.getPackageName(), versionCode);
+            }
+
+            if (label.getPackageVersion() <= versionCode) {
+                currentLocaleLabels.add(label);
+            } else {
+                inapplicableLabels.add(label);
+            }
+        }
+
+        LabelIndex index = mLabelIndex.withLabels(currentLocaleLabels, removed);
+        if (!inapplicableLabels.isEmpty()) {
+            index = index.withLabels(inapplicableLabels, true /* removed */);
+        }
+
+        setLabelIndex(index);
+    }
+
+    /**
+     * Replaces the label index, telling the listeners if it changed.  Called
+     * on the main thread.
+     */
+    private void setLabelIndex(LabelIndex index) {
+        if (index == mLabelIndex) {
+            return;
+        }
+
+        mLabelIndex = index;
+        for (OnLabelsChangedListener listener : mLabelsChangedListeners) {
+            listener.onLabelsChanged();
+        }
+    }
+
+    private void processLabelBatch(int operation, List<Label> labels,
+            OnLabelBatchProcessedListener callback, int priority) {
+        if (!isInitialized()) {
+            return;
+        }
+
+        if (labels == null || labels.isEmpty()) {
+            LogUtils.log(this, Log.WARN, "Attempted to process a null or empty batch of labels.");
+            return;
+        }
+
+        final LabelBatchRequest request = new LabelBatchRequest(
+                operation, new ArrayList<Label>(labels), callback);
+        final LabelBatchTask task = new LabelBatchTask(priority);
+        task.executeWithPriority(request);
+    }
+
+    /**
+     * Returns the version code of the installed package named
+     * {@code packageName}, or {@link Integer#MAX_VALUE} if it isn't installed.
+     */
+    private int getInstalledVersionCode(String packageName) {
+        try {
+            final PackageInfo packageInfo = mPackageManager.getPackageInfo(packageName, 0);
+            return packageInfo.versionCode;
+        } catch (NameNotFoundException e) {
+            LogUtils.log(this, Log.WARN, "Unable to resolve package info for %s", packageName);
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private void prefetchLabelsFromEvent(AccessibilityEvent event, AccessibilityNodeInfo source) {
+        // The source's own package is known without any calls into the
+        // application.
+        if (source == null) {
+            return;
+        }
+
+        final Pair<String, String> resId = splitResourceName(source.getViewIdResourceName());
+        if (resId != null) {
+            prefetchLabelsForPackage(resId.first);
+        }
+
+        if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+            return;
+        }
+
+        // Use TYPE_WINDOW_CONTENT_CHANGED events to trigger a search through
+        // the node's descendants for package names other than the source's.
+        // This prefetches labels for remote views.  The search calls into the
+        // application for every node, so it runs in the background and at
+        // most once per interval for each window.
+        final int windowId = event.getWindowId();
+        WindowPackages windowPackages = mWindowPackages.get(windowId);
+        if (windowPackages == null) {
+            windowPackages = new WindowPackages();
+            mWindowPackages.put(windowId, windowPackages);
+        }
+
+        // Packages may have been evicted from the cache since they were found.
+        for (String packageName : windowPackages.packages) {
+            prefetchLabelsForPackage(packageName);
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (windowPackages.searching
+                || now - windowPackages.lastSearchMillis < MIN_PACKAGE_SEARCH_INTERVAL_MILLIS) {
+            return;
+        }
+
+        windowPackages.searching = true;
+        windowPackages.lastSearchMillis = now;
+        // The search only calls into the application, so it stays off the
+        // label executor, where it would hold up the lookups it's for and
+        // make maintenance yield.
+        new PackageSearchTask(windowPackages).executeOnExecutor(
+                AsyncTask.THREAD_POOL_EXECUTOR, AccessibilityNodeInfo.obtain(source));
+    }
+
+    /**
+     * Searches the subtree of {@code root} breadth first for the packages of
+     * view IDs that aren't in {@code knownPackages}, and returns them.  Stops
+     * after {@link #MAX_PACKAGE_SEARCH_NODES} nodes.  Recycles {@code root}.
+     */
+    private static Set<String> findNewPackages(
+            AccessibilityNodeInfo root, Set<String> knownPackages) {
+        final Set<String> newPackages = new HashSet<String>();
+        final ArrayDeque<AccessibilityNodeInfo> queue = new ArrayDeque<AccessibilityNodeInfo>();
+        queue.add(root);
+        int visited = 0;
+
+        while (!queue.isEmpty()) {
+            final AccessibilityNodeInfo node = queue.removeFirst();
+            final Pair<String, String> resId = splitResourceName(node.getViewIdResourceName());
+            if (resId != null && !knownPackages.contains(resId.first)) {
+                newPackages.add(resId.first);
+            }
+
+            final int childCount = node.getChildCount();
+            for (int i = 0; i < childCount && visited < MAX_PACKAGE_SEARCH_NODES; ++i) {
+                final AccessibilityNodeInfo child = node.getChild(i);
+                ++visited;
+                if (child != null) {
+                    queue.addLast(child);
                 }
             }
+
+            node.recycle();
         }
+
+        return newPackages;
     }
 
     private void prefetchLabelsForPackage(final String packageName) {
@@ -586,16 +932,15 @@ public class CustomLabelManager implements AccessibilityEventListener {
             return;
         }
 
-        // TODO: Is it worth optimizing further by keeping a
-        // complete list of packages for which labels exist, and short
-        // circuiting on the execution of the task if no labels exist for the
-        // package?
-        if (!mLabelCache.containsKey(packageName)) {
+        // Packages without labels are cached too, so they aren't fetched
+        // again until a label is added.
+        if (!mLabelCache.contains(packageName)) {
             final OnLabelsFetchedListener callback = new OnLabelsFetchedListener() {
                 @Override
                 public void onLabelsFetched(Map<String, Label> results) {
                     if (results != null) {
                         mLabelCache.put(packageName, results);
+                        setLabelIndex(mLabelIndex.withPackage(packageName, results));
                     }
                 }
             };
@@ -646,11 +991,31 @@ public class CustomLabelManager implements AccessibilityEventListener {
 
     /**
      * An AsyncTask intermediate that tracks task completion for purposes of
-     * releasing resources within this manager.
+     * releasing resources within this manager, and runs tasks on the
+     * manager's executor by priority.
      */
     private abstract class TrackedAsyncTask<Params, Progress, Result>
             extends AsyncTask<Params, Progress, Result> {
 
+        /**
+         * Returns the priority to run this task at, one of
+         * {@link LabelTaskExecutor#PRIORITY_FOREGROUND} and
+         * {@link LabelTaskExecutor#PRIORITY_MAINTENANCE}.  Maintenance tasks
+         * are cancelled on shutdown.
+         */
+        protected int getPriority() {
+            return LabelTaskExecutor.PRIORITY_FOREGROUND;
+        }
+
+        /**
+         * Runs this task on the manager's executor at the task's priority,
+         * instead of the executor shared by all {@link AsyncTask}s.
+         */
+        public final void executeWithPriority(Params... params) {
+            executeOnExecutor(
+                    mTaskExecutor.getExecutor(getPriority(), getClass().getSimpleName()), params);
+        }
+
         @Override
         protected void onPreExecute() {
             taskStarting(this);
@@ -671,6 +1036,16 @@ public class CustomLabelManager implements AccessibilityEventListener {
             super.onPostExecute(result);
         }
 
+        /**
+         * See {@link AsyncTask#onCancelled(Object)}, which is invoked instead
+         * of {@link #onPostExecute} for cancelled tasks.
+         */
+        @Override
+        protected void onCancelled(Result result) {
+            taskEnding(this);
+            super.onCancelled(result);
+        }
+
         @Override
         protected abstract Result doInBackground(Params... params);
 
@@ -711,6 +1086,11 @@ public class CustomLabelManager implements AccessibilityEventListener {
 
         private AllLabelsFetchRequest mRequest;
 
+        @Override
+        protected int getPriority() {
+            return LabelTaskExecutor.PRIORITY_MAINTENANCE;
+        }
+
         @Override
         protected List<Label> doInBackground(AllLabelsFetchRequest... requests) {
             if (requests == null || requests.length != 1) {
@@ -751,17 +1131,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
             LogUtils.log(this, Log.VERBOSE, "Spawning new PackageLabelsFetchTask(%d) for %s",
                     hashCode(), mRequest);
 
-            int versionCode = Integer.MAX_VALUE;
-            try {
-                final PackageInfo packageInfo = mPackageManager.getPackageInfo(
-                        mRequest.getPackageName(), 0);
-                versionCode = packageInfo.versionCode;
-            } catch (NameNotFoundException e) {
-                LogUtils.log(this, Log.WARN,
-                        "Unable to resolve package info during prefetch for %s",
-                        mRequest.getPackageName());
-            }
-
+            final int versionCode = getInstalledVersionCode(mRequest.getPackageName());
             return mClient.getLabelsForPackage(
                     mRequest.getPackageName(), Locale.getDefault().toString(), versionCode);
         }
@@ -799,6 +1169,8 @@ public class CustomLabelManager implements AccessibilityEventListener {
             mRequest.invokeCallback(result);
 
             if (result != null) {
+                mLabelCache.onLabelAdded(result.getPackageName());
+                updateLabelIndex(Collections.singletonList(result), false /* removed */);
                 sendCacheRefreshIntent(result.getPackageName());
             }
 
@@ -836,6 +1208,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
                     hashCode(), result);
 
             if (result) {
+                updateLabelIndex(Collections.singletonList(mRequest.getLabel()), false /* removed */);
                 sendCacheRefreshIntent(mRequest.getLabel().getPackageName());
             }
 
@@ -873,6 +1246,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
                     hashCode(), result);
 
             if (result) {
+                updateLabelIndex(Collections.singletonList(mRequest.getLabel()), true /* removed */);
                 sendCacheRefreshIntent(mRequest.getLabel().getPackageName());
             }
 
@@ -880,77 +1254,334 @@ public class CustomLabelManager implements AccessibilityEventListener {
         }
     }
 
-    private class DataConsistencyCheckTask extends TrackedAsyncTask<Void, Void, List<Label>> {
+    private class LabelBatchTask
+            extends TrackedAsyncTask<LabelBatchRequest, Integer, List<Label>> {
+
+        private final int mPriority;
+        private LabelBatchRequest mRequest;
+
+        /** The labels of the batches the provider failed to apply. */
+        private final List<Label> mFailedLabels = new ArrayList<Label>();
+
+        public LabelBatchTask(int priority) {
+            mPriority = priority;
+        }
 
         @Override
-        protected List<Label> doInBackground(Void... params) {
-            final List<Label> allLabels = mClient.getAllLabels();
+        protected int getPriority() {
+            return mPriority;
+        }
 
-            if ((allLabels == null) || allLabels.isEmpty()) {
+        @Override
+        protected List<Label> doInBackground(LabelBatchRequest... requests) {
+            if (requests == null || requests.length != 1) {
+                throw new IllegalArgumentException(
+                        "Batch task supports only single batch requests.");
+            }
+
+            mRequest = requests[0];
+
+            final List<Label> labels = mRequest.getLabels();
+            LogUtils.log(this, Log.VERBOSE, "Spawning new LabelBatchTask(%d) for %d labels",
+                    hashCode(), labels.size());
+
+            final List<Label> results = new ArrayList<Label>(labels.size());
+            for (int start = 0; start < labels.size(); start += MAX_LABELS_PER_BATCH) {
+                final int end = Math.min(start + MAX_LABELS_PER_BATCH, labels.size());
+                final List<Label> batch = labels.subList(start, end);
+                final List<Label> batchResults;
+                switch (mRequest.getOperation()) {
+                    case LabelBatchRequest.OPERATION_ADD:
+                        batchResults = mClient.insertLabels(batch);
+                        break;
+                    case LabelBatchRequest.OPERATION_UPDATE:
+                        batchResults = mClient.updateLabels(batch);
+                        break;
+                    case LabelBatchRequest.OPERATION_REMOVE:
+                        batchResults = mClient.deleteLabels(batch);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Unknown batch operation " + mRequest.getOperation());
+                }
+
+                if (batchResults != null) {
+                    results.addAll(batchResults);
+                } else {
+                    LogUtils.log(this, Log.WARN, "Failed to store labels %d to %d of %d",
+                            start, end, labels.size());
+                    mFailedLabels.addAll(batch);
+                }
+
+                publishProgress(end);
+            }
+
+            return results;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mRequest.invokeProgressCallback(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(List<Label> result) {
+            LogUtils.log(this, Log.VERBOSE, "LabelBatchTask(%d) complete, %d of %d labels stored",
+                    hashCode(), result.size(), mRequest.getLabels().size());
+
+            if (!result.isEmpty()) {
+                final boolean removed =
+                        (mRequest.getOperation() == LabelBatchRequest.OPERATION_REMOVE);
+                final Set<String> packageNames = new HashSet<String>();
+                for (Label label : result) {
+                    packageNames.add(label.getPackageName());
+                }
+
+                if (!removed) {
+                    for (String packageName : packageNames) {
+                        mLabelCache.onLabelAdded(packageName);
+                    }
+                }
+
+                updateLabelIndex(result, removed);
+
+                // A single refresh for the whole batch, of everything if the
+                // batch is spread over many packages.
+                if (packageNames.size() > MAX_BATCH_REFRESH_PACKAGES) {
+                    sendCacheRefreshIntent();
+                } else {
+                    sendCacheRefreshIntent(
+                            packageNames.toArray(new String[packageNames.size()]));
+                }
+            }
+
+            mRequest.invokeCallback(result, mFailedLabels);
+            super.onPostExecute(result);
+        }
+    }
+
+    /**
+     * Loads all labels for a locale in one query and indexes the ones that
+     * apply to the installed version of their package.
+     */
+    private class LabelIndexLoadTask extends TrackedAsyncTask<Locale, Void, LabelIndex> {
+
+        private final int mGeneration;
+
+        public LabelIndexLoadTask(int generation) {
+            mGeneration = generation;
+        }
+
+        @Override
+        protected LabelIndex doInBackground(Locale... locales) {
+            if (locales == null || locales.length != 1) {
+                throw new IllegalArgumentException(
+                        "Label index load task supports only single locales.");
+            }
+
+            final List<Label> labels = mClient.getLabelsForLocale(locales[0].toString());
+            if (labels == null) {
                 return null;
             }
 
+            // Like getLabelsForPackage, leave out labels for newer versions
+            // of a package than the installed one.
+            final Map<String, Integer> versionCodes = new HashMap<String, Integer>();
+            final List<Label> applicable = new ArrayList<Label>(labels.size());
+            for (Label label : labels) {
+                Integer versionCode = versionCodes.get(label.getPackageName());
+                if (versionCode == null) {
+                    versionCode = getInstalledVersionCode(label.getPackageName());
+                    versionCodes.put(label.getPackageName(), versionCode);
+                }
+
+                if (label.getPackageVersion() <= versionCode) {
+                    applicable.add(label);
+                }
+            }
+
+            return LabelIndex.build(applicable);
+        }
+
+        @Override
+        protected void onPostExecute(LabelIndex result) {
+            LogUtils.log(this, Log.VERBOSE, "LabelIndexLoadTask(%d) complete, indexed %d labels",
+                    hashCode(), (result != null) ? result.size() : 0);
+
+            if (mGeneration == mLabelIndexGeneration) {
+                mLabelIndexLoading = false;
+                if (result != null) {
+                    setLabelIndex(result);
+                }
+
+                // Reload the packages that may have changed after the query.
+                if (!mPackagesChangedWhileLoading.isEmpty()) {
+                    final Set<String> changed = new HashSet<String>(mPackagesChangedWhileLoading);
+                    mPackagesChangedWhileLoading.clear();
+                    refreshCacheInternal(changed);
+                }
+            }
+
+            super.onPostExecute(result);
+        }
+    }
+
+    /** The packages found in a window by {@link PackageSearchTask}. */
+    private static class WindowPackages {
+        final Set<String> packages = new HashSet<String>();
+        long lastSearchMillis;
+        boolean searching;
+    }
+
+    private class PackageSearchTask
+            extends TrackedAsyncTask<AccessibilityNodeInfo, Void, Set<String>> {
+
+        private final WindowPackages mWindowPackages;
+        private final Set<String> mKnownPackages;
+
+        public PackageSearchTask(WindowPackages windowPackages) {
+            mWindowPackages = windowPackages;
+            mKnownPackages = new HashSet<String>(windowPackages.packages);
+        }
+
+        @Override
+        protected Set<String> doInBackground(AccessibilityNodeInfo... roots) {
+            if (roots == null || roots.length != 1) {
+                throw new IllegalArgumentException(
+                        "Package search task supports only single roots.");
+            }
+
+            return findNewPackages(roots[0], mKnownPackages);
+        }
+
+        @Override
+        protected void onPostExecute(Set<String> result) {
+            LogUtils.log(this, Log.VERBOSE, "PackageSearchTask(%d) complete, found %s",
+                    hashCode(), result);
+            mWindowPackages.searching = false;
+            mWindowPackages.packages.addAll(result);
+            for (String packageName : result) {
+                prefetchLabelsForPackage(packageName);
+            }
+
+            super.onPostExecute(result);
+        }
+    }
+
+    /**
+     * The progress of a data consistency check, kept while the check is
+     * paused for foreground tasks.
+     */
+    private static class ConsistencyCheckState {
+        /** All labels, or {@code null} if they haven't been fetched yet. */
+        List<Label> labels;
+        int nextIndex;
+        final List<Label> labelsToRemove = new ArrayList<Label>();
+
+        /**
+         * The signature hash of each checked package, or {@code null} for
+         * packages that aren't installed.
+         */
+        final Map<String, String> signatureHashes = new HashMap<String, String>();
+    }
+
+    /**
+     * Checks the labels in the database against the installed packages. The
+     * check stops whenever foreground tasks are waiting, and continues in a
+     * new task queued behind them.
+     */
+    private class DataConsistencyCheckTask extends TrackedAsyncTask<Void, Void, Boolean> {
+
+        private final ConsistencyCheckState mState;
+
+        public DataConsistencyCheckTask(ConsistencyCheckState state) {
+            mState = state;
+        }
+
+        @Override
+        protected int getPriority() {
+            return LabelTaskExecutor.PRIORITY_MAINTENANCE;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            if (mState.labels == null) {
+                final List<Label> allLabels = mClient.getAllLabels();
+                if (allLabels == null) {
+                    return true;
+                }
+
+                mState.labels = allLabels;
+            }
+
             final PackageManager pm = mContext.getPackageManager();
 
-            final List<Label> candidates = new ArrayList<Label>(allLabels);
-            ListIterator<Label> i = candidates.listIterator();
+            // Iterate through the labels database, and collect labels that
+            // don't belong to valid packages.
+            while (mState.nextIndex < mState.labels.size()) {
+                if (isCancelled() || mTaskExecutor.hasQueuedForegroundTasks()) {
+                    return false;
+                }
 
-            // Iterate through the labels database, and prune labels that belong
-            // to valid packages.
-            while (i.hasNext()) {
-                final Label l = i.next();
+                final Label l = mState.labels.get(mState.nextIndex++);
 
                 // Ensure the label has a matching installed package.
                 final String packageName = l.getPackageName();
-                PackageInfo packageInfo = null;
-                try {
-                    packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
-                } catch (NameNotFoundException e) {
-                    // If there's no installed package, leave the label in the
-                    // list for removal.
+                if (!mState.signatureHashes.containsKey(packageName)) {
+                    String signatureHash = null;
+                    try {
+                        signatureHash = computePackageSignatureHash(
+                                pm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES));
+                    } catch (NameNotFoundException e) {
+                        // Leave the hash null so the label is removed below.
+                    }
+
+                    mState.signatureHashes.put(packageName, signatureHash);
+                }
+
+                final String actualHash = mState.signatureHashes.get(packageName);
+                if (actualHash == null) {
+                    // If there's no installed package, remove the label.
                     LogUtils.log(CustomLabelManager.class, Log.VERBOSE,
                             "Consistency check removing label for unknown package %s.",
                             packageName);
+                    mState.labelsToRemove.add(l);
                     continue;
                 }
 
                 // Ensure the signature hash of the application matches
                 // the hash of the package when the label was stored.
                 final String expectedHash = l.getPackageSignature();
-                final String actualHash = computePackageSignatureHash(packageInfo);
                 if (TextUtils.isEmpty(expectedHash) || TextUtils.isEmpty(actualHash)
                         || !expectedHash.equals(actualHash)) {
                     // If the expected or actual signature hashes aren't
-                    // valid, or they don't match, leave the label in the list
-                    // for removal.
+                    // valid, or they don't match, remove the label.
                     LogUtils.log(CustomLabelManager.class, Log.WARN,
                             "Consistency check removing label due to signature mismatch " +
                                     "for package %s.",
                             packageName);
-                    continue;
+                    mState.labelsToRemove.add(l);
                 }
-
-                // If the label has passed all consistency checks, prune the
-                // label from the list of potentials for removal.
-                i.remove();
             }
 
-            return candidates; // now containing only labels for removal
+            return true;
         }
 
         @Override
-        protected void onPostExecute(List<Label> labelsToRemove) {
-            if (labelsToRemove == null || labelsToRemove.isEmpty()) {
-                return;
-            }
-
-            LogUtils.log(this, Log.VERBOSE, "Found %d labels to remove during consistency check",
-                    labelsToRemove.size());
-            for (Label l : labelsToRemove) {
-                removeLabel(l);
+        protected void onPostExecute(Boolean complete) {
+            if (!complete) {
+                LogUtils.log(this, Log.VERBOSE, "Consistency check paused after %d of %d labels",
+                        mState.nextIndex, mState.labels.size());
+                new DataConsistencyCheckTask(mState).executeWithPriority();
+            } else if (!mState.labelsToRemove.isEmpty()) {
+                LogUtils.log(this, Log.VERBOSE,
+                        "Found %d labels to remove during consistency check",
+                        mState.labelsToRemove.size());
+                processLabelBatch(LabelBatchRequest.OPERATION_REMOVE, mState.labelsToRemove,
+                        null /* callback */, LabelTaskExecutor.PRIORITY_MAINTENANCE);
             }
 
-            super.onPostExecute(labelsToRemove);
+            super.onPostExecute(complete);
         }
     }
 }
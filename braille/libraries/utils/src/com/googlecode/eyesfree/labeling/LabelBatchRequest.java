@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.labeling;
+
+import java.util.List;
+
+public class LabelBatchRequest {
+
+    public static final int OPERATION_ADD = 0;
+    public static final int OPERATION_UPDATE = 1;
+    public static final int OPERATION_REMOVE = 2;
+
+    private final int mOperation;
+    private final List<Label> mLabels;
+    private final OnLabelBatchProcessedListener mListener;
+
+    public LabelBatchRequest(int operation, List<Label> labels,
+            OnLabelBatchProcessedListener listener) {
+        mOperation = operation;
+        mLabels = labels;
+        mListener = listener;
+    }
+
+    public int getOperation() {
+        return mOperation;
+    }
+
+    public List<Label> getLabels() {
+        return mLabels;
+    }
+
+    protected void invokeProgressCallback(int processedCount) {
+        if (mListener != null) {
+            mListener.onLabelBatchProgress(processedCount, mLabels.size());
+        }
+    }
+
+    protected void invokeCallback(List<Label> results, List<Label> failures) {
+        if (mListener != null) {
+            mListener.onLabelBatchProcessed(results, failures);
+        }
+    }
+
+    public interface OnLabelBatchProcessedListener {
+
+        /**
+         * Invoked on the main thread after each part of the batch is stored.
+         *
+         * @param processedCount The number of labels processed so far,
+         *            whether or not they were stored successfully. Labels
+         *            that failed are reported when the batch completes.
+         * @param totalCount The number of labels in the batch.
+         */
+        void onLabelBatchProgress(int processedCount, int totalCount);
+
+        /**
+         * Invoked on the main thread when the whole batch was processed.
+         * The batch is stored in parts that succeed or fail independently.
+         *
+         * @param results The labels that were stored successfully, with
+         *            their assigned IDs for additions.
+         * @param failures The labels of the parts the provider failed to
+         *            store, which can be retried.  Labels that were skipped
+         *            as invalid, or that no longer exist, are in neither
+         *            list.
+         */
+        void onLabelBatchProcessed(List<Label> results, List<Label> failures);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.labeling;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thread-safe cache of the labels of recently used packages, for the
+ * in-memory representation of custom labels.
+ * <p>
+ * Each package is weighed by its number of labels, and least recently used
+ * packages are evicted when the total weight exceeds {@link #MAX_WEIGHT},
+ * so a few packages with many labels don't push out the same memory as
+ * many packages with a few labels each.  Packages without labels are
+ * cached as negative entries, which weigh {@link #NEGATIVE_ENTRY_WEIGHT}
+ * and are dropped as soon as a label is added for the package.
+ * </p>
+ */
+class LabelCache {
+    /** The maximum total number of labels to keep in memory. */
+    private static final int MAX_WEIGHT = 2000;
+
+    /** The weight of a package without labels. */
+    private static final int NEGATIVE_ENTRY_WEIGHT = 1;
+
+    private final LinkedHashMap<String, Map<String, Label>> mEntries =
+            new LinkedHashMap<String, Map<String, Label>>(16, 0.75f, true /* accessOrder */);
+
+    private int mWeight = 0;
+    private int mHitCount = 0;
+    private int mNegativeHitCount = 0;
+    private int mMissCount = 0;
+    private int mEvictionCount = 0;
+
+    /**
+     * Returns whether labels, or the absence of labels, are cached for
+     * {@code packageName}.
+     */
+    public synchronized boolean contains(String packageName) {
+        return mEntries.containsKey(packageName);
+    }
+
+    /**
+     * Returns the cached label for the view named {@code viewName} in
+     * {@code packageName}, or {@code null} if there is none or the package
+     * isn't cached.
+     */
+    public synchronized Label getLabel(String packageName, String viewName) {
+        final Map<String, Label> labels = mEntries.get(packageName);
+        if (labels == null) {
+            mMissCount++;
+            return null;
+        }
+
+        if (labels.isEmpty()) {
+            mNegativeHitCount++;
+        } else {
+            mHitCount++;
+        }
+
+        return labels.get(viewName);
+    }
+
+    /**
+     * Caches {@code labels}, which must not be modified afterwards, as the
+     * labels of {@code packageName}.  An empty map caches that the package
+     * has no labels.
+     */
+    public synchronized void put(String packageName, Map<String, Label> labels) {
+        final Map<String, Label> previous = mEntries.remove(packageName);
+        if (previous != null) {
+            mWeight -= weigh(previous);
+        }
+
+        final int weight = weigh(labels);
+        if (weight > MAX_WEIGHT) {
+            return;
+        }
+
+        mEntries.put(packageName, labels);
+        mWeight += weight;
+
+        final Iterator<Map<String, Label>> it = mEntries.values().iterator();
+        while (mWeight > MAX_WEIGHT && it.hasNext()) {
+            final Map<String, Label> eldest = it.next();
+            it.remove();
+            mWeight -= weigh(eldest);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Drops the negative entry for {@code packageName}, if any, after a
+     * label was added to the package.
+     */
+    public synchronized void onLabelAdded(String packageName) {
+        final Map<String, Label> labels = mEntries.get(packageName);
+        if (labels != null && labels.isEmpty()) {
+            remove(packageName);
+        }
+    }
+
+    public synchronized void remove(String packageName) {
+        final Map<String, Label> labels = mEntries.remove(packageName);
+        if (labels != null) {
+            mWeight -= weigh(labels);
+        }
+    }
+
+    /**
+     * Returns a copy of the names of the cached packages.
+     */
+    public synchronized Set<String> getPackageNames() {
+        return Collections.unmodifiableSet(new HashSet<String>(mEntries.keySet()));
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mWeight = 0;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        final int lookups = mHitCount + mNegativeHitCount + mMissCount;
+        writer.printf("Label cache: %d packages, weight %d, %d hits, %d negative hits, "
+                + "%d misses (%d%% hit rate), %d evicted\n", mEntries.size(), mWeight,
+                mHitCount, mNegativeHitCount, mMissCount,
+                (lookups > 0) ? ((mHitCount + mNegativeHitCount) * 100 / lookups) : 0,
+                mEvictionCount);
+    }
+
+    private static int weigh(Map<String, Label> labels) {
+        return labels.isEmpty() ? NEGATIVE_ENTRY_WEIGHT : labels.size();
+    }
+}
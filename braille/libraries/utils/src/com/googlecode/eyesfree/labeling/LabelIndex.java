@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.labeling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable index from package and view names to the text of the custom
+ * labels of one locale.
+ * <p>
+ * The index is a few sorted arrays: the package names, each stored once,
+ * the start of each package's views, and the view names and label texts of
+ * every package in order.  Lookups are two binary searches without any
+ * locking or allocation, so an index can be read from any thread once it
+ * is published.  Changes return a new index that shares nothing with the
+ * old one, which stays valid for readers still holding it.
+ * </p>
+ */
+final class LabelIndex {
+    public static final LabelIndex EMPTY =
+            new LabelIndex(new String[0], new int[] { 0 }, new String[0], new String[0]);
+
+    /** Sorted package names. */
+    private final String[] mPackageNames;
+
+    /**
+     * Index of the first view of each package in {@link #mViewNames}, and the
+     * number of views at the end.
+     */
+    private final int[] mPackageStarts;
+
+    /** View names, sorted within each package. */
+    private final String[] mViewNames;
+
+    /** Label text of each view. */
+    private final String[] mTexts;
+
+    private LabelIndex(String[] packageNames, int[] packageStarts, String[] viewNames,
+            String[] texts) {
+        mPackageNames = packageNames;
+        mPackageStarts = packageStarts;
+        mViewNames = viewNames;
+        mTexts = texts;
+    }
+
+    /**
+     * Builds an index of {@code labels}, which should all be of the same
+     * locale.  If a view has several labels, the one for the highest package
+     * version wins.
+     */
+    public static LabelIndex build(Collection<Label> labels) {
+        final TreeMap<String, TreeMap<String, Label>> packages =
+                new TreeMap<String, TreeMap<String, Label>>();
+        for (Label label : labels) {
+            TreeMap<String, Label> views = packages.get(label.getPackageName());
+            if (views == null) {
+                views = new TreeMap<String, Label>();
+                packages.put(label.getPackageName(), views);
+            }
+
+            final Label existing = views.get(label.getViewName());
+            if (existing == null || existing.getPackageVersion() <= label.getPackageVersion()) {
+                views.put(label.getViewName(), label);
+            }
+        }
+
+        final String[] packageNames = new String[packages.size()];
+        final int[] packageStarts = new int[packages.size() + 1];
+        final List<String> viewNames = new ArrayList<String>(labels.size());
+        final List<String> texts = new ArrayList<String>(labels.size());
+        int packageIndex = 0;
+        for (Map.Entry<String, TreeMap<String, Label>> entry : packages.entrySet()) {
+            packageNames[packageIndex] = entry.getKey();
+            packageStarts[packageIndex] = viewNames.size();
+            for (Label label : entry.getValue().values()) {
+                viewNames.add(label.getViewName());
+                texts.add(label.getText());
+            }
+            ++packageIndex;
+        }
+        packageStarts[packageIndex] = viewNames.size();
+
+        return new LabelIndex(packageNames, packageStarts,
+                viewNames.toArray(new String[viewNames.size()]),
+                texts.toArray(new String[texts.size()]));
+    }
+
+    /**
+     * Returns the label text for the view named {@code viewName} in
+     * {@code packageName}, or {@code null} if there is no label.
+     */
+    public String getText(String packageName, String viewName) {
+        final int packageIndex = Arrays.binarySearch(mPackageNames, packageName);
+        if (packageIndex < 0) {
+            return null;
+        }
+
+        final int viewIndex = Arrays.binarySearch(mViewNames, mPackageStarts[packageIndex],
+                mPackageStarts[packageIndex + 1], viewName);
+        if (viewIndex < 0) {
+            return null;
+        }
+
+        return mTexts[viewIndex];
+    }
+
+    /** Returns the number of labels in the index. */
+    public int size() {
+        return mViewNames.length;
+    }
+
+    /** Returns the number of packages with labels in the index. */
+    public int getPackageCount() {
+        return mPackageNames.length;
+    }
+
+    /**
+     * Returns an index with {@code labels} added, replacing the labels of
+     * the same views, or with the labels of their views removed if
+     * {@code removed} is {@code true}.  The index is copied once for each
+     * package rather than for each label.
+     */
+    public LabelIndex withLabels(Collection<Label> labels, boolean removed) {
+        final HashMap<String, List<Label>> labelsByPackage = new HashMap<String, List<Label>>();
+        for (Label label : labels) {
+            List<Label> packageLabels = labelsByPackage.get(label.getPackageName());
+            if (packageLabels == null) {
+                packageLabels = new ArrayList<Label>();
+                labelsByPackage.put(label.getPackageName(), packageLabels);
+            }
+
+            packageLabels.add(label);
+        }
+
+        LabelIndex index = this;
+        for (Map.Entry<String, List<Label>> entry : labelsByPackage.entrySet()) {
+            final TreeMap<String, String> views = index.getPackageViews(entry.getKey());
+            boolean changed = false;
+            for (Label label : entry.getValue()) {
+                if (removed) {
+                    changed |= (views.remove(label.getViewName()) != null);
+                } else {
+                    changed |= !label.getText().equals(views.put(label.getViewName(),
+                            label.getText()));
+                }
+            }
+
+            if (changed) {
+                index = index.withPackageViews(entry.getKey(), views);
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns an index with the labels of {@code packageName} replaced by
+     * {@code labels}, a map from view names to labels, or this index if they
+     * are the same.
+     */
+    public LabelIndex withPackage(String packageName, Map<String, Label> labels) {
+        final TreeMap<String, String> views = new TreeMap<String, String>();
+        for (Label label : labels.values()) {
+            views.put(label.getViewName(), label.getText());
+        }
+
+        if (views.equals(getPackageViews(packageName))) {
+            return this;
+        }
+
+        return withPackageViews(packageName, views);
+    }
+
+    private TreeMap<String, String> getPackageViews(String packageName) {
+        final TreeMap<String, String> views = new TreeMap<String, String>();
+        final int packageIndex = Arrays.binarySearch(mPackageNames, packageName);
+        if (packageIndex >= 0) {
+            for (int i = mPackageStarts[packageIndex]; i < mPackageStarts[packageIndex + 1];
+                    ++i) {
+                views.put(mViewNames[i], mTexts[i]);
+            }
+        }
+
+        return views;
+    }
+
+    /**
+     * Returns a copy of this index in which {@code packageName} has exactly
+     * the labels in {@code views}, a sorted map from view names to texts.
+     */
+    private LabelIndex withPackageViews(String packageName, TreeMap<String, String> views) {
+        final int found = Arrays.binarySearch(mPackageNames, packageName);
+        final int packageIndex = (found >= 0) ? found : -(found + 1);
+        final int removedCount = (found >= 0)
+                ? mPackageStarts[packageIndex + 1] - mPackageStarts[packageIndex] : 0;
+        final int viewStart = mPackageStarts[packageIndex];
+        final int viewEnd = viewStart + removedCount;
+
+        // Copy the packages around this one, then insert this one's views if
+        // it still has any.
+        final boolean keepPackage = !views.isEmpty();
+        final int packageCount = mPackageNames.length
+                + (keepPackage ? 1 : 0) - ((found >= 0) ? 1 : 0);
+        final int viewCount = mViewNames.length - removedCount + views.size();
+        final String[] packageNames = new String[packageCount];
+        final int[] packageStarts = new int[packageCount + 1];
+        final String[] viewNames = new String[viewCount];
+        final String[] texts = new String[viewCount];
+
+        System.arraycopy(mPackageNames, 0, packageNames, 0, packageIndex);
+        System.arraycopy(mPackageStarts, 0, packageStarts, 0, packageIndex);
+        System.arraycopy(mViewNames, 0, viewNames, 0, viewStart);
+        System.arraycopy(mTexts, 0, texts, 0, viewStart);
+
+        int nextPackage = packageIndex;
+        int nextView = viewStart;
+        if (keepPackage) {
+            packageNames[nextPackage] = packageName;
+            packageStarts[nextPackage] = nextView;
+            ++nextPackage;
+            for (Map.Entry<String, String> view : views.entrySet()) {
+                viewNames[nextView] = view.getKey();
+                texts[nextView] = view.getValue();
+                ++nextView;
+            }
+        }
+
+        final int tailPackage = (found >= 0) ? packageIndex + 1 : packageIndex;
+        final int shift = nextView - viewEnd;
+        System.arraycopy(mPackageNames, tailPackage, packageNames, nextPackage,
+                mPackageNames.length - tailPackage);
+        for (int i = tailPackage; i <= mPackageNames.length; ++i) {
+            packageStarts[nextPackage + i - tailPackage] = mPackageStarts[i] + shift;
+        }
+        System.arraycopy(mViewNames, viewEnd, viewNames, nextView, mViewNames.length - viewEnd);
+        System.arraycopy(mTexts, viewEnd, texts, nextView, mTexts.length - viewEnd);
+
+        return new LabelIndex(packageNames, packageStarts, viewNames, texts);
+    }
+}
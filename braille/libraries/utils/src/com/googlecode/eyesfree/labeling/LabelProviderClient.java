@@ -18,10 +18,13 @@ package com.googlecode.eyesfree.labeling;
 
 import android.annotation.TargetApi;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
@@ -57,6 +60,9 @@ public class LabelProviderClient {
             .append(AND).append(LabelsTable.KEY_LOCALE).append(EQUALS_ARGUMENT)
             .append(AND).append(LabelsTable.KEY_PACKAGE_VERSION).append(LEQ_ARGUMENT)
             .toString();
+    private static final String GET_LABELS_FOR_LOCALE_QUERY_WHERE = new StringBuilder()
+            .append(LabelsTable.KEY_LOCALE).append(EQUALS_ARGUMENT)
+            .toString();
     private static final String PACKAGE_SUMMARY_QUERY_WHERE = new StringBuilder()
             .append(LabelsTable.KEY_LOCALE).append(EQUALS_ARGUMENT)
             .toString();
@@ -172,6 +178,42 @@ public class LabelProviderClient {
         }
     }
 
+    /**
+     * Gets a list of all labels in the label database for a locale, in one
+     * query.
+     * <p>
+     * Don't run this method on the UI thread. Use {@link android.os.AsyncTask}.
+     *
+     * @param locale The locale to match.
+     * @return An unmodifiable list of all labels for the locale,
+     *         or an empty list if the query returns no results,
+     *         or {@code null} if the query fails.
+     */
+    public List<Label> getLabelsForLocale(String locale) {
+        LogUtils.log(this, Log.DEBUG, "Querying labels for locale: %s.", locale);
+
+        if (!checkClient()) {
+            return null;
+        }
+
+        final String[] whereArgs = { locale };
+
+        Cursor cursor = null;
+        try {
+            cursor = mClient.query(mLabelsContentUri, LabelsTable.ALL_COLUMNS /* projection */,
+                    GET_LABELS_FOR_LOCALE_QUERY_WHERE, whereArgs, null /* sortOrder */);
+
+            return getLabelListFromCursor(cursor);
+        } catch (RemoteException e) {
+            LogUtils.log(this, Log.ERROR, e.toString());
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Gets a summary of label info for each package from the label database.
      * <p>
@@ -414,6 +456,87 @@ public class LabelProviderClient {
         }
     }
 
+    /**
+     * Inserts labels into the labels database in one batch of provider
+     * operations, which the provider may apply in a single transaction.
+     * Labels that already have an ID are skipped.
+     * <p>
+     * Don't run this method on the UI thread. Use {@link android.os.AsyncTask}.
+     *
+     * @param labels The labels to store in the database.
+     * @return An unmodifiable list of the inserted labels with their assigned
+     *         IDs from the database, or {@code null} if the batch failed.
+     */
+    public List<Label> insertLabels(List<Label> labels) {
+        LogUtils.log(this, Log.DEBUG, "Inserting %d labels.", labels.size());
+
+        if (!checkClient()) {
+            return null;
+        }
+
+        final List<Label> candidates = new ArrayList<Label>(labels.size());
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(labels.size());
+        for (Label label : labels) {
+            if (label == null || label.getId() != Label.NO_ID) {
+                LogUtils.log(this, Log.WARN, "Cannot insert null label or label with existing ID.");
+                continue;
+            }
+
+            candidates.add(label);
+            operations.add(ContentProviderOperation.newInsert(mLabelsContentUri)
+                    .withValues(buildContentValuesForLabel(label))
+                    .build());
+        }
+
+        final ContentProviderResult[] results = applyBatch(operations);
+        if (results == null) {
+            return null;
+        }
+
+        final List<Label> inserted = new ArrayList<Label>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].uri != null) {
+                final long newLabelId = Long.parseLong(results[i].uri.getLastPathSegment());
+                inserted.add(new Label(candidates.get(i), newLabelId));
+            }
+        }
+
+        return Collections.unmodifiableList(inserted);
+    }
+
+    /**
+     * Updates labels in one batch of provider operations, which the provider
+     * may apply in a single transaction.  Labels without an ID are skipped.
+     * <p>
+     * Don't run this method on the UI thread. Use {@link android.os.AsyncTask}.
+     *
+     * @param labels The labels with updated values to store.
+     * @return An unmodifiable list of the labels that were updated, or
+     *         {@code null} if the batch failed.
+     */
+    public List<Label> updateLabels(List<Label> labels) {
+        LogUtils.log(this, Log.DEBUG, "Updating %d labels.", labels.size());
+
+        return applyBatchById(labels, false /* delete */);
+    }
+
+    /**
+     * Deletes labels in one batch of provider operations, which the provider
+     * may apply in a single transaction.  Labels without an ID are skipped.
+     * <p>
+     * Don't run this method on the UI thread. Use {@link android.os.AsyncTask}.
+     *
+     * @param labels The labels to delete.
+     * @return An unmodifiable list of the labels that were deleted, or
+     *         {@code null} if the batch failed.
+     */
+    public List<Label> deleteLabels(List<Label> labels) {
+        LogUtils.log(this, Log.DEBUG, "Deleting %d labels.", labels.size());
+
+        return applyBatchById(labels, true /* delete */);
+    }
+
     /**
      * Shuts down the client and releases any resources.
      */
@@ -432,6 +555,78 @@ public class LabelProviderClient {
         return mClient != null;
     }
 
+    /**
+     * Updates or deletes labels by ID in one batch of provider operations.
+     *
+     * @param labels The labels to update or delete.
+     * @param delete Whether to delete the labels instead of updating them.
+     * @return An unmodifiable list of the labels that were affected, or
+     *         {@code null} if the batch failed.
+     */
+    private List<Label> applyBatchById(List<Label> labels, boolean delete) {
+        if (!checkClient()) {
+            return null;
+        }
+
+        final List<Label> candidates = new ArrayList<Label>(labels.size());
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(labels.size());
+        for (Label label : labels) {
+            if (label == null || label.getId() == Label.NO_ID) {
+                LogUtils.log(this, Log.WARN, "Cannot update or delete null label or label with "
+                        + "no ID.");
+                continue;
+            }
+
+            final Uri uri = ContentUris.withAppendedId(mLabelsContentUri, label.getId());
+            candidates.add(label);
+            if (delete) {
+                operations.add(ContentProviderOperation.newDelete(uri).build());
+            } else {
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValues(buildContentValuesForLabel(label))
+                        .build());
+            }
+        }
+
+        final ContentProviderResult[] results = applyBatch(operations);
+        if (results == null) {
+            return null;
+        }
+
+        final List<Label> affected = new ArrayList<Label>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].count != null && results[i].count > 0) {
+                affected.add(candidates.get(i));
+            }
+        }
+
+        return Collections.unmodifiableList(affected);
+    }
+
+    /**
+     * Applies a batch of operations to the labels provider.
+     *
+     * @param operations The operations to apply.
+     * @return The result of each operation, or {@code null} if the batch
+     *         failed.
+     */
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return new ContentProviderResult[0];
+        }
+
+        try {
+            return mClient.applyBatch(operations);
+        } catch (RemoteException e) {
+            LogUtils.log(this, Log.ERROR, e.toString());
+            return null;
+        } catch (OperationApplicationException e) {
+            LogUtils.log(this, Log.ERROR, e.toString());
+            return null;
+        }
+    }
+
     /**
      * Builds content values for the fields of a label.
      *
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.labeling;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the label tasks of a {@link CustomLabelManager} one at a time on a
+ * thread of their own, highest priority first and in submission order
+ * within a priority.
+ * <p>
+ * Tasks are submitted through the {@link Executor} returned by
+ * {@link #getExecutor}, which tags them with a priority and a type.  Queued
+ * foreground tasks run before any queued maintenance task, and long
+ * maintenance tasks are expected to check {@link #hasQueuedForegroundTasks}
+ * and stop early so that they can be resumed after the foreground work.
+ * The time each type of task waits in the queue is recorded for
+ * {@link #dump}.
+ * </p>
+ */
+class LabelTaskExecutor {
+    /** Lookups that someone is waiting on, and changes made by the user. */
+    public static final int PRIORITY_FOREGROUND = 0;
+
+    /** Background work that can wait for foreground tasks. */
+    public static final int PRIORITY_MAINTENANCE = 1;
+
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    /** Queue wait times of one type of task. */
+    private static class WaitStats {
+        int count;
+        long totalMillis;
+        long maxMillis;
+    }
+
+    private class QueuedTask implements Runnable, Comparable<QueuedTask> {
+        private final Runnable mRunnable;
+        private final int mPriority;
+        private final String mType;
+        private final long mSequence;
+        private final long mQueuedMillis;
+
+        QueuedTask(Runnable runnable, int priority, String type) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mType = type;
+            mSequence = mNextSequence.getAndIncrement();
+            mQueuedMillis = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void run() {
+            if (mPriority == PRIORITY_FOREGROUND) {
+                mQueuedForegroundCount.decrementAndGet();
+            }
+
+            recordWait(mType, SystemClock.uptimeMillis() - mQueuedMillis);
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(QueuedTask other) {
+            if (mPriority != other.mPriority) {
+                return (mPriority < other.mPriority) ? -1 : 1;
+            }
+
+            return (mSequence < other.mSequence) ? -1 : ((mSequence == other.mSequence) ? 0 : 1);
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final AtomicInteger mQueuedForegroundCount = new AtomicInteger();
+
+    /** Guarded by itself. */
+    private final Map<String, WaitStats> mWaitStats = new TreeMap<String, WaitStats>();
+
+    public LabelTaskExecutor() {
+        mExecutor = new ThreadPoolExecutor(1, 1, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "LabelTaskExecutor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns an executor that queues what it is given at {@code priority},
+     * accounting its wait time to {@code type}.
+     */
+    public Executor getExecutor(final int priority, final String type) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                if (priority == PRIORITY_FOREGROUND) {
+                    mQueuedForegroundCount.incrementAndGet();
+                }
+
+                mExecutor.execute(new QueuedTask(runnable, priority, type));
+            }
+        };
+    }
+
+    /**
+     * Returns whether foreground tasks are waiting for the running task to
+     * finish.
+     */
+    public boolean hasQueuedForegroundTasks() {
+        return mQueuedForegroundCount.get() > 0;
+    }
+
+    /**
+     * Prints the queue wait times of each type of task.
+     */
+    public void dump(PrintWriter writer) {
+        synchronized (mWaitStats) {
+            writer.println("Label task queue waits:");
+            for (Map.Entry<String, WaitStats> entry : mWaitStats.entrySet()) {
+                final WaitStats stats = entry.getValue();
+                writer.printf("  %s: %d runs, %d ms average, %d ms max\n", entry.getKey(),
+                        stats.count, stats.totalMillis / stats.count, stats.maxMillis);
+            }
+        }
+    }
+
+    private void recordWait(String type, long waitMillis) {
+        synchronized (mWaitStats) {
+            WaitStats stats = mWaitStats.get(type);
+            if (stats == null) {
+                stats = new WaitStats();
+                mWaitStats.put(type, stats);
+            }
+
+            stats.count++;
+            stats.totalMillis += waitMillis;
+            stats.maxMillis = Math.max(stats.maxMillis, waitMillis);
+        }
+    }
+}
@@ -31,6 +31,10 @@ import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
  * are not visible to the user.  The traversal methods, however, will only
  * traverse to visible nodes.
  *
+ * Traversal goes through {@link NodeTreeMirror}, so that walking the same
+ * part of the tree repeatedly doesn't call into the application each time.
+ * Nodes are obtained and recycled through {@link NodeLifecycleTracker}.
+ *
  * @see AccessibilityNodeInfoUtils#isVisibleOrLegacy(AccessibilityNodeInfoCompat)
  */
 public class AccessibilityNodeInfoRef {
@@ -66,7 +70,7 @@ public class AccessibilityNodeInfoRef {
      */
     public void reset(AccessibilityNodeInfoCompat newNode) {
         if (mNode != newNode && mNode != null && mOwned) {
-            mNode.recycle();
+            NodeLifecycleTracker.recycle(mNode);
         }
         mNode = newNode;
         mOwned = true;
@@ -90,7 +94,7 @@ public class AccessibilityNodeInfoRef {
     public static AccessibilityNodeInfoRef obtain(
         AccessibilityNodeInfoCompat node) {
         return new AccessibilityNodeInfoRef(
-            AccessibilityNodeInfoCompat.obtain(node), true);
+            NodeLifecycleTracker.obtain(node), true);
     }
 
     /**
@@ -127,7 +131,7 @@ public class AccessibilityNodeInfoRef {
      */
     public AccessibilityNodeInfoRef makeOwned() {
         if (mNode != null && !mOwned) {
-            reset(AccessibilityNodeInfoCompat.obtain(mNode));
+            reset(NodeLifecycleTracker.obtain(mNode));
         }
         return this;
     }
@@ -164,11 +168,11 @@ public class AccessibilityNodeInfoRef {
      * on success.
      */
     public boolean lastChild() {
-        if (mNode == null || mNode.getChildCount() < 1) {
+        if (mNode == null || NodeTreeMirror.getChildCount(mNode) < 1) {
             return false;
         }
-        for (int i = mNode.getChildCount() - 1; i >= 0; --i) {
-            AccessibilityNodeInfoCompat newNode = mNode.getChild(i);
+        for (int i = NodeTreeMirror.getChildCount(mNode) - 1; i >= 0; --i) {
+            AccessibilityNodeInfoCompat newNode = NodeTreeMirror.getChild(mNode, i);
             if (newNode == null) {
                 return false;
             }
@@ -176,7 +180,7 @@ public class AccessibilityNodeInfoRef {
                 reset(newNode);
                 return true;
             }
-            newNode.recycle();
+            NodeLifecycleTracker.recycle(newNode);
         }
         return false;
     }
@@ -189,14 +193,14 @@ public class AccessibilityNodeInfoRef {
         if (mNode == null) {
             return false;
         }
-        AccessibilityNodeInfoCompat parent = mNode.getParent();
+        AccessibilityNodeInfoCompat parent = NodeTreeMirror.getParent(mNode);
         if (parent == null) {
             return false;
         }
         try {
             int childNumber = getChildNumber(parent);
             for (int i = childNumber - 1; i >= 0; --i) {
-                AccessibilityNodeInfoCompat newNode = parent.getChild(i);
+                AccessibilityNodeInfoCompat newNode = NodeTreeMirror.getChild(parent, i);
                 if (newNode == null) {
                     return false;
                 }
@@ -204,10 +208,10 @@ public class AccessibilityNodeInfoRef {
                     reset(newNode);
                     return true;
                 }
-                newNode.recycle();
+                NodeLifecycleTracker.recycle(newNode);
             }
         } finally {
-            parent.recycle();
+            NodeLifecycleTracker.recycle(parent);
         }
         return false;
     }
@@ -220,9 +224,9 @@ public class AccessibilityNodeInfoRef {
         if (mNode == null) {
             return false;
         }
-        int childCount = mNode.getChildCount();
+        int childCount = NodeTreeMirror.getChildCount(mNode);
         for (int i = 0; i < childCount; ++i) {
-            AccessibilityNodeInfoCompat newNode = mNode.getChild(i);
+            AccessibilityNodeInfoCompat newNode = NodeTreeMirror.getChild(mNode, i);
             if (newNode == null) {
                 return false;
             }
@@ -230,7 +234,7 @@ public class AccessibilityNodeInfoRef {
                 reset(newNode);
                 return true;
             }
-            newNode.recycle();
+            NodeLifecycleTracker.recycle(newNode);
         }
         return false;
     }
@@ -243,19 +247,19 @@ public class AccessibilityNodeInfoRef {
         if (mNode == null) {
             return false;
         }
-        AccessibilityNodeInfoCompat parent = mNode.getParent();
+        AccessibilityNodeInfoCompat parent = NodeTreeMirror.getParent(mNode);
         if (parent == null) {
             return false;
         }
         try {
-            int childCount = parent.getChildCount();
+            int childCount = NodeTreeMirror.getChildCount(parent);
             int childNumber = getChildNumber(parent);
             if (childNumber < 0) {
                 return false;
             }
             for (int i = childNumber + 1; i < childCount; ++i) {
                 AccessibilityNodeInfoCompat newNode =
-                        parent.getChild(i);
+                        NodeTreeMirror.getChild(parent, i);
                 if (newNode == null) {
                     return false;
                 }
@@ -263,10 +267,10 @@ public class AccessibilityNodeInfoRef {
                     reset(newNode);
                     return true;
                 }
-                newNode.recycle();
+                NodeLifecycleTracker.recycle(newNode);
             }
         } finally {
-            parent.recycle();
+            NodeLifecycleTracker.recycle(parent);
         }
         return false;
     }
@@ -279,14 +283,14 @@ public class AccessibilityNodeInfoRef {
         if (mNode == null) {
             return false;
         }
-        AccessibilityNodeInfoCompat parentNode = mNode.getParent();
+        AccessibilityNodeInfoCompat parentNode = NodeTreeMirror.getParent(mNode);
         while (parentNode != null) {
             if (AccessibilityNodeInfoUtils.isVisibleOrLegacy(parentNode)) {
                 reset(parentNode);
                 return true;
             }
-            AccessibilityNodeInfoCompat tmp = parentNode.getParent();
-            parentNode.recycle();
+            AccessibilityNodeInfoCompat tmp = NodeTreeMirror.getParent(parentNode);
+            NodeLifecycleTracker.recycle(parentNode);
             parentNode = tmp;
         }
         return false;
@@ -294,14 +298,14 @@ public class AccessibilityNodeInfoRef {
 
     private int getChildNumber(AccessibilityNodeInfoCompat parent) {
         int ret = -1;
-        int childCount = parent.getChildCount();
+        int childCount = NodeTreeMirror.getChildCount(parent);
         for (int i = 0; i < childCount && ret < 0; ++i) {
-            AccessibilityNodeInfoCompat child = parent.getChild(i);
+            AccessibilityNodeInfoCompat child = NodeTreeMirror.getChild(parent, i);
             if (mNode.equals(child)) {
                 ret = i;
             }
             if (child != null) {
-                child.recycle();
+                NodeLifecycleTracker.recycle(child);
             }
         }
         return ret;
@@ -27,6 +27,7 @@ import com.googlecode.eyesfree.compat.CompatUtils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -57,10 +58,100 @@ public class AccessibilityNodeInfoUtils {
     private static final Class<?> CLASS_TOUCHWIZ_TWABSLISTVIEW = CompatUtils.getClass(
             "com.sec.android.touchwiz.widget.TwAbsListView");
 
+    /** Bit offsets of the memoized results, see {@link FocusabilityMemo}. */
+    private static final int MEMO_ACCESSIBILITY_FOCUSABLE = 0;
+    private static final int MEMO_SPEAKING = 2;
+    private static final int MEMO_SHOULD_FOCUS = 4;
+
+    /** Nodes beyond this many are not memoized in one traversal. */
+    private static final int MAX_MEMOIZED_NODES = 1024;
+
+    /**
+     * The memo of the traversal in progress on each thread, see
+     * {@link #startFocusabilityMemo()}.
+     */
+    private static final ThreadLocal<FocusabilityMemo> sFocusabilityMemo =
+            new ThreadLocal<FocusabilityMemo>();
+
+    /**
+     * Focusability results of the nodes visited in one traversal.  For each
+     * kind of result, one bit tells whether the result is known and the next
+     * bit holds the result.
+     */
+    private static class FocusabilityMemo {
+        final HashMap<AccessibilityNodeInfoCompat, Integer> results =
+                new HashMap<AccessibilityNodeInfoCompat, Integer>();
+        int depth;
+    }
+
     private AccessibilityNodeInfoUtils() {
         // This class is not instantiable.
     }
 
+    /**
+     * Starts memoizing the results of {@link #shouldFocusNode},
+     * {@link #isAccessibilityFocusable} and whether nodes have something to
+     * speak on the calling thread, so that a traversal that evaluates the
+     * same nodes repeatedly, as ancestors or children of other nodes, only
+     * computes them once.  Must be paired with a call to
+     * {@link #finishFocusabilityMemo()} when the traversal is done, so that
+     * no result outlives it.  Calls may be nested, in which case the
+     * outermost pair decides when the results are dropped.
+     */
+    public static void startFocusabilityMemo() {
+        FocusabilityMemo memo = sFocusabilityMemo.get();
+        if (memo == null) {
+            memo = new FocusabilityMemo();
+            sFocusabilityMemo.set(memo);
+        }
+        ++memo.depth;
+    }
+
+    /**
+     * Stops memoizing focusability results started with
+     * {@link #startFocusabilityMemo()}.
+     */
+    public static void finishFocusabilityMemo() {
+        final FocusabilityMemo memo = sFocusabilityMemo.get();
+        if (memo == null || --memo.depth > 0) {
+            return;
+        }
+        recycleNodes(memo.results.keySet());
+        sFocusabilityMemo.remove();
+    }
+
+    /**
+     * Returns the memoized result at {@code offset} for {@code node}:
+     * {@code 1} if true, {@code 0} if false or {@code -1} if not known.
+     */
+    private static int getMemoized(AccessibilityNodeInfoCompat node, int offset) {
+        final FocusabilityMemo memo = sFocusabilityMemo.get();
+        if (memo == null) {
+            return -1;
+        }
+        final Integer bits = memo.results.get(node);
+        if (bits == null || (bits & (1 << offset)) == 0) {
+            return -1;
+        }
+        return (bits >> (offset + 1)) & 1;
+    }
+
+    private static boolean memoize(AccessibilityNodeInfoCompat node, int offset,
+            boolean result) {
+        final FocusabilityMemo memo = sFocusabilityMemo.get();
+        if (memo == null) {
+            return result;
+        }
+        final Integer bits = memo.results.get(node);
+        final int newBits = (1 << offset) | ((result ? 1 : 0) << (offset + 1));
+        if (bits != null) {
+            memo.results.put(node, bits | newBits);
+        } else if (memo.results.size() < MAX_MEMOIZED_NODES) {
+            memo.results.put(AccessibilityNodeInfoCompat.obtain(node), newBits);
+        }
+        return result;
+    }
+
     /**
      * Gets the text of a <code>node</code> by returning the content description
      * (if available) or by returning the text.
@@ -103,7 +194,7 @@ public class AccessibilityNodeInfoUtils {
 
         do {
             current = parent;
-            parent = current.getParent();
+            parent = NodeTreeMirror.getParent(current);
         } while (parent != null);
 
         return current;
@@ -128,6 +219,16 @@ public class AccessibilityNodeInfoUtils {
             return false;
         }
 
+        final int memoized = getMemoized(node, MEMO_ACCESSIBILITY_FOCUSABLE);
+        if (memoized >= 0) {
+            return memoized != 0;
+        }
+        return memoize(node, MEMO_ACCESSIBILITY_FOCUSABLE,
+                isAccessibilityFocusableInternal(context, node));
+    }
+
+    private static boolean isAccessibilityFocusableInternal(
+            Context context, AccessibilityNodeInfoCompat node) {
         // Never focus invisible nodes.
         if (!isVisibleOrLegacy(node)) {
             return false;
@@ -170,6 +271,15 @@ public class AccessibilityNodeInfoUtils {
             return false;
         }
 
+        final int memoized = getMemoized(node, MEMO_SHOULD_FOCUS);
+        if (memoized >= 0) {
+            return memoized != 0;
+        }
+        return memoize(node, MEMO_SHOULD_FOCUS, shouldFocusNodeInternal(context, node));
+    }
+
+    private static boolean shouldFocusNodeInternal(
+            Context context, AccessibilityNodeInfoCompat node) {
         if (!isVisibleOrLegacy(node)) {
             LogUtils.log(AccessibilityNodeInfoUtils.class, Log.VERBOSE,
                     "Don't focus, node is not visible");
@@ -220,6 +330,15 @@ public class AccessibilityNodeInfoUtils {
     }
 
     private static boolean isSpeakingNode(Context context, AccessibilityNodeInfoCompat node) {
+        final int memoized = getMemoized(node, MEMO_SPEAKING);
+        if (memoized >= 0) {
+            return memoized != 0;
+        }
+        return memoize(node, MEMO_SPEAKING, isSpeakingNodeInternal(context, node));
+    }
+
+    private static boolean isSpeakingNodeInternal(
+            Context context, AccessibilityNodeInfoCompat node) {
         if (hasText(node)) {
             LogUtils.log(AccessibilityNodeInfoUtils.class, Log.VERBOSE,
                     "Speaking, has text");
@@ -252,14 +371,14 @@ public class AccessibilityNodeInfoUtils {
 
     private static boolean hasNonActionableSpeakingChildren(
             Context context, AccessibilityNodeInfoCompat node) {
-        final int childCount = node.getChildCount();
+        final int childCount = NodeTreeMirror.getChildCount(node);
 
         AccessibilityNodeInfoCompat child = null;
 
         // Has non-actionable, speaking children?
         for (int i = 0; i < childCount; i++) {
             try {
-                child = node.getChild(i);
+                child = NodeTreeMirror.getChild(node, i);
 
                 if (child == null) {
                     LogUtils.log(AccessibilityNodeInfoUtils.class, Log.VERBOSE,
@@ -448,7 +567,7 @@ public class AccessibilityNodeInfoUtils {
 
         try {
             ancestors.add(AccessibilityNodeInfoCompat.obtain(node));
-            node = node.getParent();
+            node = NodeTreeMirror.getParent(node);
 
             while (node != null) {
                 if (!ancestors.add(node)) {
@@ -462,7 +581,7 @@ public class AccessibilityNodeInfoUtils {
                     return AccessibilityNodeInfoCompat.obtain(node);
                 }
 
-                node = node.getParent();
+                node = NodeTreeMirror.getParent(node);
             }
         } finally {
             recycleNodes(ancestors);
@@ -517,7 +636,7 @@ public class AccessibilityNodeInfoUtils {
         AccessibilityNodeInfoCompat parent = null;
 
         try {
-            parent = node.getParent();
+            parent = NodeTreeMirror.getParent(node);
             if (parent == null) {
                 // Not a child node of anything.
                 return false;
@@ -752,7 +871,7 @@ public class AccessibilityNodeInfoUtils {
 
         for (AccessibilityNodeInfoCompat node : nodes) {
             if (node != null) {
-                node.recycle();
+                NodeLifecycleTracker.recycle(node);
             }
         }
 
@@ -771,7 +890,7 @@ public class AccessibilityNodeInfoUtils {
 
         for (AccessibilityNodeInfoCompat node : nodes) {
             if (node != null) {
-                node.recycle();
+                NodeLifecycleTracker.recycle(node);
             }
         }
     }
@@ -17,45 +17,82 @@
 package com.googlecode.eyesfree.utils;
 
 import android.content.Context;
-import android.content.pm.PackageInfo;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class manages efficient loading of classes.
+ * <p>
+ * Classes are resolved once per package and class name, after which the
+ * result, including failure to load the class, is cached.  For each
+ * resolved class, the cache also keeps a bitset of which of the reference
+ * classes passed to {@link #checkInstanceOf} the class extends, so that
+ * repeated checks are a couple of hash lookups.  All methods are thread-safe.
+ * </p>
+ * <p>
+ * Cached results for a package are dropped when the package is added,
+ * removed or changed, as reported to the package monitor registered by
+ * {@link #init}.
+ * </p>
  *
  * @author svetoslavganov@google.com (Svetoslav R. Ganov)
  * @author alanv@google.com (Alan Viverette)
  */
 public class ClassLoadingManager {
 
+    /**
+     * The maximum number of reference classes that get a bit in the
+     * ancestry bitsets.  Checks against further reference classes are not
+     * cached, but still don't load classes after the first resolution.
+     */
+    private static final int MAX_REFERENCE_CLASSES = 64;
+
     /**
      * The singleton instance of this class.
      */
     private static ClassLoadingManager sInstance;
 
     /**
-     * Mapping from class names to classes form outside packages.
+     * A resolved class name in a package.
+     */
+    private static class ResolvedClass {
+        /** The loaded class, or {@code null} if it couldn't be loaded. */
+        final Class<?> clazz;
+
+        /** Bits of the reference classes that have been checked. */
+        volatile long checkedBits;
+
+        /** Bits of the reference classes that {@link #clazz} extends. */
+        volatile long ancestryBits;
+
+        ResolvedClass(Class<?> clazzArg) {
+            clazz = clazzArg;
+        }
+    }
+
+    /**
+     * Mapping from package names to the classes resolved in each package,
+     * by class name.
      */
-    private final HashMap<String, Class<?>> mClassNameToClassMap = new HashMap<String, Class<?>>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ResolvedClass>>
+            mPackageToClassesMap =
+                    new ConcurrentHashMap<String, ConcurrentHashMap<String, ResolvedClass>>();
 
     /**
-     * A set of classes not found to be loaded. Used to avoid multiple attempts
-     * that will fail.
+     * Mapping from reference classes to their bit index in the ancestry
+     * bitsets.
      */
-    private final HashMap<String, HashSet<String>> mNotFoundClassesMap =
-            new HashMap<String, HashSet<String>>();
+    private final ConcurrentHashMap<Class<?>, Integer> mReferenceClassToIndexMap =
+            new ConcurrentHashMap<Class<?>, Integer>();
 
     /**
      * The singleton instance of this class.
      *
      * @return The singleton instance of this class.
      */
-    public static ClassLoadingManager getInstance() {
+    public static synchronized ClassLoadingManager getInstance() {
         if (sInstance == null) {
             sInstance = new ClassLoadingManager();
         }
@@ -63,57 +100,41 @@ public class ClassLoadingManager {
     }
 
     /**
-     * Builds the package cache and registers the package monitor
+     * Registers the package monitor
      *
      * @param context The {@link Context} to use for monitor registration
      */
     public void init(Context context) {
-        if (!mNotFoundClassesMap.isEmpty()) {
-            buildInstalledPackagesCache(context);
-        }
-
         mPackageMonitor.register(context);
     }
 
     /**
-     * Clears the package cache and unregisteres the package monitor
+     * Clears the class cache and unregisteres the package monitor
      */
     public void shutdown() {
-        mClassNameToClassMap.clear();
+        mPackageToClassesMap.clear();
         mPackageMonitor.unregister();
     }
 
     /**
-     * Builds a cache of installed packages.
-     */
-    private void buildInstalledPackagesCache(Context context) {
-        final List<PackageInfo> installedPackages =
-                context.getPackageManager().getInstalledPackages(0);
-
-        for (PackageInfo installedPackage : installedPackages) {
-            addInstalledPackageToCache(installedPackage.packageName);
-        }
-    }
-
-    /**
-     * Adds the specified package to the installed package cache.
+     * Drops everything cached about the classes of a package.
      *
-     * @param packageName The package name to add.
+     * @param packageName The name of the package.
      */
-    private void addInstalledPackageToCache(String packageName) {
-        synchronized (mNotFoundClassesMap) {
-            mNotFoundClassesMap.remove(packageName);
+    private void invalidatePackage(String packageName) {
+        if (packageName != null) {
+            mPackageToClassesMap.remove(packageName);
         }
     }
 
     /**
      * Returns a class by given <code>className</code>. The loading proceeds as
-     * follows: </br> 1. Try to load with the current context class loader (it
-     * caches loaded classes). </br> 2. If (1) fails try if we have loaded the
-     * class before and return it if that is the cases. </br> 3. If (2) failed,
-     * try to create a package context and load the class. </p> Note: If the
-     * package name is null and an attempt for loading of a package context is
-     * required the it is extracted from the class name.
+     * follows: </br> 1. Try if we have resolved the class before and return it
+     * (or fail) if that is the case. </br> 2. If (1) fails try to load with the
+     * current context class loader (it caches loaded classes). </br> 3. If (2)
+     * failed, try to create a package context and load the class. </p> Note: If
+     * the package name is null and an attempt for loading of a package context
+     * is required the it is extracted from the class name.
      *
      * @param context The context from which to first try loading the class.
      * @param className The name of the class to load.
@@ -122,6 +143,17 @@ public class ClassLoadingManager {
      */
     public Class<?> loadOrGetCachedClass(Context context, CharSequence className,
             CharSequence packageName) {
+        final ResolvedClass resolved = resolve(context, className, packageName);
+        return (resolved != null) ? resolved.clazz : null;
+    }
+
+    /**
+     * Returns the cached resolution of a class, resolving it first if
+     * needed.  Returns {@code null} if the class name or package are missing
+     * or if no context was given to resolve an uncached class with.
+     */
+    private ResolvedClass resolve(Context context, CharSequence className,
+            CharSequence packageName) {
         if (TextUtils.isEmpty(className)) {
             LogUtils.log(this, Log.DEBUG, "Missing class name. Failed to load class.");
             return null;
@@ -143,26 +175,47 @@ public class ClassLoadingManager {
         final String classNameStr = className.toString();
         final String packageNameStr = packageName.toString();
 
-        // If we failed loading this class once, don't bother trying again.
-        HashSet<String> notFoundClassesSet = null;
-        synchronized (mNotFoundClassesMap) {
-            notFoundClassesSet = mNotFoundClassesMap.get(packageNameStr);
-            if ((notFoundClassesSet != null) && notFoundClassesSet.contains(classNameStr)) {
-                return null;
+        // See if we have resolved this class before, whether or not it
+        // could be loaded.
+        ConcurrentHashMap<String, ResolvedClass> classes =
+                mPackageToClassesMap.get(packageNameStr);
+        if (classes != null) {
+            final ResolvedClass resolved = classes.get(classNameStr);
+            if (resolved != null) {
+                return resolved;
             }
         }
 
-        // See if we have a cached class.
-        final Class<?> clazz = mClassNameToClassMap.get(classNameStr);
-        if (clazz != null) {
-            return clazz;
+        final Class<?> clazz = loadClass(context, classNameStr, packageNameStr);
+        if ((clazz == null) && (context == null)) {
+            // Don't cache the failure, the class might load with a context.
+            return null;
         }
 
+        if (classes == null) {
+            classes = new ConcurrentHashMap<String, ResolvedClass>();
+            final ConcurrentHashMap<String, ResolvedClass> existing =
+                    mPackageToClassesMap.putIfAbsent(packageNameStr, classes);
+            if (existing != null) {
+                classes = existing;
+            }
+        }
+
+        // If another thread resolved the class meanwhile, keep its result.
+        final ResolvedClass resolved = new ResolvedClass(clazz);
+        final ResolvedClass existing = classes.putIfAbsent(classNameStr, resolved);
+        return (existing != null) ? existing : resolved;
+    }
+
+    /**
+     * Loads a class, first with the current class loader and then with a
+     * package context if a context is given.
+     */
+    private Class<?> loadClass(Context context, String className, String packageName) {
         // Try the current ClassLoader.
         try {
-            final Class<?> insideClazz = getClass().getClassLoader().loadClass(classNameStr);
+            final Class<?> insideClazz = getClass().getClassLoader().loadClass(className);
             if (insideClazz != null) {
-                mClassNameToClassMap.put(classNameStr, insideClazz);
                 return insideClazz;
             }
         } catch (ClassNotFoundException e) {
@@ -177,26 +230,18 @@ public class ClassLoadingManager {
         // Attempt to load class by creating a package context.
         try {
             final int flags = (Context.CONTEXT_INCLUDE_CODE | Context.CONTEXT_IGNORE_SECURITY);
-            final Context packageContext = context.createPackageContext(packageNameStr, flags);
-            final Class<?> outsideClazz = packageContext.getClassLoader().loadClass(classNameStr);
+            final Context packageContext = context.createPackageContext(packageName, flags);
+            final Class<?> outsideClazz = packageContext.getClassLoader().loadClass(className);
 
             if (outsideClazz != null) {
-                mClassNameToClassMap.put(classNameStr, outsideClazz);
                 return outsideClazz;
             }
         } catch (Exception e) {
             LogUtils.log(this, Log.ERROR, "Error encountered. Failed to load outside class: %s",
-                    classNameStr);
-        }
-
-        if (notFoundClassesSet == null) {
-            notFoundClassesSet = new HashSet<String>();
-            mNotFoundClassesMap.put(packageNameStr, notFoundClassesSet);
+                    className);
         }
 
-        notFoundClassesSet.add(classNameStr);
-
-        LogUtils.log(Log.DEBUG, "Failed to load class: %s", classNameStr);
+        LogUtils.log(Log.DEBUG, "Failed to load class: %s", className);
 
         return null;
     }
@@ -241,12 +286,57 @@ public class ClassLoadingManager {
             return false;
         }
 
-        final Class<?> targetClass = loadOrGetCachedClass(context, targetClassName, loaderPackage);
-        if (targetClass == null) {
+        final ResolvedClass target = resolve(context, targetClassName, loaderPackage);
+        if ((target == null) || (target.clazz == null)) {
             return false;
         }
 
-        return referenceClass.isAssignableFrom(targetClass);
+        final int index = getReferenceIndex(referenceClass);
+        if (index < 0) {
+            return referenceClass.isAssignableFrom(target.clazz);
+        }
+
+        final long bit = 1L << index;
+        if ((target.checkedBits & bit) != 0) {
+            return (target.ancestryBits & bit) != 0;
+        }
+
+        final boolean isInstance = referenceClass.isAssignableFrom(target.clazz);
+        synchronized (target) {
+            // Publish the result before marking it as checked, so that
+            // readers that see the checked bit also see the result.
+            if (isInstance) {
+                target.ancestryBits |= bit;
+            }
+            target.checkedBits |= bit;
+        }
+        return isInstance;
+    }
+
+    /**
+     * Returns the bit index of a reference class, assigning the next free
+     * one if needed, or {@code -1} if all bits are taken.
+     */
+    private int getReferenceIndex(Class<?> referenceClass) {
+        final Integer index = mReferenceClassToIndexMap.get(referenceClass);
+        if (index != null) {
+            return index;
+        }
+
+        synchronized (mReferenceClassToIndexMap) {
+            final Integer existing = mReferenceClassToIndexMap.get(referenceClass);
+            if (existing != null) {
+                return existing;
+            }
+
+            final int size = mReferenceClassToIndexMap.size();
+            if (size >= MAX_REFERENCE_CLASSES) {
+                return -1;
+            }
+
+            mReferenceClassToIndexMap.put(referenceClass, size);
+            return size;
+        }
     }
 
     /**
@@ -255,17 +345,17 @@ public class ClassLoadingManager {
     private final BasePackageMonitor mPackageMonitor = new BasePackageMonitor() {
         @Override
         protected void onPackageAdded(String packageName) {
-            addInstalledPackageToCache(packageName);
+            invalidatePackage(packageName);
         }
 
         @Override
         protected void onPackageRemoved(String packageName) {
-            // Do nothing.
+            invalidatePackage(packageName);
         }
 
         @Override
         protected void onPackageChanged(String packageName) {
-            // Do nothing.
+            invalidatePackage(packageName);
         }
     };
 }
@@ -24,6 +24,7 @@ public class NodeFocusFinder {
 
     /**
      * Perform in-order navigation from a given node in a particular direction.
+     * Uses the {@link TraversalOrderIndex} if one is set.
      *
      * @param node The starting node.
      * @param direction The direction to travel.
@@ -32,6 +33,19 @@ public class NodeFocusFinder {
      */
     public static AccessibilityNodeInfoCompat focusSearch(
             AccessibilityNodeInfoCompat node, int direction) {
+        final TraversalOrderIndex index = TraversalOrderIndex.getInstance();
+        if (index != null) {
+            return index.focusSearch(node, direction);
+        }
+
+        return searchTree(node, direction);
+    }
+
+    /**
+     * Performs in-order navigation by walking the tree from {@code node}.
+     */
+    static AccessibilityNodeInfoCompat searchTree(
+            AccessibilityNodeInfoCompat node, int direction) {
         final AccessibilityNodeInfoRef ref = AccessibilityNodeInfoRef.unOwned(node);
 
         switch (direction) {
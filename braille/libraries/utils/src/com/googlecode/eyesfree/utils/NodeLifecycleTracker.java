@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.os.SystemClock;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accounts for the nodes that are obtained and recycled, to find nodes that
+ * are never recycled and nodes that are recycled twice.
+ * <p>
+ * Nodes obtained with {@link #obtain} or fetched from the application and
+ * passed to {@link #track} are recorded as live, together with the place in
+ * the code that got them.  Every {@link #SAMPLE_INTERVAL}th node also
+ * records its full allocation stack.  Nodes recycled with {@link #recycle}
+ * stop being live.  Recycling a tracked node again while it is still in
+ * the recycled state is reported with the stack of the second call.  Nodes
+ * that were never tracked aren't checked, since the pool may have handed
+ * them out again without this class seeing it.  Nodes recycled directly
+ * with {@link AccessibilityNodeInfoCompat#recycle} are recognized by their
+ * cleared source when the live nodes are counted.
+ * </p>
+ * <p>
+ * {@link AccessibilityNodeInfoRef}, {@link NodeTreeMirror} and
+ * {@link AccessibilityNodeInfoUtils#recycleNodes} go through this class, so
+ * most nodes are accounted for without their users doing anything.
+ * </p>
+ * <p>
+ * Accounting is off by default, in which case the methods of this class
+ * only read a volatile field before obtaining or recycling.  It can be
+ * turned on with {@link #setEnabled} or through {@link #dumpsys}.
+ * </p>
+ */
+public final class NodeLifecycleTracker {
+    /** Every this many tracked nodes record their allocation stack. */
+    private static final int SAMPLE_INTERVAL = 16;
+
+    /** How many recycled nodes to remember for double recycle detection. */
+    private static final int MAX_RECENTLY_RECYCLED = 256;
+
+    /** How many sampled stacks and double recycles to print when dumping. */
+    private static final int MAX_DUMPED_STACKS = 8;
+
+    private static volatile boolean sEnabled = false;
+
+    private static class Allocation {
+        final String site;
+        final Throwable stack;
+        final long obtainedMillis;
+
+        Allocation(String site, Throwable stack) {
+            this.site = site;
+            this.stack = stack;
+            obtainedMillis = SystemClock.uptimeMillis();
+        }
+    }
+
+    // Guarded by the class lock.  Keys are the wrapped framework nodes, which
+    // are what the pool hands out again, compared by identity.
+    private static final IdentityHashMap<Object, Allocation> sLive =
+            new IdentityHashMap<Object, Allocation>();
+    private static final IdentityHashMap<Object, String> sRecentlyRecycled =
+            new IdentityHashMap<Object, String>();
+    private static final ArrayDeque<Object> sRecycledOrder = new ArrayDeque<Object>();
+    private static final List<Throwable> sDoubleRecycles = new ArrayList<Throwable>();
+    private static int sTrackedCount = 0;
+    private static int sRecycledCount = 0;
+    private static int sDoubleRecycleCount = 0;
+    /** Hash code of a node without a source or window, or {@code null}. */
+    private static Integer sClearedHashCode;
+
+    private NodeLifecycleTracker() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Turns accounting on or off.  Turning accounting on forgets all
+     * previously tracked nodes.
+     */
+    public static synchronized void setEnabled(boolean enabled) {
+        if (enabled && !sEnabled) {
+            sLive.clear();
+            sRecentlyRecycled.clear();
+            sRecycledOrder.clear();
+            sDoubleRecycles.clear();
+            sTrackedCount = 0;
+            sRecycledCount = 0;
+            sDoubleRecycleCount = 0;
+        }
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns a new copy of {@code node}, tracked if accounting is on.
+     */
+    public static AccessibilityNodeInfoCompat obtain(AccessibilityNodeInfoCompat node) {
+        final AccessibilityNodeInfoCompat copy = AccessibilityNodeInfoCompat.obtain(node);
+        if (sEnabled) {
+            add(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Tracks {@code node}, which the caller got from the application and
+     * must recycle, if accounting is on.  Returns {@code node}.
+     */
+    public static AccessibilityNodeInfoCompat track(AccessibilityNodeInfoCompat node) {
+        if (sEnabled && node != null) {
+            add(node);
+        }
+        return node;
+    }
+
+    /**
+     * Recycles {@code node}, which must not be {@code null}, accounting for
+     * it if accounting is on.
+     */
+    public static void recycle(AccessibilityNodeInfoCompat node) {
+        if (sEnabled) {
+            remove(node);
+        }
+        node.recycle();
+    }
+
+    /**
+     * Returns the number of tracked nodes that haven't been recycled.
+     */
+    public static synchronized int getLiveCount() {
+        purgeRecycled();
+        return sLive.size();
+    }
+
+    /**
+     * Returns the number of times a node was recycled twice since
+     * accounting was turned on.
+     */
+    public static synchronized int getDoubleRecycleCount() {
+        return sDoubleRecycleCount;
+    }
+
+    /**
+     * Prints the live nodes by call site, most first, with sampled
+     * allocation stacks, and the double recycles.
+     */
+    public static synchronized void dump(PrintWriter writer) {
+        if (!sEnabled) {
+            writer.println("Node accounting off");
+            return;
+        }
+        purgeRecycled();
+        writer.printf("Node accounting: %d live, %d tracked, %d recycled, "
+                + "%d double recycles\n", sLive.size(), sTrackedCount, sRecycledCount,
+                sDoubleRecycleCount);
+
+        final HashMap<String, List<Allocation>> bySite = new HashMap<String, List<Allocation>>();
+        for (Allocation allocation : sLive.values()) {
+            List<Allocation> allocations = bySite.get(allocation.site);
+            if (allocations == null) {
+                allocations = new ArrayList<Allocation>();
+                bySite.put(allocation.site, allocations);
+            }
+            allocations.add(allocation);
+        }
+        final List<Map.Entry<String, List<Allocation>>> sites =
+                new ArrayList<Map.Entry<String, List<Allocation>>>(bySite.entrySet());
+        Collections.sort(sites, new Comparator<Map.Entry<String, List<Allocation>>>() {
+            @Override
+            public int compare(Map.Entry<String, List<Allocation>> a,
+                    Map.Entry<String, List<Allocation>> b) {
+                return b.getValue().size() - a.getValue().size();
+            }
+        });
+
+        final long nowMillis = SystemClock.uptimeMillis();
+        int stackCount = 0;
+        for (Map.Entry<String, List<Allocation>> site : sites) {
+            long oldestMillis = 0;
+            Allocation sampled = null;
+            for (Allocation allocation : site.getValue()) {
+                oldestMillis = Math.max(oldestMillis, nowMillis - allocation.obtainedMillis);
+                if (sampled == null && allocation.stack != null) {
+                    sampled = allocation;
+                }
+            }
+            writer.printf("  %d live from %s, oldest %d ms\n", site.getValue().size(),
+                    site.getKey(), oldestMillis);
+            if (sampled != null && stackCount < MAX_DUMPED_STACKS) {
+                writer.print("    ");
+                writer.print(Log.getStackTraceString(sampled.stack).replace("\n", "\n    "));
+                writer.println();
+                ++stackCount;
+            }
+        }
+        for (Throwable doubleRecycle : sDoubleRecycles) {
+            writer.println("  Double recycle:");
+            writer.print("    ");
+            writer.print(Log.getStackTraceString(doubleRecycle).replace("\n", "\n    "));
+            writer.println();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Handles {@code dumpsys} arguments for node accounting and returns
+     * {@code true} if they were accounting arguments.  Supported arguments
+     * are {@code nodes on}, {@code nodes off} and {@code nodes}, which dumps
+     * the accounting.
+     */
+    public static boolean dumpsys(PrintWriter writer, String[] args) {
+        if (args == null || args.length == 0 || !"nodes".equals(args[0])) {
+            return false;
+        }
+        if (args.length > 1 && "on".equals(args[1])) {
+            setEnabled(true);
+            writer.println("Node accounting on");
+        } else if (args.length > 1 && "off".equals(args[1])) {
+            setEnabled(false);
+            writer.println("Node accounting off");
+        } else {
+            dump(writer);
+        }
+        return true;
+    }
+
+    private static void add(AccessibilityNodeInfoCompat node) {
+        final int sequence;
+        synchronized (NodeLifecycleTracker.class) {
+            sequence = ++sTrackedCount;
+        }
+        final Throwable stack = new Throwable("Obtained");
+        final String site = findCallSite(stack);
+        final Allocation allocation =
+                new Allocation(site, (sequence % SAMPLE_INTERVAL == 0) ? stack : null);
+        synchronized (NodeLifecycleTracker.class) {
+            final Object info = node.getInfo();
+            sRecentlyRecycled.remove(info);
+            sLive.put(info, allocation);
+        }
+    }
+
+    private static void remove(AccessibilityNodeInfoCompat node) {
+        final Object info = node.getInfo();
+        synchronized (NodeLifecycleTracker.class) {
+            ++sRecycledCount;
+            final boolean tracked = (sLive.remove(info) != null);
+            if (!tracked && sRecentlyRecycled.containsKey(info)
+                    && isCleared((AccessibilityNodeInfo) info)) {
+                final Throwable stack = new Throwable("Recycled again");
+                ++sDoubleRecycleCount;
+                if (sDoubleRecycles.size() < MAX_DUMPED_STACKS) {
+                    sDoubleRecycles.add(stack);
+                }
+                final String firstSite = sRecentlyRecycled.get(info);
+                LogUtils.log(NodeLifecycleTracker.class, Log.WARN,
+                        "Node recycled twice at %s, first at %s", findCallSite(stack),
+                        (firstSite != null) ? firstSite : "unknown");
+                return;
+            }
+            if (!tracked) {
+                // Obtained without tracking, or handed out again by the pool
+                // since it was last recycled.
+                sRecentlyRecycled.remove(info);
+                return;
+            }
+            sRecentlyRecycled.put(info, findCallSite(new Throwable()));
+            sRecycledOrder.addLast(info);
+            if (sRecycledOrder.size() > MAX_RECENTLY_RECYCLED) {
+                sRecentlyRecycled.remove(sRecycledOrder.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Drops the live nodes that were recycled without going through this
+     * class.
+     */
+    private static void purgeRecycled() {
+        final Iterator<Object> it = sLive.keySet().iterator();
+        while (it.hasNext()) {
+            if (isCleared((AccessibilityNodeInfo) it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns whether {@code info} has no source or window, as after
+     * recycling.  Nodes in use always have a source, even when their window
+     * is unknown.  Called with the class lock held.
+     */
+    private static boolean isCleared(AccessibilityNodeInfo info) {
+        if (sClearedHashCode == null) {
+            final AccessibilityNodeInfo cleared = AccessibilityNodeInfo.obtain();
+            sClearedHashCode = cleared.hashCode();
+            cleared.recycle();
+        }
+        return info.hashCode() == sClearedHashCode;
+    }
+
+    /**
+     * Returns the first frame of {@code stack} outside this class and the
+     * node helpers that go through it.
+     */
+    private static String findCallSite(Throwable stack) {
+        for (StackTraceElement element : stack.getStackTrace()) {
+            final String className = element.getClassName();
+            if (!className.equals(NodeLifecycleTracker.class.getName())
+                    && !className.equals(AccessibilityNodeInfoRef.class.getName())
+                    && !className.equals(NodeTreeMirror.class.getName())
+                    && !className.equals(AccessibilityNodeInfoUtils.class.getName())) {
+                return element.getClassName() + "." + element.getMethodName() + ":"
+                        + element.getLineNumber();
+            }
+        }
+        return "unknown";
+    }
+}
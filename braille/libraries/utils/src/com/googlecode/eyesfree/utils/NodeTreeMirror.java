@@ -0,0 +1,717 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.text.TextUtils;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An in-process mirror of the node trees of the windows on screen.
+ * <p>
+ * Getting the parent or a child of a node is a synchronous call to the
+ * application that owns the window, while the properties of a node, such as
+ * its text, bounds and flags, are part of the node object itself.  The
+ * mirror keeps a snapshot of each node it has seen together with the parent
+ * and child links between them, so that walking the same part of the tree
+ * again, which navigation does all the time, doesn't need any calls into the
+ * application.  Nodes returned by the mirror are copies of the snapshots,
+ * which still refer to the real nodes, so actions performed on them reach
+ * the application as usual.
+ * </p>
+ * <p>
+ * The mirror is kept up to date from accessibility events.  A node that is
+ * the source of an event is refreshed the next time it is used.  For changes
+ * that can affect descendants, such as subtree content changes and
+ * scrolling, the mirrored descendants are dropped as well, found by
+ * following the links from the changed node down, together with the
+ * mirrored nodes of the same window whose parent isn't known, and their
+ * descendants, since they might be below the changed node.  Nodes of
+ * different windows are kept apart, so using one window doesn't affect
+ * what is mirrored for another.  A window state change clears the nodes of
+ * that window, and a change in the set of windows clears the mirror.
+ * Snapshots older than {@link #MAX_AGE_MILLIS} are refreshed when used, in
+ * case an event was missed.
+ * </p>
+ * <p>
+ * The mirror is used by the static methods of this class once it is set with
+ * {@link #setInstance}.  Otherwise, they call the node methods directly.
+ * All methods are thread-safe.  Nodes are fetched and refreshed without
+ * holding the lock of the mirror, so a slow application doesn't hold up
+ * other threads, and the results are added to the mirror afterwards unless
+ * the mirror was invalidated in the meantime.
+ * </p>
+ */
+public class NodeTreeMirror {
+    /** The mirror is cleared when it grows beyond this many nodes. */
+    private static final int MAX_NODES = 2048;
+
+    /** Snapshots older than this are refreshed when used. */
+    private static final long MAX_AGE_MILLIS = 10000;
+
+    /** How far up the mirrored tree to look for ancestors. */
+    private static final int MAX_ANCESTOR_DEPTH = 64;
+
+    /** How many nodes to compare against the application when dumping. */
+    private static final int MAX_CONSISTENCY_CHECKS = 32;
+
+    private static volatile NodeTreeMirror sInstance;
+
+    private static class MirrorNode {
+        /** Owned snapshot of the node, also used as its key. */
+        AccessibilityNodeInfoCompat info;
+
+        /** When {@link #info} was fetched, in uptime milliseconds. */
+        long fetchedMillis;
+
+        /** Whether {@link #info} must be refreshed before it is used. */
+        boolean stale;
+
+        /** Whether this node was removed from the mirror. */
+        boolean removed;
+
+        /** Whether {@link #parent} was fetched. */
+        boolean parentKnown;
+
+        /** The parent, or {@code null} for the root or if not fetched. */
+        MirrorNode parent;
+
+        /**
+         * The mirrored nodes whose {@link #parent} is this node, or
+         * {@code null} if there are none.  May contain removed nodes.
+         */
+        List<MirrorNode> linkedChildren;
+
+        /**
+         * The children by index, or {@code null} if no child was fetched.
+         * Elements are {@code null} for children that weren't fetched.
+         */
+        MirrorNode[] children;
+    }
+
+    /**
+     * The mirrored nodes of all windows.  Node equality includes the window
+     * id, so nodes of different windows don't collide.
+     */
+    private final HashMap<AccessibilityNodeInfoCompat, MirrorNode> mNodes =
+            new HashMap<AccessibilityNodeInfoCompat, MirrorNode>();
+
+    /** The mirrored nodes whose parent isn't known. */
+    private final HashSet<MirrorNode> mOrphans = new HashSet<MirrorNode>();
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mRefreshCount = 0;
+    private int mGoneCount = 0;
+    private int mInvalidatedCount = 0;
+    private int mClearCount = 0;
+    private int mDiscardedCount = 0;
+    private int mServedCount = 0;
+    private long mServedAgeSumMillis = 0;
+    private long mServedAgeMaxMillis = 0;
+
+    /**
+     * Changes whenever nodes are invalidated or dropped, so that nodes
+     * fetched while that happened aren't added to the mirror.
+     */
+    private int mGeneration = 0;
+
+    /**
+     * Sets the mirror used by the static methods of this class, or
+     * {@code null} to use the nodes directly.
+     */
+    public static void setInstance(NodeTreeMirror mirror) {
+        sInstance = mirror;
+    }
+
+    /**
+     * Returns the parent of {@code node}, from the mirror if one is set.
+     * The caller must recycle the result.
+     */
+    public static AccessibilityNodeInfoCompat getParent(AccessibilityNodeInfoCompat node) {
+        final NodeTreeMirror mirror = sInstance;
+        if (mirror == null) {
+            return NodeLifecycleTracker.track(node.getParent());
+        }
+        return NodeLifecycleTracker.track(mirror.obtainParent(node));
+    }
+
+    /**
+     * Returns the child of {@code node} at {@code index}, from the mirror if
+     * one is set.  The caller must recycle the result.
+     */
+    public static AccessibilityNodeInfoCompat getChild(
+            AccessibilityNodeInfoCompat node, int index) {
+        final NodeTreeMirror mirror = sInstance;
+        if (mirror == null) {
+            return NodeLifecycleTracker.track(node.getChild(index));
+        }
+        return NodeLifecycleTracker.track(mirror.obtainChild(node, index));
+    }
+
+    /**
+     * Returns the number of children of {@code node}, from the mirror if one
+     * is set.
+     */
+    public static int getChildCount(AccessibilityNodeInfoCompat node) {
+        final NodeTreeMirror mirror = sInstance;
+        if (mirror == null) {
+            return node.getChildCount();
+        }
+        return mirror.obtainChildCount(node);
+    }
+
+    /**
+     * Returns a copy of the mirrored parent of {@code node}, fetching it if
+     * needed.
+     */
+    public AccessibilityNodeInfoCompat obtainParent(AccessibilityNodeInfoCompat node) {
+        final int generation;
+        synchronized (this) {
+            final MirrorNode mirrorNode = mNodes.get(node);
+            if (mirrorNode != null && isFresh(mirrorNode) && mirrorNode.parentKnown) {
+                final MirrorNode parentNode = mirrorNode.parent;
+                if (parentNode == null) {
+                    ++mHitCount;
+                    return null;
+                }
+                if (!parentNode.removed && isFresh(parentNode)) {
+                    ++mHitCount;
+                    countServed(parentNode);
+                    return AccessibilityNodeInfoCompat.obtain(parentNode.info);
+                }
+            }
+            generation = mGeneration;
+        }
+
+        final AccessibilityNodeInfoCompat parent = node.getParent();
+        putParent(node, parent, generation);
+        return parent;
+    }
+
+    /**
+     * Adds a copy of {@code parent}, which was just fetched as the parent of
+     * {@code node}, to the mirror, unless the mirror changed since
+     * {@code generation}.
+     */
+    private synchronized void putParent(AccessibilityNodeInfoCompat node,
+            AccessibilityNodeInfoCompat parent, int generation) {
+        ++mMissCount;
+        if (generation != mGeneration) {
+            ++mDiscardedCount;
+            return;
+        }
+        final MirrorNode mirrorNode = findOrAdd(node);
+        if (parent == null) {
+            link(mirrorNode, null);
+            return;
+        }
+        final MirrorNode parentNode = add(AccessibilityNodeInfoCompat.obtain(parent));
+        // Adding may have cleared the mirror if it was full.
+        if (!mirrorNode.removed) {
+            link(mirrorNode, parentNode);
+        }
+    }
+
+    /**
+     * Returns a copy of the mirrored child of {@code node} at {@code index},
+     * fetching it if needed.
+     */
+    public AccessibilityNodeInfoCompat obtainChild(AccessibilityNodeInfoCompat node, int index) {
+        final AccessibilityNodeInfoCompat mirrored = peekChild(node, index);
+        if (mirrored != null) {
+            return mirrored;
+        }
+        if (index < 0 || index >= node.getChildCount()) {
+            return null;
+        }
+
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        final AccessibilityNodeInfoCompat child = node.getChild(index);
+        if (child != null) {
+            putChild(node, index, child, generation);
+        }
+        return child;
+    }
+
+    /**
+     * Returns a copy of the mirrored child of {@code node} at {@code index}
+     * if it is mirrored and doesn't need to be refreshed, or {@code null}.
+     * Never calls into the application.
+     */
+    private synchronized AccessibilityNodeInfoCompat peekChild(
+            AccessibilityNodeInfoCompat node, int index) {
+        final MirrorNode mirrorNode = mNodes.get(node);
+        if (mirrorNode == null || !isFresh(mirrorNode) || mirrorNode.children == null
+                || index < 0 || index >= mirrorNode.children.length) {
+            return null;
+        }
+        final MirrorNode cached = mirrorNode.children[index];
+        if (cached == null || cached.removed || !isFresh(cached)) {
+            return null;
+        }
+        ++mHitCount;
+        countServed(cached);
+        return AccessibilityNodeInfoCompat.obtain(cached.info);
+    }
+
+    /**
+     * Adds a copy of {@code child}, which was just fetched as the child of
+     * {@code node} at {@code index}, to the mirror, unless the mirror
+     * changed since {@code generation}.
+     */
+    private synchronized void putChild(AccessibilityNodeInfoCompat node, int index,
+            AccessibilityNodeInfoCompat child, int generation) {
+        ++mMissCount;
+        if (generation != mGeneration) {
+            ++mDiscardedCount;
+            return;
+        }
+        final MirrorNode mirrorNode = findOrAdd(node);
+        final MirrorNode childNode = add(AccessibilityNodeInfoCompat.obtain(child));
+        // Adding may have cleared the mirror if it was full.
+        if (mirrorNode.removed) {
+            return;
+        }
+        final int childCount = mirrorNode.info.getChildCount();
+        if (index >= childCount) {
+            return;
+        }
+        if (mirrorNode.children == null || mirrorNode.children.length != childCount) {
+            mirrorNode.children = new MirrorNode[childCount];
+        }
+        mirrorNode.children[index] = childNode;
+        link(childNode, mirrorNode);
+    }
+
+    /**
+     * Returns the child count of the mirrored snapshot of {@code node},
+     * refreshing it if needed.
+     */
+    public int obtainChildCount(AccessibilityNodeInfoCompat node) {
+        final AccessibilityNodeInfoCompat fresh;
+        final int generation;
+        synchronized (this) {
+            final MirrorNode mirrorNode = mNodes.get(node);
+            if (mirrorNode == null) {
+                return node.getChildCount();
+            }
+            if (isFresh(mirrorNode)) {
+                countServed(mirrorNode);
+                return mirrorNode.info.getChildCount();
+            }
+            fresh = AccessibilityNodeInfoCompat.obtain(mirrorNode.info);
+            generation = mGeneration;
+        }
+
+        if (!refresh(fresh)) {
+            fresh.recycle();
+            synchronized (this) {
+                ++mGoneCount;
+                final MirrorNode mirrorNode = mNodes.get(node);
+                if (mirrorNode != null) {
+                    remove(mirrorNode);
+                }
+            }
+            return 0;
+        }
+        final int childCount = fresh.getChildCount();
+        putRefreshed(fresh, generation);
+        return childCount;
+    }
+
+    /**
+     * Replaces the snapshot of the mirrored node for {@code fresh}, which
+     * the mirror takes ownership of.  If the mirror changed since
+     * {@code generation}, the node is refreshed again when used next.
+     */
+    private synchronized void putRefreshed(AccessibilityNodeInfoCompat fresh, int generation) {
+        final MirrorNode mirrorNode = mNodes.get(fresh);
+        if (mirrorNode == null) {
+            fresh.recycle();
+            return;
+        }
+        ++mRefreshCount;
+        update(mirrorNode, fresh);
+        if (generation != mGeneration) {
+            mirrorNode.stale = true;
+        }
+    }
+
+    /**
+     * Updates the mirror for the changes reported by {@code event}, whose
+     * source is {@code source}, or {@code null} if it has none.  Doesn't
+     * recycle {@code source}.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event, AccessibilityNodeInfo source) {
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                clearWindow(event.getWindowId());
+                return;
+            case AccessibilityEvent.TYPE_WINDOWS_CHANGED:
+                clear();
+                return;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                final int types = event.getContentChangeTypes();
+                invalidateSource(event, source,
+                        types == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                        || (types & AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE) != 0);
+                return;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                invalidateSource(event, source, true);
+                return;
+            case AccessibilityEvent.TYPE_VIEW_CLICKED:
+            case AccessibilityEvent.TYPE_VIEW_LONG_CLICKED:
+            case AccessibilityEvent.TYPE_VIEW_SELECTED:
+            case AccessibilityEvent.TYPE_VIEW_FOCUSED:
+            case AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED:
+            case AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUS_CLEARED:
+                invalidateSource(event, source, false);
+                return;
+            default:
+                // Other events, such as hover and touch interaction events,
+                // don't change the properties of their source.
+        }
+    }
+
+    private void invalidateSource(AccessibilityEvent event, AccessibilityNodeInfo source,
+            boolean includeDescendants) {
+        synchronized (this) {
+            if (mNodes.isEmpty()) {
+                return;
+            }
+        }
+
+        if (source == null) {
+            // Without a source, only content changes are known to affect
+            // the tree.
+            if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+                clearWindow(event.getWindowId());
+            }
+            return;
+        }
+
+        invalidate(new AccessibilityNodeInfoCompat(source), includeDescendants);
+    }
+
+    /**
+     * Marks {@code node} to be refreshed when it is used next, and if
+     * {@code includeDescendants} is {@code true}, drops its mirrored
+     * descendants.
+     */
+    public synchronized void invalidate(AccessibilityNodeInfoCompat node,
+            boolean includeDescendants) {
+        ++mGeneration;
+        final MirrorNode mirrorNode = mNodes.get(node);
+        if (mirrorNode != null) {
+            mirrorNode.stale = true;
+            ++mInvalidatedCount;
+        }
+        if (!includeDescendants) {
+            return;
+        }
+        final int sizeBefore = mNodes.size();
+        if (mirrorNode != null) {
+            mirrorNode.children = null;
+            removeDescendants(mirrorNode);
+        }
+
+        // Nodes whose parent isn't known might be below the changed node
+        // too, so they go away with their descendants, unless they are
+        // known to be above it.  Nodes of other windows can't be below it.
+        MirrorNode topAncestor = mirrorNode;
+        for (int depth = 0; depth < MAX_ANCESTOR_DEPTH
+                && topAncestor != null && topAncestor.parent != null; ++depth) {
+            topAncestor = topAncestor.parent;
+        }
+        final int windowId = node.getWindowId();
+        final List<MirrorNode> orphans = new ArrayList<MirrorNode>();
+        for (MirrorNode orphan : mOrphans) {
+            if (orphan != topAncestor && orphan.info.getWindowId() == windowId) {
+                orphans.add(orphan);
+            }
+        }
+        for (MirrorNode orphan : orphans) {
+            removeDescendants(orphan);
+            remove(orphan);
+        }
+        mInvalidatedCount += sizeBefore - mNodes.size();
+    }
+
+    /**
+     * Drops all mirrored nodes.
+     */
+    public synchronized void clear() {
+        ++mGeneration;
+        if (mNodes.isEmpty()) {
+            return;
+        }
+        for (MirrorNode mirrorNode : mNodes.values()) {
+            mirrorNode.removed = true;
+            mirrorNode.info.recycle();
+            mirrorNode.info = null;
+        }
+        mNodes.clear();
+        mOrphans.clear();
+        ++mClearCount;
+    }
+
+    /**
+     * Drops the mirrored nodes of the window with {@code windowId}.
+     */
+    public synchronized void clearWindow(int windowId) {
+        ++mGeneration;
+        final Iterator<MirrorNode> iterator = mNodes.values().iterator();
+        boolean cleared = false;
+        while (iterator.hasNext()) {
+            final MirrorNode mirrorNode = iterator.next();
+            if (mirrorNode.info.getWindowId() == windowId) {
+                iterator.remove();
+                mOrphans.remove(mirrorNode);
+                mirrorNode.removed = true;
+                mirrorNode.info.recycle();
+                mirrorNode.info = null;
+                cleared = true;
+            }
+        }
+        if (cleared) {
+            ++mClearCount;
+        }
+    }
+
+    /**
+     * Prints the mirror metrics, and compares a sample of the mirrored
+     * snapshots with the nodes in the application to report how many are
+     * out of date.  Should not be called on the thread that handles
+     * accessibility events, since comparing calls into the application.
+     */
+    public void dump(PrintWriter writer) {
+        final List<AccessibilityNodeInfoCompat> snapshots =
+                new ArrayList<AccessibilityNodeInfoCompat>();
+        final long nowMillis = SystemClock.uptimeMillis();
+        long oldestMillis = 0;
+        int staleCount = 0;
+        synchronized (this) {
+            writer.printf("Node mirror: %d nodes, %d without parent, %d hits, %d misses, "
+                    + "%d refreshed, %d gone, %d invalidated, %d cleared, "
+                    + "%d fetched during changes\n", mNodes.size(), mOrphans.size(),
+                    mHitCount, mMissCount, mRefreshCount, mGoneCount, mInvalidatedCount,
+                    mClearCount, mDiscardedCount);
+            writer.printf("Node mirror staleness: served age avg %d ms, max %d ms\n",
+                    (mServedCount > 0) ? (mServedAgeSumMillis / mServedCount) : 0,
+                    mServedAgeMaxMillis);
+            for (MirrorNode mirrorNode : mNodes.values()) {
+                oldestMillis = Math.max(oldestMillis, nowMillis - mirrorNode.fetchedMillis);
+                if (mirrorNode.stale) {
+                    ++staleCount;
+                } else if (snapshots.size() < MAX_CONSISTENCY_CHECKS) {
+                    snapshots.add(AccessibilityNodeInfoCompat.obtain(mirrorNode.info));
+                }
+            }
+        }
+        writer.printf("Node mirror snapshots: %d marked stale, oldest %d ms\n",
+                staleCount, oldestMillis);
+
+        int inconsistentCount = 0;
+        int goneCount = 0;
+        for (AccessibilityNodeInfoCompat snapshot : snapshots) {
+            final AccessibilityNodeInfoCompat fresh =
+                    AccessibilityNodeInfoCompat.obtain(snapshot);
+            if (!refresh(fresh)) {
+                ++goneCount;
+            } else if (!isSameState(snapshot, fresh)) {
+                ++inconsistentCount;
+            }
+            fresh.recycle();
+        }
+        AccessibilityNodeInfoUtils.recycleNodes(snapshots);
+        writer.printf("Node mirror consistency: %d checked, %d out of date, %d gone\n",
+                snapshots.size(), inconsistentCount, goneCount);
+    }
+
+    /**
+     * Returns the mirrored node for {@code node}, adding a copy of
+     * {@code node} if it isn't mirrored.
+     */
+    private MirrorNode findOrAdd(AccessibilityNodeInfoCompat node) {
+        final MirrorNode mirrorNode = mNodes.get(node);
+        if (mirrorNode == null) {
+            return add(AccessibilityNodeInfoCompat.obtain(node));
+        }
+        return mirrorNode;
+    }
+
+    /**
+     * Returns whether the snapshot of {@code mirrorNode} can be used without
+     * refreshing it.
+     */
+    private static boolean isFresh(MirrorNode mirrorNode) {
+        return !mirrorNode.stale
+                && SystemClock.uptimeMillis() - mirrorNode.fetchedMillis <= MAX_AGE_MILLIS;
+    }
+
+    private void countServed(MirrorNode mirrorNode) {
+        final long ageMillis = SystemClock.uptimeMillis() - mirrorNode.fetchedMillis;
+        ++mServedCount;
+        mServedAgeSumMillis += ageMillis;
+        mServedAgeMaxMillis = Math.max(mServedAgeMaxMillis, ageMillis);
+    }
+
+    /**
+     * Adds the freshly fetched {@code info}, which the mirror takes
+     * ownership of, updating the mirrored node if there is one.
+     */
+    private MirrorNode add(AccessibilityNodeInfoCompat info) {
+        MirrorNode mirrorNode = mNodes.get(info);
+        if (mirrorNode != null) {
+            update(mirrorNode, info);
+            return mirrorNode;
+        }
+        if (mNodes.size() >= MAX_NODES) {
+            clear();
+        }
+        mirrorNode = new MirrorNode();
+        mirrorNode.info = info;
+        mirrorNode.fetchedMillis = SystemClock.uptimeMillis();
+        mNodes.put(info, mirrorNode);
+        mOrphans.add(mirrorNode);
+        return mirrorNode;
+    }
+
+    /**
+     * Records that the parent of {@code mirrorNode} is {@code parent}, which
+     * is {@code null} for the root.
+     */
+    private void link(MirrorNode mirrorNode, MirrorNode parent) {
+        if (mirrorNode.parent != null && mirrorNode.parent.linkedChildren != null) {
+            mirrorNode.parent.linkedChildren.remove(mirrorNode);
+        }
+        mirrorNode.parent = parent;
+        mirrorNode.parentKnown = true;
+        mOrphans.remove(mirrorNode);
+        if (parent != null) {
+            if (parent.linkedChildren == null) {
+                parent.linkedChildren = new ArrayList<MirrorNode>();
+            }
+            parent.linkedChildren.add(mirrorNode);
+        }
+    }
+
+    /**
+     * Removes the mirrored nodes below {@code mirrorNode}, following the
+     * links from parents to children.
+     */
+    private void removeDescendants(MirrorNode mirrorNode) {
+        final List<MirrorNode> pending = new ArrayList<MirrorNode>();
+        if (mirrorNode.linkedChildren != null) {
+            pending.addAll(mirrorNode.linkedChildren);
+            mirrorNode.linkedChildren = null;
+        }
+        while (!pending.isEmpty()) {
+            final MirrorNode descendant = pending.remove(pending.size() - 1);
+            if (descendant.removed) {
+                continue;
+            }
+            if (descendant.linkedChildren != null) {
+                pending.addAll(descendant.linkedChildren);
+                descendant.linkedChildren = null;
+            }
+            remove(descendant);
+        }
+    }
+
+    private void update(MirrorNode mirrorNode, AccessibilityNodeInfoCompat fresh) {
+        // The snapshot is the key, so it can't be recycled while in the map.
+        mNodes.remove(mirrorNode.info);
+        if (mirrorNode.children != null
+                && mirrorNode.children.length != fresh.getChildCount()) {
+            mirrorNode.children = null;
+        }
+        mirrorNode.info.recycle();
+        mirrorNode.info = fresh;
+        mirrorNode.fetchedMillis = SystemClock.uptimeMillis();
+        mirrorNode.stale = false;
+        mNodes.put(fresh, mirrorNode);
+    }
+
+    private void remove(MirrorNode mirrorNode) {
+        if (mirrorNode.removed) {
+            return;
+        }
+        mNodes.remove(mirrorNode.info);
+        mOrphans.remove(mirrorNode);
+        mirrorNode.removed = true;
+        mirrorNode.info.recycle();
+        mirrorNode.info = null;
+        // The children no longer have a known parent.
+        if (mirrorNode.linkedChildren != null) {
+            for (MirrorNode child : mirrorNode.linkedChildren) {
+                if (!child.removed && child.parent == mirrorNode) {
+                    child.parent = null;
+                    child.parentKnown = false;
+                    mOrphans.add(child);
+                }
+            }
+            mirrorNode.linkedChildren = null;
+        }
+    }
+
+    /**
+     * Refreshes {@code node} from the application.  Returns {@code false} if
+     * the node is gone.
+     */
+    private static boolean refresh(AccessibilityNodeInfoCompat node) {
+        return ((AccessibilityNodeInfo) node.getInfo()).refresh();
+    }
+
+    /**
+     * Returns whether the properties used for navigation and formatting are
+     * the same in both nodes.
+     */
+    private static boolean isSameState(AccessibilityNodeInfoCompat a,
+            AccessibilityNodeInfoCompat b) {
+        if (a.getChildCount() != b.getChildCount()
+                || a.isVisibleToUser() != b.isVisibleToUser()
+                || a.isAccessibilityFocused() != b.isAccessibilityFocused()
+                || a.isChecked() != b.isChecked()
+                || a.isEnabled() != b.isEnabled()
+                || !TextUtils.equals(a.getText(), b.getText())
+                || !TextUtils.equals(a.getContentDescription(), b.getContentDescription())) {
+            return false;
+        }
+        final Rect aBounds = new Rect();
+        final Rect bBounds = new Rect();
+        a.getBoundsInScreen(aBounds);
+        b.getBoundsInScreen(bBounds);
+        return aBounds.equals(bBounds);
+    }
+}
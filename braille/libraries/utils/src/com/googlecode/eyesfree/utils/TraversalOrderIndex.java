@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The nodes of a window in the order of in-order navigation, so that
+ * {@link NodeFocusFinder#focusSearch} can step to the next or previous node
+ * by moving in a list instead of walking the tree.
+ * <p>
+ * The index is built from the root of the window the first time a node of
+ * that window is searched from, visiting nodes in the same order as
+ * {@link AccessibilityNodeInfoRef#nextInOrder}.  Each entry keeps the depth
+ * of its node, so that the entries of a subtree are a contiguous range.
+ * Content changes and scrolling mark the source as changed, and on the next
+ * search, the range of each changed subtree is traversed again and patched
+ * into the list.  If a changed node isn't indexed, or too many nodes
+ * changed, the index is built again from the root.  Window changes drop the
+ * index.
+ * </p>
+ * <p>
+ * Nodes returned from a search are refreshed, so their properties are
+ * current even though the order was computed earlier.  Searching from a node
+ * that isn't indexed falls back to walking the tree.
+ * </p>
+ * <p>
+ * The index is used by {@link NodeFocusFinder} once it is set with
+ * {@link #setInstance}.  All methods are thread-safe.
+ * </p>
+ */
+public class TraversalOrderIndex {
+    /** Windows with more nodes than this are not indexed. */
+    private static final int MAX_NODES = 4096;
+
+    /** Changed subtrees to patch before building the index again instead. */
+    private static final int MAX_PENDING_CHANGES = 8;
+
+    private static volatile TraversalOrderIndex sInstance;
+
+    private static class Entry {
+        /** Owned copy of the node, also used as its key. */
+        final AccessibilityNodeInfoCompat node;
+        final int depth;
+
+        Entry(AccessibilityNodeInfoCompat nodeArg, int depthArg) {
+            node = nodeArg;
+            depth = depthArg;
+        }
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final HashMap<AccessibilityNodeInfoCompat, Integer> mPositions =
+            new HashMap<AccessibilityNodeInfoCompat, Integer>();
+
+    /** Owned copies of the sources of changes not patched in yet. */
+    private final List<AccessibilityNodeInfoCompat> mPendingChanges =
+            new ArrayList<AccessibilityNodeInfoCompat>();
+
+    /** The window of the index, or -1 if there is none. */
+    private int mWindowId = -1;
+
+    /** Whether the window of the index is too large to index. */
+    private boolean mUnindexable = false;
+
+    private int mBuildCount = 0;
+    private int mPatchCount = 0;
+    private int mIndexedSearchCount = 0;
+    private int mFallbackSearchCount = 0;
+
+    /**
+     * Sets the index used by {@link NodeFocusFinder}, or {@code null} to
+     * walk the tree on every search.
+     */
+    public static void setInstance(TraversalOrderIndex index) {
+        sInstance = index;
+    }
+
+    /**
+     * Returns the index used by {@link NodeFocusFinder}, or {@code null}.
+     */
+    public static TraversalOrderIndex getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the next node from {@code node} in in-order navigation in
+     * {@code direction}, or {@code null} if there are no more nodes.  The
+     * caller must recycle the result.
+     *
+     * @see NodeFocusFinder#focusSearch
+     */
+    public synchronized AccessibilityNodeInfoCompat focusSearch(
+            AccessibilityNodeInfoCompat node, int direction) {
+        final int position = findPosition(node);
+        if (position < 0) {
+            ++mFallbackSearchCount;
+            return NodeFocusFinder.searchTree(node, direction);
+        }
+
+        ++mIndexedSearchCount;
+        if (direction != NodeFocusFinder.SEARCH_FORWARD
+                && direction != NodeFocusFinder.SEARCH_BACKWARD) {
+            return null;
+        }
+        final int nextPosition = position + direction;
+        if (nextPosition < 0 || nextPosition >= mEntries.size()) {
+            return null;
+        }
+
+        final AccessibilityNodeInfoCompat next =
+                AccessibilityNodeInfoCompat.obtain(mEntries.get(nextPosition).node);
+        if (((AccessibilityNodeInfo) next.getInfo()).refresh()) {
+            return next;
+        }
+
+        // The node is gone without an event, so the index can't be trusted.
+        next.recycle();
+        clear();
+        return NodeFocusFinder.searchTree(node, direction);
+    }
+
+    /**
+     * Marks the nodes affected by {@code event}, whose source is
+     * {@code source}, or {@code null} if it has none, to be traversed again
+     * before the next search.  Doesn't recycle {@code source}.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event, AccessibilityNodeInfo source) {
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+            case AccessibilityEvent.TYPE_WINDOWS_CHANGED:
+                clear();
+                return;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                final int types = event.getContentChangeTypes();
+                if (types == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                        || (types & AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE) != 0) {
+                    onSubtreeChanged(event, source);
+                }
+                return;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                onSubtreeChanged(event, source);
+                return;
+        }
+    }
+
+    private void onSubtreeChanged(AccessibilityEvent event, AccessibilityNodeInfo source) {
+        synchronized (this) {
+            if (event.getWindowId() != mWindowId) {
+                return;
+            }
+        }
+
+        if (source == null) {
+            clear();
+            return;
+        }
+        invalidate(new AccessibilityNodeInfoCompat(source));
+    }
+
+    /**
+     * Marks the subtree of {@code node} to be traversed again before the
+     * next search.
+     */
+    public synchronized void invalidate(AccessibilityNodeInfoCompat node) {
+        if (mEntries.isEmpty() || node.getWindowId() != mWindowId) {
+            return;
+        }
+        if (mPendingChanges.size() >= MAX_PENDING_CHANGES) {
+            clear();
+            return;
+        }
+        if (!mPendingChanges.contains(node)) {
+            mPendingChanges.add(AccessibilityNodeInfoCompat.obtain(node));
+        }
+    }
+
+    /**
+     * Drops the index.
+     */
+    public synchronized void clear() {
+        for (Entry entry : mEntries) {
+            entry.node.recycle();
+        }
+        mEntries.clear();
+        mPositions.clear();
+        AccessibilityNodeInfoUtils.recycleNodes(mPendingChanges);
+        mPendingChanges.clear();
+        mWindowId = -1;
+        mUnindexable = false;
+    }
+
+    /**
+     * Prints the index metrics.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.printf("Traversal order index: %d nodes%s, %d built, %d patched, "
+                + "%d indexed searches, %d fallback searches\n", mEntries.size(),
+                mUnindexable ? " (window too large)" : "", mBuildCount, mPatchCount,
+                mIndexedSearchCount, mFallbackSearchCount);
+    }
+
+    /**
+     * Returns the position of {@code node} in the index, building or
+     * patching the index first if needed, or {@code -1} if the node isn't
+     * indexed.
+     */
+    private int findPosition(AccessibilityNodeInfoCompat node) {
+        if (node == null) {
+            return -1;
+        }
+        if (node.getWindowId() != mWindowId) {
+            clear();
+            mWindowId = node.getWindowId();
+        }
+        if (mUnindexable) {
+            return -1;
+        }
+        if (!mPendingChanges.isEmpty()) {
+            patch();
+        }
+        if (mEntries.isEmpty()) {
+            build(node);
+        }
+        final Integer position = mPositions.get(node);
+        return (position != null) ? position : -1;
+    }
+
+    /**
+     * Builds the index from the root of the tree containing {@code node}.
+     */
+    private void build(AccessibilityNodeInfoCompat node) {
+        final AccessibilityNodeInfoCompat root = AccessibilityNodeInfoUtils.getRoot(node);
+        if (root == null) {
+            return;
+        }
+        ++mBuildCount;
+        if (!AccessibilityNodeInfoUtils.isVisibleOrLegacy(root)) {
+            // Navigation would never reach an invisible root, and there are
+            // no positions for the nodes below it.
+            root.recycle();
+            mUnindexable = true;
+            return;
+        }
+        if (!appendSubtree(root, 0, mEntries, MAX_NODES)) {
+            mUnindexable = true;
+            recycleEntries(mEntries);
+            mEntries.clear();
+            return;
+        }
+        updatePositions();
+    }
+
+    /**
+     * Traverses the changed subtrees again and replaces their ranges in the
+     * index.
+     */
+    private void patch() {
+        final List<AccessibilityNodeInfoCompat> changes =
+                new ArrayList<AccessibilityNodeInfoCompat>(mPendingChanges);
+        mPendingChanges.clear();
+        try {
+            if (mEntries.isEmpty()) {
+                return;
+            }
+            for (AccessibilityNodeInfoCompat change : changes) {
+                if (!patchSubtree(change)) {
+                    recycleEntries(mEntries);
+                    mEntries.clear();
+                    mPositions.clear();
+                    return;
+                }
+                ++mPatchCount;
+            }
+        } finally {
+            AccessibilityNodeInfoUtils.recycleNodes(changes);
+        }
+    }
+
+    /**
+     * Replaces the range of the subtree of {@code node} in the index.
+     * Returns {@code false} if the index has to be built again instead.
+     */
+    private boolean patchSubtree(AccessibilityNodeInfoCompat node) {
+        final Integer startPosition = mPositions.get(node);
+        if (startPosition == null) {
+            // Can't tell where the changed nodes go.
+            return false;
+        }
+        final int start = startPosition;
+        final int depth = mEntries.get(start).depth;
+        int end = start + 1;
+        while (end < mEntries.size() && mEntries.get(end).depth > depth) {
+            ++end;
+        }
+
+        final List<Entry> subtree = new ArrayList<Entry>();
+        final AccessibilityNodeInfoCompat fresh = AccessibilityNodeInfoCompat.obtain(node);
+        if (!((AccessibilityNodeInfo) fresh.getInfo()).refresh()) {
+            fresh.recycle();
+            return false;
+        }
+        if (!AccessibilityNodeInfoUtils.isVisibleOrLegacy(fresh)) {
+            // Hidden nodes, and everything below them, are skipped.
+            fresh.recycle();
+            if (start == 0) {
+                return false;
+            }
+        } else if (!appendSubtree(fresh, depth, subtree,
+                MAX_NODES - mEntries.size() + (end - start))) {
+            recycleEntries(subtree);
+            return false;
+        }
+
+        final List<Entry> replaced = mEntries.subList(start, end);
+        recycleEntries(replaced);
+        replaced.clear();
+        mEntries.addAll(start, subtree);
+        updatePositions();
+        return true;
+    }
+
+    /**
+     * Appends {@code node}, which this method takes ownership of, and its
+     * visible descendants in in-order navigation order to {@code out}.
+     * Returns {@code false} if {@code out} would grow beyond {@code limit}
+     * entries.
+     */
+    private static boolean appendSubtree(AccessibilityNodeInfoCompat node, int depth,
+            List<Entry> out, int limit) {
+        if (out.size() >= limit) {
+            node.recycle();
+            return false;
+        }
+        out.add(new Entry(node, depth));
+        final int childCount = NodeTreeMirror.getChildCount(node);
+        for (int i = 0; i < childCount; ++i) {
+            final AccessibilityNodeInfoCompat child = NodeTreeMirror.getChild(node, i);
+            if (child == null) {
+                // Navigation doesn't get past a missing child either.
+                break;
+            }
+            if (!AccessibilityNodeInfoUtils.isVisibleOrLegacy(child)) {
+                child.recycle();
+                continue;
+            }
+            if (!appendSubtree(child, depth + 1, out, limit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void updatePositions() {
+        mPositions.clear();
+        for (int i = 0; i < mEntries.size(); ++i) {
+            mPositions.put(mEntries.get(i).node, i);
+        }
+    }
+
+    private static void recycleEntries(List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.node.recycle();
+        }
+    }
+}
@@ -30,11 +30,14 @@ import android.os.RemoteException;
 import android.util.Log;
 import com.googlecode.eyesfree.braille.display.BrailleDisplayProperties;
 import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
+import com.googlecode.eyesfree.braille.display.DisplayTrace;
 import com.googlecode.eyesfree.braille.display.IBrailleService;
 import com.googlecode.eyesfree.braille.display.IBrailleServiceCallback;
 import com.googlecode.eyesfree.braille.service.R;
 import com.googlecode.eyesfree.braille.utils.ZipResourceExtractor;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * An Andorid service that connects to braille displays and exposes a unified
@@ -45,7 +48,8 @@ import java.io.File;
  * DriverThread contains BrlttyWrapper.
  */
 public class DisplayService extends Service
-        implements DriverThread.OnInputEventListener {
+        implements DriverThread.OnInputEventListener,
+        DriverThread.OnWriteIntervalChangeListener {
     private static final String LOG_TAG = DisplayService.class.getSimpleName();
 
 
@@ -98,6 +102,8 @@ public class DisplayService extends Service
      */
     private static final long SCREEN_OFF_DISCONNECT_DELAY = 7000;
     private BrailleDisplayProperties mDisplayProperties;
+    /** Minimum interval between frames reported by the driver. */
+    private long mWriteIntervalMillis = 0;
     private File mTablesDir;
     private static final int FILES_ERROR = -1;
     private static final int FILES_NOT_EXTRACTED = 0;
@@ -128,6 +134,15 @@ public class DisplayService extends Service
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        if (DisplayTrace.dumpsys(writer, args)) {
+            return;
+        }
+        super.dump(fd, writer, args);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         Log.v(LOG_TAG, "onBind");
@@ -172,7 +187,7 @@ public class DisplayService extends Service
         }
 
         @Override
-        public void displayDots(final byte[] patterns) {
+        public void displayDots(final byte[] patterns, long traceId) {
             if (patterns == null) {
                 Log.e(LOG_TAG, "null dot patterns");
             }
@@ -184,7 +199,8 @@ public class DisplayService extends Service
             if (localDriverThread == null) {
                 return;
             }
-            localDriverThread.writeWindow(patterns);
+            DisplayTrace.instant("DisplayService.displayDots", traceId);
+            localDriverThread.writeWindow(patterns, traceId);
         }
 
         @Override
@@ -215,6 +231,15 @@ public class DisplayService extends Service
         mHandler.onInputEvent(event);
     }
 
+    /**
+     * Forwards write interval changes from the driver thread to be
+     * broadcast from the main service thread.
+     */
+    @Override
+    public void onWriteIntervalChanged(long intervalMillis) {
+        mHandler.onWriteIntervalChanged(intervalMillis);
+    }
+
     /**
      * Disconnects the service from the currently connected braille device,
      * sends notification to the clients about the state change.
@@ -340,6 +365,26 @@ public class DisplayService extends Service
         }
     }
 
+    private void sendWriteInterval(IBrailleServiceCallback callback) {
+        try {
+            callback.onWriteIntervalChanged(mWriteIntervalMillis);
+        } catch (RemoteException ex) {
+            // Nothing to do, the callback list will remove the callback
+            // later.
+        }
+    }
+
+    private void broadcastWriteInterval() {
+        int i = mClients.beginBroadcast();
+        try {
+            while (i-- > 0) {
+                sendWriteInterval(mClients.getBroadcastItem(i));
+            }
+        } finally {
+            mClients.finishBroadcast();
+        }
+    }
+
     private void broadcastInputEvent(BrailleInputEvent event) {
         int i = mClients.beginBroadcast();
         try {
@@ -404,6 +449,7 @@ public class DisplayService extends Service
         private static final int MSG_ON_INPUT_EVENT = 5;
         private static final int MSG_CONNECT_BRAILLE = 6;
         private static final int MSG_DISCONNECT_BRAILLE = 7;
+        private static final int MSG_ON_WRITE_INTERVAL_CHANGED = 8;
 
         public void registerCallback(IBrailleServiceCallback callback) {
             obtainMessage(MSG_REGISTER_CALLBACK, callback).sendToTarget();
@@ -426,6 +472,11 @@ public class DisplayService extends Service
             obtainMessage(MSG_ON_INPUT_EVENT, event).sendToTarget();
         }
 
+        public void onWriteIntervalChanged(long intervalMillis) {
+            obtainMessage(MSG_ON_WRITE_INTERVAL_CHANGED, intervalMillis)
+                    .sendToTarget();
+        }
+
         public void unscheduleDisconnect() {
             removeMessages(MSG_DISCONNECT_BRAILLE);
         }
@@ -463,6 +514,9 @@ public class DisplayService extends Service
                 case MSG_DISCONNECT_BRAILLE:
                     disconnectBraille();
                     break;
+                case MSG_ON_WRITE_INTERVAL_CHANGED:
+                    handleOnWriteIntervalChanged((Long) msg.obj);
+                    break;
         default: // fall out
       }
         }
@@ -480,6 +534,9 @@ public class DisplayService extends Service
                 return;
             }
             sendConnectionState(callback);
+            if (mWriteIntervalMillis != 0) {
+                sendWriteInterval(callback);
+            }
         }
 
         private void handleOnDisplayConnected(
@@ -493,6 +550,7 @@ public class DisplayService extends Service
 
         private void handleOnDisplayDisconnected() {
             mReadThread = null;
+            mWriteIntervalMillis = 0;
             if (mConnectionState != STATE_DISCONNECTED) {
                 mConnectionState = STATE_DISCONNECTED;
                 broadcastConnectionState();
@@ -515,7 +573,23 @@ public class DisplayService extends Service
         }
 
         private void handleOnInputEvent(BrailleInputEvent event) {
-            broadcastInputEvent(event);
+            boolean traced = DisplayTrace.begin(
+                    "DisplayService.broadcastInputEvent", event.getTraceId());
+            try {
+                broadcastInputEvent(event);
+            } finally {
+                DisplayTrace.end("DisplayService.broadcastInputEvent",
+                        event.getTraceId(), traced);
+            }
+        }
+
+        private void handleOnWriteIntervalChanged(long intervalMillis) {
+            if (mConnectionState != STATE_CONNECTED
+                    || intervalMillis == mWriteIntervalMillis) {
+                return;
+            }
+            mWriteIntervalMillis = intervalMillis;
+            broadcastWriteInterval();
         }
     }
 }
@@ -25,6 +25,7 @@ import android.os.SystemClock;
 import android.util.Log;
 import com.googlecode.eyesfree.braille.display.BrailleDisplayProperties;
 import com.googlecode.eyesfree.braille.display.BrailleInputEvent;
+import com.googlecode.eyesfree.braille.display.DisplayTrace;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -50,17 +51,40 @@ public class DriverThread {
     private static final int COMMAND_CODE_MASK = 0xffff;
     private static final int COMMAND_ARGUMENT_MASK = 0x7fff0000;
     private static final int COMMAND_ARGUMENT_SHIFT = 16;
+    /**
+     * Weight of a new sample in the moving average of frame write
+     * durations, as a power of two (a shift of 2 gives a weight of 1/4).
+     */
+    private static final int WRITE_AVERAGE_SHIFT = 2;
+    /**
+     * Headroom, in percent, added to the average write duration when
+     * estimating how often frames can be written.
+     */
+    private static final int WRITE_INTERVAL_HEADROOM_PERCENT = 25;
+    private static final long MAX_WRITE_INTERVAL_MILLIS = 500;
+    /** Smaller changes in the write interval are not reported. */
+    private static final long WRITE_INTERVAL_REPORT_THRESHOLD_MILLIS = 5;
 
     private final Handler mHandler;
     private final HandlerThread mHandlerThread;
 
     private byte[] writeBuffer;
+    private long writeTraceId;
 
     /** Stream for writing to the device. */
     private final OutputStream mOutputStream;
 
     private BrlttyWrapper mBrlttyWrapper;
 
+    // Write timing, only accessed on the driver thread.
+    /** Set while the driver writes a frame to the device. */
+    private boolean mWritingFrame = false;
+    /** Time spent sending bytes to the device for the current frame. */
+    private long mFrameSendNanos = 0;
+    /** Moving average of frame write durations, or -1 if unknown. */
+    private long mAverageFrameSendNanos = -1;
+    private long mReportedWriteIntervalMillis = 0;
+
     /**
      * Callback interface for getting notified when the driver initialization
      * has either succeeded or failed.
@@ -88,14 +112,31 @@ public class DriverThread {
     }
     private final OnInputEventListener mInputEventListener;
 
+    /**
+     * Callback interface for changes in how often frames can be written to
+     * the display.
+     */
+    public interface OnWriteIntervalChangeListener {
+        /**
+         * Called when the estimated minimum interval between frames that the
+         * display can sustain has changed.  {@code intervalMillis} is
+         * {@code 0} if there is no limit.  This is called from the driver
+         * thread.
+         */
+        void onWriteIntervalChanged(long intervalMillis);
+    }
+    private final OnWriteIntervalChangeListener mWriteIntervalListener;
+
     public DriverThread(OutputStream outputStream,
             DeviceFinder.DeviceInfo deviceInfo,
             Resources resources,
             File tablesDir,
             final OnInitListener initListener,
-            OnInputEventListener inputListener) {
+            OnInputEventListener inputListener,
+            OnWriteIntervalChangeListener writeIntervalListener) {
         mOutputStream = outputStream;
         mInputEventListener = inputListener;
+        mWriteIntervalListener = writeIntervalListener;
         mBrlttyWrapper = new BrlttyWrapper(deviceInfo, this, resources,
                 tablesDir);
         mHandlerThread = new HandlerThread("DriverTrhead") {
@@ -119,11 +160,18 @@ public class DriverThread {
 
     /**
      * Update the refreshable display with the given dot pattern.
+     * {@code traceId} is the {@link DisplayTrace} id of the frame.
      * This method can be called from any thread.
      */
-    public void writeWindow(byte[] pattern) {
+    public void writeWindow(byte[] pattern, long traceId) {
         synchronized (this) {
+            if (writeBuffer != null) {
+                // Only the newest frame is written.
+                DisplayTrace.instant("DriverThread.frameReplaced",
+                        writeTraceId);
+            }
             writeBuffer = pattern;
+            writeTraceId = traceId;
         }
         mHandler.sendEmptyMessage(MSG_WRITE);
     }
@@ -162,12 +210,52 @@ public class DriverThread {
 
     private void writeWindowInternal() {
         byte[] buffer = null;
+        long traceId;
         synchronized (this) {
             buffer = writeBuffer;
+            traceId = writeTraceId;
             writeBuffer = null;
         }
         if (buffer != null) {
-            boolean result = mBrlttyWrapper.writeWindow(buffer);
+            mWritingFrame = true;
+            mFrameSendNanos = 0;
+            // The bytes sent by the driver are traced as part of the frame.
+            long previousTraceId = DisplayTrace.setCurrentId(traceId);
+            boolean traced = DisplayTrace.begin("DriverThread.writeWindow",
+                    traceId);
+            boolean result;
+            try {
+                result = mBrlttyWrapper.writeWindow(buffer);
+            } finally {
+                DisplayTrace.end("DriverThread.writeWindow", traceId, traced);
+                DisplayTrace.setCurrentId(previousTraceId);
+                mWritingFrame = false;
+            }
+            // The driver doesn't send anything if the cells didn't change.
+            if (result && mFrameSendNanos > 0) {
+                updateWriteInterval(mFrameSendNanos);
+            }
+        }
+    }
+
+    /**
+     * Adds the duration of a frame write to the moving average and reports
+     * the estimated minimum write interval if it changed enough.
+     */
+    private void updateWriteInterval(long frameSendNanos) {
+        if (mAverageFrameSendNanos < 0) {
+            mAverageFrameSendNanos = frameSendNanos;
+        } else {
+            mAverageFrameSendNanos += (frameSendNanos - mAverageFrameSendNanos)
+                    >> WRITE_AVERAGE_SHIFT;
+        }
+        long intervalMillis = Math.min(MAX_WRITE_INTERVAL_MILLIS,
+                mAverageFrameSendNanos
+                * (100 + WRITE_INTERVAL_HEADROOM_PERCENT) / 100 / 1000000);
+        if (Math.abs(intervalMillis - mReportedWriteIntervalMillis)
+                >= WRITE_INTERVAL_REPORT_THRESHOLD_MILLIS) {
+            mReportedWriteIntervalMillis = intervalMillis;
+            mWriteIntervalListener.onWriteIntervalChanged(intervalMillis);
         }
     }
 
@@ -180,11 +268,22 @@ public class DriverThread {
      * Called from the driver to send raw bytes to the device.
      */
     public boolean sendBytesToDevice(byte[] bytes) {
+        long startNanos = System.nanoTime();
+        long traceId = DisplayTrace.currentId();
+        boolean traced = DisplayTrace.begin("DriverThread.sendBytesToDevice",
+                traceId);
         try {
             mOutputStream.write(bytes);
             return true;
         } catch (IOException ex) {
             Log.e(LOG_TAG, "Writing to braille device failed", ex);
+        } finally {
+            DisplayTrace.end("DriverThread.sendBytesToDevice", traceId,
+                    traced);
+            if (mWritingFrame) {
+                mFrameSendNanos +=
+                        System.nanoTime() - startNanos;
+            }
         }
         return false;
     }
@@ -218,11 +317,14 @@ public class DriverThread {
                     }
                     // Command code is in the low 16 bits and the argument
                     // in bits 16-30.
+                    long traceId = DisplayTrace.newId();
+                    DisplayTrace.instant("DriverThread.readCommand", traceId);
                     mInputEventListener.onInputEvent(
                         new BrailleInputEvent(command & COMMAND_CODE_MASK,
                                 ((command & COMMAND_ARGUMENT_MASK)
                                  >> COMMAND_ARGUMENT_SHIFT),
-                                SystemClock.uptimeMillis()));
+                                SystemClock.uptimeMillis(),
+                                traceId));
                 }
                 break;
 
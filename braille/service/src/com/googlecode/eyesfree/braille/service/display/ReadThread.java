@@ -107,7 +107,8 @@ class ReadThread extends Thread implements DriverThread.OnInitListener {
                         mResources,
                         mTablesDir,
                         this /*initListener*/,
-                        mDisplayService /*inputEventListener*/);
+                        mDisplayService /*inputEventListener*/,
+                        mDisplayService /*writeIntervalListener*/);
                 Log.i(LOG_TAG, "Device connected");
                 return true;
             } catch (IOException ex) {